@@ -0,0 +1,36 @@
+/**
+ * BenchmarkRunner
+ * @author Andrew Kulpa & Darren Wolbers
+ * Runs the benchmarks and saves the results as JMH JSON, so that builds can
+ * be compared with CompareResults.
+ *
+ *   java -jar benchmarks.jar [include regex] [results file]
+ *   java -cp benchmarks.jar spiderproxy.CompareResults baseline.json results.json
+ */
+package spiderproxy;
+
+import java.io.File;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkRunner {
+    public static String defaultResults = "target/jmh-results.json";
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "spiderproxy\\..*Benchmark";
+        String results = args.length > 1 ? args[1] : defaultResults;
+        File parent = new File(results).getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results)
+                .build();
+        new Runner(options).run();
+        System.out.println("Results written to " + results);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * CompareResults
+ * @author Andrew Kulpa & Darren Wolbers
+ * Compares two JMH JSON result files benchmark by benchmark and exits with
+ * status 1 if any got slower than the allowed margin, so a build can fail on
+ * a regression. Scores are read with a few patterns rather than a JSON
+ * library, relying on the layout JMH writes.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class CompareResults {
+    // Allowed slowdown before a benchmark counts as a regression, as a fraction.
+    public static double margin = 0.10;
+
+    private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern MODE = Pattern.compile("\"mode\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+    private static final Pattern SCORE = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE+]+|\"NaN\")");
+    private static final Pattern UNIT = Pattern.compile("\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+
+    /**
+     * One benchmark's result.
+     */
+    static final class Score {
+        final String mode;
+        final double score;
+        final String unit;
+
+        Score(String mode, double score, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CompareResults baseline.json results.json [margin]");
+            System.exit(2);
+        }
+        if (args.length > 2)
+            margin = Double.parseDouble(args[2]);
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> current = read(args[1]);
+        int regressions = 0;
+        System.out.println(String.format(Locale.ROOT, "%-70s %14s %14s %8s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score now = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null || !before.unit.equals(now.unit)) {
+                System.out.println(String.format(Locale.ROOT, "%-70s %14s %14.3f %8s", entry.getKey(), "-", now.score, "new"));
+                continue;
+            }
+            double change = slowdown(now.mode, before.score, now.score);
+            boolean regressed = change > margin;
+            if (regressed)
+                regressions++;
+            System.out.println(String.format(Locale.ROOT, "%-70s %14.3f %14.3f %+7.1f%%%s", entry.getKey(), before.score, now.score, change * 100, regressed ? "  REGRESSION" : ""));
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the " + Math.round(margin * 100) + "% margin");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns how much slower a benchmark got, as a fraction: positive when
+     * worse, whichever way the mode counts.
+     */
+    static double slowdown(String mode, double before, double now) {
+        if (before == 0 || now == 0)
+            return 0;
+        // Throughput counts operations per time, the other modes time per operation
+        return mode.equals("thrpt") ? before / now - 1 : now / before - 1;
+    }
+
+    /**
+     * Reads a JMH JSON result file into scores keyed by benchmark and
+     * parameters.
+     */
+    static Map<String, Score> read(String file) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        Matcher benchmark = BENCHMARK.matcher(json);
+        int start = benchmark.find() ? benchmark.start() : -1;
+        while (start >= 0) {
+            String name = benchmark.group(1);
+            int end = benchmark.find() ? benchmark.start() : json.length();
+            String entry = json.substring(start, end);
+            String key = name;
+            Matcher params = PARAMS.matcher(entry);
+            if (params.find())
+                key += " {" + params.group(1).replaceAll("\\s+", "").replace("\"", "") + "}";
+            Matcher mode = MODE.matcher(entry);
+            Matcher score = SCORE.matcher(entry);
+            Matcher unit = UNIT.matcher(entry);
+            if (mode.find() && score.find() && unit.find() && !score.group(1).contains("NaN"))
+                scores.put(key, new Score(mode.group(1), Double.parseDouble(score.group(1)), unit.group(1)));
+            start = end < json.length() ? end : -1;
+        }
+        return scores;
+    }
+}
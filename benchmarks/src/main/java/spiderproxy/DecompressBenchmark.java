@@ -0,0 +1,43 @@
+/**
+ * DecompressBenchmark
+ * @author Andrew Kulpa & Darren Wolbers
+ * Benchmarks decoding the recorded page for the spider in each content
+ * encoding an origin commonly sends.
+ */
+package spiderproxy;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecompressBenchmark {
+    @Param({"", "gzip", "deflate"})
+    public String encoding;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        body = Fixtures.encode(Fixtures.bytes("page.html"), encoding);
+    }
+
+    @Benchmark
+    public String decompress() throws Exception {
+        return Decompressor.decompress(body, encoding);
+    }
+}
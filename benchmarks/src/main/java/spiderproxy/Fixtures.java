@@ -0,0 +1,156 @@
+/**
+ * Fixtures
+ * @author Andrew Kulpa & Darren Wolbers
+ * Recorded traffic for the benchmarks: request and response headers as
+ * browsers and origins sent them, and a news page with the usual mix of
+ * navigation, article and off-site links. Also builds the encoded bodies and
+ * sitemaps the benchmarks work on, in a scratch directory of their own.
+ */
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+
+public class Fixtures {
+    public static final String PAGE_URL = "http://www.example.org/news/2019/05/14/city-council-approves-budget/";
+    public static final String HOST = "www.example.org";
+
+    /**
+     * Reads a fixture from the classpath.
+     *
+     * @param name the file name under fixtures/
+     * @return its bytes
+     * @throws IOException if the fixture is missing
+     */
+    public static byte[] bytes(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null)
+                throw new IOException("No fixture " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads a file of recorded headers, separated by blank lines, with the
+     * CRLF line endings they had on the wire.
+     *
+     * @param name the file name under fixtures/
+     * @return each header, ending in CRLF
+     * @throws IOException if the fixture is missing
+     */
+    public static String[] headers(String name) throws IOException {
+        String text = new String(bytes(name), StandardCharsets.ISO_8859_1).replace("\r\n", "\n").trim();
+        String[] headers = text.split("\n\n");
+        for (int i = 0; i < headers.length; i++)
+            headers[i] = headers[i].replace("\n", Proxy.carriageReturn) + Proxy.carriageReturn;
+        return headers;
+    }
+
+    /**
+     * Encodes a body the way an origin would.
+     *
+     * @param data the body
+     * @param encoding "gzip", "deflate" or "" for identity
+     * @return the encoded body
+     * @throws IOException never, for in-memory streams
+     */
+    public static byte[] encode(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (encoding.equals("gzip")) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            }
+        } else if (encoding.equals("deflate")) {
+            try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+                deflate.write(data);
+            }
+        } else {
+            out.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Points the sitemap directory at a new scratch directory.
+     *
+     * @return the directory
+     * @throws IOException if it cannot be created
+     */
+    public static File scratchSitemaps() throws IOException {
+        File dir = Files.createTempDirectory("spiderproxy-bench").toFile();
+        DataAccessor.path = dir.getPath() + File.separator;
+        return dir;
+    }
+
+    /**
+     * Writes a sitemap for a host holding the given number of page URLs.
+     *
+     * @param host the host name
+     * @param size the number of URLs
+     * @return the URLs written, in order
+     * @throws Exception if the sitemap cannot be built or written
+     */
+    public static String[] writeSitemap(String host, int size) throws Exception {
+        String[] urls = new String[size];
+        for (int i = 0; i < size; i++)
+            urls[i] = "http://" + host + "/archive/2019/" + (i % 12 + 1) + "/story-" + i + "/";
+        Document sitemap = BusinessLogic.generateBaseSitemap(urls[0]);
+        for (int i = 1; i < size; i++)
+            sitemap.getDocumentElement().appendChild(BusinessLogic.generateUrlNode(urls[i], sitemap));
+        File file = DataAccessor.getXMLFile(host);
+        file.delete();
+        file.createNewFile();
+        DataAccessor.writeXMLToFile(sitemap, file);
+        return urls;
+    }
+
+    /**
+     * Parses a host's sitemap.
+     *
+     * @param host the host name
+     * @return the sitemap document
+     * @throws Exception if it cannot be read
+     */
+    public static Document readSitemap(String host) throws Exception {
+        return parse(DataAccessor.getXMLFile(host));
+    }
+
+    private static Document parse(File file) throws ParserConfigurationException, IOException, org.xml.sax.SAXException {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        document.getDocumentElement().normalize();
+        return document;
+    }
+
+    /**
+     * Creates a Proxy that is not serving anyone, for calling its header
+     * helpers. Its connection is closed before it reads a request.
+     *
+     * @return the idle Proxy
+     * @throws IOException if the loopback connection fails
+     */
+    public static Proxy idleProxy() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            client.shutdownOutput();
+            return new Proxy(server.accept());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * HeaderBenchmark
+ * @author Andrew Kulpa & Darren Wolbers
+ * Benchmarks the string-based header helpers every proxied request goes
+ * through, on recorded request and response headers.
+ */
+package spiderproxy;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    // Which recorded response: a chunked gzip page, the two broken redirects, a cached JSON document.
+    @Param({"0", "1", "2", "3"})
+    public int response;
+    // The host each recorded response came from, which picks its rewrite rules.
+    private static final String[] HOSTS = {Fixtures.HOST, "www.wiu.edu", "blog.iosart.com", Fixtures.HOST};
+
+    private Proxy proxy;
+    private HeaderRewriter rewriter;
+    private String responseHost;
+    private String responseHeader;
+    private String requestHeader;
+
+    @Setup
+    public void setup() throws Exception {
+        proxy = Fixtures.idleProxy();
+        String[] responses = Fixtures.headers("response-headers.txt");
+        String[] requests = Fixtures.headers("request-headers.txt");
+        responseHeader = responses[response];
+        requestHeader = requests[response % requests.length];
+        rewriter = HeaderRewriter.shared();
+        responseHost = HOSTS[response];
+        // The broken redirects must really be rewritten, or this times a no-op
+        boolean broken = responseHeader.contains("Location:");
+        if (broken == responseHeader.equals(rewriter.rewriteResponse(responseHost, responseHeader)))
+            throw new IllegalStateException("Response " + response + (broken ? " was not rewritten" : " was rewritten"));
+    }
+
+    @Benchmark
+    public String getHeaderValue() {
+        return proxy.getHeaderValue(responseHeader, "content-type");
+    }
+
+    @Benchmark
+    public String removeChunkedEncoding() {
+        return proxy.removeChunkedEncoding(responseHeader);
+    }
+
+    @Benchmark
+    public String cleanLocationValue() {
+        return rewriter.rewriteResponse(responseHost, responseHeader);
+    }
+
+    @Benchmark
+    public String fixAbsoluteURI() throws Exception {
+        return Proxy.fixAbsoluteURI(requestHeader);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * SearchBenchmark
+ * @author Andrew Kulpa & Darren Wolbers
+ * Benchmarks the /search index: adding a URL to an index of a given size,
+ * and answering word, path and host queries from it. The URLs are spread
+ * across 2,000 hosts and a handful of site sections.
+ */
+package spiderproxy;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final String[] SECTIONS = {"news", "docs", "blog", "products", "support", "about", "events", "people"};
+
+    // URLs already in the index.
+    @Param({"20000", "200000"})
+    public int size;
+
+    // A word, a path, a host, a rare word, two terms, a short prefix and a one-letter prefix.
+    @Param({"docs", "/blog/12", "host42.example.com", "item-1999", "news item-5", "prod", "h"})
+    public String query;
+
+    private SearchIndex index;
+    private int added;
+
+    @Setup(Level.Iteration)
+    public void buildIndex() {
+        index = new SearchIndex();
+        for (int i = 0; i < size; i++)
+            index.add(url(i));
+        added = size;
+    }
+
+    /**
+     * Adds a URL the index does not have yet. The index grows by one per call
+     * within an iteration.
+     */
+    @Benchmark
+    public boolean add() {
+        return index.add(url(added++));
+    }
+
+    @Benchmark
+    public SearchIndex.Result search() {
+        return index.search(query, 0, 50);
+    }
+
+    private static String url(int i) {
+        return "http://host" + (i % 2000) + ".example.com/" + SECTIONS[i % SECTIONS.length] + "/" + (i / 7) + "/item-" + i + ".html";
+    }
+}
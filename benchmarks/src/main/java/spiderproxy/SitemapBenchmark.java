@@ -0,0 +1,94 @@
+/**
+ * SitemapBenchmark
+ * @author Andrew Kulpa & Darren Wolbers
+ * Benchmarks the spider's path from a page to its sitemaps: extracting and
+ * inserting the recorded page's links, checking one URL against a sitemap of
+ * a given size, adding a new URL to it, and rendering it as table rows.
+ * Sitemaps live in a scratch directory, not the proxy's map/.
+ */
+package spiderproxy;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SitemapBenchmark {
+    // URLs already in the sitemap.
+    @Param({"100", "1000"})
+    public int size;
+
+    private File scratch;
+    private byte[] page;
+    private String[] urls;
+    private Document sitemap;
+    private int added = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        scratch = Fixtures.scratchSitemaps();
+        page = Fixtures.bytes("page.html");
+    }
+
+    @Setup(Level.Iteration)
+    public void writeSitemap() throws Exception {
+        urls = Fixtures.writeSitemap(Fixtures.HOST, size);
+        sitemap = Fixtures.readSitemap(Fixtures.HOST);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() {
+        File[] files = scratch.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        scratch.delete();
+    }
+
+    /**
+     * Spiders the recorded page. After the first call its links are all
+     * known, as they are for most pages the proxy sees again.
+     */
+    @Benchmark
+    public void checkAndInsertSet() throws Exception {
+        BusinessLogic.checkAndInsertSet(page, "", Fixtures.PAGE_URL);
+    }
+
+    @Benchmark
+    public boolean checkAndInsertKnown() throws Exception {
+        return BusinessLogic.checkAndInsert(urls[size / 2], Fixtures.HOST);
+    }
+
+    /**
+     * Adds a URL the sitemap does not have yet, so it is rewritten every
+     * call. The sitemap grows by one per call within an iteration.
+     */
+    @Benchmark
+    public boolean checkAndInsertNew() throws Exception {
+        return BusinessLogic.checkAndInsert("http://" + Fixtures.HOST + "/new/" + (added++) + "/", Fixtures.HOST);
+    }
+
+    @Benchmark
+    public String xmlToHTMLRows() {
+        return BusinessLogic.xmlToHTMLRows(sitemap);
+    }
+}
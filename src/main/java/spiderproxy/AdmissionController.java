@@ -0,0 +1,280 @@
+/**
+ * AdmissionController
+ * @author Andrew Kulpa & Darren Wolbers
+ * Limits how many requests are handled at once so that latency degrades
+ * gracefully instead of collapsing. Proxied requests share a concurrency
+ * limit that adapts to observed latency with a gradient rule: while recent
+ * requests are about as fast as the long-run average the limit grows, and
+ * as they slow down it shrinks. Requests over the limit wait briefly and are
+ * then refused with a 503. Requests for the proxy's own pages use a small
+ * separate lane so the dashboard stays reachable under load.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionController {
+    public static int initialLimit = 64;
+    public static int minLimit = 8;
+    public static int maxLimit = 1024;
+    public static int internalLimit = 16;
+    // Requests waiting for a slot beyond this many are refused at once.
+    public static int maxQueued = 128;
+    public static long queueTimeoutMillis = 200;
+    public static int retryAfterSeconds = 1;
+    // Connections the accept loop will hand to worker threads at once.
+    public static int maxConnections = 4096;
+    // How far recent latency may exceed the long-run average before the limit shrinks.
+    public static double tolerance = 1.5;
+    private static volatile AdmissionController shared;
+
+    private final int floor;
+    private final int ceiling;
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private int internalInFlight = 0;
+    // Latency averages in nanoseconds: shortRtt follows recent requests, longRtt the last few hundred.
+    private double shortRtt = 0;
+    private double longRtt = 0;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queuedTotal = new AtomicLong();
+    private final AtomicLong rejectedQueueFull = new AtomicLong();
+    private final AtomicLong rejectedTimeout = new AtomicLong();
+    private final AtomicLong rejectedInternal = new AtomicLong();
+    private final AtomicLong rejectedAtAccept = new AtomicLong();
+
+    /**
+     * A slot held by one request while it is handled.
+     */
+    public final class Permit implements AutoCloseable {
+        private final boolean internal;
+        private final long start = System.nanoTime();
+        private final int inFlightAtStart;
+        private boolean released = false;
+
+        private Permit(boolean internal, int inFlightAtStart) {
+            this.internal = internal;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * Frees the slot and feeds the request's latency to the limit.
+         */
+        public void release() {
+            finish(true);
+        }
+
+        /**
+         * Frees the slot without a latency sample, for requests that failed
+         * or whose duration says nothing about load, such as tunnels.
+         */
+        public void abandon() {
+            finish(false);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+        private void finish(boolean sample) {
+            synchronized (AdmissionController.this) {
+                if (released)
+                    return;
+                released = true;
+                if (internal) {
+                    internalInFlight -= 1;
+                } else {
+                    inFlight -= 1;
+                    if (sample)
+                        update(System.nanoTime() - start, inFlightAtStart);
+                }
+                AdmissionController.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Creates a controller whose limit adapts between floor and ceiling.
+     *
+     * @param initial the starting concurrency limit
+     * @param floor the lowest the limit may fall
+     * @param ceiling the highest the limit may rise
+     */
+    public AdmissionController(int initial, int floor, int ceiling) {
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.limit = Math.max(floor, Math.min(ceiling, initial));
+    }
+
+    /**
+     * Returns the controller shared by the proxy.
+     *
+     * @return the shared AdmissionController
+     */
+    public static AdmissionController shared() {
+        if (shared == null) {
+            synchronized (AdmissionController.class) {
+                if (shared == null)
+                    shared = new AdmissionController(initialLimit, minLimit, maxLimit);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Admits a request, waiting up to queueTimeoutMillis for a slot if the
+     * limit is reached.
+     *
+     * @param internal true for requests to the proxy's own pages
+     * @return the permit, or null if the request should be refused
+     */
+    public synchronized Permit acquire(boolean internal) {
+        if (internal) {
+            if (internalInFlight >= internalLimit) {
+                rejectedInternal.incrementAndGet();
+                return null;
+            }
+            internalInFlight += 1;
+            return new Permit(true, internalInFlight);
+        }
+        if (inFlight >= (int) limit) {
+            if (queued >= maxQueued) {
+                rejectedQueueFull.incrementAndGet();
+                return null;
+            }
+            queued += 1;
+            queuedTotal.incrementAndGet();
+            long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+            try {
+                while (inFlight >= (int) limit) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        rejectedTimeout.incrementAndGet();
+                        return null;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                queued -= 1;
+            }
+        }
+        inFlight += 1;
+        admitted.incrementAndGet();
+        return new Permit(false, inFlight);
+    }
+
+    /**
+     * Counts a newly accepted connection against maxConnections.
+     *
+     * @return false if the connection should be refused without being read
+     */
+    public boolean openConnection() {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejectedAtAccept.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a connection accepted by openConnection() as finished.
+     */
+    public void closeConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Answers a connection with a 503 and closes it, without reading its
+     * request, so the accept loop is never held up by it.
+     *
+     * @param socket the refused connection
+     */
+    public static void refuse(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(1000);
+            OutputStream out = s.getOutputStream();
+            out.write(BusinessLogic.return503("", retryAfterSeconds).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException ex) {
+            // the client is gone already
+        }
+    }
+
+    /**
+     * Returns the number of connections currently open.
+     *
+     * @return the open connection count
+     */
+    public int connections() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the current concurrency limit for proxied requests.
+     *
+     * @return the limit
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the controller's limit, load and refusal counters as a JSON
+     * object.
+     *
+     * @return the stats document
+     */
+    public synchronized String statsJson() {
+        return "{\"limit\":" + (int) limit
+             + ",\"inFlight\":" + inFlight
+             + ",\"queued\":" + queued
+             + ",\"internalInFlight\":" + internalInFlight
+             + ",\"connections\":" + connections.get()
+             + ",\"admitted\":" + admitted.get()
+             + ",\"queuedTotal\":" + queuedTotal.get()
+             + ",\"rejectedQueueFull\":" + rejectedQueueFull.get()
+             + ",\"rejectedTimeout\":" + rejectedTimeout.get()
+             + ",\"rejectedInternal\":" + rejectedInternal.get()
+             + ",\"rejectedAtAccept\":" + rejectedAtAccept.get()
+             + ",\"shortRttMillis\":" + String.format(Locale.ROOT, "%.2f", shortRtt / 1e6)
+             + ",\"longRttMillis\":" + String.format(Locale.ROOT, "%.2f", longRtt / 1e6) + "}";
+    }
+
+    /**
+     * Gradient update: the limit is scaled by how the long-run latency
+     * compares to recent latency, plus a little headroom to probe for more
+     * capacity. Callers hold the lock.
+     */
+    void update(long rttNanos, int inFlightAtStart) {
+        if (longRtt == 0) {
+            shortRtt = rttNanos;
+            longRtt = rttNanos;
+        } else {
+            shortRtt = shortRtt * 0.9 + rttNanos * 0.1;
+            longRtt = longRtt * (1 - 1.0 / 600) + rttNanos / 600.0;
+        }
+        // After a long slow period let the baseline recover quickly.
+        if (longRtt / shortRtt > 2)
+            longRtt *= 0.95;
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        // Only grow when the limit is actually being used.
+        if (inFlightAtStart < limit / 2)
+            newLimit = Math.min(newLimit, limit);
+        limit = Math.max(floor, Math.min(ceiling, limit * 0.8 + newLimit * 0.2));
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * BufferPool
+ * @author Andrew Kulpa & Darren Wolbers
+ * Pooled byte buffers for the relay and parse paths. Capacities are rounded
+ * up to power-of-two size classes; released buffers go to a small per-thread
+ * cache first and then to a bounded shared free list per class, so steady
+ * traffic reuses the same arrays instead of allocating per request. Requests
+ * larger than the biggest class are allocated unpooled. Heap buffers back the
+ * stream based relay paths; the direct pool is for channel I/O.
+ */
+package spiderproxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+    public static int minClassBytes = 512;
+    public static int maxClassBytes = 4 * 1024 * 1024;
+    public static int threadCacheSize = 4;
+    public static int sharedCacheSize = 64;
+    // Record where every outstanding buffer was acquired, so tests can report leaks.
+    public static boolean leakDetection = false;
+    // Chunk size used when relaying streams.
+    public static int relayBufferBytes = 16 * 1024;
+    private static volatile BufferPool heap;
+    private static volatile BufferPool direct;
+
+    private final boolean isDirect;
+    private final int classCount;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared;
+    private final AtomicInteger[] sharedSizes;
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> threadCache;
+    private final Map<Buffer, Throwable> live = new ConcurrentHashMap<>();
+    private final long created = System.currentTimeMillis();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong threadHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong bytesAllocated = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * A buffer on loan from the pool, used as a growable byte sink: data is
+     * written from position 0 up to length(), and growing swaps in a buffer of
+     * a larger class. Must be released exactly once.
+     */
+    public final class Buffer implements AutoCloseable {
+        private ByteBuffer buffer;
+        private int length = 0;
+        private boolean released = false;
+
+        private Buffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns the backing array of a heap buffer. It is usually longer than
+         * length(), and is only valid until the buffer grows or is released.
+         *
+         * @return the backing array
+         * @throws UnsupportedOperationException for direct buffers
+         */
+        public byte[] array() {
+            if (buffer.isDirect())
+                throw new UnsupportedOperationException("Direct buffers have no backing array");
+            return buffer.array();
+        }
+
+        /**
+         * Returns the underlying ByteBuffer, positioned at 0 with its limit at
+         * length().
+         *
+         * @return the ByteBuffer
+         */
+        public ByteBuffer byteBuffer() {
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.limit(length);
+            return view;
+        }
+
+        public int length() { return length; }
+        public int capacity() { return buffer.capacity(); }
+
+        /**
+         * Appends bytes, growing into a larger size class if needed.
+         *
+         * @param data the source array
+         * @param offset where in data to start
+         * @param count the number of bytes
+         */
+        public void append(byte[] data, int offset, int count) {
+            ensureCapacity(length + count);
+            ByteBuffer target = buffer.duplicate();
+            target.position(length);
+            target.put(data, offset, count);
+            length += count;
+        }
+
+        /**
+         * Reads a stream to its end, appending everything read.
+         *
+         * @param in the stream to drain
+         * @param limit the most bytes to accept
+         * @return the number of bytes read
+         * @throws IOException thrown by read(), or if the stream is longer than limit
+         */
+        public int readFrom(InputStream in, int limit) throws IOException {
+            int start = length;
+            while (true) {
+                if (length == buffer.capacity())
+                    ensureCapacity(length + 1);
+                if (read(in, buffer.capacity() - length) == -1)
+                    return length - start;
+                if (length - start > limit)
+                    throw new IOException("Stream longer than " + limit + " bytes");
+            }
+        }
+
+        /**
+         * Reads exactly count bytes from a stream, appending them.
+         *
+         * @param in the stream to read
+         * @param count the number of bytes to read
+         * @throws IOException thrown by read(), or EOFException if the stream ends early
+         */
+        public void readFully(InputStream in, int count) throws IOException {
+            ensureCapacity(length + count);
+            int end = length + count;
+            while (length < end) {
+                if (read(in, end - length) == -1)
+                    throw new EOFException("Stream ended " + (end - length) + " bytes early");
+            }
+        }
+
+        /**
+         * Reads whatever one read() of the stream returns into the free space
+         * after length(), without growing.
+         *
+         * @param in the stream to read
+         * @return the number of bytes read, or -1 at the end of the stream
+         * @throws IOException thrown by read()
+         */
+        public int readSome(InputStream in) throws IOException {
+            checkLive();
+            if (length == buffer.capacity())
+                return 0;
+            return read(in, buffer.capacity() - length);
+        }
+
+        private int read(InputStream in, int max) throws IOException {
+            int n;
+            if (buffer.hasArray()) {
+                n = in.read(buffer.array(), buffer.arrayOffset() + length, Math.min(max, relayBufferBytes));
+            } else {
+                // Streams need an array; stage through a pooled heap buffer
+                Buffer chunk = heap().acquire(Math.min(max, relayBufferBytes));
+                try {
+                    n = in.read(chunk.array(), 0, Math.min(max, relayBufferBytes));
+                    if (n > 0) {
+                        ByteBuffer target = buffer.duplicate();
+                        target.position(length);
+                        target.put(chunk.array(), 0, n);
+                    }
+                } finally {
+                    chunk.release();
+                }
+            }
+            if (n > 0)
+                length += n;
+            return n;
+        }
+
+        /**
+         * Writes the buffered bytes to a stream.
+         *
+         * @param out the destination
+         * @throws IOException thrown by write()
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset(), length);
+            } else {
+                ByteBuffer source = byteBuffer();
+                Buffer chunk = heap().acquire(relayBufferBytes);
+                try {
+                    while (source.hasRemaining()) {
+                        int n = Math.min(source.remaining(), chunk.capacity());
+                        source.get(chunk.array(), 0, n);
+                        out.write(chunk.array(), 0, n);
+                    }
+                } finally {
+                    chunk.release();
+                }
+            }
+        }
+
+        /**
+         * Returns an exactly sized copy of the buffered bytes, for callers that
+         * keep them past release().
+         *
+         * @return the bytes written so far
+         */
+        public byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.get(bytes, 0, length);
+            return bytes;
+        }
+
+        /**
+         * Makes room for at least minimumCapacity bytes, keeping the contents.
+         *
+         * @param minimumCapacity the capacity needed
+         */
+        public void ensureCapacity(int minimumCapacity) {
+            checkLive();
+            if (minimumCapacity <= buffer.capacity())
+                return;
+            ByteBuffer larger = take(Math.max(minimumCapacity, buffer.capacity() * 2));
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.limit(length);
+            larger.put(source);
+            larger.clear();
+            give(buffer);
+            buffer = larger;
+        }
+
+        /**
+         * Returns the buffer to the pool.
+         *
+         * @throws IllegalStateException if it was already released
+         */
+        public void release() {
+            checkLive();
+            released = true;
+            outstanding.decrementAndGet();
+            if (leakDetection)
+                live.remove(this);
+            give(buffer);
+            buffer = null;
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+        private void checkLive() {
+            if (released)
+                throw new IllegalStateException("Buffer already released");
+        }
+    }
+
+    /**
+     * Creates a pool of heap or direct buffers.
+     *
+     * @param isDirect true for direct ByteBuffers
+     */
+    public BufferPool(boolean isDirect) {
+        this.isDirect = isDirect;
+        int classes = 0;
+        for (long size = minClassBytes; size <= maxClassBytes; size <<= 1)
+            classes += 1;
+        this.classCount = classes;
+        this.shared = new ArrayList<>(classes);
+        this.sharedSizes = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+            sharedSizes[i] = new AtomicInteger();
+        }
+        // Each thread's deques are created on first use, so idle size classes cost nothing
+        this.threadCache = ThreadLocal.withInitial(() -> new ArrayList<>(Collections.<ArrayDeque<ByteBuffer>>nCopies(classCount, null)));
+    }
+
+    /**
+     * Returns the pool of heap buffers shared by the proxy.
+     *
+     * @return the shared heap BufferPool
+     */
+    public static BufferPool heap() {
+        if (heap == null) {
+            synchronized (BufferPool.class) {
+                if (heap == null)
+                    heap = new BufferPool(false);
+            }
+        }
+        return heap;
+    }
+
+    /**
+     * Returns the pool of direct buffers shared by the proxy.
+     *
+     * @return the shared direct BufferPool
+     */
+    public static BufferPool direct() {
+        if (direct == null) {
+            synchronized (BufferPool.class) {
+                if (direct == null)
+                    direct = new BufferPool(true);
+            }
+        }
+        return direct;
+    }
+
+    /**
+     * Borrows an empty buffer with at least the given capacity.
+     *
+     * @param minimumCapacity the capacity needed
+     * @return a buffer that must be released
+     */
+    public Buffer acquire(int minimumCapacity) {
+        Buffer buffer = new Buffer(take(minimumCapacity));
+        outstanding.incrementAndGet();
+        if (leakDetection)
+            live.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+        return buffer;
+    }
+
+    /**
+     * Hands the calling thread's cached buffers back to the shared free lists.
+     * Connection threads call this as they finish, so the buffers they cached
+     * are not lost with the thread.
+     */
+    public void releaseThreadCache() {
+        List<ArrayDeque<ByteBuffer>> caches = threadCache.get();
+        threadCache.remove();
+        for (int index = 0; index < caches.size(); index++) {
+            if (caches.get(index) == null)
+                continue;
+            for (ByteBuffer buffer : caches.get(index)) {
+                if (sharedSizes[index].incrementAndGet() <= sharedCacheSize) {
+                    shared.get(index).offer(buffer);
+                } else {
+                    sharedSizes[index].decrementAndGet();
+                    discarded.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers acquired and not yet released.
+     *
+     * @return the outstanding count
+     */
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Describes each outstanding buffer with the stack it was acquired from.
+     * Only buffers acquired while leakDetection was on are tracked.
+     *
+     * @return one description per leaked buffer
+     */
+    public List<String> leaks() {
+        List<String> leaks = new ArrayList<>();
+        for (Throwable trace : live.values()) {
+            StringWriter text = new StringWriter();
+            trace.printStackTrace(new PrintWriter(text));
+            leaks.add(text.toString());
+        }
+        return leaks;
+    }
+
+    /**
+     * Returns the pool counters as a JSON object.
+     *
+     * @return the stats document
+     */
+    public String statsJson() {
+        double seconds = Math.max(1, System.currentTimeMillis() - created) / 1000.0;
+        return "{\"acquisitions\":" + acquisitions.get()
+             + ",\"threadCacheHits\":" + threadHits.get()
+             + ",\"sharedHits\":" + sharedHits.get()
+             + ",\"allocations\":" + allocations.get()
+             + ",\"bytesAllocated\":" + bytesAllocated.get()
+             + ",\"allocatedBytesPerSecond\":" + String.format(Locale.ROOT, "%.1f", bytesAllocated.get() / seconds)
+             + ",\"unpooled\":" + unpooled.get()
+             + ",\"discarded\":" + discarded.get()
+             + ",\"outstanding\":" + outstanding.get() + "}";
+    }
+
+    /**
+     * Returns the size class index for a capacity, or -1 if it is too large
+     * to pool.
+     */
+    static int sizeClass(int capacity) {
+        if (capacity > maxClassBytes)
+            return -1;
+        int size = minClassBytes;
+        int index = 0;
+        while (size < capacity) {
+            size <<= 1;
+            index += 1;
+        }
+        return index;
+    }
+
+    private ByteBuffer take(int minimumCapacity) {
+        acquisitions.incrementAndGet();
+        int index = sizeClass(minimumCapacity);
+        if (index < 0 || index >= classCount) {
+            unpooled.incrementAndGet();
+            return allocate(minimumCapacity);
+        }
+        ArrayDeque<ByteBuffer> local = threadCache.get().get(index);
+        if (local != null && !local.isEmpty()) {
+            threadHits.incrementAndGet();
+            return local.pop();
+        }
+        ByteBuffer pooled = shared.get(index).poll();
+        if (pooled != null) {
+            sharedSizes[index].decrementAndGet();
+            sharedHits.incrementAndGet();
+            return pooled;
+        }
+        return allocate(minClassBytes << index);
+    }
+
+    private void give(ByteBuffer buffer) {
+        buffer.clear();
+        int index = Integer.numberOfTrailingZeros(buffer.capacity()) - Integer.numberOfTrailingZeros(minClassBytes);
+        if (Integer.bitCount(buffer.capacity()) != 1 || index < 0 || index >= classCount)
+            return; // unpooled; left to the garbage collector
+        List<ArrayDeque<ByteBuffer>> caches = threadCache.get();
+        ArrayDeque<ByteBuffer> local = caches.get(index);
+        if (local == null) {
+            local = new ArrayDeque<>(threadCacheSize);
+            caches.set(index, local);
+        }
+        if (local.size() < threadCacheSize) {
+            local.push(buffer);
+        } else if (sharedSizes[index].incrementAndGet() <= sharedCacheSize) {
+            shared.get(index).offer(buffer);
+        } else {
+            sharedSizes[index].decrementAndGet();
+            discarded.incrementAndGet();
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocations.incrementAndGet();
+        bytesAllocated.addAndGet(capacity);
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
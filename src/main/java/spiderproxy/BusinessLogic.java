@@ -7,11 +7,17 @@ package spiderproxy;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -29,6 +35,8 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 public class BusinessLogic {
+    public static int searchPageSize = 50;
+    private static final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
     public BusinessLogic() {
 
@@ -50,23 +58,27 @@ public class BusinessLogic {
         String response = "";
         if(urlLoc.trim().equals("/") || urlLoc.trim().equals("/index.html")){
             response += generateHTTPHeader(url, "200 OK") + Proxy.carriageReturn; // created header
-            String sitemapsListTable = buildHomepageSitemapListTable();
+            String sitemapsListTable = buildHomepageSitemapListTable(getQueryParameter(url, "sort"),
+                    getQueryParameter(url, "order"), getQueryParameter(url, "q"));
             response += htmlDocumentWrapper(sitemapsListTable);
+        } else if (urlLoc.trim().equals("/search")){
+            response += generateHTTPHeader(url, "200 OK") + Proxy.carriageReturn;
+            response += htmlDocumentWrapper(buildSearchPage(getQueryParameter(url, "q"), getQueryParameter(url, "page")));
         } else if (urlLoc.trim().startsWith("/" + DataAccessor.path)){
             String hostname = urlLoc.replace("/" + DataAccessor.path,"").replace('/', '.'); // REMOVE FIRST '/'? or is it removed?
             File sitemap = DataAccessor.getXMLFile(hostname);
             if (!sitemap.exists()) {
-                System.out.println("Did not find sitemap for: " + url);
+                EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.DEBUG, "Did not find sitemap", "url", url);
                 response = return404(url);
             } else {
-                System.out.println("Found sitemap for: " + url);
+                EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.DEBUG, "Found sitemap", "url", url);
                 String responseBody = checkAndReturnSitemapHTML(hostname);
                 response += generateHTTPHeader(url, "200 OK") + Proxy.carriageReturn;
                 response += htmlDocumentWrapper(responseBody);
                 
             }
         } else {
-            System.out.println("URL requested not within whitelist: " + url);
+            EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.INFO, "URL requested not within whitelist", "url", url);
             response = return404(url);
         }
         return response;
@@ -113,6 +125,39 @@ public class BusinessLogic {
         return response += htmlDocumentWrapper(notFoundMessage);
     }
     
+    /**
+     * Returns a 504 message, for requests that may only be answered from the
+     * cache when nothing usable is stored.
+     * 
+     * @param url the url for the requested resource
+     * @return a generic 504 message HTML String
+    */
+    public static String return504(String url){
+        String response = "";
+        response += generateHTTPHeader(url, "504 Gateway Timeout") + Proxy.carriageReturn;
+        String message = "504 Resource '" + url + "' is not cached."; 
+        message = htmlHeader() + message + htmlFooter();
+        return response += htmlDocumentWrapper(message);
+    }
+    
+    /**
+     * Returns a 503 message, for requests refused because the proxy is over
+     * its load limit. Retry-After tells the client when to try again.
+     * 
+     * @param url the url for the requested resource
+     * @param retryAfterSeconds the number of seconds the client should wait
+     * @return a generic 503 message HTML String
+    */
+    public static String return503(String url, int retryAfterSeconds){
+        String response = "";
+        response += generateHTTPHeader(url, "503 Service Unavailable")
+                  + "Retry-After: " + retryAfterSeconds + Proxy.carriageReturn
+                  + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn;
+        String message = "503 The proxy is busy. Please try again in " + retryAfterSeconds + " second(s)."; 
+        message = htmlHeader() + message + htmlFooter();
+        return response += htmlDocumentWrapper(message);
+    }
+    
     /**
      * Encloses the currentHTML input in html and body tags, with a prepended head tag to boot!
      * 
@@ -148,6 +193,9 @@ public class BusinessLogic {
                                 + "<div class=\"navbar-header\">"
                                     + "<a class=\"navbar-brand\" href=\"/index.html\">ProxySpider</a>"
                                 + "</div>"
+                                + "<form class=\"navbar-form navbar-left\" method=\"GET\" action=\"/search\">"
+                                    + "<input type=\"text\" class=\"form-control\" name=\"q\" placeholder=\"Search URLs\">"
+                                + "</form>"
                             + "</div>"
                         + "</nav>"
                       + "</div>";
@@ -215,24 +263,161 @@ public class BusinessLogic {
      * @return a String of the HTML table from the sitemap listings
     */
     public static String buildHomepageSitemapListTable(){
-        ArrayList<String> xmlFiles = DataAccessor.getXMLFileList();
-        String htmlRows = "";
+        return buildHomepageSitemapListTable("", "", "");
+    }
+    
+    /**
+     * Returns a string with a valid HTML table containing the crawled domains
+     * matching the filter, read from the in-memory HostCatalog.
+     * 
+     * @param sort the column to sort by: "host", "urls", "first", "updated" or "size"
+     * @param order "desc" for descending order, anything else for ascending
+     * @param filter a substring the hostname must contain; empty matches all
+     * @return a String of the HTML table from the sitemap listings
+    */
+    public static String buildHomepageSitemapListTable(String sort, String order, String filter){
+        boolean descending = "desc".equals(order);
+        StringBuilder htmlRows = new StringBuilder();
         int i = 0;
-        for(String xmlFile : xmlFiles){
-            String baseFilename = xmlFile;
-            if (baseFilename.indexOf(".") > 0) {
-                baseFilename = baseFilename.substring(0, baseFilename.lastIndexOf("."));
-            }
-            htmlRows += "<tr>"
-                        + "<th scope=\"row\">" + i + "</th>"
-                        + "<td>"
-                            + "<a href=\"" + DataAccessor.path + baseFilename.replace('.', '/') + "\">" // x.y.z --> x\y\z
-                                + baseFilename // x.y.z
-                            + "</a>"
-                        + "</td>"
-                     + "</tr>";
+        for(HostCatalog.HostEntry host : HostCatalog.list(sort, descending, filter)){
+            String baseFilename = host.getHostname();
+            htmlRows.append("<tr>")
+                        .append("<th scope=\"row\">").append(i).append("</th>")
+                        .append("<td>")
+                            .append("<a href=\"").append(DataAccessor.path).append(escapeHTML(baseFilename.replace('.', '/'))).append("\">") // x.y.z --> x\y\z
+                                .append(escapeHTML(baseFilename)) // x.y.z
+                            .append("</a>")
+                        .append("</td>")
+                        .append("<td>").append(host.getUrlCount()).append("</td>")
+                        .append("<td>").append(formatTime(host.getFirstSeen())).append("</td>")
+                        .append("<td>").append(formatTime(host.getLastUpdated())).append("</td>")
+                        .append("<td>").append(formatSize(host.getSizeOnDisk())).append("</td>")
+                     .append("</tr>");
+            i += 1;
+        }
+        String safeFilter = escapeHTML(filter == null ? "" : filter);
+        String form = "<form class=\"form-inline\" method=\"GET\" action=\"/index.html\">"
+                        + "<input type=\"text\" class=\"form-control\" name=\"q\" placeholder=\"Filter hosts\" value=\"" + safeFilter + "\">"
+                        + "<input type=\"hidden\" name=\"sort\" value=\"" + escapeHTML(sort == null ? "" : sort) + "\">"
+                        + "<input type=\"hidden\" name=\"order\" value=\"" + (descending ? "desc" : "asc") + "\">"
+                        + "<button type=\"submit\" class=\"btn btn-default\">Filter</button>"
+                    + "</form>";
+        String table = "<table class=\"table\">"
+                + "<thead>"
+                    + "<tr>"
+                        + "<th scope=\"col\">#</th>"
+                        + "<th scope=\"col\">" + sortLink("loc", "host", sort, descending, safeFilter) + "</th>"
+                        + "<th scope=\"col\">" + sortLink("URLs", "urls", sort, descending, safeFilter) + "</th>"
+                        + "<th scope=\"col\">" + sortLink("First seen", "first", sort, descending, safeFilter) + "</th>"
+                        + "<th scope=\"col\">" + sortLink("Last updated", "updated", sort, descending, safeFilter) + "</th>"
+                        + "<th scope=\"col\">" + sortLink("Size", "size", sort, descending, safeFilter) + "</th>"
+                    + "</tr>"
+                + "</thead>"
+                    + "<tbody>"
+                        + htmlRows
+                    + "</tbody>"
+                + "</table>";
+        return htmlHeader() + form + table + htmlFooter();
+    }
+    
+    /**
+     * Returns a column heading link that sorts the homepage table by the given
+     * key, flipping the order if the table is already sorted by it.
+     * 
+     * @param label the visible column heading
+     * @param key the sort key for this column
+     * @param currentSort the sort key currently applied
+     * @param descending whether the current order is descending
+     * @param safeFilter the HTML-escaped filter to carry over
+     * @return an HTML anchor for the column heading
+    */
+    private static String sortLink(String label, String key, String currentSort, boolean descending, String safeFilter){
+        boolean flip = key.equals(currentSort) && !descending;
+        return "<a href=\"/index.html?sort=" + key + "&amp;order=" + (flip ? "desc" : "asc") + "&amp;q=" + safeFilter + "\">"
+                + label
+             + "</a>";
+    }
+    
+    /**
+     * Formats epoch milliseconds for display on the internal pages.
+     * 
+     * @param millis milliseconds since the epoch
+     * @return the local date and time, or an empty String if unknown
+    */
+    public static String formatTime(long millis){
+        if(millis <= 0)
+            return "";
+        return timeFormat.format(Instant.ofEpochMilli(millis));
+    }
+    
+    /**
+     * Formats a byte count for display on the internal pages.
+     * 
+     * @param bytes a size in bytes
+     * @return the size in B, KB or MB
+    */
+    public static String formatSize(long bytes){
+        if(bytes < 1024)
+            return bytes + " B";
+        if(bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+    
+    /**
+     * Escapes the characters that are significant in HTML text and attributes.
+     * 
+     * @param text untrusted text
+     * @return the text, safe to embed in an HTML page
+    */
+    public static String escapeHTML(String text){
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                   .replace("\"", "&quot;").replace("'", "&#39;");
+    }
+    
+    /**
+     * Returns the /search page: a table of the discovered URLs matching the
+     * query, answered from the SearchIndex, with links to further pages.
+     * 
+     * @param query the search terms
+     * @param page the 1-based page number; anything unparsable is treated as 1
+     * @return the HTML for the search page
+    */
+    public static String buildSearchPage(String query, String page){
+        int pageNumber;
+        try {
+            pageNumber = Math.max(1, Integer.parseInt(page));
+        } catch (NumberFormatException e) {
+            pageNumber = 1;
+        }
+        long start = System.nanoTime();
+        SearchIndex.Result result = SearchIndex.shared().search(query, (pageNumber - 1) * searchPageSize, searchPageSize);
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+        
+        StringBuilder htmlRows = new StringBuilder();
+        int i = (pageNumber - 1) * searchPageSize;
+        for(String url : result.getUrls()){
+            String safeUrl = escapeHTML(url);
+            htmlRows.append("<tr>")
+                        .append("<th scope=\"row\">").append(i).append("</th>")
+                        .append("<td><a href=\"").append(safeUrl).append("\">").append(safeUrl).append("</a></td>")
+                    .append("</tr>");
             i += 1;
         }
+        String safeQuery = escapeHTML(query);
+        String encodedQuery;
+        try {
+            encodedQuery = URLEncoder.encode(query, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            encodedQuery = "";
+        }
+        String pager = "<ul class=\"pager\">";
+        if(pageNumber > 1)
+            pager += "<li><a href=\"/search?q=" + encodedQuery + "&amp;page=" + (pageNumber - 1) + "\">Previous</a></li>";
+        if((long) pageNumber * searchPageSize < result.getTotal())
+            pager += "<li><a href=\"/search?q=" + encodedQuery + "&amp;page=" + (pageNumber + 1) + "\">Next</a></li>";
+        pager += "</ul>";
+        String summary = "<p>" + result.getTotal() + " URLs matching '" + safeQuery + "' (" + elapsedMicros + " &micro;s)</p>";
         String table = "<table class=\"table\">"
                 + "<thead>"
                     + "<tr>"
@@ -244,7 +429,7 @@ public class BusinessLogic {
                         + htmlRows
                     + "</tbody>"
                 + "</table>";
-        return htmlHeader() + table + htmlFooter();
+        return htmlHeader() + summary + table + pager + htmlFooter();
     }
     
     /**
@@ -345,6 +530,37 @@ public class BusinessLogic {
         return path;
     }
 
+    /**
+     * Returns the decoded value of a query string parameter of the passed URI string.
+     * 
+     * 
+     * @param urlLoc the url of a given resource
+     * @param name the name of the query parameter
+     * @return the parameter value, or an empty String if it is absent or the URI is malformed
+    */
+    public static String getQueryParameter(String urlLoc, String name){
+        String query;
+        try {
+            query = new URI(urlLoc).getRawQuery();
+        } catch (URISyntaxException ex) {
+            return "";
+        }
+        if(query == null)
+            return "";
+        for(String pair : query.split("&")){
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            if(key.equals(name)){
+                try {
+                    return eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : "";
+                } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+                    return "";
+                }
+            }
+        }
+        return "";
+    }
+
     /**
      * Returns whether the passed XML document already includes the passed URI.
      * 
@@ -424,7 +640,7 @@ public class BusinessLogic {
         String html = "";
         File sitemap = DataAccessor.getXMLFile(hostname);
         if (!sitemap.exists()) {
-            System.out.println("No sitemap exists yet for the requested hostname: " + hostname);
+            EventLog.log(EventLog.Category.SITEMAP, EventLog.Level.DEBUG, "No sitemap exists yet for the requested hostname", "host", hostname);
             // return null and resolve as 404?
             // return generated 404 page here?
         } else {
@@ -454,7 +670,50 @@ public class BusinessLogic {
      * @throws java.io.IOException caused by Decompressor.decompress(fullData, encodingString)
     */
     public static void checkAndInsertSet(byte[] fullData, String encodingString, String urlRequested) throws DataFormatException, CompressorException, IOException{
-        String decodedDocument = Decompressor.decompress(fullData, encodingString);
+        checkAndInsertSet(fullData, fullData.length, encodingString, urlRequested);
+    }
+    
+    /**
+     * Same as checkAndInsertSet(byte[], String, String) for the first length
+     * bytes of fullData, so a pooled buffer can be passed without copying it.
+     * 
+     * @param fullData holds the data in byte[] format
+     * @param length the number of bytes of fullData that hold the document
+     * @param encodingString the string defining the method of encoding
+     * @param urlRequested the string representing the url that is requested
+     * @throws java.util.zip.DataFormatException caused by Decompressor.decompress(fullData, length, encodingString)
+     * @throws org.apache.commons.compress.compressors.CompressorException caused by Decompressor.decompress(fullData, length, encodingString)
+     * @throws java.io.IOException caused by Decompressor.decompress(fullData, length, encodingString)
+    */
+    public static void checkAndInsertSet(byte[] fullData, int length, String encodingString, String urlRequested) throws DataFormatException, CompressorException, IOException{
+        Set<String> URLs = extractLinks(fullData, length, encodingString, urlRequested);
+        recordLinks(urlRequested, URLs);
+        URLs.add(urlRequested);
+        EventLog.log(EventLog.Category.SPIDER, EventLog.Level.DEBUG, "Links found", "url", urlRequested, "links", URLs.size());
+        if(EventLog.enabled(EventLog.Category.SPIDER, EventLog.Level.TRACE)){
+            for(String url : URLs){
+                EventLog.log(EventLog.Category.SPIDER, EventLog.Level.TRACE, "Link", "from", urlRequested, "url", url);
+            }
+        }
+        insertLinks(URLs);
+    }
+    
+    /**
+     * Decodes an HTML document and returns the absolute URLs it links to,
+     * without their query strings and fragments.
+     * 
+     * @param fullData holds the data in byte[] format
+     * @param length the number of bytes of fullData that hold the document
+     * @param encodingString the string defining the method of encoding
+     * @param urlRequested the URL of the document, used to resolve relative links
+     * @return the set of linked URLs
+     * @throws java.util.zip.DataFormatException caused by Decompressor.decompress(fullData, length, encodingString)
+     * @throws org.apache.commons.compress.compressors.CompressorException caused by Decompressor.decompress(fullData, length, encodingString)
+     * @throws java.io.IOException caused by Decompressor.decompress(fullData, length, encodingString)
+    */
+    public static Set<String> extractLinks(byte[] fullData, int length, String encodingString, String urlRequested) throws DataFormatException, CompressorException, IOException{
+        String decodedDocument = Decompressor.decompress(fullData, length, encodingString);
+        long start = System.nanoTime();
         org.jsoup.nodes.Document doc = Jsoup.parse(decodedDocument, urlRequested);
         Elements links = doc.select("a[href]");
         Set<String> URLs = new HashSet<>();
@@ -463,19 +722,61 @@ public class BusinessLogic {
             if(strLink != null && !strLink.isEmpty())
                 URLs.add(strLink.split("\\?")[0].split("#")[0]);
         }
-        URLs.add(urlRequested);
+        Metrics.since(Metrics.Phase.EXTRACT, start);
+        return URLs;
+    }
+    
+    /**
+     * Records the page's outgoing links in the shared link graph.
+     * 
+     * @param urlRequested the URL of the page
+     * @param URLs the URLs it links to
+    */
+    public static void recordLinks(String urlRequested, Set<String> URLs){
+        LinkGraph graph = LinkGraph.shared();
+        graph.addNode(urlRequested);
         for(String url : URLs){
-            System.out.println("URL: " + url);
+            graph.addEdge(urlRequested, url);
         }
-        System.out.println(URLs);
+    }
+    
+    /**
+     * Adds each URL to its host's sitemap, and newly added ones to the search
+     * index and change feed.
+     * 
+     * @param URLs the URLs to insert
+     * @return the number of URLs that were newly added
+     * @throws java.io.IOException caused by checkAndInsert()
+    */
+    public static int insertLinks(Set<String> URLs) throws IOException{
+        int added = 0;
         for(String url : URLs){
             try { // If the URL is not valid or somehow incorrect, log and move on.
                 String hostname = getHostname(url);
-                checkAndInsert(url, hostname);
+                long start = System.nanoTime();
+                SitemapFlushEvent event = new SitemapFlushEvent();
+                event.begin();
+                boolean inserted = checkAndInsert(url, hostname);
+                Metrics.since(Metrics.Phase.PERSIST, start);
+                if(event.shouldCommit()){
+                    event.host = hostname;
+                    event.url = url;
+                    event.inserted = inserted;
+                    event.fileBytes = hostname.isEmpty() ? 0 : DataAccessor.getXMLFile(hostname).length();
+                    event.commit();
+                }
+                if(inserted){
+                    added += 1;
+                    SearchIndex.shared().add(url);
+                    ChangeFeed feed = ChangeFeed.shared();
+                    if(feed != null)
+                        feed.append(url);
+                }
             } catch (URISyntaxException | ParserConfigurationException | SAXException | TransformerException ex) {
                 Logger.getLogger(BusinessLogic.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        return added;
     }
     
     /**
@@ -486,25 +787,34 @@ public class BusinessLogic {
      * 
      * @param urlLoc the String representing a web resource 
      * @param hostname a domain hostname
+     * @return whether urlLoc was newly added to the sitemap
      * @throws java.net.URISyntaxException results from the URI urlLoc being malformed
-     * @throws java.io.IOException caused by either sitemap.createNewFile() or docBuilder.parse(sitemap)
+     * @throws java.io.IOException caused by docBuilder.parse(sitemap)
      * @throws javax.xml.parsers.ParserConfigurationException caused by either generateBaseSitemap(urlLoc) or docFactory.newDocumentBuilder()
      * @throws javax.xml.transform.TransformerException thrown only during writing to an XML file
      * @throws org.xml.sax.SAXException caused by docBuilder.parse(sitemap)
     */
     // if a given URI for a domain hasn't been tracked yet, write it to the sitemap.
     // Also, if a given URI does not have its corresponding sitemap made yet, call generateSitemapRootNode()
-    public static void checkAndInsert(String urlLoc, String hostname) throws URISyntaxException, IOException, ParserConfigurationException, SAXException, TransformerException {
+    public static boolean checkAndInsert(String urlLoc, String hostname) throws URISyntaxException, IOException, ParserConfigurationException, SAXException, TransformerException {
         // Retrieve the file using the hostname generated from urlLoc
         if(hostname.isEmpty()){
-            return;
+            return false;
         }
         File sitemap = DataAccessor.getXMLFile(hostname);
-        // if sitemap not made yet, create it
-        if (!sitemap.exists()) {
-            sitemap.createNewFile();
-            DataAccessor.writeXMLToFile(generateBaseSitemap(urlLoc), sitemap);
-        } else {
+        // Catalog the sitemaps of earlier runs before this one is replaced
+        HostCatalog.ensureLoaded();
+        // Hold the host's lock from the existence check to the write, so two
+        // inserts cannot both read the old sitemap and one overwrite the other.
+        ReentrantLock lock = DataAccessor.lockFor(hostname);
+        lock.lock();
+        try {
+            // if sitemap not made yet, create it
+            if (!sitemap.exists()) {
+                DataAccessor.writeXMLToFile(generateBaseSitemap(urlLoc), sitemap);
+                HostCatalog.recordInsert(hostname, sitemap, 1);
+                return true;
+            }
             // Now generate a mutable in-memory XML document for manipulation
             DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
@@ -514,7 +824,12 @@ public class BusinessLogic {
             if (!hasUrlNode(urlLoc, xmlDocument)) {
                 xmlDocument.getDocumentElement().appendChild(generateUrlNode(urlLoc, xmlDocument));
                 DataAccessor.writeXMLToFile(xmlDocument, sitemap);
+                HostCatalog.recordInsert(hostname, sitemap, xmlDocument.getElementsByTagName("loc").getLength());
+                return true;
             }
+            return false;
+        } finally {
+            lock.unlock();
         }
     }
 }
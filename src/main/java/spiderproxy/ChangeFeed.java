@@ -0,0 +1,250 @@
+/**
+ * ChangeFeed
+ * @author Andrew Kulpa & Darren Wolbers
+ * Assigns a monotonic sequence number to every newly discovered URL. Recent
+ * changes are served from a bounded in-memory ring; older ones are read back
+ * from an append-only log using a sparse offset index.
+ */
+package spiderproxy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ChangeFeed {
+    public static String path = "feed/";
+    public static String logName = "changes.log";
+    public static int ringCapacity = 65536;
+    public static int indexInterval = 1024;
+    private static volatile ChangeFeed shared;
+
+    private final File logFile;
+    private final int capacity;
+    private final String[] ringUrls;
+    private final long[] ringTimes;
+    // offsets[i] is the byte offset of the entry with sequence i * indexInterval + 1
+    private long[] offsets = new long[16];
+    private int offsetCount = 0;
+    private long lastSeq = 0;
+    private long logBytes = 0;
+    private Writer log;
+
+    /**
+     * A single discovered URL.
+     */
+    public static class Change {
+        private final long seq;
+        private final long time;
+        private final String url;
+
+        Change(long seq, long time, String url) {
+            this.seq = seq;
+            this.time = time;
+            this.url = url;
+        }
+
+        public long getSeq() { return seq; }
+        public long getTime() { return time; }
+        public String getUrl() { return url; }
+    }
+
+    /**
+     * Creates a feed backed by the given log file, replaying it to restore the
+     * sequence counter, the offset index and the ring.
+     *
+     * @param logFile the append-only change log
+     * @param capacity the number of recent changes kept in memory
+     * @throws IOException thrown when the log cannot be read or opened for append
+     */
+    public ChangeFeed(File logFile, int capacity) throws IOException {
+        this.logFile = logFile;
+        this.capacity = capacity;
+        this.ringUrls = new String[capacity];
+        this.ringTimes = new long[capacity];
+        if (logFile.getParentFile() != null)
+            logFile.getParentFile().mkdirs();
+        replay();
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the feed shared by the proxy, opening feed/changes.log on first use.
+     *
+     * @return the shared ChangeFeed, or null if its log could not be opened
+     */
+    public static ChangeFeed shared() {
+        if (shared == null) {
+            synchronized (ChangeFeed.class) {
+                if (shared == null) {
+                    try {
+                        shared = new ChangeFeed(new File(path + logName), ringCapacity);
+                    } catch (IOException ex) {
+                        Logger.getLogger(ChangeFeed.class.getName()).log(Level.SEVERE, "Change feed unavailable", ex);
+                    }
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Records a newly discovered URL and wakes any waiting followers.
+     *
+     * @param url the URL that was just added to a sitemap
+     * @return the sequence number assigned to it
+     * @throws IOException thrown when the log cannot be written
+     */
+    public synchronized long append(String url) throws IOException {
+        long seq = lastSeq + 1;
+        long time = System.currentTimeMillis();
+        String line = seq + "\t" + time + "\t" + url + "\n";
+        if ((seq - 1) % indexInterval == 0)
+            addOffset(logBytes);
+        log.write(line);
+        log.flush();
+        logBytes += line.getBytes(StandardCharsets.UTF_8).length;
+        int slot = (int) (seq % capacity);
+        ringUrls[slot] = url;
+        ringTimes[slot] = time;
+        lastSeq = seq;
+        notifyAll();
+        return seq;
+    }
+
+    /**
+     * Returns the sequence number of the newest change.
+     *
+     * @return the latest sequence number, 0 if there are no changes yet
+     */
+    public synchronized long latest() {
+        return lastSeq;
+    }
+
+    /**
+     * Returns up to limit changes with a sequence number greater than since.
+     *
+     * @param since the last sequence number the caller has already seen
+     * @param limit the maximum number of changes to return
+     * @return the changes, in sequence order
+     * @throws IOException thrown when older changes must be read from the log and that fails
+     */
+    public List<Change> read(long since, int limit) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        long start = Math.max(since, 0) + 1;
+        long offset = -1;
+        long end;
+        synchronized (this) {
+            end = lastSeq;
+            long oldestInRing = Math.max(1, lastSeq - capacity + 1);
+            if (start >= oldestInRing) {
+                for (long seq = start; seq <= lastSeq && changes.size() < limit; seq++) {
+                    int slot = (int) (seq % capacity);
+                    changes.add(new Change(seq, ringTimes[slot], ringUrls[slot]));
+                }
+                return changes;
+            }
+            int block = (int) ((start - 1) / indexInterval);
+            if (block < offsetCount)
+                offset = offsets[block];
+        }
+        if (offset >= 0)
+            readFromLog(offset, start, end, limit, changes);
+        return changes;
+    }
+
+    /**
+     * Blocks until a change newer than since exists or the timeout passes.
+     *
+     * @param since the last sequence number the caller has already seen
+     * @param timeoutMillis the maximum time to wait
+     * @return whether newer changes are available
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public synchronized boolean await(long since, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (lastSeq <= since) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Reads changes back from the log, starting at a byte offset known to lie
+     * at or before the first wanted sequence number.
+     */
+    private void readFromLog(long offset, long start, long end, int limit, List<Change> changes) throws IOException {
+        try (FileInputStream in = new FileInputStream(logFile)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0)
+                    return;
+                skipped += n;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while (changes.size() < limit && (line = reader.readLine()) != null) {
+                Change change = parse(line);
+                if (change == null || change.seq > end)
+                    break;
+                if (change.seq >= start)
+                    changes.add(change);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory state from an existing log.
+     */
+    private void replay() throws IOException {
+        if (!logFile.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Change change = parse(line);
+                if (change != null && change.seq == lastSeq + 1) {
+                    if ((change.seq - 1) % indexInterval == 0)
+                        addOffset(logBytes);
+                    int slot = (int) (change.seq % capacity);
+                    ringUrls[slot] = change.url;
+                    ringTimes[slot] = change.time;
+                    lastSeq = change.seq;
+                }
+                logBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+    }
+
+    private void addOffset(long offset) {
+        if (offsetCount == offsets.length)
+            offsets = Arrays.copyOf(offsets, offsetCount * 2);
+        offsets[offsetCount++] = offset;
+    }
+
+    private static Change parse(String line) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3)
+            return null;
+        try {
+            return new Change(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
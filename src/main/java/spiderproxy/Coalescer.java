@@ -0,0 +1,428 @@
+/**
+ * Coalescer
+ * @author Andrew Kulpa & Darren Wolbers
+ * Collapses concurrent identical cacheable GETs into one upstream fetch. The
+ * first request for a key leads: everything it writes to its client is also
+ * kept for the requests that arrive while it is in flight, which stream it
+ * as it grows; bytes are held only until every follower has read them, and
+ * only while the memory budget has room for them.
+ * Only the leader talks to the origin, so the page is also spidered and
+ * cached once. Followers only get the leader's response if a shared cache
+ * could store it; one that is private, no-store or sets a cookie belongs to
+ * the leader's client alone, and its followers fetch for themselves.
+ */
+package spiderproxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Coalescer {
+    public static boolean enabled = true;
+    // Past this size a flight stops taking new followers.
+    public static int maxFlightBytes = 16 * 1024 * 1024;
+    // A follower this far behind its leader is cut off rather than buffered for.
+    public static long maxFollowerLagBytes = 32L * 1024 * 1024;
+    private static volatile Coalescer shared;
+    // A response header longer than this is not shared.
+    private static final int maxHeaderBytes = 64 * 1024;
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong followers = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * One upstream fetch and the response bytes its followers have not read
+     * yet. While the flight takes new followers every byte is kept, since a
+     * follower starts from the first; once it stops, bytes every follower
+     * has read are dropped, and with no followers left the leader's stream is
+     * written straight through. The bytes held are reserved against the
+     * memory budget; when it refuses, the flight stops taking followers and
+     * cuts off those that would need the bytes kept.
+     */
+    public class Flight {
+        private final String key;
+        private final String requestHeader;
+        // The response header so far, until it is complete and shareable is known
+        private StringBuilder head = new StringBuilder();
+        private Boolean shareable = null;
+        // Appended chunks, the first starting at offset base; never changed once added
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private final List<Follower> readers = new ArrayList<>();
+        private MemoryBudget.Reservation reservation; // Budget for the chunks held
+        private long base = 0;
+        private long length = 0;
+        private boolean open = true;
+        private boolean done = false;
+
+        Flight(String key, String requestHeader) {
+            this.key = key;
+            this.requestHeader = requestHeader;
+        }
+
+        /**
+         * Wraps the leader's client stream so the response is also written to
+         * this flight. If the leader's own client goes away while followers
+         * are attached, the write error is swallowed so the fetch completes
+         * for them.
+         *
+         * @param client the leader's stream back to its client
+         * @return the stream the leader should write its response to
+         */
+        public OutputStream tee(OutputStream client) {
+            return new FilterOutputStream(client) {
+                private boolean clientGone = false;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int count) throws IOException {
+                    append(data, offset, count);
+                    if (clientGone)
+                        return;
+                    try {
+                        out.write(data, offset, count);
+                    } catch (IOException ex) {
+                        if (!hasFollowers())
+                            throw ex;
+                        clientGone = true;
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (!clientGone)
+                        out.flush();
+                }
+            };
+        }
+
+        /**
+         * Marks the fetch as over and wakes every follower. Must be called by
+         * the leader exactly once, whether or not the fetch succeeded;
+         * followers of a fetch that broke off see the same truncated response
+         * as the leader's client.
+         */
+        public void finish() {
+            flights.remove(key, this);
+            synchronized (this) {
+                done = true;
+                open = false;
+                trim();
+                notifyAll();
+            }
+        }
+
+        private synchronized void append(byte[] data, int offset, int count) {
+            if (shareable == null)
+                decide(data, offset, count);
+            if (!open && readers.isEmpty())
+                return;
+            if (!reserve(count)) {
+                // Out of budget: only followers that have read everything can still be served
+                close();
+                cutOffLagging();
+                if (readers.isEmpty() || !reserve(count)) {
+                    readers.forEach(reader -> reader.dropped = true);
+                    readers.clear();
+                    notifyAll();
+                    return;
+                }
+            }
+            chunks.add(Arrays.copyOfRange(data, offset, offset + count));
+            length += count;
+            if (open && length > maxFlightBytes)
+                close();
+            trim();
+            notifyAll();
+        }
+
+        /**
+         * Reads the response header as it is written and, once it is
+         * complete, decides whether followers may have the response. If not,
+         * the flight closes and its followers are sent to fetch for
+         * themselves.
+         */
+        private void decide(byte[] data, int offset, int count) {
+            int from = Math.max(0, head.length() - 3);
+            head.append(new String(data, offset, count, StandardCharsets.ISO_8859_1));
+            int end = head.indexOf("\r\n\r\n", from);
+            if (end >= 0)
+                shareable = ResponseCache.isStorable(requestHeader, head.substring(0, end + 2));
+            else if (head.length() > maxHeaderBytes)
+                shareable = false;
+            else
+                return;
+            head = null;
+            if (shareable)
+                return;
+            close();
+            readers.clear();
+            trim();
+            notifyAll();
+        }
+
+        /**
+         * Stops the flight taking new followers.
+         */
+        private void close() {
+            open = false;
+            flights.remove(key, this);
+        }
+
+        private boolean reserve(long bytes) {
+            if (reservation == null) {
+                reservation = MemoryBudget.shared().tryReserve(bytes, MemoryBudget.Tier.BUFFER);
+                return reservation != null;
+            }
+            return reservation.grow(bytes);
+        }
+
+        /**
+         * Drops the followers that have not read every byte so far, and with
+         * them the bytes held for them.
+         */
+        private void cutOffLagging() {
+            for (Follower reader : readers) {
+                if (reader.position < length)
+                    reader.dropped = true;
+            }
+            readers.removeIf(reader -> reader.dropped);
+            trim();
+        }
+
+        synchronized boolean hasFollowers() {
+            return !readers.isEmpty();
+        }
+
+        /**
+         * Returns the number of response bytes the flight is holding.
+         *
+         * @return the bytes kept for followers
+         */
+        synchronized long buffered() {
+            return length - base;
+        }
+
+        /**
+         * Drops the chunks every follower has read, once no new follower can
+         * need them. A follower more than maxFollowerLagBytes behind is cut
+         * off, so a stalled client cannot make the flight hold the whole
+         * response. Dropped bytes go back to the memory budget.
+         */
+        private void trim() {
+            if (open)
+                return;
+            long lowest = length;
+            for (Iterator<Follower> it = readers.iterator(); it.hasNext(); ) {
+                Follower reader = it.next();
+                if (length - reader.position > maxFollowerLagBytes) {
+                    reader.dropped = true;
+                    it.remove();
+                } else {
+                    lowest = Math.min(lowest, reader.position);
+                }
+            }
+            long dropped = 0;
+            while (!chunks.isEmpty() && base + chunks.peekFirst().length <= lowest) {
+                int size = chunks.removeFirst().length;
+                base += size;
+                dropped += size;
+            }
+            if (reservation == null)
+                return;
+            if (chunks.isEmpty()) {
+                reservation.release();
+                reservation = null;
+            } else {
+                reservation.shrink(dropped);
+            }
+        }
+
+        /**
+         * Copies the response to a follower's client as it arrives, from the
+         * first byte, until the leader finishes.
+         *
+         * @return false if the response may not be shared, or the leader
+         *         finished without producing a header, so the follower should
+         *         fetch for itself
+         */
+        private boolean streamTo(Follower me, OutputStream out) throws IOException {
+            try {
+                while (true) {
+                    List<byte[]> batch = new ArrayList<>();
+                    int skip;
+                    long end;
+                    synchronized (this) {
+                        while (!done && !me.dropped && shareable != Boolean.FALSE && (shareable == null || me.position == length))
+                            wait();
+                        if (me.dropped)
+                            throw new IOException("Fell too far behind " + key);
+                        if (shareable != Boolean.TRUE)
+                            return false;
+                        if (me.position == length)
+                            return true;
+                        // Chunks never change, so they can be written outside the lock
+                        long at = base;
+                        skip = 0;
+                        for (byte[] chunk : chunks) {
+                            if (at + chunk.length > me.position) {
+                                if (batch.isEmpty())
+                                    skip = (int) (me.position - at);
+                                batch.add(chunk);
+                            }
+                            at += chunk.length;
+                        }
+                        end = length;
+                    }
+                    for (byte[] chunk : batch) {
+                        out.write(chunk, skip, chunk.length - skip);
+                        skip = 0;
+                    }
+                    out.flush();
+                    synchronized (this) {
+                        me.position = end;
+                        trim();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while following " + key, ex);
+            } finally {
+                synchronized (this) {
+                    readers.remove(me);
+                    trim();
+                }
+            }
+        }
+    }
+
+    /**
+     * How far one follower has read into its flight.
+     */
+    private static final class Follower {
+        long position = 0;
+        boolean dropped = false;
+    }
+
+    /**
+     * Returns the coalescer shared by the proxy.
+     *
+     * @return the shared Coalescer
+     */
+    public static Coalescer shared() {
+        if (shared == null) {
+            synchronized (Coalescer.class) {
+                if (shared == null)
+                    shared = new Coalescer();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the key identical requests share, or null if this request must
+     * not be coalesced. Requests carrying credentials, cookies, ranges or
+     * their own validators get a response of their own. Otherwise the request
+     * fields origins most often Vary on are part of the key.
+     *
+     * @param method the request method
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines
+     * @return the coalescing key, or null
+     */
+    public static String key(String method, String url, String requestHeader) {
+        if (!enabled || !ResponseCache.isCacheableRequest(method, requestHeader))
+            return null;
+        for (String personal : new String[] {"Cookie", "Authorization", "Proxy-Authorization", "Range", "If-None-Match", "If-Modified-Since"}) {
+            if (!Proxy.headerField(requestHeader, personal).isEmpty())
+                return null;
+        }
+        return url + "\n" + Proxy.headerField(requestHeader, "Accept")
+                   + "\n" + Proxy.headerField(requestHeader, "Accept-Encoding")
+                   + "\n" + Proxy.headerField(requestHeader, "Accept-Language");
+    }
+
+    /**
+     * Starts a flight for the key if none is in progress.
+     *
+     * @param key a key from key()
+     * @param requestHeader the leader's request header lines, which decide
+     *        with the response whether followers may share it
+     * @return the new flight, which the caller now leads, or null if one is already in flight
+     */
+    public Flight lead(String key, String requestHeader) {
+        Flight flight = new Flight(key, requestHeader);
+        if (flights.putIfAbsent(key, flight) != null)
+            return null;
+        leaders.incrementAndGet();
+        return flight;
+    }
+
+    /**
+     * Answers a request from the flight in progress for its key, blocking
+     * until the leader finishes.
+     *
+     * @param key a key from key()
+     * @param out the follower's stream back to its client
+     * @return true if the response was streamed; false if there was no flight
+     *         to follow, or its response may not be shared or never came
+     * @throws IOException if writing to the follower's client fails
+     */
+    public boolean follow(String key, OutputStream out) throws IOException {
+        Flight flight = flights.get(key);
+        if (flight == null)
+            return false;
+        Follower me = new Follower();
+        synchronized (flight) {
+            // A flight that no longer takes followers may have dropped its first bytes
+            if (!flight.open)
+                return false;
+            flight.readers.add(me);
+        }
+        followers.incrementAndGet();
+        if (flight.streamTo(me, out))
+            return true;
+        fallbacks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of flights in progress.
+     *
+     * @return the in-flight count
+     */
+    public int inFlight() {
+        return flights.size();
+    }
+
+    /**
+     * Returns the coalescing counters as a JSON object. The ratio is the share
+     * of coalescable requests that were answered by another request's fetch.
+     *
+     * @return the stats document
+     */
+    public String statsJson() {
+        long led = leaders.get();
+        long followed = followers.get();
+        double ratio = led + followed == 0 ? 0 : (double) followed / (led + followed);
+        return "{\"leaders\":" + led
+             + ",\"followers\":" + followed
+             + ",\"fallbacks\":" + fallbacks.get()
+             + ",\"inFlight\":" + flights.size()
+             + ",\"coalescingRatio\":" + String.format(Locale.ROOT, "%.4f", ratio) + "}";
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * ConnectionDeadline
+ * @author Andrew Kulpa & Darren Wolbers
+ * The timeouts of one proxied connection. A header deadline bounds how long
+ * the client may take to send its request header and the origin its response
+ * header, an idle deadline how long either socket may go without moving a
+ * byte, and a total deadline the whole exchange. Deadlines live on the shared
+ * DeadlineScheduler; when one expires both sockets are closed, which unblocks
+ * the connection's thread wherever it is waiting, and the expiry is counted
+ * by phase. Upstream connects use the socket's own connect timeout.
+ */
+package spiderproxy;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionDeadline {
+    public static int connectTimeoutMillis = 10000;
+    // Time allowed for a request header to arrive, and for a response header once the request is sent.
+    public static long headerTimeoutMillis = 15000;
+    public static long idleTimeoutMillis = 60000;
+    // Time allowed for a whole exchange; tunnels are only bound by the idle timeout. 0 disables.
+    public static long totalTimeoutMillis = 600000;
+
+    /**
+     * The deadline that ran out.
+     */
+    public enum Phase {
+        CONNECT, HEADER, IDLE, TOTAL
+    }
+
+    private static final AtomicLong[] expirations = {new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()};
+    private static final AtomicInteger active = new AtomicInteger();
+
+    private final Socket client;
+    private volatile Socket external;
+    private volatile long lastActivity = System.nanoTime();
+    private long idleAllowanceMillis = idleTimeoutMillis; // How long the connection may be quiet
+    private volatile Phase expired;
+    private final AtomicLong clientBytesOut = new AtomicLong();
+    private final AtomicLong clientBytesIn = new AtomicLong();
+    private final AtomicLong originBytesIn = new AtomicLong();
+    private DeadlineScheduler.Timeout header;
+    private DeadlineScheduler.Timeout idle;
+    private DeadlineScheduler.Timeout total;
+    private boolean closed = false;
+
+    /**
+     * Starts the idle and total deadlines of a newly accepted connection.
+     *
+     * @param client the connection from the client
+     */
+    public ConnectionDeadline(Socket client) {
+        this.client = client;
+        active.incrementAndGet();
+        if (idleTimeoutMillis > 0)
+            idle = DeadlineScheduler.shared().schedule(idleTimeoutMillis, this::checkIdle);
+        if (totalTimeoutMillis > 0)
+            total = DeadlineScheduler.shared().schedule(totalTimeoutMillis, () -> expire(Phase.TOTAL));
+    }
+
+    /**
+     * Starts the header deadline, for the client's request or, once the
+     * request is sent, the origin's response.
+     */
+    public synchronized void startHeader() {
+        endHeader();
+        if (!closed && headerTimeoutMillis > 0)
+            header = DeadlineScheduler.shared().schedule(headerTimeoutMillis, () -> expire(Phase.HEADER));
+    }
+
+    /**
+     * Stops the header deadline once the header has arrived.
+     */
+    public synchronized void endHeader() {
+        if (header != null)
+            header.cancel();
+        header = null;
+    }
+
+    /**
+     * Stops the total deadline, for tunnels whose length is up to the client.
+     */
+    public synchronized void endTotal() {
+        if (total != null)
+            total.cancel();
+        total = null;
+    }
+
+    /**
+     * Lets the connection stay quiet for a request that is meant to wait,
+     * such as a long-poll: the wait does not count towards the idle timeout.
+     *
+     * @param waitMillis how long the request may wait without moving a byte
+     */
+    public synchronized void allowWait(long waitMillis) {
+        idleAllowanceMillis = idleTimeoutMillis + Math.max(waitMillis, 0);
+    }
+
+    /**
+     * Sets the upstream socket, so that it is closed on expiry too.
+     *
+     * @param external the connection to the origin
+     */
+    public void external(Socket external) {
+        this.external = external;
+        if (expired != null)
+            closeQuietly(external);
+    }
+
+    /**
+     * Wraps a stream so that reading from it counts as activity.
+     *
+     * @param in a socket's input stream
+     * @param bytes the counter to add the bytes read to; BYTES_FROM_ORIGINS
+     *        also counts towards originBytesIn(), anything else towards clientBytesIn()
+     * @return the tracked stream
+     */
+    public InputStream track(InputStream in, Metrics.Counter bytes) {
+        AtomicLong total = bytes == Metrics.Counter.BYTES_FROM_ORIGINS ? originBytesIn : clientBytesIn;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                lastActivity = System.nanoTime();
+                if (b >= 0) {
+                    Metrics.count(bytes);
+                    total.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                lastActivity = System.nanoTime();
+                if (n > 0) {
+                    Metrics.add(bytes, n);
+                    total.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps the client's output stream so that writes count as activity and
+     * the bytes sent are known.
+     *
+     * @param out the client socket's output stream
+     * @return the tracked stream
+     */
+    public OutputStream trackClient(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                clientBytesOut.incrementAndGet();
+                Metrics.count(Metrics.Counter.BYTES_TO_CLIENTS);
+                lastActivity = System.nanoTime();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                clientBytesOut.addAndGet(len);
+                Metrics.add(Metrics.Counter.BYTES_TO_CLIENTS, len);
+                lastActivity = System.nanoTime();
+            }
+        };
+    }
+
+    /**
+     * Returns the deadline that expired, if any.
+     *
+     * @return the phase, or null while the connection is within its deadlines
+     */
+    public Phase expired() {
+        return expired;
+    }
+
+    /**
+     * Returns how many bytes have been written to the client, so a timeout
+     * can still be answered with an error page when nothing was sent.
+     *
+     * @return the byte count
+     */
+    public long clientBytesOut() {
+        return clientBytesOut.get();
+    }
+
+    /**
+     * Returns how many bytes have been read from the client.
+     *
+     * @return the byte count
+     */
+    public long clientBytesIn() {
+        return clientBytesIn.get();
+    }
+
+    /**
+     * Returns how many bytes have been read from the origin.
+     *
+     * @return the byte count
+     */
+    public long originBytesIn() {
+        return originBytesIn.get();
+    }
+
+    /**
+     * Returns how long it has been since either socket last moved a byte.
+     *
+     * @return the quiet time in milliseconds
+     */
+    public long idleMillis() {
+        return (System.nanoTime() - lastActivity) / 1000000;
+    }
+
+    /**
+     * Cancels every deadline; called once the connection is finished.
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        endHeader();
+        endTotal();
+        if (idle != null)
+            idle.cancel();
+        active.decrementAndGet();
+    }
+
+    /**
+     * Counts an upstream connect that timed out.
+     */
+    public static void countConnectTimeout() {
+        expirations[Phase.CONNECT.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Returns the expirations by phase and the connections being watched as
+     * a JSON object.
+     *
+     * @return the stats document
+     */
+    public static String statsJson() {
+        return "{\"active\":" + active.get()
+             + ",\"connect\":" + expirations[Phase.CONNECT.ordinal()].get()
+             + ",\"header\":" + expirations[Phase.HEADER.ordinal()].get()
+             + ",\"idle\":" + expirations[Phase.IDLE.ordinal()].get()
+             + ",\"total\":" + expirations[Phase.TOTAL.ordinal()].get()
+             + ",\"scheduled\":" + DeadlineScheduler.shared().pending() + "}";
+    }
+
+    /**
+     * Runs when the idle deadline comes up: expires the connection if it has
+     * been quiet all along, else looks again when it would next be overdue.
+     */
+    private void checkIdle() {
+        long quietMillis = (System.nanoTime() - lastActivity) / 1000000;
+        synchronized (this) {
+            if (closed)
+                return;
+            if (quietMillis < idleAllowanceMillis) {
+                idle = DeadlineScheduler.shared().schedule(idleAllowanceMillis - quietMillis, this::checkIdle);
+                return;
+            }
+        }
+        expire(Phase.IDLE);
+    }
+
+    private void expire(Phase phase) {
+        synchronized (this) {
+            if (closed || expired != null)
+                return;
+            expired = phase;
+        }
+        expirations[phase.ordinal()].incrementAndGet();
+        Socket upstream = external;
+        if (upstream != null)
+            closeQuietly(upstream);
+        // A stalled origin still leaves the client waiting for an answer
+        if (!(phase == Phase.HEADER && upstream != null && clientBytesOut.get() == 0))
+            closeQuietly(client);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // already closed
+        }
+    }
+}
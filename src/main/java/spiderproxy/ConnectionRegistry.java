@@ -0,0 +1,314 @@
+/**
+ * ConnectionRegistry
+ * @author Andrew Kulpa & Darren Wolbers
+ * The client connections being served right now, and what each one is doing:
+ * who it is from, what it asked for, which phase it is in and for how long,
+ * and the bytes moved so far. Shown at /debug/connections on the internal
+ * server as an HTML table, or as JSON with ?format=json or an Accept header
+ * asking for it. A connection costs one map insert and removal, and a phase
+ * change two volatile writes; the byte counts are the ones ConnectionDeadline
+ * keeps anyway, read only when the page is rendered.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionRegistry {
+    public static String path = "/debug/connections";
+    // Turns registration off entirely; the page then lists nothing.
+    public static volatile boolean enabled = true;
+
+    /**
+     * What a connection's thread is doing.
+     */
+    public enum Phase {
+        READING_HEADER("reading headers"),
+        INTERNAL("internal page"),
+        CONNECTING("connecting"),
+        SENDING("sending request"),
+        WAITING("awaiting response"),
+        RELAYING("relaying"),
+        SPIDERING("spidering"),
+        TUNNEL("tunnel");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private static final AtomicLong ids = new AtomicLong();
+
+    /**
+     * One registered connection. Only its own thread changes it.
+     */
+    public static final class Session {
+        private final long id;
+        private final SocketAddress client;
+        private final String thread;
+        private final ConnectionDeadline deadline;
+        private final long started = System.nanoTime();
+        private volatile String method = "";
+        private volatile String host = "";
+        private volatile String url = "";
+        private volatile Phase phase = Phase.READING_HEADER;
+        private volatile long phaseSince = started;
+
+        private Session(long id, SocketAddress client, ConnectionDeadline deadline) {
+            this.id = id;
+            this.client = client;
+            this.thread = Thread.currentThread().getName();
+            this.deadline = deadline;
+        }
+
+        /**
+         * Notes the request once its header has been read.
+         *
+         * @param method the HTTP method
+         * @param host the target host, with its port if one was given
+         * @param url the URL requested
+         */
+        public void request(String method, String host, String url) {
+            this.method = method;
+            this.host = host;
+            this.url = url;
+        }
+
+        /**
+         * Moves the connection to another phase.
+         *
+         * @param phase the phase now begun
+         */
+        public void phase(Phase phase) {
+            if (this.phase == phase)
+                return;
+            phaseSince = System.nanoTime();
+            this.phase = phase;
+        }
+
+        /**
+         * Removes the connection from the registry once it is finished.
+         */
+        public void close() {
+            sessions.remove(id, this);
+        }
+    }
+
+    /**
+     * A connection as it was when the page was rendered.
+     */
+    public static final class Snapshot {
+        public final long id;
+        public final String client;
+        public final String thread;
+        public final String method;
+        public final String host;
+        public final String url;
+        public final Phase phase;
+        public final long phaseMillis;
+        public final long ageMillis;
+        public final long idleMillis;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long originBytesIn;
+
+        private Snapshot(Session session, long now) {
+            phase = session.phase;
+            phaseMillis = Math.max(0, (now - session.phaseSince) / 1000000);
+            id = session.id;
+            client = session.client == null ? "" : session.client.toString().replaceFirst("^[^/]*/", "");
+            thread = session.thread;
+            method = session.method;
+            host = session.host;
+            url = session.url;
+            ageMillis = (now - session.started) / 1000000;
+            idleMillis = session.deadline == null ? 0 : session.deadline.idleMillis();
+            bytesIn = session.deadline == null ? 0 : session.deadline.clientBytesIn();
+            bytesOut = session.deadline == null ? 0 : session.deadline.clientBytesOut();
+            originBytesIn = session.deadline == null ? 0 : session.deadline.originBytesIn();
+        }
+    }
+
+    /**
+     * A session that records nothing, for when the registry is disabled.
+     */
+    private static final Session disabled = new Session(-1, null, null);
+
+    /**
+     * Registers a newly accepted connection, in the READING_HEADER phase.
+     *
+     * @param client the connection from the client
+     * @param deadline the connection's deadlines, whose streams count its bytes
+     * @return the session to update as the connection goes on
+     */
+    public static Session open(Socket client, ConnectionDeadline deadline) {
+        if (!enabled)
+            return disabled;
+        Session session = new Session(ids.incrementAndGet(), client.getRemoteSocketAddress(), deadline);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Returns the connections being served, oldest first.
+     *
+     * @return a snapshot of each
+     */
+    public static List<Snapshot> list() {
+        long now = System.nanoTime();
+        List<Snapshot> list = new ArrayList<>(sessions.size());
+        for (Session session : sessions.values())
+            list.add(new Snapshot(session, now));
+        list.sort((a, b) -> Long.compare(b.ageMillis, a.ageMillis));
+        return list;
+    }
+
+    /**
+     * Returns the number of connections being served.
+     *
+     * @return the count
+     */
+    public static int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns whether the requested url is the connections page.
+     *
+     * @param url the url requested from the internal server
+     * @return true if the path is /debug/connections
+     */
+    public static boolean handles(String url) {
+        try {
+            return path.equals(BusinessLogic.getPath(url));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the connections page as a complete response, as JSON if the
+     * url has format=json or the request accepts application/json but not
+     * text/html, else as HTML.
+     *
+     * @param url the url requested from the internal server
+     * @param requestHeader the client's request header lines
+     * @param out the stream back to the client
+     * @throws IOException thrown when writing to the client fails
+     */
+    public static void handle(String url, String requestHeader, OutputStream out) throws IOException {
+        String format = BusinessLogic.getQueryParameter(url, "format");
+        String accept = Proxy.headerField(requestHeader, "Accept");
+        boolean json = "json".equals(format)
+                    || format.isEmpty() && accept.contains("application/json") && !accept.contains("text/html");
+        if (json) {
+            InternalAPI.writeJson(out, json(list()));
+            return;
+        }
+        byte[] body = BusinessLogic.htmlDocumentWrapper(BusinessLogic.htmlHeader() + html(list()) + BusinessLogic.htmlFooter())
+                                   .getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 200 OK" + Proxy.carriageReturn
+                      + "Content-Type: text/html; charset=utf-8" + Proxy.carriageReturn
+                      + "Cache-Control: no-store" + Proxy.carriageReturn
+                      + "Content-Length: " + body.length + Proxy.carriageReturn
+                      + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn;
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Renders connections as a JSON object with a count per phase.
+     *
+     * @param connections the connections
+     * @return the JSON document
+     */
+    static String json(List<Snapshot> connections) {
+        StringBuilder sb = new StringBuilder(256 + connections.size() * 256);
+        sb.append("{\"active\":").append(connections.size()).append(",\"phases\":{");
+        Map<Phase, Integer> counts = countByPhase(connections);
+        boolean first = true;
+        for (Map.Entry<Phase, Integer> count : counts.entrySet()) {
+            sb.append(first ? "" : ",").append(InternalAPI.quote(count.getKey().name().toLowerCase(Locale.ROOT))).append(':').append(count.getValue());
+            first = false;
+        }
+        sb.append("},\"connections\":[");
+        first = true;
+        for (Snapshot c : connections) {
+            sb.append(first ? "" : ",")
+              .append("{\"id\":").append(c.id)
+              .append(",\"client\":").append(InternalAPI.quote(c.client))
+              .append(",\"thread\":").append(InternalAPI.quote(c.thread))
+              .append(",\"method\":").append(InternalAPI.quote(c.method))
+              .append(",\"host\":").append(InternalAPI.quote(c.host))
+              .append(",\"url\":").append(InternalAPI.quote(c.url))
+              .append(",\"phase\":").append(InternalAPI.quote(c.phase.name().toLowerCase(Locale.ROOT)))
+              .append(",\"phaseMillis\":").append(c.phaseMillis)
+              .append(",\"ageMillis\":").append(c.ageMillis)
+              .append(",\"idleMillis\":").append(c.idleMillis)
+              .append(",\"bytesIn\":").append(c.bytesIn)
+              .append(",\"bytesOut\":").append(c.bytesOut)
+              .append(",\"originBytesIn\":").append(c.originBytesIn).append('}');
+            first = false;
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Renders connections as an HTML summary and table.
+     *
+     * @param connections the connections
+     * @return the HTML fragment
+     */
+    static String html(List<Snapshot> connections) {
+        StringBuilder sb = new StringBuilder(1024 + connections.size() * 512);
+        sb.append("<div class=\"container-fluid\"><h3>").append(connections.size()).append(" active connection")
+          .append(connections.size() == 1 ? "" : "s").append("</h3><p>");
+        for (Map.Entry<Phase, Integer> count : countByPhase(connections).entrySet())
+            sb.append(count.getKey().label).append(": ").append(count.getValue()).append("&nbsp;&nbsp; ");
+        sb.append("<a href=\"").append(path).append("?format=json\">JSON</a></p>")
+          .append("<table class=\"table table-condensed\"><thead><tr>")
+          .append("<th>#</th><th>Client</th><th>Method</th><th>Host</th><th>URL</th><th>Phase</th>")
+          .append("<th>In phase</th><th>Age</th><th>Idle</th><th>From client</th><th>To client</th><th>From origin</th><th>Thread</th>")
+          .append("</tr></thead><tbody>");
+        for (Snapshot c : connections) {
+            sb.append("<tr>")
+              .append("<td>").append(c.id).append("</td>")
+              .append("<td>").append(BusinessLogic.escapeHTML(c.client)).append("</td>")
+              .append("<td>").append(BusinessLogic.escapeHTML(c.method)).append("</td>")
+              .append("<td>").append(BusinessLogic.escapeHTML(c.host)).append("</td>")
+              .append("<td>").append(BusinessLogic.escapeHTML(c.url)).append("</td>")
+              .append("<td>").append(c.phase.label).append("</td>")
+              .append("<td>").append(c.phaseMillis).append(" ms</td>")
+              .append("<td>").append(c.ageMillis).append(" ms</td>")
+              .append("<td>").append(c.idleMillis).append(" ms</td>")
+              .append("<td>").append(BusinessLogic.formatSize(c.bytesIn)).append("</td>")
+              .append("<td>").append(BusinessLogic.formatSize(c.bytesOut)).append("</td>")
+              .append("<td>").append(BusinessLogic.formatSize(c.originBytesIn)).append("</td>")
+              .append("<td>").append(BusinessLogic.escapeHTML(c.thread)).append("</td>")
+              .append("</tr>");
+        }
+        return sb.append("</tbody></table></div>").toString();
+    }
+
+    private static Map<Phase, Integer> countByPhase(List<Snapshot> connections) {
+        Map<Phase, Integer> counts = new EnumMap<>(Phase.class);
+        for (Snapshot c : connections)
+            counts.merge(c.phase, 1, Integer::sum);
+        return counts;
+    }
+}
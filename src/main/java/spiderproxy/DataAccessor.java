@@ -8,8 +8,15 @@
 package spiderproxy;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.w3c.dom.Document;
 import javax.xml.parsers.DocumentBuilder;
@@ -27,6 +34,20 @@ import org.xml.sax.SAXException;
 public class DataAccessor {
     public static final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     public static String path = "map/";
+    private static final ConcurrentHashMap<String, ReentrantLock> hostLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the lock guarding a host's sitemap. Whoever reads a sitemap in
+     * order to change it must hold the lock from the read until the write,
+     * or a concurrent change made in between is lost. Readers that only look
+     * need not take it, since writes replace the file atomically.
+     * 
+     * @param hostname a String hostname for a given domain
+     * @return the lock for that host's sitemap
+     */
+    public static ReentrantLock lockFor(String hostname) {
+        return hostLocks.computeIfAbsent(hostname, h -> new ReentrantLock());
+    }
 
     /**
      * Check whether the path directory has been created. If not, create it!
@@ -94,7 +115,8 @@ public class DataAccessor {
         try {
             File[] XMLFiles = new File(path).listFiles();
             for(File XMLFile : XMLFiles){
-                if(XMLFile.isFile()){
+                // Names starting with '.' are writes still in progress
+                if(XMLFile.isFile() && !XMLFile.getName().startsWith(".")){
                     files.add(XMLFile.getName());
                 }
             }
@@ -106,25 +128,49 @@ public class DataAccessor {
 
     /**
      * Using the passed xmlDoc and the File descriptor sitemap, write to the
-     * given file using a Transformer generated by the TransformerFactory. 
+     * given file using a Transformer generated by the TransformerFactory. The
+     * document is written to a temporary file beside the sitemap, which then
+     * replaces it, so a reader sees either the old sitemap or the new one and
+     * never a partly written file.
      * 
      * @param xmlDoc the XML doc that is to be written to the file
      * @param sitemap a File object related to a given sitemap
      * @throws TransformerConfigurationException thrown by transformerFactory.newTransformer()
-     * @throws TransformerException thrown by transformerFactory.newTransformer() or transformer.transform(sourceFile, result)
+     * @throws TransformerException thrown by transformerFactory.newTransformer() or transformer.transform(sourceFile, result),
+     *         or if the temporary file cannot be created or moved into place
      */
     public static void writeXMLToFile(Document xmlDoc, File sitemap) throws TransformerConfigurationException, TransformerException {
-        rwl.writeLock().lock();
+        EventLog.log(EventLog.Category.SITEMAP, EventLog.Level.TRACE, "Writing to sitemap", "file", sitemap.getName());
+        File temp;
+        try {
+            temp = File.createTempFile("." + sitemap.getName(), ".tmp", sitemap.getAbsoluteFile().getParentFile());
+        } catch (IOException ex) {
+            throw new TransformerException(ex);
+        }
         try {
-            System.out.println("Writing to sitemap...");
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             Transformer transformer = transformerFactory.newTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             DOMSource sourceFile = new DOMSource(xmlDoc);
-            StreamResult result = new StreamResult(sitemap);
-            transformer.transform(sourceFile, result);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                transformer.transform(sourceFile, new StreamResult(out));
+            }
+            replace(temp, sitemap);
+        } catch (IOException ex) {
+            throw new TransformerException(ex);
         } finally {
-            rwl.writeLock().unlock();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Moves a file over another in one step where the file system allows it.
+     */
+    private static void replace(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
 }
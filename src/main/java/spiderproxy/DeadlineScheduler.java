@@ -0,0 +1,167 @@
+/**
+ * DeadlineScheduler
+ * @author Andrew Kulpa & Darren Wolbers
+ * A hashed timer wheel: one daemon thread advances through a ring of slots a
+ * tick at a time and runs the tasks whose deadline falls in the slot it
+ * reaches. Scheduling and cancelling are constant time, so every connection
+ * can keep several deadlines without a watchdog thread of its own. Deadlines
+ * fire up to one tick late, which is plenty for socket timeouts. Tasks run on
+ * the wheel's thread and must be quick.
+ */
+package spiderproxy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class DeadlineScheduler {
+    public static long tickMillis = 100;
+    public static int wheelSize = 512;
+    private static volatile DeadlineScheduler shared;
+
+    private final long tickNanos;
+    private final List<Set<Timeout>> wheel;
+    private final long start = System.nanoTime();
+    // Index of the next tick to process.
+    private long tick = 0;
+    private int pending = 0;
+    private long fired = 0;
+
+    /**
+     * A scheduled task that has not run yet.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int slot;
+        private boolean done = false;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running.
+         *
+         * @return false if it had already run or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (DeadlineScheduler.this) {
+                if (done)
+                    return false;
+                done = true;
+                wheel.get(slot).remove(this);
+                pending -= 1;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param tickMillis the resolution of the wheel
+     * @param size the number of slots; deadlines further out than one turn wait extra rounds
+     */
+    public DeadlineScheduler(long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            wheel.add(new HashSet<>());
+        Thread thread = new Thread(this::turn, "deadline-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the wheel shared by the proxy.
+     *
+     * @return the shared DeadlineScheduler
+     */
+    public static DeadlineScheduler shared() {
+        if (shared == null) {
+            synchronized (DeadlineScheduler.class) {
+                if (shared == null)
+                    shared = new DeadlineScheduler(tickMillis, wheelSize);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Runs a task once the delay has passed, unless it is cancelled first.
+     *
+     * @param delayMillis how long from now
+     * @param task what to run on the wheel's thread
+     * @return the handle to cancel it by
+     */
+    public synchronized Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        long deadline = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        long target = Math.max(tick, (deadline + tickNanos - 1) / tickNanos);
+        timeout.slot = (int) (target % wheel.size());
+        timeout.rounds = (target - tick) / wheel.size();
+        wheel.get(timeout.slot).add(timeout);
+        pending += 1;
+        return timeout;
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     *
+     * @return the pending task count
+     */
+    public synchronized int pending() {
+        return pending;
+    }
+
+    /**
+     * Returns the number of tasks that have run.
+     *
+     * @return the fired task count
+     */
+    public synchronized long fired() {
+        return fired;
+    }
+
+    private void turn() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = start + tick * tickNanos - System.nanoTime();
+                if (wait <= 0) {
+                    for (Iterator<Timeout> it = wheel.get((int) (tick % wheel.size())).iterator(); it.hasNext(); ) {
+                        Timeout timeout = it.next();
+                        if (timeout.rounds > 0) {
+                            timeout.rounds -= 1;
+                        } else {
+                            it.remove();
+                            timeout.done = true;
+                            pending -= 1;
+                            fired += 1;
+                            due.add(timeout);
+                        }
+                    }
+                    tick += 1;
+                }
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ex) {
+                    EventLog.log(EventLog.Category.REQUEST, EventLog.Level.WARN, "Deadline task failed", "error", ex);
+                }
+            }
+            due.clear();
+        }
+    }
+}
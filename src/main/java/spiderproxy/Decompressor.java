@@ -6,8 +6,8 @@
 package spiderproxy;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorInputStream;
@@ -26,8 +26,22 @@ public class Decompressor {
     * @throws IOException thrown by read(), close(), flush()
     */
     public static byte[] decode(byte[] data, String contentEncoding) throws DataFormatException, CompressorException, IOException{
-        ByteArrayInputStream is = new ByteArrayInputStream(data);
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        return decode(data, data.length, contentEncoding);
+    }
+
+    /**
+    * Decode the first length bytes of data, which may be a pooled buffer.
+    * 
+    * @param data byte[] - Holds the data from request to be decoded.
+    * @param length int - Number of bytes of data to decode.
+    * @param contentEncoding String - Content encoding from request.
+    * @return byte[] - Decoded data.
+    * @throws java.util.zip.DataFormatException thrown when contentEncoding from request is not supported.
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by CompressorStreamFactory.
+    * @throws IOException thrown by read(), close()
+    */
+    public static byte[] decode(byte[] data, int length, String contentEncoding) throws DataFormatException, CompressorException, IOException{
+        ByteArrayInputStream is = new ByteArrayInputStream(data, 0, length);
         CompressorInputStream in = null;
 
         switch (contentEncoding) {
@@ -41,7 +55,7 @@ public class Decompressor {
                 in = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.DEFLATE, is);
                 break;
             case "identity": // Not compressed?
-                return data;
+                return length == data.length ? data : Arrays.copyOf(data, length);
             case "br":
                 in = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.BROTLI, is);
                 break;
@@ -53,18 +67,16 @@ public class Decompressor {
         }
         
         if(in == null)
-            return data;
-        int offset; 
-        int bufferSize = 1; // Works for now
-        byte buffer[] = new byte[bufferSize];
-        
-        while((offset=in.read(buffer, 0, bufferSize))!= -1)
-            os.write(buffer, 0, offset);
-        byte[] newData = os.toByteArray();
-        is.close();
-        os.flush();
-        os.close();
-        return newData;
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        // Decode into a pooled buffer, reading a relay-sized block at a time
+        BufferPool.Buffer decoded = BufferPool.heap().acquire(Math.max(length * 4, BufferPool.relayBufferBytes));
+        try {
+            decoded.readFrom(in, Integer.MAX_VALUE - 8);
+            return decoded.toByteArray();
+        } finally {
+            decoded.release();
+            in.close();
+        }
     }
     
     /**
@@ -78,17 +90,36 @@ public class Decompressor {
     * @throws IOException thrown by decode()
     */
     public static String decompress(byte[] data, String contentEncodingString) throws DataFormatException, CompressorException, IOException{
-        System.out.println("Decompressing data encoded as: " + contentEncodingString);
+        return decompress(data, data.length, contentEncodingString);
+    }
+
+    /**
+    * Decode the first length bytes of data if there's a contentEncodingString
+    * 
+    * @param data byte[] - Holds the data from request, possibly a pooled buffer.
+    * @param length int - Number of bytes of data to decode.
+    * @param contentEncodingString String - Indicating encoding from request.
+    * @return String - Decoded data converted to a String.
+    * @throws java.util.zip.DataFormatException thrown by decode()
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by decode()
+    * @throws IOException thrown by decode()
+    */
+    public static String decompress(byte[] data, int length, String contentEncodingString) throws DataFormatException, CompressorException, IOException{
+        EventLog.log(EventLog.Category.DECOMPRESS, EventLog.Level.DEBUG, "Decompressing", "encoding", contentEncodingString, "bytes", length);
+        long start = System.nanoTime();
         byte[] newData = data;
+        int newLength = length;
         if(contentEncodingString.isEmpty() || contentEncodingString.trim().equals(","))
-            return new String(newData);
+            return new String(newData, 0, newLength);
         for(String contentEncoding : contentEncodingString.split(",")){
             if(contentEncoding.isEmpty()) 
                 continue;
-            newData = decode(newData, contentEncoding.trim().toLowerCase());
+            newData = decode(newData, newLength, contentEncoding.trim().toLowerCase());
+            newLength = newData.length;
         }
         // Convert byte[] to String
-        String decompressedData = new String(newData);
+        String decompressedData = new String(newData, 0, newLength);
+        Metrics.since(Metrics.Phase.DECOMPRESS, start);
         return decompressedData;
     }
 }
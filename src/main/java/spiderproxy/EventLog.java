@@ -0,0 +1,298 @@
+/**
+ * EventLog
+ * @author Andrew Kulpa & Darren Wolbers
+ * Structured logging off the request path. Connection threads put events in
+ * a bounded lock-free ring and a single background thread writes them out as
+ * JSON lines, so a slow console never holds up a request. Each category has
+ * its own level, a sampling rate and a cap on events per second; when the
+ * ring is full events are dropped and counted rather than waited for. A
+ * category below its level costs one comparison, with no allocation.
+ */
+package spiderproxy;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventLog {
+    // Slots in the ring; rounded up to a power of two.
+    public static int ringSize = 8192;
+    // Where the writer thread prints events.
+    public static volatile PrintStream out = System.out;
+
+    /**
+     * How severe an event is. A category logs events at or above its level.
+     */
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * What an event is about. Each category is configured separately.
+     */
+    public enum Category {
+        REQUEST("request"),
+        RESPONSE("response"),
+        UPSTREAM("upstream"),
+        SPIDER("spider"),
+        SITEMAP("sitemap"),
+        DECOMPRESS("decompress"),
+        INTERNAL("internal");
+
+        final String label;
+        volatile int threshold = Level.INFO.ordinal();
+        volatile int sampleEvery = 1;
+        volatile int maxPerSecond = 0;
+        private final AtomicLong seen = new AtomicLong();
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicInteger inWindow = new AtomicInteger();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        Category(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * One event waiting in the ring.
+     */
+    private static final class Entry {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final Category category;
+        final String message;
+        final Object[] fields;
+
+        Entry(Level level, Category category, String message, Object[] fields) {
+            this.level = level;
+            this.category = category;
+            this.message = message;
+            this.fields = fields;
+        }
+    }
+
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong sampledOut = new AtomicLong();
+    private static final AtomicLong rateLimited = new AtomicLong();
+    private static volatile Ring ring;
+
+    /**
+     * Sets how much of a category is logged.
+     *
+     * @param category the category
+     * @param level the least severe level logged
+     * @param sampleEvery log one in this many events; 1 logs every one
+     * @param maxPerSecond the most events logged in a second; 0 for no limit
+     */
+    public static void configure(Category category, Level level, int sampleEvery, int maxPerSecond) {
+        category.threshold = level.ordinal();
+        category.sampleEvery = Math.max(1, sampleEvery);
+        category.maxPerSecond = Math.max(0, maxPerSecond);
+    }
+
+    /**
+     * Returns whether a category logs at a level, so that callers can skip
+     * building an expensive message.
+     *
+     * @param category the category
+     * @param level the level
+     * @return true if such an event would be considered
+     */
+    public static boolean enabled(Category category, Level level) {
+        return level.ordinal() >= category.threshold;
+    }
+
+    public static void log(Category category, Level level, String message) {
+        if (enabled(category, level))
+            submit(category, level, message, null);
+    }
+
+    public static void log(Category category, Level level, String message, String key, Object value) {
+        if (enabled(category, level))
+            submit(category, level, message, new Object[]{key, value});
+    }
+
+    public static void log(Category category, Level level, String message, String key1, Object value1, String key2, Object value2) {
+        if (enabled(category, level))
+            submit(category, level, message, new Object[]{key1, value1, key2, value2});
+    }
+
+    // Numeric values are only boxed once the level check has passed.
+
+    public static void log(Category category, Level level, String message, String key, long value) {
+        if (enabled(category, level))
+            submit(category, level, message, new Object[]{key, value});
+    }
+
+    public static void log(Category category, Level level, String message, String key1, Object value1, String key2, long value2) {
+        if (enabled(category, level))
+            submit(category, level, message, new Object[]{key1, value1, key2, value2});
+    }
+
+    public static void log(Category category, Level level, String message, String key1, long value1, String key2, long value2) {
+        if (enabled(category, level))
+            submit(category, level, message, new Object[]{key1, value1, key2, value2});
+    }
+
+    /**
+     * Waits until every event logged so far has been written.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return false if events were still pending when the time ran out
+     */
+    public static boolean flush(long timeoutMillis) {
+        Ring current = ring;
+        if (current == null)
+            return true;
+        long target = current.tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (current.head < target) {
+            if (System.nanoTime() > deadline)
+                return false;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Returns the logging counters as a JSON object.
+     *
+     * @return the stats document
+     */
+    public static String statsJson() {
+        Ring current = ring;
+        return "{\"written\":" + written.get()
+             + ",\"dropped\":" + dropped.get()
+             + ",\"sampledOut\":" + sampledOut.get()
+             + ",\"rateLimited\":" + rateLimited.get()
+             + ",\"pending\":" + (current == null ? 0 : current.tail.get() - current.head) + "}";
+    }
+
+    private static void submit(Category category, Level level, String message, Object[] fields) {
+        int every = category.sampleEvery;
+        if (every > 1 && category.seen.getAndIncrement() % every != 0) {
+            sampledOut.incrementAndGet();
+            return;
+        }
+        int max = category.maxPerSecond;
+        if (max > 0) {
+            long second = System.nanoTime() / 1000000000L;
+            long current = category.window.get();
+            if (current != second && category.window.compareAndSet(current, second)) {
+                category.inWindow.set(0);
+                long missed = category.suppressed.getAndSet(0);
+                if (missed > 0)
+                    ring().offer(new Entry(Level.WARN, category, "Events suppressed by rate limit", new Object[]{"count", missed}));
+            }
+            if (category.inWindow.incrementAndGet() > max) {
+                category.suppressed.incrementAndGet();
+                rateLimited.incrementAndGet();
+                return;
+            }
+        }
+        ring().offer(new Entry(level, category, message, fields));
+    }
+
+    private static Ring ring() {
+        if (ring == null) {
+            synchronized (EventLog.class) {
+                if (ring == null)
+                    ring = new Ring(ringSize);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * A bounded multi-producer, single-consumer queue. Producers claim a
+     * slot by advancing the tail and publish it by bumping the slot's
+     * sequence; the writer thread takes slots in order as they are published.
+     */
+    private static final class Ring {
+        private final AtomicReferenceArray<Entry> entries;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        // Only the writer thread moves the head.
+        private volatile long head = 0;
+
+        Ring(int size) {
+            int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            entries = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                sequences.set(i, i);
+            Thread writer = new Thread(this::drain, "event-log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "event-log-flush"));
+        }
+
+        void offer(Entry entry) {
+            while (true) {
+                long slot = tail.get();
+                long sequence = sequences.get((int) slot & mask);
+                if (sequence == slot) {
+                    if (tail.compareAndSet(slot, slot + 1)) {
+                        entries.set((int) slot & mask, entry);
+                        sequences.lazySet((int) slot & mask, slot + 1);
+                        return;
+                    }
+                } else if (sequence < slot) {
+                    // The writer has not freed this slot yet: the ring is full
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        private void drain() {
+            StringBuilder line = new StringBuilder(256);
+            while (true) {
+                long next = head;
+                int index = (int) next & mask;
+                if (sequences.get(index) != next + 1) {
+                    out.flush();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                Entry entry = entries.get(index);
+                entries.set(index, null);
+                sequences.lazySet(index, next + mask + 1);
+                line.setLength(0);
+                format(entry, line);
+                out.println(line);
+                written.incrementAndGet();
+                head = next + 1;
+            }
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append('"')
+            .append(",\"level\":\"").append(entry.level).append('"')
+            .append(",\"category\":\"").append(entry.category.label).append('"')
+            .append(",\"thread\":").append(InternalAPI.quote(entry.thread))
+            .append(",\"message\":").append(InternalAPI.quote(entry.message));
+        if (entry.fields != null) {
+            for (int i = 0; i + 1 < entry.fields.length; i += 2) {
+                Object value = entry.fields[i + 1];
+                line.append(',').append(InternalAPI.quote(String.valueOf(entry.fields[i]))).append(':');
+                if (value instanceof Number || value instanceof Boolean)
+                    line.append(value);
+                else
+                    line.append(value == null ? "null" : InternalAPI.quote(String.valueOf(value)));
+            }
+        }
+        line.append('}');
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * HappyEyeballs
+ * @author Andrew Kulpa & Darren Wolbers
+ * Connects to a host over every address it resolves to, in the manner of
+ * RFC 8305. Addresses are ordered to alternate between IPv6 and IPv4, and a
+ * new attempt starts every attemptDelayMillis, or as soon as the previous one
+ * fails, while earlier attempts keep running. The first connection to succeed
+ * is kept and the rest are closed, so a dead address costs a short delay
+ * instead of a full connect timeout.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HappyEyeballs {
+    public static long attemptDelayMillis = 250;
+
+    /**
+     * Looks up the addresses of a host name.
+     */
+    public interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    // How host names are resolved; replaceable to pin hosts to other addresses.
+    public static volatile Resolver resolver = InetAddress::getAllByName;
+
+    private static final AtomicLong connects = new AtomicLong();
+    private static final AtomicLong attempts = new AtomicLong();
+    private static final AtomicLong fallbacks = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static volatile ExecutorService executor;
+
+    /**
+     * The outcome of one connection attempt.
+     */
+    private static final class Attempt {
+        final int index;
+        final Socket socket;
+        final IOException error;
+
+        Attempt(int index, Socket socket, IOException error) {
+            this.index = index;
+            this.socket = socket;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Connects to a host, racing its addresses.
+     *
+     * @param host the host name or literal address
+     * @param port the port
+     * @param timeoutMillis the longest to wait for any connection
+     * @return the connected socket
+     * @throws UnknownHostException if the host does not resolve
+     * @throws SocketTimeoutException if no address connected in time
+     * @throws IOException if every address refused
+     */
+    public static Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        connects.incrementAndGet();
+        UpstreamConnectEvent event = new UpstreamConnectEvent();
+        event.begin();
+        Socket socket = null;
+        try {
+            long start = System.nanoTime();
+            List<InetAddress> addresses = order(resolver.resolve(host));
+            long resolved = Metrics.since(Metrics.Phase.DNS, start);
+            event.dnsNanos = resolved - start;
+            event.addresses = addresses.size();
+            if (addresses.isEmpty())
+                throw new UnknownHostException(host);
+            socket = addresses.size() == 1 ? connectOne(addresses.get(0), port, timeoutMillis) : race(addresses, port, timeoutMillis);
+            Metrics.since(Metrics.Phase.CONNECT, resolved);
+            return socket;
+        } finally {
+            if (event.shouldCommit()) {
+                event.host = host;
+                event.port = port;
+                event.succeeded = socket != null;
+                event.address = socket == null ? null : socket.getInetAddress().getHostAddress();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Orders addresses so that the families alternate, starting with the
+     * family of the first one, keeping the resolver's order within a family.
+     *
+     * @param resolved the addresses as resolved
+     * @return the order to try them in
+     */
+    static List<InetAddress> order(InetAddress[] resolved) {
+        LinkedList<InetAddress> first = new LinkedList<>();
+        LinkedList<InetAddress> second = new LinkedList<>();
+        for (InetAddress address : resolved) {
+            if (first.isEmpty() || (address instanceof Inet6Address) == (first.getFirst() instanceof Inet6Address))
+                first.add(address);
+            else
+                second.add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(resolved.length);
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty())
+                ordered.add(first.removeFirst());
+            if (!second.isEmpty())
+                ordered.add(second.removeFirst());
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the connect counters as a JSON object.
+     *
+     * @return the stats document
+     */
+    public static String statsJson() {
+        return "{\"connects\":" + connects.get()
+             + ",\"attempts\":" + attempts.get()
+             + ",\"fallbacks\":" + fallbacks.get()
+             + ",\"failures\":" + failures.get() + "}";
+    }
+
+    private static Socket connectOne(InetAddress address, int port, int timeoutMillis) throws IOException {
+        attempts.incrementAndGet();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+            return socket;
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+            socket.close();
+            throw ex;
+        }
+    }
+
+    private static Socket race(List<InetAddress> addresses, int port, int timeoutMillis) throws IOException {
+        BlockingQueue<Attempt> done = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        IOException failure = null;
+        Socket winner = null;
+        int started = 0;
+        int running = 0;
+        boolean startNext = true;
+        try {
+            while (true) {
+                if (startNext && started < addresses.size()) {
+                    int index = started++;
+                    Socket socket = new Socket();
+                    sockets.add(socket);
+                    InetSocketAddress target = new InetSocketAddress(addresses.get(index), port);
+                    attempts.incrementAndGet();
+                    running += 1;
+                    executor().execute(() -> {
+                        try {
+                            socket.connect(target, timeoutMillis);
+                            done.add(new Attempt(index, socket, null));
+                        } catch (IOException ex) {
+                            done.add(new Attempt(index, null, ex));
+                        }
+                    });
+                }
+                startNext = false;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                long wait = started < addresses.size() ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis)) : remaining;
+                Attempt attempt;
+                try {
+                    attempt = done.poll(wait, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting", ex);
+                }
+                if (attempt == null) {
+                    startNext = true;
+                    continue;
+                }
+                running -= 1;
+                if (attempt.socket != null) {
+                    winner = attempt.socket;
+                    if (attempt.index > 0)
+                        fallbacks.incrementAndGet();
+                    return winner;
+                }
+                if (failure == null)
+                    failure = attempt.error;
+                else
+                    failure.addSuppressed(attempt.error);
+                if (running == 0 && started == addresses.size())
+                    break;
+                startNext = true;
+            }
+        } finally {
+            // Closing the losers also aborts any attempt still connecting
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    try {
+                        socket.close();
+                    } catch (IOException ex) {
+                        // never connected
+                    }
+                }
+            }
+        }
+        failures.incrementAndGet();
+        if (running > 0 || failure == null)
+            throw new SocketTimeoutException("No address of " + addresses.get(0) + " connected within " + timeoutMillis + " ms");
+        throw failure;
+    }
+
+    private static ExecutorService executor() {
+        if (executor == null) {
+            synchronized (HappyEyeballs.class) {
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(r -> {
+                        Thread thread = new Thread(r, "happy-eyeballs");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
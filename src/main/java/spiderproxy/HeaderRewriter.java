@@ -0,0 +1,349 @@
+/**
+ * HeaderRewriter
+ * @author Andrew Kulpa & Darren Wolbers
+ * Rewrites request and response header fields by rule. A rule names the
+ * direction, the host it applies to, a field name, a regular expression and
+ * its replacement; a matching field's value is replaced, or the field is
+ * dropped if the replacement leaves it empty. Expressions are compiled once
+ * when a rule is added, and rules are looked up by host, so a header from a
+ * host without rules is returned as it is without being looked at.
+ *
+ * Hosts are written as "example.com" for that host alone, "*.example.com"
+ * for the domain and every host under it, or "*" for all hosts. Rules can be
+ * loaded from a file with one rule per line, its fields separated by tabs:
+ *
+ *   response	*.example.com	Location	^http://(.*)$	https://$1
+ *   request	*	X-Forwarded-For	.*
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+public class HeaderRewriter {
+    private static volatile HeaderRewriter shared;
+
+    /**
+     * Which headers a rule applies to.
+     */
+    public enum Direction {
+        REQUEST, RESPONSE
+    }
+
+    /**
+     * One precompiled rewrite.
+     */
+    public static final class Rule {
+        public final Direction direction;
+        public final String host;
+        public final String field;
+        public final Pattern pattern;
+        public final String replacement;
+
+        /**
+         * @param direction whether the rule rewrites requests or responses
+         * @param host the host it applies to: "example.com", "*.example.com" or "*"
+         * @param field the header field name
+         * @param regex the expression a value must contain to be rewritten
+         * @param replacement the replacement, which may refer to groups as $1;
+         *        a value left empty drops the field
+         * @throws PatternSyntaxException if regex is not a valid expression
+         */
+        public Rule(Direction direction, String host, String field, String regex, String replacement) {
+            this.direction = direction;
+            this.host = host.trim().toLowerCase(Locale.ROOT);
+            this.field = field.trim();
+            this.pattern = Pattern.compile(regex);
+            this.replacement = replacement;
+        }
+
+        /**
+         * Parses a rule from a line of a rules file.
+         *
+         * @param line direction, host, field, expression and replacement, separated by tabs
+         * @return the rule
+         * @throws IllegalArgumentException if the line is not a valid rule
+         */
+        public static Rule parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 4 || fields.length > 5)
+                throw new IllegalArgumentException("expected 4 or 5 tab-separated fields but found " + fields.length);
+            Direction direction;
+            try {
+                direction = Direction.valueOf(fields[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown direction '" + fields[0].trim() + "'");
+            }
+            try {
+                return new Rule(direction, fields[1], fields[2], fields[3], fields.length > 4 ? fields[4] : "");
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("bad expression: " + e.getDescription());
+            }
+        }
+
+        /**
+         * Rewrites one field value.
+         *
+         * @param value the value
+         * @return the new value, or the same String if the rule did not match
+         */
+        String apply(String value) {
+            Matcher matcher = pattern.matcher(value);
+            return matcher.find() ? matcher.replaceFirst(replacement) : value;
+        }
+
+        @Override
+        public String toString() {
+            return direction.name().toLowerCase(Locale.ROOT) + "\t" + host + "\t" + field + "\t" + pattern.pattern() + "\t" + replacement;
+        }
+    }
+
+    /**
+     * The rules of one direction, indexed by host. Replaced whole whenever a
+     * rule is added or removed, so lookups need no lock.
+     */
+    private static final class Index {
+        static final Index EMPTY = new Index(new ArrayList<>());
+        final Map<String, Rule[]> exact = new HashMap<>();
+        final Map<String, Rule[]> domains = new HashMap<>();
+        final Rule[] any;
+        final boolean empty;
+
+        Index(List<Rule> rules) {
+            List<Rule> all = new ArrayList<>();
+            for (Rule rule : rules) {
+                if (rule.host.equals("*"))
+                    all.add(rule);
+                else if (rule.host.startsWith("*."))
+                    domains.merge(rule.host.substring(2), new Rule[]{rule}, Index::concat);
+                else
+                    exact.merge(rule.host, new Rule[]{rule}, Index::concat);
+            }
+            any = all.toArray(new Rule[0]);
+            empty = rules.isEmpty();
+        }
+
+        /**
+         * Returns the rules for a host: its own, its domains', then those for
+         * every host.
+         */
+        List<Rule> lookup(String host) {
+            List<Rule> found = null;
+            if (!exact.isEmpty())
+                found = add(found, exact.get(host));
+            if (!domains.isEmpty()) {
+                for (String domain = host; domain != null; ) {
+                    found = add(found, domains.get(domain));
+                    int dot = domain.indexOf('.');
+                    domain = dot < 0 ? null : domain.substring(dot + 1);
+                }
+            }
+            return add(found, any);
+        }
+
+        private static List<Rule> add(List<Rule> found, Rule[] rules) {
+            if (rules == null || rules.length == 0)
+                return found;
+            if (found == null)
+                found = new ArrayList<>(rules.length);
+            found.addAll(Arrays.asList(rules));
+            return found;
+        }
+
+        private static Rule[] concat(Rule[] a, Rule[] b) {
+            Rule[] both = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, both, a.length, b.length);
+            return both;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private volatile Index requests = Index.EMPTY;
+    private volatile Index responses = Index.EMPTY;
+
+    public HeaderRewriter() {
+    }
+
+    /**
+     * Returns the rewriter used by the proxy, which starts with the rules from
+     * defaults().
+     *
+     * @return the shared HeaderRewriter
+     */
+    public static HeaderRewriter shared() {
+        if (shared == null) {
+            synchronized (HeaderRewriter.class) {
+                if (shared == null) {
+                    HeaderRewriter rewriter = new HeaderRewriter();
+                    for (Rule rule : defaults())
+                        rewriter.add(rule);
+                    shared = rewriter;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the fixes for broken redirects that the proxy has always made:
+     *  - wiu.edu's BIG-IP appends the original http:// URL to an https://
+     *    Location, so everything from the http:// on is cut off;
+     *  - blog.iosart.com sends Locations like "http://host/http/path", so
+     *    the part after "http/" becomes the URL.
+     *
+     * @return the default rules
+     */
+    public static List<Rule> defaults() {
+        List<Rule> defaults = new ArrayList<>();
+        defaults.add(new Rule(Direction.RESPONSE, "*.wiu.edu", "Location", "^(.*?https://.*?)http://.*$", "$1"));
+        defaults.add(new Rule(Direction.RESPONSE, "blog.iosart.com", "Location", "^.*?http://.*?http/(.*?)(?:http/.*)?$", "http://$1"));
+        return defaults;
+    }
+
+    /**
+     * Adds a rule after those already present for its host.
+     *
+     * @param rule the rule
+     */
+    public synchronized void add(Rule rule) {
+        rules.add(rule);
+        reindex();
+    }
+
+    /**
+     * Removes a rule.
+     *
+     * @param rule the rule
+     * @return whether it was present
+     */
+    public synchronized boolean remove(Rule rule) {
+        boolean removed = rules.remove(rule);
+        if (removed)
+            reindex();
+        return removed;
+    }
+
+    /**
+     * Returns every rule, in the order they were added.
+     *
+     * @return a copy of the rules
+     */
+    public synchronized List<Rule> rules() {
+        return new ArrayList<>(rules);
+    }
+
+    /**
+     * Adds the rules in a file. Blank lines and lines starting with '#' are
+     * skipped. Either every rule in the file is added or none is.
+     *
+     * @param file the rules file
+     * @return the number of rules added
+     * @throws IOException if the file cannot be read or a line is not a valid rule
+     */
+    public int load(Path file) throws IOException {
+        List<Rule> loaded = new ArrayList<>();
+        int number = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            number += 1;
+            if (line.trim().isEmpty() || line.trim().startsWith("#"))
+                continue;
+            try {
+                loaded.add(Rule.parse(line));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ":" + number + ": " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            rules.addAll(loaded);
+            reindex();
+        }
+        return loaded.size();
+    }
+
+    /**
+     * Rewrites the header of a request about to be sent to a host.
+     *
+     * @param host the host the request is for
+     * @param header the header lines, each ending in CRLF
+     * @return the rewritten header, or the same String if no rule changed it
+     */
+    public String rewriteRequest(String host, String header) {
+        return rewrite(requests, host, header);
+    }
+
+    /**
+     * Rewrites the header of a response received from a host.
+     *
+     * @param host the host the response came from
+     * @param header the header lines, each ending in CRLF
+     * @return the rewritten header, or the same String if no rule changed it
+     */
+    public String rewriteResponse(String host, String header) {
+        return rewrite(responses, host, header);
+    }
+
+    private static String rewrite(Index index, String host, String header) {
+        if (index.empty || header == null)
+            return header;
+        List<Rule> matching = index.lookup(host == null ? "" : host.trim().toLowerCase(Locale.ROOT));
+        if (matching == null)
+            return header;
+        StringBuilder rewritten = null;
+        int start = 0;
+        while (start < header.length()) {
+            int end = header.indexOf(Proxy.carriageReturn, start);
+            int next = end < 0 ? header.length() : end + Proxy.carriageReturn.length();
+            String line = header.substring(start, end < 0 ? header.length() : end);
+            String replaced = rewriteLine(line, matching);
+            if (replaced != line && rewritten == null)
+                rewritten = new StringBuilder(header.length() + 64).append(header, 0, start);
+            if (rewritten != null && replaced != null)
+                rewritten.append(replaced).append(Proxy.carriageReturn);
+            start = next;
+        }
+        return rewritten == null ? header : rewritten.toString();
+    }
+
+    /**
+     * Applies the rules for a line's field to its value.
+     *
+     * @return the same line if nothing changed, the new line, or null to drop it
+     */
+    private static String rewriteLine(String line, List<Rule> matching) {
+        int colon = line.indexOf(':');
+        if (colon <= 0)
+            return line;
+        String name = line.substring(0, colon).trim();
+        String value = null;
+        for (Rule rule : matching) {
+            if (!rule.field.equalsIgnoreCase(name))
+                continue;
+            if (value == null)
+                value = line.substring(colon + 1).trim();
+            value = rule.apply(value);
+        }
+        if (value == null || value.equals(line.substring(colon + 1).trim()))
+            return line;
+        return value.isEmpty() ? null : name + ": " + value;
+    }
+
+    private void reindex() {
+        List<Rule> request = new ArrayList<>();
+        List<Rule> response = new ArrayList<>();
+        for (Rule rule : rules)
+            (rule.direction == Direction.REQUEST ? request : response).add(rule);
+        requests = new Index(request);
+        responses = new Index(response);
+    }
+}
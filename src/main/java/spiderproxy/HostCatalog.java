@@ -0,0 +1,311 @@
+/**
+ * HostCatalog
+ * @author Andrew Kulpa & Darren Wolbers
+ * In-memory catalog of every host that has a sitemap, kept up to date as URLs
+ * are inserted so the homepage never has to scan the map directory.
+ */
+package spiderproxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class HostCatalog {
+    private static final ConcurrentHashMap<String, HostEntry> hosts = new ConcurrentHashMap<>();
+    private static volatile boolean loaded = false;
+    private static Thread watcherThread;
+    private static WatchService watchService;
+
+    /**
+     * A single catalog row. Fields are only written while holding the entry's
+     * monitor, and are volatile so the homepage can read them without locking.
+     */
+    public static class HostEntry {
+        private final String hostname;
+        private volatile long urlCount;
+        private volatile long firstSeen;
+        private volatile long lastUpdated;
+        private volatile long sizeOnDisk;
+
+        HostEntry(String hostname, long firstSeen) {
+            this.hostname = hostname;
+            this.firstSeen = firstSeen;
+            this.lastUpdated = firstSeen;
+        }
+
+        public String getHostname() { return hostname; }
+        public long getUrlCount() { return urlCount; }
+        public long getFirstSeen() { return firstSeen; }
+        public long getLastUpdated() { return lastUpdated; }
+        public long getSizeOnDisk() { return sizeOnDisk; }
+    }
+
+    /**
+     * Record that the sitemap of the given host was just written. Creates the
+     * host entry on first sight. The caller passes the number of URLs it
+     * wrote, so the count does not depend on whether the watcher has seen the
+     * write yet. Must be called while holding DataAccessor.lockFor(hostname).
+     * Loads the catalog first, so a host already on disk keeps its firstSeen;
+     * inserts load it before they write, so the scan sees the earlier sitemap.
+     *
+     * @param hostname the hostname whose sitemap was just written
+     * @param sitemap the sitemap File, used to pick up the new on-disk size
+     * @param urlCount the number of URLs the sitemap now holds
+     */
+    public static void recordInsert(String hostname, File sitemap, long urlCount) {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        HostEntry entry = hosts.computeIfAbsent(hostname, h -> new HostEntry(h, now));
+        long size = sitemap.length();
+        synchronized (entry) {
+            entry.urlCount = urlCount;
+            entry.lastUpdated = now;
+            entry.sizeOnDisk = size;
+        }
+    }
+
+    /**
+     * Returns the catalog entry for a host, or null if the host is unknown.
+     *
+     * @param hostname the hostname to look up
+     * @return the HostEntry, or null
+     */
+    public static HostEntry get(String hostname) {
+        ensureLoaded();
+        return hosts.get(hostname);
+    }
+
+    /**
+     * Returns a snapshot of the catalog, filtered and sorted.
+     *
+     * @param sortKey one of "host", "urls", "first", "updated" or "size"; anything else sorts by host
+     * @param descending whether to reverse the sort order
+     * @param filter a case-insensitive substring the hostname must contain; empty or null matches all
+     * @return the matching entries in the requested order
+     */
+    public static List<HostEntry> list(String sortKey, boolean descending, String filter) {
+        ensureLoaded();
+        String needle = filter == null ? "" : filter.trim().toLowerCase();
+        List<HostEntry> entries = new ArrayList<>();
+        for (HostEntry entry : hosts.values()) {
+            if (needle.isEmpty() || entry.hostname.toLowerCase().contains(needle))
+                entries.add(entry);
+        }
+        Comparator<HostEntry> comparator = comparatorFor(sortKey);
+        entries.sort(descending ? comparator.reversed() : comparator);
+        return entries;
+    }
+
+    /**
+     * Returns the number of hosts currently in the catalog.
+     *
+     * @return the host count
+     */
+    public static int size() {
+        ensureLoaded();
+        return hosts.size();
+    }
+
+    /**
+     * Forgets every host and stops the watcher, so that the next lookup loads
+     * the catalog afresh from DataAccessor.path.
+     */
+    static synchronized void reset() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                Logger.getLogger(HostCatalog.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        watchService = null;
+        watcherThread = null;
+        hosts.clear();
+        loaded = false;
+    }
+
+    private static Comparator<HostEntry> comparatorFor(String sortKey) {
+        Comparator<HostEntry> byHost = Comparator.comparing(HostEntry::getHostname);
+        if (sortKey == null)
+            return byHost;
+        switch (sortKey) {
+            case "urls":
+                return Comparator.comparingLong(HostEntry::getUrlCount).thenComparing(byHost);
+            case "first":
+                return Comparator.comparingLong(HostEntry::getFirstSeen).thenComparing(byHost);
+            case "updated":
+                return Comparator.comparingLong(HostEntry::getLastUpdated).thenComparing(byHost);
+            case "size":
+                return Comparator.comparingLong(HostEntry::getSizeOnDisk).thenComparing(byHost);
+            default:
+                return byHost;
+        }
+    }
+
+    /**
+     * Scan the map directory once to seed the catalog with sitemaps written by
+     * earlier runs, then start the watcher for files added out of band. The
+     * scan takes no sitemap locks, as an insert holding one may be waiting
+     * here; sitemaps are replaced in one move, so each read sees a whole file.
+     */
+    static void ensureLoaded() {
+        if (loaded)
+            return;
+        synchronized (HostCatalog.class) {
+            if (loaded)
+                return;
+            DataAccessor.checkAndCreateDirectory();
+            File[] files = new File(DataAccessor.path).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    readFromDisk(file);
+                }
+            }
+            loaded = true;
+            startWatcher();
+        }
+    }
+
+    /**
+     * (Re)build the entry for a sitemap file by reading it from disk. Skips the
+     * recount when the size and modification time match what we already know,
+     * which is the case for every write made through recordInsert(). Holds the
+     * host's sitemap lock, so an insert cannot change the file mid-count.
+     *
+     * @param file a file within the map directory
+     */
+    static void refreshFromDisk(File file) {
+        String hostname = hostnameOf(file);
+        if (hostname == null)
+            return;
+        ReentrantLock lock = DataAccessor.lockFor(hostname);
+        lock.lock();
+        try {
+            readFromDisk(file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Builds or updates the entry for a sitemap file from what is on disk,
+     * unless it already matches.
+     *
+     * @param file a file within the map directory
+     */
+    private static void readFromDisk(File file) {
+        String hostname = hostnameOf(file);
+        if (hostname == null || !file.isFile())
+            return;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            long modified = attrs.lastModifiedTime().toMillis();
+            HostEntry entry = hosts.computeIfAbsent(hostname, h -> new HostEntry(h, attrs.creationTime().toMillis()));
+            synchronized (entry) {
+                if (entry.sizeOnDisk == attrs.size() && entry.lastUpdated >= modified)
+                    return;
+                entry.urlCount = countLocs(file);
+                entry.sizeOnDisk = attrs.size();
+                entry.lastUpdated = modified;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(HostCatalog.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Counts the 'loc' entries of a sitemap without building a DOM.
+     *
+     * @param sitemap the sitemap File
+     * @return the number of 'loc' tags found
+     * @throws IOException thrown by readLine()
+     */
+    private static long countLocs(File sitemap) throws IOException {
+        long count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(sitemap))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = 0;
+                while ((index = line.indexOf("<loc>", index)) != -1) {
+                    count += 1;
+                    index += 5;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Maps a sitemap file name (x.y.z.xml) back to its hostname (x.y.z).
+     *
+     * @param file a file within the map directory
+     * @return the hostname, or null if this is not a sitemap file
+     */
+    private static String hostnameOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(".xml") || name.startsWith("."))
+            return null;
+        return name.substring(0, name.length() - ".xml".length());
+    }
+
+    /**
+     * Starts a daemon thread watching the map directory, so sitemaps copied in
+     * or deleted by hand show up on the homepage without a restart.
+     */
+    private static void startWatcher() {
+        final Path dir = new File(DataAccessor.path).toPath();
+        final WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            Logger.getLogger(HostCatalog.class.getName()).log(Level.WARNING, "Sitemap watcher unavailable", ex);
+            return;
+        }
+        watchService = watcher;
+        watcherThread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        continue;
+                    File file = dir.resolve((Path) event.context()).toFile();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        String hostname = hostnameOf(file);
+                        if (hostname != null)
+                            hosts.remove(hostname);
+                    } else {
+                        refreshFromDisk(file);
+                    }
+                }
+                if (!key.reset())
+                    return;
+            }
+        }, "HostCatalog-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+}
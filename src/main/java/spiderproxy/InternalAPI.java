@@ -0,0 +1,488 @@
+/**
+ * InternalAPI
+ * @author Andrew Kulpa & Darren Wolbers
+ * Machine-readable NDJSON endpoints under /api/ on the internal server. Every
+ * response is streamed record by record, so memory use does not grow with the
+ * size of a sitemap.
+ */
+package spiderproxy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class InternalAPI {
+    public static String prefix = "/api/";
+    public static int defaultLimit = 1000;
+    public static long maxWaitSeconds = 60;
+    public static int followHeartbeatSeconds = 15;
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    /**
+     * Returns whether the requested url is one of the API endpoints.
+     *
+     * @param url the url requested from the internal server
+     * @return true if the path is under /api/
+     */
+    public static boolean handles(String url) {
+        try {
+            String path = BusinessLogic.getPath(url);
+            return path != null && path.startsWith(prefix);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Routes an API request and streams the response to the client.
+     *
+     * @param url the url requested from the internal server
+     * @param requestHeader the client's request header lines, used for Accept-Encoding
+     * @param out the stream back to the client
+     * @throws IOException thrown when writing to the client fails
+     */
+    public static void handle(String url, String requestHeader, OutputStream out) throws IOException {
+        String path;
+        try {
+            path = BusinessLogic.getPath(url);
+        } catch (URISyntaxException e) {
+            writeError(out, "400 Bad Request", "malformed url");
+            return;
+        }
+        String[] parts = path.substring(prefix.length()).split("/");
+        boolean gzip = acceptsEncoding(requestHeader, "gzip");
+        int limit = parseLimit(BusinessLogic.getQueryParameter(url, "limit"));
+        String cursor = BusinessLogic.getQueryParameter(url, "cursor");
+
+        if (parts.length == 1 && parts[0].equals("hosts")) {
+            try (Writer writer = beginStream(out, gzip)) {
+                streamHosts(writer, cursor, limit, BusinessLogic.getQueryParameter(url, "q"));
+            }
+        } else if (parts.length == 3 && parts[0].equals("hosts") && parts[2].equals("urls")) {
+            String hostname = parts[1];
+            File sitemap = isSafeHostname(hostname) ? DataAccessor.getXMLFile(hostname) : null;
+            if (sitemap == null || !sitemap.exists()) {
+                writeError(out, "404 Not Found", "no sitemap for host");
+                return;
+            }
+            try (Writer writer = beginStream(out, gzip)) {
+                streamUrls(writer, sitemap, parseCursor(cursor), limit);
+            }
+        } else if (parts.length == 1 && parts[0].equals("changes")) {
+            ChangeFeed feed = ChangeFeed.shared();
+            if (feed == null) {
+                writeError(out, "503 Service Unavailable", "change feed unavailable");
+                return;
+            }
+            long since = parseCursor(BusinessLogic.getQueryParameter(url, "since"));
+            long waitMillis = waitMillis(url);
+            boolean follow = follows(url);
+            try (Writer writer = beginStream(out, gzip)) {
+                streamChanges(writer, feed, since, limit, waitMillis, follow);
+            } catch (IOException e) {
+                // Closing the stream fails too once a follower has hung up
+                if (!follow)
+                    throw e;
+            }
+        } else if (parts.length == 1 && parts[0].equals("stats")) {
+            writeJson(out, statsJson());
+        } else if (parts.length == 1 && parts[0].equals("graph")) {
+            try (Writer writer = beginStream(out, gzip)) {
+                streamEdges(writer, (int) Math.min(parseCursor(cursor) - 1, Integer.MAX_VALUE), limit,
+                        BusinessLogic.getQueryParameter(url, "host"));
+            }
+        } else if (parts.length == 2 && parts[0].equals("graph") && parts[1].equals("orphans")) {
+            try (Writer writer = beginStream(out, gzip)) {
+                streamOrphans(writer, (int) Math.min(parseCursor(cursor) - 1, Integer.MAX_VALUE), limit);
+            }
+        } else if (parts.length == 2 && parts[0].equals("graph") && parts[1].equals("degree")) {
+            String target = BusinessLogic.getQueryParameter(url, "url");
+            LinkGraph graph = LinkGraph.shared();
+            int in = graph.inDegree(target);
+            if (in < 0) {
+                writeError(out, "404 Not Found", "url not in graph");
+                return;
+            }
+            try (Writer writer = beginStream(out, gzip)) {
+                writer.write("{\"url\":" + quote(target) + ",\"in\":" + in + ",\"out\":" + graph.outDegree(target) + "}\n");
+            }
+        } else {
+            writeError(out, "404 Not Found", "unknown endpoint");
+        }
+    }
+
+    /**
+     * Writes the link graph's edges as NDJSON in the order they were found.
+     * A record's cursor resumes the export after that edge.
+     *
+     * @param writer the NDJSON stream
+     * @param after the index of the last edge already seen, -1 to start at the beginning
+     * @param limit the maximum number of records
+     * @param host only write edges whose referring page is on this host; empty for all
+     * @throws IOException thrown by write()
+     */
+    static void streamEdges(Writer writer, int after, int limit, String host) throws IOException {
+        final IOException[] failure = new IOException[1];
+        final int[] written = new int[1];
+        // Filtered exports scan past non-matching edges, so only the matches count toward the limit.
+        LinkGraph.shared().exportEdges(after, host.isEmpty() ? limit : Integer.MAX_VALUE, (index, from, to) -> {
+            try {
+                if (!host.isEmpty() && !host.equals(hostOf(from)))
+                    return true;
+                writer.write("{\"from\":" + quote(from) + ",\"to\":" + quote(to) + ",\"cursor\":\"" + (index + 1) + "\"}\n");
+                return ++written[0] < limit;
+            } catch (IOException ex) {
+                failure[0] = ex;
+                return false;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * Writes the orphan pages of the link graph as NDJSON.
+     *
+     * @param writer the NDJSON stream
+     * @param after the id of the last orphan already seen, -1 to start at the beginning
+     * @param limit the maximum number of records
+     * @throws IOException thrown by write()
+     */
+    static void streamOrphans(Writer writer, int after, int limit) throws IOException {
+        LinkGraph graph = LinkGraph.shared();
+        int written = 0;
+        while (written < limit) {
+            int[] ids = graph.orphans(after, Math.min(1024, limit - written));
+            if (ids.length == 0)
+                return;
+            for (int id : ids) {
+                String orphan = graph.url(id);
+                writer.write("{\"url\":" + quote(orphan) + ",\"out\":" + graph.outDegree(orphan) + ",\"cursor\":\"" + (id + 1) + "\"}\n");
+                written += 1;
+            }
+            after = ids[ids.length - 1];
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return BusinessLogic.getHostname(url);
+        } catch (URISyntaxException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Returns whether a request may hold its connection open for as long as
+     * the client likes: /api/changes followed, or long-polled with a wait.
+     * Like a tunnel, such a request only passes admission control rather than
+     * holding an internal permit, and is exempt from the total timeout.
+     *
+     * @param url the url requested from the internal server
+     * @return true for a followed or long-polled change feed
+     */
+    public static boolean holdsOpen(String url) {
+        try {
+            if (!(prefix + "changes").equals(BusinessLogic.getPath(url)))
+                return false;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return follows(url) || parseCursor(BusinessLogic.getQueryParameter(url, "wait")) > 0;
+    }
+
+    /**
+     * Returns how long a long-polled /api/changes may wait for a change: the
+     * wait parameter, at most maxWaitSeconds.
+     *
+     * @param url the url requested from the internal server
+     * @return the wait in milliseconds, 0 if the request does not wait
+     */
+    public static long waitMillis(String url) {
+        return Math.min(parseCursor(BusinessLogic.getQueryParameter(url, "wait")), maxWaitSeconds) * 1000;
+    }
+
+    private static boolean follows(String url) {
+        String follow = BusinessLogic.getQueryParameter(url, "follow");
+        return "1".equals(follow) || "true".equals(follow);
+    }
+
+    /**
+     * Writes the changes after since. With a wait, an empty result is held
+     * open as a long-poll until a change arrives. When following, the stream
+     * stays open and every new change is written as it happens, with a bare
+     * cursor record as a heartbeat whenever the feed is idle.
+     *
+     * @param writer the NDJSON stream
+     * @param feed the change feed
+     * @param since the last sequence number the client has seen
+     * @param limit the maximum number of records per batch
+     * @param waitMillis how long to hold an empty poll open
+     * @param follow whether to keep streaming until the client disconnects
+     * @throws IOException thrown by write(), except when a follower disconnects
+     */
+    static void streamChanges(Writer writer, ChangeFeed feed, long since, int limit, long waitMillis, boolean follow) throws IOException {
+        long cursor = since;
+        try {
+            if (waitMillis > 0)
+                feed.await(cursor, waitMillis);
+            do {
+                List<ChangeFeed.Change> changes = feed.read(cursor, limit);
+                for (ChangeFeed.Change change : changes) {
+                    writer.write("{\"seq\":" + change.getSeq()
+                            + ",\"time\":" + change.getTime()
+                            + ",\"url\":" + quote(change.getUrl())
+                            + ",\"cursor\":\"" + change.getSeq() + "\"}\n");
+                    cursor = change.getSeq();
+                }
+                if (!follow)
+                    break;
+                if (changes.size() < limit && !feed.await(cursor, followHeartbeatSeconds * 1000L))
+                    writer.write("{\"cursor\":\"" + cursor + "\"}\n");
+                writer.flush();
+            } while (true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // A follower hanging up is how a followed feed ends
+            if (!follow)
+                throw e;
+        }
+    }
+
+    /**
+     * Writes one NDJSON record per host, ordered by hostname and starting after
+     * the cursor. Each record's cursor resumes the listing after that host.
+     *
+     * @param writer the NDJSON stream
+     * @param cursor the last hostname already seen, or empty to start at the beginning
+     * @param limit the maximum number of records
+     * @param filter a hostname substring filter
+     * @throws IOException thrown by write()
+     */
+    static void streamHosts(Writer writer, String cursor, int limit, String filter) throws IOException {
+        List<HostCatalog.HostEntry> hosts = HostCatalog.list("host", false, filter);
+        int written = 0;
+        for (HostCatalog.HostEntry host : hosts) {
+            if (written >= limit)
+                break;
+            if (!cursor.isEmpty() && host.getHostname().compareTo(cursor) <= 0)
+                continue;
+            writer.write("{\"host\":" + quote(host.getHostname())
+                    + ",\"urls\":" + host.getUrlCount()
+                    + ",\"firstSeen\":" + host.getFirstSeen()
+                    + ",\"lastUpdated\":" + host.getLastUpdated()
+                    + ",\"size\":" + host.getSizeOnDisk()
+                    + ",\"cursor\":" + quote(host.getHostname()) + "}\n");
+            written += 1;
+        }
+    }
+
+    /**
+     * Streams the 'loc' entries of a sitemap straight from disk with a StAX
+     * reader. Sitemaps are append-only, so an entry's position is a stable cursor.
+     *
+     * @param writer the NDJSON stream
+     * @param sitemap the sitemap File
+     * @param cursor the number of entries already seen
+     * @param limit the maximum number of records
+     * @throws IOException thrown by write()
+     */
+    static void streamUrls(Writer writer, File sitemap, long cursor, int limit) throws IOException {
+        long position = 0;
+        int written = 0;
+        try (InputStream in = new FileInputStream(sitemap)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (written < limit && reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT || !"loc".equals(reader.getLocalName()))
+                        continue;
+                    String loc = reader.getElementText().trim();
+                    position += 1;
+                    if (position <= cursor)
+                        continue;
+                    writer.write("{\"url\":" + quote(loc) + ",\"cursor\":\"" + position + "\"}\n");
+                    written += 1;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.WARN, "Could not stream sitemap", "file", sitemap, "error", ex);
+        }
+    }
+
+    /**
+     * Writes the NDJSON response header and returns a buffered writer for the
+     * body, gzip-compressed when the client allows it.
+     *
+     * @param out the stream back to the client
+     * @param gzip whether to gzip the body
+     * @return the writer for the body; closing it finishes the response
+     * @throws IOException thrown by write()
+     */
+    static Writer beginStream(OutputStream out, boolean gzip) throws IOException {
+        String header = "HTTP/1.1 200 OK" + Proxy.carriageReturn
+                      + "Content-Type: application/x-ndjson; charset=utf-8" + Proxy.carriageReturn
+                      + "Cache-Control: no-store" + Proxy.carriageReturn
+                      + "Connection: close" + Proxy.carriageReturn;
+        if (gzip) {
+            header += "Content-Encoding: gzip" + Proxy.carriageReturn
+                    + "Vary: Accept-Encoding" + Proxy.carriageReturn;
+        }
+        out.write((header + Proxy.carriageReturn).getBytes(StandardCharsets.US_ASCII));
+        // syncFlush so that flush() pushes followed changes through the compressor
+        OutputStream body = gzip ? new GZIPOutputStream(out, 8192, true) : out;
+        return new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 8192);
+    }
+
+    /**
+     * Returns the counters of the proxy's components as one JSON object.
+     *
+     * @return the stats document
+     */
+    static String statsJson() {
+        return "{\"cache\":" + ResponseCache.shared().statsJson()
+             + ",\"coalescing\":" + Coalescer.shared().statsJson()
+             + ",\"buffers\":" + BufferPool.heap().statsJson()
+             + ",\"memory\":" + MemoryBudget.shared().statsJson()
+             + ",\"admission\":" + AdmissionController.shared().statsJson()
+             + ",\"spider\":" + SpiderScheduler.shared().statsJson()
+             + ",\"timeouts\":" + ConnectionDeadline.statsJson()
+             + ",\"connect\":" + HappyEyeballs.statsJson()
+             + ",\"logging\":" + EventLog.statsJson()
+             + ",\"capture\":" + TrafficRecorder.statsJson()
+             + ",\"compression\":" + ResponseCompressor.statsJson() + "}";
+    }
+
+    /**
+     * Writes a complete, uncompressed JSON response.
+     *
+     * @param out the stream back to the client
+     * @param json the JSON document
+     * @throws IOException thrown by write()
+     */
+    static void writeJson(OutputStream out, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 200 OK" + Proxy.carriageReturn
+                      + "Content-Type: application/json; charset=utf-8" + Proxy.carriageReturn
+                      + "Cache-Control: no-store" + Proxy.carriageReturn
+                      + "Content-Length: " + body.length + Proxy.carriageReturn
+                      + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn;
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Writes a complete JSON error response.
+     *
+     * @param out the stream back to the client
+     * @param status the status code and message
+     * @param message a short description of the error
+     * @throws IOException thrown by write()
+     */
+    static void writeError(OutputStream out, String status, String message) throws IOException {
+        byte[] body = ("{\"error\":" + quote(message) + "}\n").getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 " + status + Proxy.carriageReturn
+                      + "Content-Type: application/json; charset=utf-8" + Proxy.carriageReturn
+                      + "Content-Length: " + body.length + Proxy.carriageReturn
+                      + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn;
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Returns whether the request's Accept-Encoding allows the given coding,
+     * honouring an explicit q=0.
+     *
+     * @param requestHeader the request header lines
+     * @param coding a content-coding such as "gzip"
+     * @return true if the client accepts the coding
+     */
+    public static boolean acceptsEncoding(String requestHeader, String coding) {
+        for (String option : Proxy.headerField(requestHeader, "Accept-Encoding").split(",")) {
+            String[] params = option.trim().split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*"))
+                continue;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Quotes a String as a JSON string literal.
+     *
+     * @param value the String to quote
+     * @return the JSON literal, including the surrounding quotes
+     */
+    public static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static int parseLimit(String limit) {
+        try {
+            int value = Integer.parseInt(limit);
+            return value > 0 ? value : defaultLimit;
+        } catch (NumberFormatException e) {
+            return defaultLimit;
+        }
+    }
+
+    private static long parseCursor(String cursor) {
+        try {
+            return Math.max(0, Long.parseLong(cursor));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Only plain hostnames may be turned into a sitemap path.
+     */
+    private static boolean isSafeHostname(String hostname) {
+        return !hostname.isEmpty() && !hostname.contains("..") && hostname.matches("[A-Za-z0-9.:-]+");
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * LatencyHistogram
+ * @author Andrew Kulpa & Darren Wolbers
+ * A fixed-size, lock-free histogram of durations in the manner of
+ * HdrHistogram. Values are counted in log-linear buckets: exact below 64
+ * nanoseconds, and above that 32 buckets per power of two, so every value is
+ * kept to within about 3%. Recording is a couple of shifts and an atomic
+ * increment, with no allocation, so it is cheap enough for the request path.
+ */
+package spiderproxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    // Buckets per power of two above the exact range is 2^SUB_BITS.
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << SUB_BITS;
+    private static final int EXACT = HALF * 2;
+    // Values beyond 2^MAX_BITS nanoseconds (about 18 minutes) are counted in the last bucket.
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = EXACT + (MAX_BITS - SUB_BITS - 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos the duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the total of the recorded durations.
+     *
+     * @return the sum in nanoseconds
+     */
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the number of recorded durations no longer than a bound, to
+     * within the histogram's precision.
+     *
+     * @param nanos the bound in nanoseconds
+     * @return the count at or below the bound
+     */
+    public long countAtOrBelow(long nanos) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= nanos; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Returns the duration below which the given share of the recorded
+     * durations fall.
+     *
+     * @param quantile between 0 and 1, such as 0.99
+     * @return the duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Returns the bucket a value is counted in.
+     */
+    static int index(long value) {
+        if (value < EXACT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int index = EXACT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    static long upperBound(int index) {
+        if (index < EXACT)
+            return index;
+        int shift = (index - EXACT) / HALF + 1;
+        long lower = (long) (HALF + (index - EXACT) % HALF) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
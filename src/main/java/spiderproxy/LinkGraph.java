@@ -0,0 +1,310 @@
+/**
+ * LinkGraph
+ * @author Andrew Kulpa & Darren Wolbers
+ * Directed referrer to target link graph gathered by the spider. URLs are
+ * interned to int ids and edges live in paged primitive int arrays, so each
+ * edge costs a few ints rather than a boxed collection entry.
+ */
+package spiderproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LinkGraph {
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static volatile LinkGraph shared;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] urls = new String[1024];
+    private int[] inDegree = new int[1024];
+    private int[] outDegree = new int[1024];
+    private int nodeCount = 0;
+    // Edge i is (edgeSrc[i >> PAGE_BITS][i & PAGE_MASK], edgeDst[...]); pages
+    // are allocated on demand so growing never copies existing edges.
+    private int[][] edgeSrc = new int[16][];
+    private int[][] edgeDst = new int[16][];
+    private int edgeCount = 0;
+    private final EdgeSet edgeSet = new EdgeSet();
+
+    /**
+     * Receives edges during an export.
+     */
+    public interface EdgeVisitor {
+        /**
+         * @param index the edge's position, usable as a cursor
+         * @param from the referring URL
+         * @param to the target URL
+         * @return false to stop the export
+         */
+        boolean visit(int index, String from, String to);
+    }
+
+    /**
+     * Returns the graph shared by the proxy.
+     *
+     * @return the shared LinkGraph
+     */
+    public static LinkGraph shared() {
+        if (shared == null) {
+            synchronized (LinkGraph.class) {
+                if (shared == null)
+                    shared = new LinkGraph();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Records that the page at from links to to. Duplicate edges and self links
+     * are ignored.
+     *
+     * @param from the referring URL
+     * @param to the target URL
+     * @return whether a new edge was recorded
+     */
+    public boolean addEdge(String from, String to) {
+        rwl.writeLock().lock();
+        try {
+            int src = intern(from);
+            int dst = intern(to);
+            if (src == dst || !edgeSet.add(src, dst))
+                return false;
+            int page = edgeCount >>> PAGE_BITS;
+            if (page == edgeSrc.length) {
+                edgeSrc = Arrays.copyOf(edgeSrc, page * 2);
+                edgeDst = Arrays.copyOf(edgeDst, page * 2);
+            }
+            if (edgeSrc[page] == null) {
+                edgeSrc[page] = new int[PAGE_SIZE];
+                edgeDst[page] = new int[PAGE_SIZE];
+            }
+            edgeSrc[page][edgeCount & PAGE_MASK] = src;
+            edgeDst[page][edgeCount & PAGE_MASK] = dst;
+            edgeCount += 1;
+            outDegree[src] += 1;
+            inDegree[dst] += 1;
+            return true;
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes sure a URL is a node of the graph, even if nothing links to it.
+     *
+     * @param url the URL to add
+     */
+    public void addNode(String url) {
+        rwl.writeLock().lock();
+        try {
+            intern(url);
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct pages linking to the URL.
+     *
+     * @param url a URL
+     * @return the in-degree, or -1 if the URL is not in the graph
+     */
+    public int inDegree(String url) {
+        rwl.readLock().lock();
+        try {
+            Integer id = ids.get(url);
+            return id == null ? -1 : inDegree[id];
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct URLs the page links to.
+     *
+     * @param url a URL
+     * @return the out-degree, or -1 if the URL is not in the graph
+     */
+    public int outDegree(String url) {
+        rwl.readLock().lock();
+        try {
+            Integer id = ids.get(url);
+            return id == null ? -1 : outDegree[id];
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of URLs in the graph.
+     *
+     * @return the node count
+     */
+    public int nodeCount() {
+        rwl.readLock().lock();
+        try {
+            return nodeCount;
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct edges in the graph.
+     *
+     * @return the edge count
+     */
+    public int edgeCount() {
+        rwl.readLock().lock();
+        try {
+            return edgeCount;
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns orphan pages: URLs that were visited or discovered but that no
+     * other known page links to.
+     *
+     * @param afterId only consider nodes with a greater id; -1 to start at the beginning
+     * @param limit the maximum number of orphans to return
+     * @return the node ids of the orphans found, in id order
+     */
+    public int[] orphans(int afterId, int limit) {
+        rwl.readLock().lock();
+        try {
+            int[] found = new int[Math.min(limit, Math.max(0, nodeCount - afterId - 1))];
+            int n = 0;
+            for (int id = afterId + 1; id < nodeCount && n < found.length; id++) {
+                if (inDegree[id] == 0)
+                    found[n++] = id;
+            }
+            return Arrays.copyOf(found, n);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the URL interned under the given id.
+     *
+     * @param id a node id
+     * @return the URL
+     */
+    public String url(int id) {
+        rwl.readLock().lock();
+        try {
+            return urls[id];
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every edge after the cursor in insertion order. Edges are copied
+     * out in small batches so a slow consumer never holds the lock.
+     *
+     * @param after the index of the last edge already seen; -1 to start at the beginning
+     * @param limit the maximum number of edges to visit
+     * @param visitor receives each edge
+     */
+    public void exportEdges(int after, int limit, EdgeVisitor visitor) {
+        int next = after + 1;
+        int visited = 0;
+        int batchSize = 1024;
+        while (visited < limit) {
+            List<String[]> batch = new ArrayList<>(batchSize);
+            rwl.readLock().lock();
+            try {
+                for (int i = next; i < edgeCount && batch.size() < Math.min(batchSize, limit - visited); i++) {
+                    batch.add(new String[] {urls[edgeSrc[i >>> PAGE_BITS][i & PAGE_MASK]], urls[edgeDst[i >>> PAGE_BITS][i & PAGE_MASK]]});
+                }
+            } finally {
+                rwl.readLock().unlock();
+            }
+            if (batch.isEmpty())
+                return;
+            for (String[] edge : batch) {
+                if (!visitor.visit(next, edge[0], edge[1]))
+                    return;
+                next += 1;
+                visited += 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a URL, adding it as a new node if needed. Callers hold
+     * the write lock.
+     */
+    private int intern(String url) {
+        Integer id = ids.get(url);
+        if (id != null)
+            return id;
+        if (nodeCount == urls.length) {
+            int capacity = nodeCount * 2;
+            urls = Arrays.copyOf(urls, capacity);
+            inDegree = Arrays.copyOf(inDegree, capacity);
+            outDegree = Arrays.copyOf(outDegree, capacity);
+        }
+        urls[nodeCount] = url;
+        ids.put(url, nodeCount);
+        return nodeCount++;
+    }
+
+    /**
+     * Open-addressing hash set of (src, dst) pairs packed into longs, used to
+     * drop duplicate edges without boxing. 0 marks an empty slot, which never
+     * collides with a real key since self links are not stored.
+     */
+    static class EdgeSet {
+        private long[] slots = new long[1 << 10];
+        private int size = 0;
+
+        boolean add(int src, int dst) {
+            if (size * 4 >= slots.length * 3)
+                resize();
+            long key = ((long) src << 32) | (dst & 0xffffffffL);
+            return insert(slots, key);
+        }
+
+        private boolean insert(long[] table, long key) {
+            int mask = table.length - 1;
+            int slot = mix(key) & mask;
+            while (table[slot] != 0) {
+                if (table[slot] == key)
+                    return false;
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = key;
+            if (table == slots)
+                size += 1;
+            return true;
+        }
+
+        private void resize() {
+            long[] old = slots;
+            long[] table = new long[old.length * 2];
+            for (long key : old) {
+                if (key != 0)
+                    insert(table, key);
+            }
+            slots = table;
+        }
+
+        private static int mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * MemoryBudget
+ * @author Andrew Kulpa & Darren Wolbers
+ * A process-wide byte budget for response bodies held in memory. Work is
+ * admitted in three tiers: spider parsing may only use the first part of the
+ * budget, buffering a body for the client, cache and spider a larger part,
+ * and the small relay buffers of pure streaming the whole of it. So as memory
+ * runs short the spider is shed first, then bodies are streamed instead of
+ * buffered, and finally streaming connections wait for memory to free up.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MemoryBudget {
+    public static long limitBytes = Runtime.getRuntime().maxMemory() / 4;
+    // Share of the budget below which spider parsing is still admitted.
+    public static double spiderFraction = 0.5;
+    // Share of the budget below which bodies are still buffered whole.
+    public static double bufferFraction = 0.8;
+    // Decoding a page for the spider costs roughly this many times its body size.
+    public static int spiderExpansion = 4;
+    // How long a streaming connection waits for relay memory before giving up.
+    public static long backpressureTimeoutMillis = 30000;
+    private static volatile MemoryBudget shared;
+
+    private final long limit;
+    private long used = 0;
+    private long peak = 0;
+    private int reservations = 0;
+
+    private final AtomicLong spiderShed = new AtomicLong();
+    private final AtomicLong streamed = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * What a reservation is for, in the order work is shed.
+     */
+    public enum Tier {
+        SPIDER, BUFFER, RELAY
+    }
+
+    /**
+     * Bytes held against the budget until released.
+     */
+    public final class Reservation implements AutoCloseable {
+        private final Tier tier;
+        private long bytes;
+        private boolean released = false;
+
+        private Reservation(Tier tier, long bytes) {
+            this.tier = tier;
+            this.bytes = bytes;
+        }
+
+        public long bytes() { return bytes; }
+
+        /**
+         * Enlarges the reservation if the budget for its tier allows.
+         *
+         * @param extra the additional bytes wanted
+         * @return whether the reservation grew
+         */
+        public boolean grow(long extra) {
+            synchronized (MemoryBudget.this) {
+                if (released || used + extra > ceiling(tier))
+                    return false;
+                take(extra);
+                bytes += extra;
+                return true;
+            }
+        }
+
+        /**
+         * Returns part of the reservation to the budget, keeping the rest.
+         *
+         * @param fewer the bytes no longer needed
+         */
+        public void shrink(long fewer) {
+            synchronized (MemoryBudget.this) {
+                if (released)
+                    return;
+                fewer = Math.min(fewer, bytes);
+                used -= fewer;
+                bytes -= fewer;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+
+        /**
+         * Returns the bytes to the budget. Releasing twice has no effect.
+         */
+        public void release() {
+            synchronized (MemoryBudget.this) {
+                if (released)
+                    return;
+                released = true;
+                used -= bytes;
+                reservations -= 1;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Creates a budget of the given size.
+     *
+     * @param limit the number of bytes that may be reserved at once
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the budget shared by the proxy.
+     *
+     * @return the shared MemoryBudget
+     */
+    public static MemoryBudget shared() {
+        if (shared == null) {
+            synchronized (MemoryBudget.class) {
+                if (shared == null)
+                    shared = new MemoryBudget(limitBytes);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Reserves bytes if doing so keeps usage under the tier's share of the
+     * budget. Never blocks.
+     *
+     * @param bytes the bytes wanted
+     * @param tier what they are for
+     * @return the reservation, or null if the tier is over budget
+     */
+    public synchronized Reservation tryReserve(long bytes, Tier tier) {
+        if (used + bytes > ceiling(tier)) {
+            if (tier == Tier.SPIDER)
+                spiderShed.incrementAndGet();
+            else if (tier == Tier.BUFFER)
+                streamed.incrementAndGet();
+            return null;
+        }
+        take(bytes);
+        reservations += 1;
+        return new Reservation(tier, bytes);
+    }
+
+    /**
+     * Reserves relay bytes, waiting for other connections to release memory
+     * if the budget is exhausted. This is the backpressure of last resort:
+     * the caller stops reading from its origin while it waits.
+     *
+     * @param bytes the bytes wanted
+     * @param timeoutMillis the longest to wait
+     * @return the reservation
+     * @throws IOException if no memory was freed in time
+     */
+    public synchronized Reservation reserve(long bytes, long timeoutMillis) throws IOException {
+        if (used + bytes > limit) {
+            waits.incrementAndGet();
+            long start = System.currentTimeMillis();
+            long deadline = start + timeoutMillis;
+            try {
+                while (used + bytes > limit) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new IOException("Memory budget exhausted for " + timeoutMillis + " ms");
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for memory", ex);
+            } finally {
+                waitMillis.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+        take(bytes);
+        reservations += 1;
+        return new Reservation(Tier.RELAY, bytes);
+    }
+
+    public long limit() { return limit; }
+
+    /**
+     * Returns the bytes currently reserved.
+     *
+     * @return the reserved byte count
+     */
+    public synchronized long used() {
+        return used;
+    }
+
+    /**
+     * Returns the budget's counters and current reservations as a JSON object.
+     *
+     * @return the stats document
+     */
+    public synchronized String statsJson() {
+        return "{\"limitBytes\":" + limit
+             + ",\"reservedBytes\":" + used
+             + ",\"peakBytes\":" + peak
+             + ",\"reservations\":" + reservations
+             + ",\"spiderShed\":" + spiderShed.get()
+             + ",\"streamed\":" + streamed.get()
+             + ",\"backpressureWaits\":" + waits.get()
+             + ",\"backpressureWaitMillis\":" + waitMillis.get()
+             + ",\"backpressureTimeouts\":" + timeouts.get() + "}";
+    }
+
+    private long ceiling(Tier tier) {
+        switch (tier) {
+            case SPIDER:
+                return (long) (limit * spiderFraction);
+            case BUFFER:
+                return (long) (limit * bufferFraction);
+            default:
+                return limit;
+        }
+    }
+
+    private void take(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Metrics
+ * @author Andrew Kulpa & Darren Wolbers
+ * Latency histograms for each phase of proxying and spidering, counters for
+ * connections, requests, bytes and errors, and a few gauges read from the
+ * other components. Everything is served in the Prometheus text format at
+ * /metrics on the internal server.
+ */
+package spiderproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+    public static String path = "/metrics";
+    // Upper bounds, in seconds, of the histogram buckets exported to Prometheus.
+    public static double[] bucketSeconds = {0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * The timed phases.
+     */
+    public enum Phase {
+        ACCEPT("accept", "From accepting a connection until its request header has been read."),
+        DNS("dns", "Resolving an origin's host name."),
+        CONNECT("upstream_connect", "Connecting to an origin once its addresses are known."),
+        FIRST_BYTE("first_byte", "From sending a request to an origin until its response header has arrived."),
+        RELAY("body_relay", "Relaying a response body to the client."),
+        DECOMPRESS("decompress", "Decoding a page's content encoding for the spider."),
+        EXTRACT("link_extraction", "Parsing a page and collecting its links."),
+        PERSIST("sitemap_persist", "Adding one URL to its host's sitemap on disk.");
+
+        final String metric;
+        final String help;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Phase(String metric, String help) {
+            this.metric = metric;
+            this.help = help;
+        }
+    }
+
+    /**
+     * The counted events.
+     */
+    public enum Counter {
+        CONNECTIONS("connections_total", "Client connections accepted."),
+        REQUESTS("requests_total", "Requests proxied to origins."),
+        INTERNAL_REQUESTS("internal_requests_total", "Requests for the proxy's own pages."),
+        TUNNELS("tunnels_total", "CONNECT tunnels opened."),
+        ERRORS("request_errors_total", "Requests that ended with an error."),
+        CONNECT_FAILURES("upstream_connect_failures_total", "Origins that could not be connected to."),
+        BYTES_FROM_CLIENTS("client_received_bytes_total", "Bytes read from clients."),
+        BYTES_TO_CLIENTS("client_sent_bytes_total", "Bytes written to clients."),
+        BYTES_FROM_ORIGINS("upstream_received_bytes_total", "Bytes read from origins.");
+
+        final String metric;
+        final String help;
+        final LongAdder value = new LongAdder();
+
+        Counter(String metric, String help) {
+            this.metric = metric;
+            this.help = help;
+        }
+    }
+
+    /**
+     * Records the time a phase took.
+     *
+     * @param phase the phase
+     * @param nanos its duration in nanoseconds
+     */
+    public static void record(Phase phase, long nanos) {
+        phase.histogram.record(nanos);
+    }
+
+    /**
+     * Records the time since a phase started.
+     *
+     * @param phase the phase
+     * @param startNanos when it started, from System.nanoTime()
+     * @return the current System.nanoTime(), to start the next phase from
+     */
+    public static long since(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        phase.histogram.record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * Returns a phase's histogram.
+     *
+     * @param phase the phase
+     * @return its histogram
+     */
+    public static LatencyHistogram histogram(Phase phase) {
+        return phase.histogram;
+    }
+
+    public static void count(Counter counter) {
+        counter.value.increment();
+    }
+
+    public static void add(Counter counter, long amount) {
+        counter.value.add(amount);
+    }
+
+    public static long get(Counter counter) {
+        return counter.value.sum();
+    }
+
+    /**
+     * Returns whether the requested url is the metrics page.
+     *
+     * @param url the url requested from the internal server
+     * @return true if the path is /metrics
+     */
+    public static boolean handles(String url) {
+        try {
+            return path.equals(BusinessLogic.getPath(url));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the metrics page as a complete response.
+     *
+     * @param out the stream back to the client
+     * @throws IOException thrown when writing to the client fails
+     */
+    public static void handle(OutputStream out) throws IOException {
+        byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 200 OK" + Proxy.carriageReturn
+                      + "Content-Type: text/plain; version=0.0.4; charset=utf-8" + Proxy.carriageReturn
+                      + "Cache-Control: no-store" + Proxy.carriageReturn
+                      + "Content-Length: " + body.length + Proxy.carriageReturn
+                      + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn;
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return the metrics page
+     */
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder(8192);
+        for (Phase phase : Phase.values()) {
+            String name = "spiderproxy_" + phase.metric + "_seconds";
+            LatencyHistogram histogram = phase.histogram;
+            // Read the count first so that no bucket exceeds it
+            long count = histogram.count();
+            text.append("# HELP ").append(name).append(' ').append(phase.help).append('\n');
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            for (double bound : bucketSeconds) {
+                long below = Math.min(count, histogram.countAtOrBelow((long) (bound * 1e9)));
+                text.append(name).append("_bucket{le=\"").append(format(bound)).append("\"} ").append(below).append('\n');
+            }
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            text.append(name).append("_sum ").append(format(histogram.sumNanos() / 1e9)).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+        for (Counter counter : Counter.values()) {
+            String name = "spiderproxy_" + counter.metric;
+            text.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.value.sum()).append('\n');
+        }
+        gauge(text, "open_connections", "Client connections currently open.", AdmissionController.shared().connections());
+        gauge(text, "admission_limit", "Current concurrency limit for proxied requests.", AdmissionController.shared().limit());
+        gauge(text, "memory_reserved_bytes", "Bytes reserved against the memory budget.", MemoryBudget.shared().used());
+        gauge(text, "spider_queue_depth", "Pages waiting to be spidered.", SpiderScheduler.shared().queueDepth());
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String metric, String help, long value) {
+        String name = "spiderproxy_" + metric;
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6g", value).replaceAll("(\\.\\d*?)0+(e|$)", "$1$2").replaceAll("\\.(e|$)", "$1");
+    }
+}
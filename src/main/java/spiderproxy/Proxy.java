@@ -9,18 +9,21 @@ package spiderproxy;
 
 import java.io.DataOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.BindException;
 import java.net.Socket;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
-import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -34,6 +37,10 @@ public class Proxy {
     // CRLF characters.
     public static String carriageReturn = "\r\n";
     public static boolean debug = true;
+    // How long to wait for the origin to answer an Expect: 100-continue request before sending the body anyway.
+    public static int continueTimeoutMillis = 1000;
+    // Longest chunk header or trailer line accepted in a chunked request body.
+    public static int maxChunkLineBytes = 8192;
     // TO/FROM CLIENT BROWSER //
     private Socket clientSocket; // Client Socket
     private DataOutputStream clientOut; // Data sent back to client
@@ -44,6 +51,23 @@ public class Proxy {
     private DataOutputStream externalOut; // Outgoing from proxy
     private DataInputStream externalIn; // Incoming to proxy
 
+    // RESPONSE CACHING //
+    private String cacheRequestHeader; // Request header when the response may be cached, else null
+    private long requestTime; // When the request was sent to the external host
+    private ResponseCache.Entry revalidating; // Stored entry our conditional request revalidates, else null
+
+    // TIMEOUTS //
+    private ConnectionDeadline deadline; // Header, idle and total deadlines of this connection
+    private ConnectionRegistry.Session session; // This connection's entry on /debug/connections
+    private String targetHost = ""; // Host named by the request, for host-specific header rules
+
+    // PROFILING //
+    private final RequestEvent requestEvent = new RequestEvent(); // Flight Recorder event for this request
+    private TrafficRecorder.Exchange capture; // Recording of this exchange, when a capture is running
+
+    // COMPRESSION //
+    private String compressionRequest; // Client's request header when its response may be compressed, else null
+
     /**
     * Constructs a Proxy object when used with 'new'; runs server
     *
@@ -51,7 +75,19 @@ public class Proxy {
     * @throws java.io.IOException Thrown by clientSocket
     */
     public Proxy(Socket clientSocket) throws IOException {
-        run(clientSocket);
+        this(clientSocket, System.nanoTime());
+    }
+
+    /**
+    * Constructs a Proxy object for a connection accepted at a known time;
+    * runs server
+    *
+    * @param clientSocket Socket created from client request
+    * @param acceptedAt long - System.nanoTime() when the connection was accepted
+    * @throws java.io.IOException Thrown by clientSocket
+    */
+    public Proxy(Socket clientSocket, long acceptedAt) throws IOException {
+        run(clientSocket, acceptedAt);
     }
 
     /**
@@ -75,66 +111,48 @@ public class Proxy {
     }
     
     /**
-     * Handles chunked response input. Reads chunked data into a byte array.
-     *
-     * @param header Header String - will have chunkedEncoding removed, then written to DataOutputStream.
-     * @param is InputStream - used in creation of ChunkedInputStream. Must be InputStream of a socket.
-     * @param dos DataOutputStream - used to write header out. Should be clientOut/externalOut.
-     * @return byte[] Data that has been unchunked.
-     * @throws java.io.IOException Thrown by writeBytes(), ChunkedInputStream(), ByteOutputStream(), and read().
+    * If it's a 200 OK and an HTML file, then the page is passed down to the business layer.
+    *
+    * @param data byte[] - contains response data from external host to be passed down to business layer.
+    * @param header String - response header from external host.
+    * @param urlRequested String - urlRequested by client, passed to business layer.
+    * @throws java.io.IOException - thrown by checkAndInsertSet()
+    * @throws java.util.zip.DataFormatException - thrown by checkAndInsertSet() related to bad data format
+    * @throws org.apache.commons.compress.compressors.CompressorException - thrown by checkAndInsertSet() related to Compressor
     */
-    public byte[] handleChunkedInput(String header, InputStream is, DataOutputStream dos) throws IOException{
-        // Remove 'transfer-encoding: chunked' line from header, send to client.
-        header = removeChunkedEncoding(header) + carriageReturn;
-        dos.writeBytes(header);
-
-        ChunkedInputStream cis = new ChunkedInputStream(is);
-        byte[] unchunkedData;
-        int offset;
-        // Maybe change this later? It'll block if its too much, 
-        // and reading 1 byte at a time is slow, but it works.
-        int bufferSize = 1;
-        byte buffer[] = new byte[bufferSize];
-
-        // Dynamically growing byte array object
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) { 
-            while((offset=cis.read(buffer, 0, bufferSize))!= -1)
-                bos.write(buffer, 0, offset);
-            unchunkedData = bos.toByteArray();
-        }
-        return unchunkedData;
+    public void sendToBusinessLayer(byte[] data, String header, String urlRequested) throws IOException , DataFormatException, CompressorException{
+        sendToBusinessLayer(data, data.length, header, urlRequested);
     }
     
     /**
-    * If it's a 200 OK and an HTML file, then the page is passed down to the business layer.
+    * Same as sendToBusinessLayer(byte[], String, String) for the first length
+    * bytes of data, so a pooled buffer can be passed without copying it.
     *
-    * @param data byte[] - contains response data from external host to be passed down to business layer.
+    * @param data byte[] - holds response data from external host to be passed down to business layer.
+    * @param length int - number of bytes of data that hold the response.
     * @param header String - response header from external host.
     * @param urlRequested String - urlRequested by client, passed to business layer.
     * @throws java.io.IOException - thrown by checkAndInsertSet()
     * @throws java.util.zip.DataFormatException - thrown by checkAndInsertSet() related to bad data format
     * @throws org.apache.commons.compress.compressors.CompressorException - thrown by checkAndInsertSet() related to Compressor
     */
-    public void sendToBusinessLayer(byte[] data, String header, String urlRequested) throws IOException , DataFormatException, CompressorException{
+    public void sendToBusinessLayer(byte[] data, int length, String header, String urlRequested) throws IOException , DataFormatException, CompressorException{
         Boolean isHTML = isHTMLFile(header);
         Boolean isOKResponse = isOKResponse(header);
         if(isHTML && isOKResponse){
             String encodingString = getContentEncoding(header);
-            BusinessLogic.checkAndInsertSet(data, encodingString, urlRequested);
+            BusinessLogic.checkAndInsertSet(data, length, encodingString, urlRequested);
         }
     }
     
     /**
-    * Slurps up all ServerSocket response input. Get data coming from external
-    * host using externalIn, send it to client with clientOut.
+    * Reads a response header from the external host, up to and including
+    * the empty line that ends it.
     *
-    * @param urlRequested String - urlRequested by client, passed to business layer.
-    * @return String - Response read from external host. 
-    * @throws java.io.IOException thrown by handleChunkedInput(), write(), writeBytes(), readFully(), sendToBusinessLayer(), readLine()
-    * @throws java.util.zip.DataFormatException thrown by sendToBusinessLayer() related to bad data format.
-    * @throws org.apache.commons.compress.compressors.CompressorException thrown by sendToBusinessLayer() related to Compressor
+    * @return String - the header lines, each ending in CRLF.
+    * @throws java.io.IOException thrown by readLine()
     */
-    public String slurpResponse(String urlRequested) throws IOException, DataFormatException, CompressorException {
+    private String readResponseHeader() throws IOException {
         StringBuilder strBuffer = new StringBuilder();
         String line;
 
@@ -144,33 +162,192 @@ public class Proxy {
         while ((line = externalIn.readLine()) != null && line.length() > 0) {
             strBuffer.append(line).append(carriageReturn);
         }
-        String header = strBuffer.toString();
+        if (deadline != null)
+            deadline.endHeader();
+        return strBuffer.toString();
+    }
+    
+    /**
+    * Reads response headers from the external host until a final one comes,
+    * skipping interim 1xx responses, such as a 100 Continue that arrives
+    * after the proxy has already said 100 Continue itself and sent the body.
+    *
+    * @return String - the final response header lines, each ending in CRLF.
+    * @throws java.io.IOException thrown by readLine()
+    */
+    private String readFinalResponseHeader() throws IOException {
+        String header = readResponseHeader();
+        int status;
+        while ((status = ResponseCache.statusCode(header)) >= 100 && status < 200 && status != 101) {
+            if (deadline != null)
+                deadline.startHeader();
+            header = readResponseHeader();
+        }
+        return header;
+    }
+    
+    /**
+    * Relays a response whose header has already been read to the client.
+    *
+    * @param header String - response header from external host.
+    * @param urlRequested String - urlRequested by client, passed to business layer.
+    * @return String - Response header as sent to the client.
+    * @throws java.io.IOException thrown by write(), writeBytes(), relayBody()
+    * @throws java.util.zip.DataFormatException thrown by relayBody() related to bad data format.
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by relayBody() related to Compressor
+    */
+    private String relayResponse(String header, String urlRequested) throws IOException, DataFormatException, CompressorException {
+        phase(ConnectionRegistry.Phase.RELAYING);
+        requestEvent.status = ResponseCache.statusCode(header);
+        long responseTime = System.currentTimeMillis();
         // Fix header if https and http in line
         header = cleanLocationValue(header);
         String response = "";
+        if (revalidating != null && ResponseCache.statusCode(header) == 304) {
+            // The client asked unconditionally; answer with the stored body now confirmed current
+            ResponseCache.Entry freshened = ResponseCache.shared().freshen(revalidating, header, requestTime, responseTime);
+            ResponseCache.shared().serve(freshened, clientOut);
+            return header;
+        }
         
-        if(getTransferEncoding(header).contains("chunked")){
-            // Read chunked response and send it to client
-            byte[] unchunkedData = handleChunkedInput(header, externalSocket.getInputStream(), clientOut);
-            sendToBusinessLayer(unchunkedData, header, urlRequested);
-            clientOut.write(unchunkedData);
-            clientOut.write(carriageReturn.getBytes());
+        InputStream bodyIn;
+        long contentLength;
+        boolean chunked = getTransferEncoding(header).contains("chunked");
+        if(chunked){
+            // The body is relayed de-chunked
+            response = removeChunkedEncoding(header);
+            bodyIn = new ChunkedInputStream(externalIn);
+            contentLength = -1;
         }
         else{ 
-            response = header + carriageReturn;
-            clientOut.writeBytes(response);
-            int contentLength = getContentLength(header);
-            if (contentLength > 0) { 
-                // If there's data in the response, read and send to client
-                byte[] data = new byte[contentLength];
-                externalIn.readFully(data);
-                clientOut.write(data);
-                sendToBusinessLayer(data, header, urlRequested);
-            }
+            response = header;
+            bodyIn = externalIn;
+            contentLength = Math.max(getContentLength(header), 0);
         }
+        String coding = ResponseCompressor.choose(compressionRequest, header, chunked ? -1 : getContentLength(header));
+        if (coding != null)
+            response = ResponseCompressor.encodedHeader(response, coding);
+        clientOut.writeBytes(response + carriageReturn);
+        ResponseCompressor.Encoder encoder = coding == null ? null : ResponseCompressor.encode(clientOut, coding, urlRequested);
+        try {
+            long relayStart = System.nanoTime();
+            relayBody(bodyIn, contentLength, header, urlRequested, responseTime, encoder == null ? clientOut : encoder);
+            Metrics.since(Metrics.Phase.RELAY, relayStart);
+            if (encoder != null)
+                encoder.finish(requestEvent);
+        } finally {
+            if (encoder != null)
+                encoder.release();
+        }
+        if (contentLength < 0 && encoder == null)
+            clientOut.write(carriageReturn.getBytes());
         return response;
     }
     
+    /**
+    * Relays a response body to the client. When the spider or the cache wants
+    * the body and the memory budget allows, it is buffered whole; otherwise it
+    * is streamed through a small relay buffer, waiting for memory if even
+    * that is unavailable.
+    *
+    * @param bodyIn InputStream - the body, already de-chunked.
+    * @param contentLength long - the body length, or -1 to read to the end of bodyIn.
+    * @param header String - response header from external host.
+    * @param urlRequested String - urlRequested by client, passed to business layer.
+    * @param responseTime long - when the response header was received.
+    * @param out OutputStream - where the body goes: the client, or an encoder in front of it.
+    * @throws java.io.IOException thrown by read(), write(), or if no memory frees up in time
+    * @throws java.util.zip.DataFormatException thrown by sendToBusinessLayer() related to bad data format.
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by sendToBusinessLayer() related to Compressor
+    */
+    private void relayBody(InputStream bodyIn, long contentLength, String header, String urlRequested, long responseTime, OutputStream out) throws IOException, DataFormatException, CompressorException {
+        boolean wantsSpider = isHTMLFile(header) && isOKResponse(header);
+        boolean wantsCache = cacheRequestHeader != null;
+        MemoryBudget budget = MemoryBudget.shared();
+        long initial = contentLength >= 0 ? contentLength : BufferPool.relayBufferBytes;
+        MemoryBudget.Reservation reservation = null;
+        if ((wantsSpider || wantsCache) && initial <= Integer.MAX_VALUE - 8)
+            reservation = budget.tryReserve(initial, MemoryBudget.Tier.BUFFER);
+        if (reservation == null) {
+            streamBody(bodyIn, contentLength, null, out);
+            return;
+        }
+        BufferPool.Buffer body = BufferPool.heap().acquire((int) initial);
+        try {
+            if (contentLength >= 0) {
+                body.readFully(bodyIn, (int) contentLength);
+            } else {
+                while (true) {
+                    if (body.length() == body.capacity()) {
+                        int next = body.capacity() * 2;
+                        if (!reservation.grow(next - reservation.bytes())) {
+                            // Over budget mid-body: hand over what we have and stream the rest
+                            streamBody(bodyIn, -1, body, out);
+                            return;
+                        }
+                        body.ensureCapacity(next);
+                    }
+                    if (body.readSome(bodyIn) == -1)
+                        break;
+                }
+            }
+            body.writeTo(out);
+            if (wantsSpider) {
+                // The spider parses on its own threads; a queued page keeps the reservation until then.
+                phase(ConnectionRegistry.Phase.SPIDERING);
+                MemoryBudget.Reservation parse = budget.tryReserve((long) body.length() * MemoryBudget.spiderExpansion, MemoryBudget.Tier.SPIDER);
+                if (parse != null && !SpiderScheduler.shared().offer(body.array(), body.length(), getContentEncoding(header), urlRequested, parse))
+                    parse.release();
+            }
+            if (wantsCache)
+                ResponseCache.shared().store(urlRequested, cacheRequestHeader, header, body.array(), body.length(), requestTime, responseTime);
+        } finally {
+            body.release();
+            reservation.release();
+        }
+    }
+    
+    /**
+    * Copies a response body to the client through one relay-sized buffer,
+    * without spidering or caching it.
+    *
+    * @param bodyIn InputStream - the body, already de-chunked.
+    * @param contentLength long - the body length, or -1 to read to the end of bodyIn.
+    * @param buffered BufferPool.Buffer - bytes already read from bodyIn to send first, or null.
+    * @param out OutputStream - where the body goes: the client, or an encoder in front of it.
+    * @throws java.io.IOException thrown by read(), write(), or if no memory frees up in time
+    */
+    private void streamBody(InputStream bodyIn, long contentLength, BufferPool.Buffer buffered, OutputStream out) throws IOException {
+        if (buffered != null)
+            buffered.writeTo(out);
+        MemoryBudget.Reservation relay = MemoryBudget.shared().reserve(BufferPool.relayBufferBytes, MemoryBudget.backpressureTimeoutMillis);
+        try (BufferPool.Buffer chunk = BufferPool.heap().acquire(BufferPool.relayBufferBytes)) {
+            copy(bodyIn, out, contentLength, chunk);
+        } finally {
+            relay.release();
+        }
+    }
+    
+    /**
+    * Copies bytes from one stream to another through a buffer.
+    *
+    * @param in InputStream - where to read from.
+    * @param out OutputStream - where to write to.
+    * @param length long - the number of bytes to copy, or -1 to copy to the end of in.
+    * @param chunk BufferPool.Buffer - the buffer to copy through.
+    * @throws java.io.IOException thrown by read(), write(), or if in ends before length bytes
+    */
+    private static void copy(InputStream in, OutputStream out, long length, BufferPool.Buffer chunk) throws IOException {
+        long remaining = length >= 0 ? length : Long.MAX_VALUE;
+        int offset;
+        while (remaining > 0 && (offset = in.read(chunk.array(), 0, (int) Math.min(chunk.capacity(), remaining))) != -1) {
+            out.write(chunk.array(), 0, offset);
+            remaining -= offset;
+        }
+        if (length >= 0 && remaining > 0)
+            throw new EOFException("Body ended " + remaining + " bytes early");
+    }
+    
     /**
     * Removes the line containing 'transfer-encoding: chunked' from the header.
     * @param header String - HTTP header with chunked encoding.
@@ -226,7 +403,7 @@ public class Proxy {
         String[] requestLines= request.split(carriageReturn);
         String urlRequested = clientReqArr[1];
         URL u = new URL(urlRequested);
-        URL hostURL = new URL(u.getProtocol() + "://" + u.getHost());
+        URL hostURL = new URL(u.getProtocol() + "://" + u.getAuthority());
         String relativePath = "/" + hostURL.toURI().relativize(u.toURI());
         clientReqArr[1] = relativePath;
         String newFirstLine = String.join(" ", clientReqArr) + carriageReturn;
@@ -238,13 +415,18 @@ public class Proxy {
     * Runs the HTTP proxy server
     *
     * @param clientSocket Socket - Socket for connection to/from client.
+    * @param acceptedAt long - System.nanoTime() when the connection was accepted.
     * @throws java.io.IOException thrown by closeSocketStuff()
     */
-    private void run(Socket clientSocket) throws IOException {
+    private void run(Socket clientSocket, long acceptedAt) throws IOException {
         this.clientSocket = clientSocket;
+        requestEvent.begin();
+        deadline = new ConnectionDeadline(clientSocket);
+        deadline.startHeader();
+        session = ConnectionRegistry.open(clientSocket, deadline);
         try {
-            clientOut = new DataOutputStream(this.clientSocket.getOutputStream());
-            clientIn = new DataInputStream(this.clientSocket.getInputStream());
+            clientOut = new DataOutputStream(deadline.trackClient(this.clientSocket.getOutputStream()));
+            clientIn = new DataInputStream(deadline.track(this.clientSocket.getInputStream(), Metrics.Counter.BYTES_FROM_CLIENTS));
 
             String clientReqLine = clientIn.readLine(); // Read request from client
             if (clientReqLine == null) {
@@ -258,27 +440,91 @@ public class Proxy {
             String urlRequested = clientReqArr[1].trim(); 
             String httpMethod = clientReqArr[0].trim();
             String request = slurpInput(clientIn);
+            deadline.endHeader();
+            Metrics.since(Metrics.Phase.ACCEPT, acceptedAt);
             String[] reqSplit = request.split(carriageReturn);
             String hostLine = getHostLine(reqSplit);
             String[] hostLineArr = splitHostLine(hostLine); // Split host line
 
-            if (isInternalRequest(hostLineArr)) {
-                handleInternalRequest(httpMethod, urlRequested);
+            boolean internal = isInternalRequest(hostLineArr);
+            requestEvent.method = httpMethod;
+            requestEvent.url = urlRequested;
+            targetHost = hostLineArr.length > 0 ? hostLineArr[0].trim() : "";
+            requestEvent.host = targetHost;
+            requestEvent.kind = internal ? "internal" : httpMethod.toUpperCase().contains("CONNECT") ? "tunnel" : "external";
+            session.request(httpMethod, hostLineArr.length > 1 ? requestEvent.host + ":" + hostLineArr[1].trim() : requestEvent.host, urlRequested);
+            // Refuse quickly rather than let every request slow down
+            AdmissionController.Permit permit = AdmissionController.shared().acquire(internal);
+            if (permit == null) {
+                requestEvent.kind = "refused";
+                requestEvent.status = 503;
+                clientOut.writeBytes(BusinessLogic.return503(urlRequested, AdmissionController.retryAfterSeconds));
+                return;
             }
-            else { // External: form request, send it out
-                handleExternalRequest(request,urlRequested,hostLineArr,clientReqLine,httpMethod);
+            boolean completed = false;
+            try {
+                if (internal) {
+                    Metrics.count(Metrics.Counter.INTERNAL_REQUESTS);
+                    phase(ConnectionRegistry.Phase.INTERNAL);
+                    if (InternalAPI.holdsOpen(urlRequested)) {
+                        // A followed feed lasts as long as its client likes, so like a tunnel it only passes the gate
+                        permit.abandon();
+                        deadline.endTotal();
+                        // A long-poll is quiet while it waits, which is no reason to cut it off
+                        deadline.allowWait(InternalAPI.waitMillis(urlRequested));
+                    }
+                    handleInternalRequest(httpMethod, urlRequested, request);
+                }
+                else if (httpMethod.toUpperCase().contains("CONNECT")) {
+                    // A tunnel's lifetime says nothing about load, so it only passes the gate
+                    permit.abandon();
+                    Metrics.count(Metrics.Counter.TUNNELS);
+                    handleExternalRequest(request,urlRequested,hostLineArr,clientReqLine,httpMethod);
+                }
+                else { // External: form request, send it out
+                    Metrics.count(Metrics.Counter.REQUESTS);
+                    handleExternalRequest(request,urlRequested,hostLineArr,clientReqLine,httpMethod);
+                }
+                completed = true;
+            } finally {
+                if (completed)
+                    permit.release();
+                else
+                    permit.abandon();
             }
             closeSocketStuff();
         } 
         catch (IOException | URISyntaxException | DataFormatException | ParserConfigurationException | CompressorException | SAXException e) {
-            if (debug)
+            Metrics.count(Metrics.Counter.ERRORS);
+            if (deadline.expired() == ConnectionDeadline.Phase.HEADER && deadline.clientBytesOut() == 0 && externalSocket != null)
+                clientOut.writeBytes(BusinessLogic.return504(""));
+            else if (debug && deadline.expired() == null)
                 e.printStackTrace();
         }
         finally {
+            deadline.close();
+            session.close();
             closeSocketStuff();
+            BufferPool.heap().releaseThreadCache();
+            if (requestEvent.shouldCommit()) {
+                requestEvent.bytesSent = deadline.clientBytesOut();
+                requestEvent.timeout = deadline.expired() == null ? null : deadline.expired().name();
+                requestEvent.commit();
+            }
         }
     }
     
+    /**
+    * Moves this connection to another phase on /debug/connections, once it
+    * has been registered.
+    *
+    * @param phase ConnectionRegistry.Phase - the phase now begun.
+    */
+    private void phase(ConnectionRegistry.Phase phase) {
+        if (session != null)
+            session.phase(phase);
+    }
+    
     /**
     * Closes clientIn, Out, ExternalIn, Out.
     * @throws java.io.IOException thrown by close()
@@ -330,7 +576,29 @@ public class Proxy {
     }
     
     /**
-    * Fix various issues with some websites, such as:
+    * Get the value of a header field matched exactly (ignoring case) on its
+    * name. Repeated fields are joined with ", " as RFC 7230 allows.
+    *
+    * @param header String - The HTTP header
+    * @param name String - The field name, without the colon
+    * @return String - The trimmed field value, or an empty String if absent.
+    */
+    public static String headerField(String header, String name){
+        String value = "";
+        if (header == null)
+            return value;
+        for (String line : header.split(carriageReturn)) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+                value = value.isEmpty() ? line.substring(colon + 1).trim() : value + ", " + line.substring(colon + 1).trim();
+        }
+        return value;
+    }
+    
+    /**
+    * Rewrite a response header from this connection's origin by the rules of
+    * the shared HeaderRewriter, which include fixes for broken redirects from
+    * some websites, such as:
     * http://blog.iosart.com/ (Probably web server issue)
     * http://wiu.edu (BigIP issue)
     *
@@ -338,34 +606,7 @@ public class Proxy {
     * @return String - The fixed HTTP header.
     */
     public String cleanLocationValue(String header){
-        String newHeader = "";
-        // Regexesies
-        String wiuBigIPLocIssue = ".*https:\\/\\/.*http:\\/\\/.*";
-        String iosartBlogLocIssue = ".*http:\\/\\/.*http\\/.*";
-        String locationValue = getHeaderValue(header, "location");
-        
-        // Look at 'location' field url message with regex, check if matches
-        Boolean isoartMatch = locationValue.matches(iosartBlogLocIssue);
-        Boolean wiuMatch = locationValue.matches(wiuBigIPLocIssue);
-        
-        if(isoartMatch || wiuMatch){
-            String[] headerLines = header.split(carriageReturn);
-            for(String headerLine : headerLines){
-                // Find line with location, fix bad redirect
-                boolean containsLocation =  headerLine.toUpperCase().contains("location".toUpperCase());
-                if(containsLocation){
-                    if(wiuMatch)
-                        newHeader += "Location: " + locationValue.split("http://")[0] + carriageReturn;
-                    else if(isoartMatch)
-                        newHeader += "Location: " + "http://" + locationValue.split("http/")[1] + carriageReturn;
-                }
-                else
-                    newHeader += headerLine + carriageReturn;
-            }
-        } 
-        else 
-            newHeader = header;
-        return newHeader;
+        return HeaderRewriter.shared().rewriteResponse(targetHost, header);
     }
     
     /**
@@ -453,68 +694,101 @@ public class Proxy {
     */
     public void setupConnection() throws IOException {
         String statusLine = "HTTP/1.1 200 OK" + carriageReturn; // response line
+        TunnelEvent event = new TunnelEvent();
+        event.begin();
+        // The upstream count is shared between threads, so it is only kept while a recording wants it
+        boolean recording = event.isEnabled();
+        AtomicLong bytesUp = new AtomicLong();
+        long bytesDown = 0;
 
         Thread clientThread;
         clientThread = new Thread() {
             @Override
             public void run() {
                 int offset;
-                byte[] clientBuffer = new byte[1024];
+                BufferPool.Buffer clientBuffer = BufferPool.heap().acquire(BufferPool.relayBufferBytes);
                 // Read client CONNECT request and send it out to host
                 try {
-                    while ((offset = clientSocket.getInputStream().read(clientBuffer)) != -1) {
-                        externalOut.write(clientBuffer, 0, offset);
+                    while ((offset = clientIn.read(clientBuffer.array(), 0, clientBuffer.capacity())) != -1) {
+                        externalOut.write(clientBuffer.array(), 0, offset);
                         externalOut.flush();
+                        if (recording)
+                            bytesUp.addAndGet(offset);
                     }
                 } catch (IOException e) {}
+                finally {
+                    clientBuffer.release();
+                    BufferPool.heap().releaseThreadCache();
+                }
             }
         };
         clientThread.start();
         
         int offset;
-        byte[] clientBuffer = new byte[1024];
+        BufferPool.Buffer externalBuffer = BufferPool.heap().acquire(BufferPool.relayBufferBytes);
         try {
             // Return 200 OK to client + response from external host
             clientOut.writeBytes(statusLine + carriageReturn);
-            while ((offset = externalSocket.getInputStream().read(clientBuffer)) != -1) {
-                clientOut.write(clientBuffer, 0, offset);
+            while ((offset = externalIn.read(externalBuffer.array(), 0, externalBuffer.capacity())) != -1) {
+                clientOut.write(externalBuffer.array(), 0, offset);
                 clientOut.flush();
+                bytesDown += offset;
             }
         } catch (IOException e) {} 
         finally {
+            externalBuffer.release();
             closeSocketStuff();
+            if (event.shouldCommit()) {
+                try {
+                    // The sockets are closed, so the other direction is finishing too
+                    clientThread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                event.origin = externalSocket.getInetAddress().getHostAddress() + ":" + externalSocket.getPort();
+                event.bytesUp = bytesUp.get();
+                event.bytesDown = bytesDown;
+                event.commit();
+            }
         }
     }
     
     /**
-    * Create external socket for requested host address and port.
+    * Create external socket for requested host address and port. Every
+    * address the host resolves to is tried, see HappyEyeballs.
     *
     * @param hostLineArr [0] = hostAddress; [1] = hostPort or undefined    *
     */
     public void initExternalSocket(String[] hostLineArr) {
-        String hostIP;
         int hostPort;
         String hostAddr = hostLineArr[0].trim();
 
-        // Get IP of requested host
-        try {
-            hostIP = InetAddress.getByName(hostAddr).getHostAddress();
-        } catch (UnknownHostException e) {
-            System.out.println("Unknown host: " + hostAddr);
-            return;
-        }
-
         // Get host port if specified, else 80
         if (hostLineArr.length > 1)
             hostPort = Integer.parseInt(hostLineArr[1]);
         else
             hostPort = 80;
         try{
-            externalSocket = new Socket(hostIP, hostPort);
+            Socket socket = HappyEyeballs.connect(hostAddr, hostPort, ConnectionDeadline.connectTimeoutMillis);
+            externalSocket = socket;
+            InputStream in = externalSocket.getInputStream();
+            if (deadline != null) {
+                deadline.external(externalSocket);
+                in = deadline.track(in, Metrics.Counter.BYTES_FROM_ORIGINS);
+            }
             externalOut = new DataOutputStream(this.externalSocket.getOutputStream());
-            externalIn = new DataInputStream(this.externalSocket.getInputStream());
+            externalIn = new DataInputStream(in);
+        }
+        catch(UnknownHostException e){
+            Metrics.count(Metrics.Counter.CONNECT_FAILURES);
+            EventLog.log(EventLog.Category.UPSTREAM, EventLog.Level.WARN, "Unknown host", "host", hostAddr);
+        }
+        catch(SocketTimeoutException e){
+            Metrics.count(Metrics.Counter.CONNECT_FAILURES);
+            ConnectionDeadline.countConnectTimeout();
         }
         catch(IOException e){
+            Metrics.count(Metrics.Counter.CONNECT_FAILURES);
             //System.out.println("External Socket Error:" + e);
         }
     }
@@ -530,33 +804,197 @@ public class Proxy {
     * @throws javax.xml.parsers.ParserConfigurationException thrown by returnHTTPResponse()
     */
     public void handleInternalRequest(String httpMethod, String urlRequested) throws URISyntaxException, SAXException, IOException, ParserConfigurationException{
-        if (httpMethod.toUpperCase().contains("GET")) 
-            clientOut.writeBytes(BusinessLogic.returnHTTPResponse(urlRequested));
-        else
+        handleInternalRequest(httpMethod, urlRequested, "");
+    }
+    
+    /**
+    * Handle a request meant for proxy server. /metrics is the Prometheus page
+    * from Metrics, paths under /api/ are streamed by InternalAPI, everything
+    * else is an HTML page from BusinessLogic.
+    *
+    * @param httpMethod String - GET expected, other methods return 404 page.
+    * @param urlRequested String - URL requested by client.
+    * @param request String - Request header lines from the client, used for content negotiation.
+    * @throws java.net.URISyntaxException thrown by returnHTTPResponse()
+    * @throws org.xml.sax.SAXException thrown by returnHTTPResponse()
+    * @throws java.io.IOException thrown by returnHTTPResponse(), return400(), InternalAPI.handle()
+    * @throws javax.xml.parsers.ParserConfigurationException thrown by returnHTTPResponse()
+    */
+    public void handleInternalRequest(String httpMethod, String urlRequested, String request) throws URISyntaxException, SAXException, IOException, ParserConfigurationException{
+        if (!httpMethod.toUpperCase().contains("GET")) 
             clientOut.writeBytes(BusinessLogic.return400(urlRequested));
+        else if (Metrics.handles(urlRequested))
+            Metrics.handle(clientOut);
+        else if (ConnectionRegistry.handles(urlRequested))
+            ConnectionRegistry.handle(urlRequested, request, clientOut);
+        else if (InternalAPI.handles(urlRequested))
+            InternalAPI.handle(urlRequested, request, clientOut);
+        else
+            clientOut.writeBytes(BusinessLogic.returnHTTPResponse(urlRequested));
     }
     
     /**
-    * Handle a HTTP POST request
-    * @param request String - HTTP POST request from client to external host.
-    * @throws IOException thrown by handleChunkedInput(), write(), readFully()
+    * Streams the request body, if any, from the client to the external host
+    * through one relay-sized buffer, whatever the method. Chunked bodies are
+    * passed on still chunked, so the request header goes out unchanged.
+    *
+    * @param request String - HTTP request header from client.
+    * @return boolean - false if the chunked framing of the body is malformed.
+    * @throws IOException thrown by read(), write(), or if no memory frees up in time
     */
-    public void handlePOST(String request) throws IOException {
-        int contentLength = getContentLength(request);
-        
-        if(getTransferEncoding(request).contains("chunked")){
-            // Read chunked response and send it to client
-            byte[] unchunkedData = handleChunkedInput(request, clientSocket.getInputStream(), externalOut);
-            externalOut.write(unchunkedData);
-            externalOut.write(carriageReturn.getBytes());
+    public boolean relayRequestBody(String request) throws IOException {
+        boolean chunked = isChunked(request);
+        long contentLength = requestContentLength(request);
+        if (!chunked && contentLength <= 0)
+            return true;
+        MemoryBudget.Reservation relay = MemoryBudget.shared().reserve(BufferPool.relayBufferBytes, MemoryBudget.backpressureTimeoutMillis);
+        try (BufferPool.Buffer chunk = BufferPool.heap().acquire(BufferPool.relayBufferBytes)) {
+            if (chunked)
+                return relayChunks(chunk);
+            copy(clientIn, externalOut, contentLength, chunk);
+            return true;
+        } finally {
+            relay.release();
         }
-        else if (contentLength > 0) { 
-            // For non-chunked requests, read POST data from client, send to external host.
-            byte[] data = new byte[contentLength];
-            clientIn.readFully(data);
-            externalOut.write(data);        
+    }
+    
+    /**
+    * Copies a chunked body from the client to the external host as it is,
+    * chunk headers and trailer included. Each line is checked before it goes
+    * out, so a malformed body never reaches the origin past the last good chunk.
+    *
+    * @param chunk BufferPool.Buffer - the buffer to copy chunk data through.
+    * @return boolean - false if a chunk header, chunk end or trailer line is malformed.
+    * @throws IOException thrown by read(), write(), or if the body ends early
+    */
+    private boolean relayChunks(BufferPool.Buffer chunk) throws IOException {
+        while (true) {
+            String sizeLine = readCRLFLine(clientIn);
+            long size = sizeLine == null ? -1 : chunkSize(sizeLine);
+            if (size < 0)
+                return false;
+            externalOut.writeBytes(sizeLine + carriageReturn);
+            if (size == 0)
+                break;
+            copy(clientIn, externalOut, size, chunk);
+            if (clientIn.read() != '\r' || clientIn.read() != '\n')
+                return false;
+            externalOut.writeBytes(carriageReturn);
+        }
+        String line;
+        do {
+            line = readCRLFLine(clientIn);
+            if (line == null)
+                return false;
+            externalOut.writeBytes(line + carriageReturn);
+        } while (!line.isEmpty());
+        return true;
+    }
+    
+    /**
+    * Reads the size of a chunk from its chunk header: hex digits only, then
+    * optionally ';' and extensions.
+    *
+    * @param sizeLine String - the chunk header, without its CRLF.
+    * @return long - the chunk size, or -1 if it is not plain hex or does not fit in a long.
+    */
+    static long chunkSize(String sizeLine) {
+        int end = sizeLine.indexOf(';');
+        if (end < 0)
+            end = sizeLine.length();
+        if (end == 0)
+            return -1;
+        long size = 0;
+        for (int i = 0; i < end; i++) {
+            int digit = Character.digit(sizeLine.charAt(i), 16);
+            if (digit < 0 || size > (Long.MAX_VALUE >> 4))
+                return -1;
+            size = (size << 4) | digit;
         }
+        return size;
     }
+    
+    /**
+    * Reads one line ended by CRLF, decoding each byte as ISO-8859-1. A bare
+    * CR or LF, or a line longer than maxChunkLineBytes, makes it malformed.
+    *
+    * @param in InputStream - where to read from.
+    * @return String - the line without its CRLF, or null if it is malformed.
+    * @throws IOException thrown by read(), or if in ends before the CRLF
+    */
+    static String readCRLFLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\r')
+                return in.read() == '\n' ? line.toString() : null;
+            if (b == '\n' || line.length() == maxChunkLineBytes)
+                return null;
+            line.append((char) b);
+        }
+        throw new EOFException("Request body ended inside a line");
+    }
+    
+    /**
+    * Waits briefly for the origin's answer to a request sent with
+    * Expect: 100-continue. A 100 Continue is passed on and the client goes
+    * ahead with its body; if the origin stays silent the proxy says 100
+    * Continue itself. A final response means the origin does not want the body.
+    *
+    * @param clientReqLine String - First line of HTTP request from client.
+    * @return String - the origin's final response header, or null if the body should be sent.
+    * @throws IOException thrown by read(), readLine(), write(), or if the origin hangs up
+    */
+    private String awaitContinue(String clientReqLine) throws IOException {
+        int first;
+        externalSocket.setSoTimeout(continueTimeoutMillis);
+        try {
+            first = externalIn.read();
+        } catch (SocketTimeoutException e) {
+            first = -2;
+        } finally {
+            externalSocket.setSoTimeout(0);
+        }
+        if (first == -1)
+            throw new EOFException("Origin closed the connection before answering");
+        if (first >= 0) {
+            String header = (char) first + readResponseHeader();
+            if (ResponseCache.statusCode(header) != 100)
+                return header;
+        }
+        // HTTP/1.0 clients do not know interim responses
+        if (clientReqLine.trim().endsWith("HTTP/1.1")) {
+            clientOut.writeBytes("HTTP/1.1 100 Continue" + carriageReturn + carriageReturn);
+            clientOut.flush();
+        }
+        return null;
+    }
+    
+    /**
+    * Whether a request or response header declares a chunked body.
+    *
+    * @param header String - The HTTP header.
+    * @return boolean - T/F if Transfer-Encoding includes chunked.
+    */
+    public static boolean isChunked(String header){
+        return headerField(header, "Transfer-Encoding").toLowerCase().contains("chunked");
+    }
+    
+    /**
+    * The Content-Length of a request, as a long so large uploads fit.
+    *
+    * @param request String - HTTP request header.
+    * @return long - the length, or -1 if absent or malformed.
+    */
+    public static long requestContentLength(String request){
+        try {
+            String value = headerField(request, "Content-Length");
+            return value.isEmpty() ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
     /**
     * Handle a request meant for an external host
     *
@@ -565,34 +1003,136 @@ public class Proxy {
     * @param hostLineArr String[] - [0] = hostAddress; [1] = hostPort or undefined.
     * @param clientReqLine String - First line of HTTP request from client.
     * @param httpMethod String - HTTP method from request (GET/POST/etc).
-    * @throws java.io.IOException thrown by writeBytes(), handlePOST(), slurpResponse()
-    * @throws java.util.zip.DataFormatException thrown by slurpResponse()
-    * @throws org.apache.commons.compress.compressors.CompressorException thrown by slurpResponse()
-    * @throws java.net.URISyntaxException thrown by fixAbsoluteURI()
+    * @throws java.io.IOException thrown by writeBytes(), serve(), follow(), fetchExternal()
+    * @throws java.util.zip.DataFormatException thrown by fetchExternal()
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by fetchExternal()
+    * @throws java.net.URISyntaxException thrown by fetchExternal()
     */
     public void handleExternalRequest(String request, String urlRequested, String[] hostLineArr, String clientReqLine, String httpMethod) throws IOException, DataFormatException, CompressorException, URISyntaxException {
+        if (!httpMethod.toUpperCase().contains("CONNECT"))
+            capture = TrafficRecorder.begin(clientReqLine, request);
+        if (ResponseCompressor.enabled && !httpMethod.equalsIgnoreCase("HEAD"))
+            compressionRequest = request;
+        // Answer from the cache when a usable stored response exists
+        if (ResponseCache.isCacheableRequest(httpMethod, request)) {
+            ResponseCache.Entry cached = ResponseCache.shared().lookup(urlRequested, request);
+            if (cached != null) {
+                phase(ConnectionRegistry.Phase.RELAYING);
+                try {
+                    ResponseCache.shared().serve(cached, clientOut);
+                    if (cached.isWithinStaleWhileRevalidate(System.currentTimeMillis()))
+                        ResponseCache.shared().refreshInBackground(urlRequested, request, cached);
+                    return;
+                } catch (FileNotFoundException ex) {
+                    // Its body file was evicted after the lookup and nothing was sent, so this is a miss after all
+                }
+            }
+            if (ResponseCache.hasDirective(headerField(request, "Cache-Control"), "only-if-cached")) {
+                clientOut.writeBytes(BusinessLogic.return504(urlRequested));
+                return;
+            }
+            cacheRequestHeader = request;
+            // Revalidate a stale copy, unless the client is validating its own
+            if (headerField(request, "If-None-Match").isEmpty() && headerField(request, "If-Modified-Since").isEmpty()) {
+                revalidating = ResponseCache.shared().revalidationCandidate(urlRequested, request);
+                if (revalidating != null)
+                    request = ResponseCache.conditionalHeaders(revalidating) + request;
+            }
+        }
+        // Share one upstream fetch between identical requests in flight at the same time
+        String flightKey = cacheRequestHeader == null ? null : Coalescer.key(httpMethod, urlRequested, cacheRequestHeader);
+        Coalescer.Flight flight = null;
+        if (flightKey != null) {
+            flight = Coalescer.shared().lead(flightKey, cacheRequestHeader);
+            if (flight == null) {
+                // A follower waits for the leader's response, then relays it
+                phase(ConnectionRegistry.Phase.WAITING);
+                if (Coalescer.shared().follow(flightKey, clientOut))
+                    return;
+            }
+            if (flight != null)
+                clientOut = new DataOutputStream(flight.tee(clientOut));
+        }
+        try {
+            fetchExternal(request, urlRequested, hostLineArr, clientReqLine, httpMethod);
+        } finally {
+            if (flight != null)
+                flight.finish();
+            if (capture != null)
+                capture.finish();
+        }
+    }
+
+    /**
+    * Send a request to its external host and relay the response.
+    *
+    * @param request String - HTTP request header lines from client.
+    * @param urlRequested String - URL requested by client.
+    * @param hostLineArr String[] - [0] = hostAddress; [1] = hostPort or undefined.
+    * @param clientReqLine String - First line of HTTP request from client.
+    * @param httpMethod String - HTTP method from request (GET/POST/etc).
+    * @throws java.io.IOException thrown by writeBytes(), relayRequestBody(), readFinalResponseHeader(), relayResponse()
+    * @throws java.util.zip.DataFormatException thrown by relayResponse()
+    * @throws org.apache.commons.compress.compressors.CompressorException thrown by relayResponse()
+    * @throws java.net.URISyntaxException thrown by fixAbsoluteURI()
+    */
+    private void fetchExternal(String request, String urlRequested, String[] hostLineArr, String clientReqLine, String httpMethod) throws IOException, DataFormatException, CompressorException, URISyntaxException {
+        phase(ConnectionRegistry.Phase.CONNECTING);
         initExternalSocket(hostLineArr);
         if (externalSocket == null) 
             return;
           
         // Handle CONNECTs by creating connection to both ends
         if (httpMethod.toUpperCase().contains("CONNECT")) {
+            deadline.endTotal();
+            phase(ConnectionRegistry.Phase.TUNNEL);
             setupConnection();
             return;
         }
         request = clientReqLine + carriageReturn + request;
         request = removeKeepAlive(request);
         request = fixAbsoluteURI(request) + carriageReturn;
+        request = HeaderRewriter.shared().rewriteRequest(targetHost, request);
         
-        System.out.println("\n[NEW REQUEST FOR EXTERNAL HOST]:\n" + request);
+        EventLog.log(EventLog.Category.REQUEST, EventLog.Level.DEBUG, "Request for external host", "url", urlRequested, "header", request);
+        requestTime = System.currentTimeMillis();
+        if (revalidating != null)
+            ResponseCache.shared().countRevalidation();
+        phase(ConnectionRegistry.Phase.SENDING);
         externalOut.writeBytes(request + carriageReturn); // Send request out 
+        if (capture != null) {
+            // Record the body and the origin's response from here on
+            externalOut = new DataOutputStream(capture.requestBody(externalOut));
+            externalIn = new DataInputStream(capture.response(externalIn));
+        }
 
-        if (httpMethod.toUpperCase().contains("POST"))
-            handlePOST(request);
+        // Stream any request body, unless the origin turns it down first
+        String finalHeader = null;
+        if (isChunked(request) || requestContentLength(request) > 0) {
+            if (headerField(request, "Expect").equalsIgnoreCase("100-continue"))
+                finalHeader = awaitContinue(clientReqLine);
+            if (finalHeader == null && !relayRequestBody(request)) {
+                // What was sent of the body stays cut short, as the origin connection is dropped
+                EventLog.log(EventLog.Category.REQUEST, EventLog.Level.WARN, "Malformed chunked request body", "url", urlRequested);
+                requestEvent.status = 400;
+                clientOut.writeBytes(BusinessLogic.return400(urlRequested));
+                return;
+            }
+        }
 
-        System.out.println("\n[REQUEST SENT TO EXTERNAL HOST]");
-        String response = slurpResponse(urlRequested); // Get response from external host
-        System.out.println("\n[RESPONSE FROM EXTERNAL HOST]:\n" + response);
+        EventLog.log(EventLog.Category.REQUEST, EventLog.Level.TRACE, "Request sent to external host", "url", urlRequested);
+        String response;
+        if (finalHeader != null) {
+            response = relayResponse(finalHeader, urlRequested);
+        } else {
+            deadline.startHeader();
+            phase(ConnectionRegistry.Phase.WAITING);
+            long sentAt = System.nanoTime();
+            String header = readFinalResponseHeader(); // Get response from external host
+            Metrics.since(Metrics.Phase.FIRST_BYTE, sentAt);
+            response = relayResponse(header, urlRequested);
+        }
+        EventLog.log(EventLog.Category.RESPONSE, EventLog.Level.DEBUG, "Response from external host", "url", urlRequested, "header", response);
     }
     
     /**
@@ -664,21 +1204,39 @@ public class Proxy {
         System.out.println("[STARTING PROXY]");
         try {
             //Create server socket
-            ServerSocket svrSocket = new ServerSocket(portnum);
-            while (true) {
-                //Accept client request, this returns a local Socket
-                //to communicate with the client
-                Socket clientSocket = svrSocket.accept();
-                new Thread(() -> {
-                    try {
-                        Proxy proxyServer = new Proxy(clientSocket);
-                    } catch (IOException ex) {
-                        Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }).start();
-            }
+            serve(new ServerSocket(portnum));
         } catch (BindException e) {
             System.out.println("[THIS PORT IS ALREADY IN USE]");
         } catch(IOException e){}
     }
+    
+    /**
+    * Accepts connections on an already bound server socket, beginning a new
+    * thread for each one, until the socket is closed.
+    *
+    * @param svrSocket ServerSocket - bound socket to accept clients on; may use an ephemeral port.
+    * @throws java.io.IOException thrown by accept(), including when svrSocket is closed
+    */
+    public static void serve(ServerSocket svrSocket) throws IOException {
+        while (true) {
+            //Accept client request, this returns a local Socket
+            //to communicate with the client
+            Socket clientSocket = svrSocket.accept();
+            long acceptedAt = System.nanoTime();
+            Metrics.count(Metrics.Counter.CONNECTIONS);
+            if (!AdmissionController.shared().openConnection()) {
+                AdmissionController.refuse(clientSocket);
+                continue;
+            }
+            new Thread(() -> {
+                try {
+                    Proxy proxyServer = new Proxy(clientSocket, acceptedAt);
+                } catch (IOException ex) {
+                    Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    AdmissionController.shared().closeConnection();
+                }
+            }).start();
+        }
+    }
 }
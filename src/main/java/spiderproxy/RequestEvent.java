@@ -0,0 +1,62 @@
+/**
+ * RequestEvent
+ * @author Andrew Kulpa & Darren Wolbers
+ * Flight Recorder event covering one client request, from the moment its
+ * connection is handled until the response has been sent.
+ */
+package spiderproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+@Name("spiderproxy.Request")
+@Label("Proxy Request")
+@Description("One client request, from reading its header to sending the response")
+@Category({"SpiderProxy", "Proxy"})
+@Threshold("20 ms")
+@StackTrace(false)
+public class RequestEvent extends jdk.jfr.Event {
+    @Label("Method")
+    public String method;
+
+    @Label("URL")
+    public String url;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Kind")
+    @Description("external, internal, tunnel or refused")
+    public String kind;
+
+    @Label("Status")
+    @Description("Status code sent to the client, or 0 if unknown")
+    public int status;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Timeout")
+    @Description("The deadline that expired, if any")
+    public String timeout;
+
+    @Label("Content Coding")
+    @Description("gzip or deflate if the proxy compressed the body, else null")
+    public String contentCoding;
+
+    @Label("Uncompressed Bytes")
+    @Description("Body bytes before the proxy compressed them")
+    @DataAmount
+    public long uncompressedBytes;
+
+    @Label("Compression CPU")
+    @Timespan(Timespan.NANOSECONDS)
+    public long compressionCpu;
+}
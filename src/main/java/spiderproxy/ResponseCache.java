@@ -0,0 +1,758 @@
+/**
+ * ResponseCache
+ * @author Andrew Kulpa & Darren Wolbers
+ * A shared forward-proxy cache for GET responses following RFC 7234. Bodies
+ * are kept in a size-bounded in-memory LRU tier; entries evicted from it
+ * spill to a second LRU tier of body files on disk.
+ */
+package spiderproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResponseCache {
+    public static boolean enabled = true;
+    public static String path = "cache/";
+    public static long memoryBytes = 32L * 1024 * 1024;
+    public static long diskBytes = 512L * 1024 * 1024;
+    public static long maxEntryBytes = 16L * 1024 * 1024;
+    private static volatile ResponseCache shared;
+
+    // Status codes RFC 7231 section 6.1 defines as cacheable by default.
+    private static final int[] heuristicStatuses = {200, 203, 204, 300, 301, 404, 405, 410, 414, 501};
+    private static final String[] hopByHop = {"connection", "keep-alive", "proxy-connection", "proxy-authenticate",
+        "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade"};
+
+    private final File directory;
+    private final long memoryLimit;
+    private final long diskLimit;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(256, 0.75f, true);
+    // Vary field names last seen for a URL, needed to build the variant key on lookup.
+    private final ConcurrentHashMap<String, String> varyByUrl = new ConcurrentHashMap<>();
+    private long memoryUsed = 0;
+    private long diskUsed = 0;
+    private long fileCounter = 0;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong backgroundRefreshes = new AtomicLong();
+
+    /**
+     * A stored response. The header has its hop-by-hop fields removed and an
+     * exact Content-Length; the body is either in memory or in bodyFile.
+     */
+    public static class Entry {
+        final String key;
+        final String header;
+        final long bodyLength;
+        final long requestTime;
+        final long responseTime;
+        final long correctedInitialAge;
+        final long freshnessLifetime;
+        volatile byte[] body;
+        volatile File bodyFile;
+
+        Entry(String key, String header, byte[] body, long requestTime, long responseTime, long correctedInitialAge, long freshnessLifetime) {
+            this.key = key;
+            this.header = header;
+            this.body = body;
+            this.bodyLength = body.length;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.correctedInitialAge = correctedInitialAge;
+            this.freshnessLifetime = freshnessLifetime;
+        }
+
+        /**
+         * A freshened copy of a stored entry that keeps its body where it is.
+         */
+        Entry(Entry stored, String header, long requestTime, long responseTime, long correctedInitialAge, long freshnessLifetime) {
+            this.key = stored.key;
+            this.header = header;
+            this.body = stored.body;
+            this.bodyFile = stored.bodyFile;
+            this.bodyLength = stored.bodyLength;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.correctedInitialAge = correctedInitialAge;
+            this.freshnessLifetime = freshnessLifetime;
+        }
+
+        /**
+         * current_age from RFC 7234 section 4.2.3, in milliseconds.
+         *
+         * @param now the current time
+         * @return the age of the stored response
+         */
+        public long currentAge(long now) {
+            return correctedInitialAge + Math.max(0, now - responseTime);
+        }
+
+        public boolean isFresh(long now) {
+            return freshnessLifetime > currentAge(now);
+        }
+
+        /**
+         * Returns whether the origin gave a validator this entry can be
+         * revalidated with.
+         *
+         * @return true if the entry has an ETag or Last-Modified
+         */
+        public boolean hasValidator() {
+            return !getETag().isEmpty() || !getLastModified().isEmpty();
+        }
+
+        public String getETag() { return Proxy.headerField(header, "ETag"); }
+        public String getLastModified() { return Proxy.headerField(header, "Last-Modified"); }
+
+        /**
+         * Returns whether this stale entry may still be served while a
+         * background refresh runs, per RFC 5861 stale-while-revalidate.
+         *
+         * @param now the current time
+         * @return true if the entry is stale but within its stale-while-revalidate window
+         */
+        public boolean isWithinStaleWhileRevalidate(long now) {
+            long window = directiveSeconds(Proxy.headerField(header, "Cache-Control"), "stale-while-revalidate");
+            long staleness = currentAge(now) - freshnessLifetime;
+            return window > 0 && staleness >= 0 && staleness <= window * 1000 && hasValidator();
+        }
+
+        public String getHeader() { return header; }
+        public long getBodyLength() { return bodyLength; }
+    }
+
+    /**
+     * Creates a cache whose disk tier lives in the given directory. Body files
+     * left over from an earlier run are removed, since their index is gone.
+     *
+     * @param directory the directory for spilled bodies
+     * @param memoryLimit the byte budget of the in-memory tier
+     * @param diskLimit the byte budget of the disk tier
+     */
+    public ResponseCache(File directory, long memoryLimit, long diskLimit) {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        directory.mkdirs();
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                if (file.getName().endsWith(".body"))
+                    file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache shared by the proxy.
+     *
+     * @return the shared ResponseCache
+     */
+    public static ResponseCache shared() {
+        if (shared == null) {
+            synchronized (ResponseCache.class) {
+                if (shared == null)
+                    shared = new ResponseCache(new File(path), memoryBytes, diskBytes);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns whether a request may be answered from or stored in the cache at
+     * all. Only GETs without no-store are considered.
+     *
+     * @param method the request method
+     * @param requestHeader the request header lines
+     * @return true if the cache should be consulted
+     */
+    public static boolean isCacheableRequest(String method, String requestHeader) {
+        if (!enabled || !"GET".equalsIgnoreCase(method))
+            return false;
+        return !hasDirective(Proxy.headerField(requestHeader, "Cache-Control"), "no-store");
+    }
+
+    /**
+     * Finds a stored response that may be served for this request without
+     * contacting the origin, honouring the request's max-age, min-fresh,
+     * max-stale and no-cache directives.
+     *
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines
+     * @return the entry to serve, or null on a miss
+     */
+    public Entry lookup(String url, String requestHeader) {
+        lookups.incrementAndGet();
+        String cacheControl = Proxy.headerField(requestHeader, "Cache-Control");
+        if (hasDirective(cacheControl, "no-cache") || Proxy.headerField(requestHeader, "Pragma").toLowerCase().contains("no-cache"))
+            return null;
+        Entry entry = find(url, requestHeader);
+        if (entry == null)
+            return null;
+        long now = System.currentTimeMillis();
+        long age = entry.currentAge(now);
+        long maxAge = directiveSeconds(cacheControl, "max-age");
+        if (maxAge >= 0 && age > maxAge * 1000)
+            return null;
+        long minFresh = Math.max(0, directiveSeconds(cacheControl, "min-fresh"));
+        if (entry.freshnessLifetime - age >= minFresh * 1000)
+            return countHit(entry);
+        // Stale: only usable if the client explicitly accepts it and the origin did not forbid it.
+        String responseControl = Proxy.headerField(entry.header, "Cache-Control");
+        if (hasDirective(responseControl, "must-revalidate") || hasDirective(responseControl, "proxy-revalidate") 
+                || hasDirective(responseControl, "s-maxage") || hasDirective(responseControl, "no-cache"))
+            return null;
+        if (entry.isWithinStaleWhileRevalidate(now) && minFresh == 0)
+            return countHit(entry);
+        if (hasDirective(cacheControl, "max-stale")) {
+            long maxStale = directiveSeconds(cacheControl, "max-stale");
+            if (maxStale < 0 || age - entry.freshnessLifetime <= maxStale * 1000)
+                return countHit(entry);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the stored response for this request if it can be revalidated
+     * with the origin, so its validators can be sent along with the request.
+     *
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines
+     * @return the stale entry to revalidate, or null
+     */
+    public Entry revalidationCandidate(String url, String requestHeader) {
+        Entry entry = find(url, requestHeader);
+        return entry != null && entry.hasValidator() ? entry : null;
+    }
+
+    /**
+     * Returns the conditional header lines that revalidate the entry, per
+     * RFC 7232: If-None-Match from its ETag and If-Modified-Since from its
+     * Last-Modified.
+     *
+     * @param entry the entry being revalidated
+     * @return CRLF-terminated header lines
+     */
+    public static String conditionalHeaders(Entry entry) {
+        String lines = "";
+        if (!entry.getETag().isEmpty())
+            lines += "If-None-Match: " + entry.getETag() + Proxy.carriageReturn;
+        if (!entry.getLastModified().isEmpty())
+            lines += "If-Modified-Since: " + entry.getLastModified() + Proxy.carriageReturn;
+        return lines;
+    }
+
+    /**
+     * Applies a 304 Not Modified response to a stored entry, per RFC 7234
+     * section 4.3.4: header fields in the 304 replace the stored ones and the
+     * entry's age and freshness start over. The stored body is kept.
+     *
+     * @param entry the entry that was revalidated
+     * @param notModifiedHeader the 304 status line and header lines
+     * @param requestTime when the conditional request was sent
+     * @param responseTime when the 304 was received
+     * @return the freshened entry, now in the cache in place of the old one
+     */
+    public Entry freshen(Entry entry, String notModifiedHeader, long requestTime, long responseTime) {
+        notModified.incrementAndGet();
+        String merged = mergeHeaders(entry.header, notModifiedHeader);
+        long freshness = freshnessLifetime(entry.key, merged);
+        String header = storedHeader(merged, entry.bodyLength);
+        long correctedInitialAge = correctedInitialAge(merged, requestTime, responseTime);
+        // Copied under the lock so a concurrent spill to disk is seen by the new entry
+        synchronized (this) {
+            Entry updated = new Entry(entry, header, requestTime, responseTime, correctedInitialAge, freshness);
+            if (memory.get(entry.key) == entry)
+                memory.put(entry.key, updated);
+            else if (disk.get(entry.key) == entry)
+                disk.put(entry.key, updated);
+            return updated;
+        }
+    }
+
+    /**
+     * Refreshes a stale-while-revalidate entry off the request path. At most
+     * one refresh per entry runs at a time.
+     *
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines, for the Vary-selected fields
+     * @param entry the stale entry that was just served
+     */
+    public void refreshInBackground(String url, String requestHeader, Entry entry) {
+        if (Revalidator.submit(this, url, requestHeader, entry))
+            backgroundRefreshes.incrementAndGet();
+    }
+
+    /**
+     * Counts a conditional request sent to the origin.
+     */
+    void countRevalidation() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * Stores a response if RFC 7234 section 3 allows a shared cache to.
+     *
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines
+     * @param responseHeader the response status line and header lines
+     * @param body the complete, de-chunked response body
+     * @param requestTime when the request was sent to the origin
+     * @param responseTime when the response header was received
+     * @return whether the response was stored
+     */
+    public boolean store(String url, String requestHeader, String responseHeader, byte[] body, long requestTime, long responseTime) {
+        return store(url, requestHeader, responseHeader, body, body.length, requestTime, responseTime);
+    }
+
+    /**
+     * Stores the first length bytes of body as the response body. The bytes
+     * are copied only if the response is stored, so body may be a pooled
+     * buffer the caller releases afterwards.
+     *
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines
+     * @param responseHeader the response status line and header lines
+     * @param body holds the complete, de-chunked response body
+     * @param length the number of body bytes in the array
+     * @param requestTime when the request was sent to the origin
+     * @param responseTime when the response header was received
+     * @return whether the response was stored
+     */
+    public boolean store(String url, String requestHeader, String responseHeader, byte[] body, int length, long requestTime, long responseTime) {
+        if (length > maxEntryBytes || !isStorable(requestHeader, responseHeader))
+            return false;
+        long freshness = freshnessLifetime(url, responseHeader);
+        // Stale-on-arrival responses are still worth keeping when they can be revalidated.
+        boolean hasValidator = !Proxy.headerField(responseHeader, "ETag").isEmpty()
+                            || !Proxy.headerField(responseHeader, "Last-Modified").isEmpty();
+        if (freshness <= 0 && !hasValidator)
+            return false;
+        String vary = Proxy.headerField(responseHeader, "Vary").toLowerCase();
+        varyByUrl.put(url, vary);
+        String key = variantKey(url, vary, requestHeader);
+        if (length != body.length)
+            body = Arrays.copyOf(body, length);
+        Entry entry = new Entry(key, storedHeader(responseHeader, body.length), body, requestTime, responseTime,
+                correctedInitialAge(responseHeader, requestTime, responseTime), freshness);
+        List<Entry> spilled = new ArrayList<>();
+        synchronized (this) {
+            remove(key);
+            memory.put(key, entry);
+            memoryUsed += entry.bodyLength;
+            Iterator<Entry> eldest = memory.values().iterator();
+            while (memoryUsed > memoryLimit && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                memoryUsed -= evicted.bodyLength;
+                spilled.add(evicted);
+            }
+        }
+        stores.incrementAndGet();
+        for (Entry evicted : spilled)
+            spill(evicted);
+        return true;
+    }
+
+    /**
+     * Writes a stored response to the client with its current Age. Disk tier
+     * bodies are streamed from their file.
+     *
+     * @param entry an entry returned by lookup()
+     * @param out the stream back to the client
+     * @throws FileNotFoundException if the disk body was evicted since the
+     *         lookup; nothing has been written and the hit is not counted
+     * @throws IOException thrown by write()
+     */
+    public void serve(Entry entry, OutputStream out) throws IOException {
+        byte[] body = entry.body;
+        InputStream file = null;
+        if (body == null) {
+            // Open before writing anything, so a body evicted once it is open is still readable.
+            try {
+                file = new FileInputStream(entry.bodyFile);
+            } catch (FileNotFoundException ex) {
+                diskHits.decrementAndGet();
+                throw ex;
+            }
+        }
+        try {
+            long age = entry.currentAge(System.currentTimeMillis()) / 1000;
+            String header = entry.header + "Age: " + age + Proxy.carriageReturn
+                          + "X-Cache: HIT" + Proxy.carriageReturn + Proxy.carriageReturn;
+            out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+            if (body != null) {
+                out.write(body);
+            } else {
+                BufferPool.Buffer buffer = BufferPool.heap().acquire(BufferPool.relayBufferBytes);
+                try {
+                    int n;
+                    while ((n = file.read(buffer.array(), 0, buffer.capacity())) != -1)
+                        out.write(buffer.array(), 0, n);
+                } finally {
+                    buffer.release();
+                }
+            }
+            out.flush();
+            bytesServed.addAndGet(entry.bodyLength);
+        } finally {
+            if (file != null)
+                file.close();
+        }
+    }
+
+    /**
+     * Returns the cache's counters as a JSON object.
+     *
+     * @return hit ratio, hits by tier, stores, evictions, bytes saved and tier sizes
+     */
+    public synchronized String statsJson() {
+        long hits = memoryHits.get() + diskHits.get();
+        long total = lookups.get();
+        return "{\"lookups\":" + total
+             + ",\"hits\":" + hits
+             + ",\"memoryHits\":" + memoryHits.get()
+             + ",\"diskHits\":" + diskHits.get()
+             + ",\"hitRatio\":" + (total == 0 ? 0.0 : (double) hits / total)
+             + ",\"stores\":" + stores.get()
+             + ",\"evictions\":" + evictions.get()
+             + ",\"bytesSaved\":" + bytesServed.get()
+             + ",\"revalidations\":" + revalidations.get()
+             + ",\"notModified\":" + notModified.get()
+             + ",\"backgroundRefreshes\":" + backgroundRefreshes.get()
+             + ",\"memoryEntries\":" + memory.size()
+             + ",\"memoryBytes\":" + memoryUsed
+             + ",\"diskEntries\":" + disk.size()
+             + ",\"diskBytes\":" + diskUsed + "}";
+    }
+
+    private Entry countHit(Entry entry) {
+        if (entry.body != null)
+            memoryHits.incrementAndGet();
+        else
+            diskHits.incrementAndGet();
+        return entry;
+    }
+
+    private synchronized Entry find(String url, String requestHeader) {
+        String vary = varyByUrl.get(url);
+        if (vary == null)
+            return null;
+        String key = variantKey(url, vary, requestHeader);
+        Entry entry = memory.get(key);
+        return entry != null ? entry : disk.get(key);
+    }
+
+    private synchronized void remove(String key) {
+        Entry old = memory.remove(key);
+        if (old != null)
+            memoryUsed -= old.bodyLength;
+        old = disk.remove(key);
+        if (old != null) {
+            diskUsed -= old.bodyLength;
+            old.bodyFile.delete();
+        }
+    }
+
+    /**
+     * Moves an entry evicted from memory into the disk tier, evicting the
+     * least recently used body files if the disk budget is exceeded.
+     */
+    private void spill(Entry entry) {
+        if (entry.bodyLength > diskLimit) {
+            evictions.incrementAndGet();
+            return;
+        }
+        File file;
+        synchronized (this) {
+            file = new File(directory, (fileCounter++) + ".body");
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(entry.body);
+        } catch (IOException ex) {
+            EventLog.log(EventLog.Category.RESPONSE, EventLog.Level.WARN, "Could not spill cache entry", "file", file, "error", ex);
+            file.delete();
+            evictions.incrementAndGet();
+            return;
+        }
+        List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            if (memory.containsKey(entry.key) || disk.containsKey(entry.key)) {
+                // A newer copy was stored while this one was being written.
+                deleted.add(file);
+            } else {
+                entry.bodyFile = file;
+                entry.body = null;
+                disk.put(entry.key, entry);
+                diskUsed += entry.bodyLength;
+            }
+            Iterator<Entry> eldest = disk.values().iterator();
+            while (diskUsed > diskLimit && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                diskUsed -= evicted.bodyLength;
+                deleted.add(evicted.bodyFile);
+                evictions.incrementAndGet();
+            }
+        }
+        for (File old : deleted)
+            old.delete();
+    }
+
+    /**
+     * RFC 7234 section 3: may a shared cache store this response at all?
+     */
+    static boolean isStorable(String requestHeader, String responseHeader) {
+        int status = statusCode(responseHeader);
+        boolean understood = false;
+        for (int code : heuristicStatuses)
+            understood |= code == status;
+        if (!understood)
+            return false;
+        String requestControl = Proxy.headerField(requestHeader, "Cache-Control");
+        String responseControl = Proxy.headerField(responseHeader, "Cache-Control");
+        if (hasDirective(requestControl, "no-store") || hasDirective(responseControl, "no-store")
+                || hasDirective(responseControl, "private"))
+            return false;
+        if (Proxy.headerField(responseHeader, "Vary").contains("*"))
+            return false;
+        // Set-Cookie is per client; never hand one client's cookie to another.
+        if (!Proxy.headerField(responseHeader, "Set-Cookie").isEmpty())
+            return false;
+        if (!Proxy.headerField(requestHeader, "Authorization").isEmpty()
+                && !hasDirective(responseControl, "public") && !hasDirective(responseControl, "s-maxage")
+                && !hasDirective(responseControl, "must-revalidate"))
+            return false;
+        return true;
+    }
+
+    /**
+     * RFC 7234 section 4.2.1: no-cache means always stale; otherwise s-maxage, then max-age, then Expires - Date,
+     * then 10% of the time since Last-Modified (capped at a day).
+     *
+     * @return the freshness lifetime in milliseconds
+     */
+    static long freshnessLifetime(String url, String responseHeader) {
+        String cacheControl = Proxy.headerField(responseHeader, "Cache-Control");
+        if (hasDirective(cacheControl, "no-cache"))
+            return 0;
+        long sMaxAge = directiveSeconds(cacheControl, "s-maxage");
+        if (sMaxAge >= 0)
+            return sMaxAge * 1000;
+        long maxAge = directiveSeconds(cacheControl, "max-age");
+        if (maxAge >= 0)
+            return maxAge * 1000;
+        long date = parseDate(Proxy.headerField(responseHeader, "Date"));
+        if (date <= 0)
+            date = System.currentTimeMillis();
+        String expiresValue = Proxy.headerField(responseHeader, "Expires");
+        if (!expiresValue.isEmpty()) {
+            long expires = parseDate(expiresValue);
+            return expires <= 0 ? 0 : Math.max(0, expires - date);
+        }
+        long lastModified = parseDate(Proxy.headerField(responseHeader, "Last-Modified"));
+        if (lastModified > 0 && !url.contains("?"))
+            return Math.min((date - lastModified) / 10, 24L * 60 * 60 * 1000);
+        return 0;
+    }
+
+    /**
+     * The stored copy of the header: status line and end-to-end fields, with
+     * an exact Content-Length and no Age (recomputed when served).
+     */
+    static String storedHeader(String responseHeader, long bodyLength) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : responseHeader.split(Proxy.carriageReturn)) {
+            if (line.isEmpty())
+                continue;
+            int colon = line.indexOf(':');
+            if (sb.length() > 0 && colon > 0) {
+                String name = line.substring(0, colon).trim().toLowerCase();
+                if (name.equals("content-length") || name.equals("age") || isHopByHop(name))
+                    continue;
+            }
+            sb.append(line).append(Proxy.carriageReturn);
+        }
+        sb.append("Content-Length: ").append(bodyLength).append(Proxy.carriageReturn);
+        sb.append("Connection: close").append(Proxy.carriageReturn);
+        return sb.toString();
+    }
+
+    /**
+     * corrected_initial_age from RFC 7234 section 4.2.3, in milliseconds.
+     */
+    static long correctedInitialAge(String responseHeader, long requestTime, long responseTime) {
+        long date = parseDate(Proxy.headerField(responseHeader, "Date"));
+        long apparentAge = date > 0 ? Math.max(0, responseTime - date) : 0;
+        long ageValue = Math.max(0, parseLong(Proxy.headerField(responseHeader, "Age"), 0)) * 1000;
+        return Math.max(apparentAge, ageValue + (responseTime - requestTime));
+    }
+
+    /**
+     * Replaces the stored header's fields with those present in a 304,
+     * keeping the stored status line and the fields the 304 does not carry.
+     */
+    static String mergeHeaders(String stored, String notModifiedHeader) {
+        StringBuilder merged = new StringBuilder();
+        String[] updates = notModifiedHeader.split(Proxy.carriageReturn);
+        Set<String> replaced = new HashSet<>();
+        for (int i = 1; i < updates.length; i++) {
+            int colon = updates[i].indexOf(':');
+            if (colon > 0) {
+                String name = updates[i].substring(0, colon).trim().toLowerCase();
+                if (!name.equals("content-length") && !isHopByHop(name))
+                    replaced.add(name);
+            }
+        }
+        String[] lines = stored.split(Proxy.carriageReturn);
+        for (int i = 0; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (i > 0 && colon > 0 && replaced.contains(lines[i].substring(0, colon).trim().toLowerCase()))
+                continue;
+            merged.append(lines[i]).append(Proxy.carriageReturn);
+        }
+        for (int i = 1; i < updates.length; i++) {
+            int colon = updates[i].indexOf(':');
+            if (colon > 0 && replaced.contains(updates[i].substring(0, colon).trim().toLowerCase()))
+                merged.append(updates[i]).append(Proxy.carriageReturn);
+        }
+        return merged.toString();
+    }
+
+    private static boolean isHopByHop(String name) {
+        for (String field : hopByHop) {
+            if (field.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private static String variantKey(String url, String vary, String requestHeader) {
+        if (vary.isEmpty())
+            return url;
+        StringBuilder key = new StringBuilder(url);
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty())
+                key.append('\n').append(name).append('=').append(Proxy.headerField(requestHeader, name));
+        }
+        return key.toString();
+    }
+
+    static int statusCode(String responseHeader) {
+        String[] statusLine = responseHeader.split(Proxy.carriageReturn, 2)[0].split(" ");
+        return statusLine.length > 1 ? (int) parseLong(statusLine[1], -1) : -1;
+    }
+
+    /**
+     * Returns whether a Cache-Control value contains the directive.
+     */
+    static boolean hasDirective(String cacheControl, String directive) {
+        for (String part : cacheControl.split(",")) {
+            String name = part.split("=", 2)[0].trim();
+            if (name.equalsIgnoreCase(directive))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the delta-seconds argument of a Cache-Control directive.
+     *
+     * @return the seconds, or -1 if the directive is absent or has no valid argument
+     */
+    static long directiveSeconds(String cacheControl, String directive) {
+        for (String part : cacheControl.split(",")) {
+            String[] pair = part.split("=", 2);
+            if (pair[0].trim().equalsIgnoreCase(directive) && pair.length == 2)
+                return parseLong(pair[1].trim().replace("\"", ""), -1);
+        }
+        return -1;
+    }
+
+    /**
+     * Parses an HTTP-date in any of the three formats of RFC 7231 section 7.1.1.1.
+     *
+     * @return milliseconds since the epoch, or -1 if the value is not a valid date
+     */
+    static long parseDate(String value) {
+        if (value == null || value.isEmpty())
+            return -1;
+        String[] formats = {"EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy"};
+        for (String format : formats) {
+            SimpleDateFormat parser = new SimpleDateFormat(format, Locale.US);
+            parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return parser.parse(value.trim()).getTime();
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(String value, long fallback) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Returns the number of entries in both tiers; for tests.
+     *
+     * @return the entry count
+     */
+    synchronized int size() {
+        return memory.size() + disk.size();
+    }
+
+    /**
+     * Returns whether the entry for a key currently lives on disk; for tests.
+     */
+    synchronized boolean isOnDisk(String key) {
+        return disk.containsKey(key);
+    }
+
+    /**
+     * Drops every entry; for tests.
+     */
+    synchronized void clear() {
+        for (Map.Entry<String, Entry> entry : disk.entrySet())
+            entry.getValue().bodyFile.delete();
+        memory.clear();
+        disk.clear();
+        varyByUrl.clear();
+        memoryUsed = 0;
+        diskUsed = 0;
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * ResponseCompressor
+ * @author Andrew Kulpa & Darren Wolbers
+ * Compresses uncompressed text responses on their way to the client when
+ * the client accepts gzip or deflate, for clients on slow links. Off unless
+ * enabled. A response qualifies when it is a 200 with a compressible content
+ * type, no Content-Encoding, no Cache-Control: no-transform, and a body of
+ * at least minBytes or of unknown length. The body is encoded as it is
+ * relayed, with Deflaters drawn from a pool, and the connection's close ends
+ * it since its length is no longer known. Encoding stops being offered to
+ * new responses while the CPU spent on it over the last second is above
+ * maxCpuFraction of the machine. Each response's ratio and CPU time are
+ * logged and set on its RequestEvent; totals are in /api/stats.
+ */
+package spiderproxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class ResponseCompressor {
+    public static volatile boolean enabled = false;
+    // Bodies known to be smaller than this gain too little to be worth it.
+    public static long minBytes = 1024;
+    public static int level = 6;
+    // Share of all cores that compression may use, measured over one second.
+    public static double maxCpuFraction = 0.25;
+    public static int poolSize = 32;
+    // Codings in order of preference; zstd is not offered since the JDK has no encoder for it.
+    public static String[] codings = {"gzip", "deflate"};
+    public static String[] compressibleTypes = {"text/", "application/json", "application/javascript", "application/xml",
+                                                "application/xhtml+xml", "application/rss+xml", "image/svg+xml", "+json", "+xml"};
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+    private static final BlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    private static final BlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+
+    private static final AtomicLong compressed = new AtomicLong();
+    private static final AtomicLong skippedSmall = new AtomicLong();
+    private static final AtomicLong skippedBudget = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+    private static final AtomicLong cpuNanos = new AtomicLong();
+    private static final AtomicLong deflatersCreated = new AtomicLong();
+    private static final Object window = new Object();
+    private static long windowStart = System.nanoTime();
+    private static long windowCpuNanos = 0;
+
+    /**
+     * Chooses how to encode a response for the client, if at all.
+     *
+     * @param requestHeader the client's request header lines
+     * @param responseHeader the origin's response header lines
+     * @param contentLength the body's length, or -1 if unknown
+     * @return "gzip" or "deflate", or null to relay the body as it is
+     */
+    public static String choose(String requestHeader, String responseHeader, long contentLength) {
+        if (!enabled || requestHeader == null)
+            return null;
+        if (ResponseCache.statusCode(responseHeader) != 200)
+            return null;
+        String encoding = Proxy.headerField(responseHeader, "Content-Encoding");
+        if (!encoding.isEmpty() && !encoding.equalsIgnoreCase("identity"))
+            return null;
+        if (ResponseCache.hasDirective(Proxy.headerField(responseHeader, "Cache-Control"), "no-transform"))
+            return null;
+        if (!isCompressible(Proxy.headerField(responseHeader, "Content-Type")))
+            return null;
+        String coding = null;
+        for (String candidate : codings) {
+            if (InternalAPI.acceptsEncoding(requestHeader, candidate)) {
+                coding = candidate;
+                break;
+            }
+        }
+        if (coding == null)
+            return null;
+        if (contentLength >= 0 && contentLength < minBytes) {
+            skippedSmall.incrementAndGet();
+            return null;
+        }
+        if (!withinBudget()) {
+            skippedBudget.incrementAndGet();
+            return null;
+        }
+        return coding;
+    }
+
+    /**
+     * Returns whether a content type is worth compressing.
+     *
+     * @param contentType the Content-Type value
+     * @return true for text, JSON, XML, JavaScript and SVG
+     */
+    public static boolean isCompressible(String contentType) {
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0)
+            type = type.substring(0, semicolon);
+        type = type.trim();
+        if (type.isEmpty())
+            return false;
+        for (String compressible : compressibleTypes) {
+            if (compressible.startsWith("+") ? type.endsWith(compressible) : type.startsWith(compressible))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites a response header for a body sent with a content coding: the
+     * length is dropped, the coding and Vary: Accept-Encoding are added, and
+     * a strong ETag is weakened since the bytes no longer match it.
+     *
+     * @param header the response header lines, each ending in CRLF
+     * @param coding the content coding
+     * @return the header to send to the client
+     */
+    public static String encodedHeader(String header, String coding) {
+        StringBuilder sb = new StringBuilder(header.length() + 64);
+        boolean vary = false;
+        for (String line : header.split(Proxy.carriageReturn)) {
+            if (line.isEmpty())
+                continue;
+            int colon = line.indexOf(':');
+            String name = colon > 0 ? line.substring(0, colon).trim() : "";
+            if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Content-Encoding"))
+                continue;
+            if (name.equalsIgnoreCase("ETag")) {
+                String value = line.substring(colon + 1).trim();
+                if (value.startsWith("\""))
+                    line = "ETag: W/" + value;
+            } else if (name.equalsIgnoreCase("Vary")) {
+                String value = line.substring(colon + 1).trim();
+                vary = true;
+                if (!value.equals("*") && !value.toLowerCase(Locale.ROOT).contains("accept-encoding"))
+                    line = "Vary: " + value + ", Accept-Encoding";
+            }
+            sb.append(line).append(Proxy.carriageReturn);
+        }
+        if (!vary)
+            sb.append("Vary: Accept-Encoding").append(Proxy.carriageReturn);
+        return sb.append("Content-Encoding: ").append(coding).append(Proxy.carriageReturn).toString();
+    }
+
+    /**
+     * Starts encoding a body to the client.
+     *
+     * @param out the stream to the client, after the header has been written
+     * @param coding "gzip" or "deflate"
+     * @param url the URL of the response, for the log
+     * @return the stream to write the body to
+     * @throws IOException if the gzip header cannot be written
+     */
+    public static Encoder encode(OutputStream out, String coding, String url) throws IOException {
+        return new Encoder(out, coding, url);
+    }
+
+    /**
+     * Returns the compression counters as a JSON object.
+     *
+     * @return the stats document
+     */
+    public static String statsJson() {
+        long in = bytesIn.get();
+        long outBytes = bytesOut.get();
+        return "{\"enabled\":" + enabled
+             + ",\"compressed\":" + compressed.get()
+             + ",\"skippedSmall\":" + skippedSmall.get()
+             + ",\"skippedBudget\":" + skippedBudget.get()
+             + ",\"bytesIn\":" + in
+             + ",\"bytesOut\":" + outBytes
+             + ",\"ratio\":" + String.format(Locale.ROOT, "%.4f", in == 0 ? 1.0 : outBytes / (double) in)
+             + ",\"cpuMillis\":" + cpuNanos.get() / 1000000
+             + ",\"deflatersCreated\":" + deflatersCreated.get()
+             + ",\"deflatersPooled\":" + (gzipPool.size() + deflatePool.size()) + "}";
+    }
+
+    /**
+     * A body being encoded. Closing it neither finishes the body nor closes
+     * the client's stream; call finish() once the body is written, then
+     * release() in any case.
+     */
+    public static final class Encoder extends OutputStream {
+        private final String coding;
+        private final String url;
+        private final CountingStream counted;
+        private final BlockingQueue<Deflater> pool;
+        private final Deflater deflater;
+        private final DeflaterOutputStream deflating;
+        private final CRC32 crc;
+        private long written = 0;
+        private long cpu = 0;
+        private boolean released = false;
+
+        private Encoder(OutputStream out, String coding, String url) throws IOException {
+            this.coding = coding;
+            this.url = url;
+            boolean gzip = coding.equals("gzip");
+            counted = new CountingStream(out);
+            pool = gzip ? gzipPool : deflatePool;
+            Deflater pooled = pool.poll();
+            if (pooled == null) {
+                pooled = new Deflater(level, gzip);
+                deflatersCreated.incrementAndGet();
+            }
+            deflater = pooled;
+            deflating = new DeflaterOutputStream(counted, deflater, BufferPool.relayBufferBytes, true);
+            crc = gzip ? new CRC32() : null;
+            if (gzip) {
+                // Minimal gzip member header: deflate, no flags, no time, unknown OS
+                counted.write(new byte[]{(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = cpuNow();
+            deflating.write(b, off, len);
+            if (crc != null)
+                crc.update(b, off, len);
+            written += len;
+            charge(cpuNow() - start);
+        }
+
+        /**
+         * Sends what has been encoded so far, at some cost in ratio.
+         */
+        @Override
+        public void flush() throws IOException {
+            long start = cpuNow();
+            deflating.flush();
+            charge(cpuNow() - start);
+        }
+
+        @Override
+        public void close() {
+            // the client's stream belongs to the connection
+        }
+
+        /**
+         * Ends the encoded body, records its figures and returns the
+         * Deflater to the pool.
+         *
+         * @param event the request's Flight Recorder event, to record them on
+         * @throws IOException if writing to the client fails
+         */
+        public void finish(RequestEvent event) throws IOException {
+            long start = cpuNow();
+            deflating.finish();
+            if (crc != null) {
+                writeIntLE(counted, (int) crc.getValue());
+                writeIntLE(counted, (int) written);
+            }
+            counted.flush();
+            charge(cpuNow() - start);
+            compressed.incrementAndGet();
+            bytesIn.addAndGet(written);
+            bytesOut.addAndGet(counted.count);
+            event.contentCoding = coding;
+            event.uncompressedBytes = written;
+            event.compressionCpu = cpu;
+            if (EventLog.enabled(EventLog.Category.RESPONSE, EventLog.Level.DEBUG)) {
+                EventLog.log(EventLog.Category.RESPONSE, EventLog.Level.DEBUG, "Compressed response", "url", url, "compression",
+                        String.format(Locale.ROOT, "%s %d -> %d bytes (ratio %.3f), %d us CPU", coding, written, counted.count,
+                                written == 0 ? 1.0 : counted.count / (double) written, cpu / 1000));
+            }
+            release();
+        }
+
+        /**
+         * Returns the Deflater to the pool, if that has not been done.
+         */
+        public void release() {
+            if (released)
+                return;
+            released = true;
+            deflater.reset();
+            if (!pool.offer(deflater))
+                deflater.end();
+        }
+
+        private void charge(long nanos) {
+            cpu += nanos;
+            cpuNanos.addAndGet(nanos);
+            synchronized (window) {
+                windowCpuNanos += nanos;
+            }
+        }
+    }
+
+    /**
+     * Counts the encoded bytes on their way to the client.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Returns whether compression has used less than its share of the CPU
+     * over the current one-second window.
+     */
+    private static boolean withinBudget() {
+        long allowance = (long) (Runtime.getRuntime().availableProcessors() * maxCpuFraction * 1e9);
+        long now = System.nanoTime();
+        synchronized (window) {
+            if (now - windowStart >= 1000000000L) {
+                windowStart = now;
+                windowCpuNanos = 0;
+            }
+            return windowCpuNanos < allowance;
+        }
+    }
+
+    /**
+     * Returns this thread's CPU time, or the wall clock where the JVM cannot
+     * tell, which overstates what compression costs.
+     */
+    private static long cpuNow() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        out.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+}
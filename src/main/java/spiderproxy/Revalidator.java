@@ -0,0 +1,235 @@
+/**
+ * Revalidator
+ * @author Andrew Kulpa & Darren Wolbers
+ * Refreshes stale-while-revalidate cache entries off the request path. Each
+ * refresh is a conditional GET on its own connection; a 304 freshens the
+ * stored entry and a full response replaces it.
+ */
+package spiderproxy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.httpclient.ChunkedInputStream;
+
+public class Revalidator {
+    public static int threads = 2;
+    public static int connectTimeoutMillis = 5000;
+    public static int readTimeoutMillis = 15000;
+
+    // Cache keys with a refresh queued or running, so a burst of stale hits
+    // only sends one conditional request.
+    private static final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private static volatile ExecutorService executor;
+
+    /**
+     * Queues a background refresh of a stored entry unless one is already
+     * pending for it.
+     *
+     * @param cache the cache holding the entry
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines that selected the entry
+     * @param entry the stale entry
+     * @return whether a refresh was queued
+     */
+    public static boolean submit(ResponseCache cache, String url, String requestHeader, ResponseCache.Entry entry) {
+        if (!inFlight.add(entry.key))
+            return false;
+        executor().execute(() -> {
+            try {
+                refresh(cache, url, requestHeader, entry);
+            } catch (IOException ex) {
+                EventLog.log(EventLog.Category.UPSTREAM, EventLog.Level.INFO, "Background refresh failed", "url", url, "error", ex);
+            } finally {
+                inFlight.remove(entry.key);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns whether a refresh is queued or running for the cache key.
+     *
+     * @param key a cache key
+     * @return true if a refresh is pending
+     */
+    public static boolean isPending(String key) {
+        return inFlight.contains(key);
+    }
+
+    /**
+     * Sends a conditional GET for the entry and updates the cache with the
+     * answer.
+     *
+     * @param cache the cache holding the entry
+     * @param url the absolute request URL
+     * @param requestHeader the request header lines that selected the entry
+     * @param entry the stale entry
+     * @throws IOException if the origin cannot be reached or answers badly
+     */
+    static void refresh(ResponseCache cache, String url, String requestHeader, ResponseCache.Entry entry) throws IOException {
+        URL target = new URL(url);
+        int port = target.getPort() == -1 ? target.getDefaultPort() : target.getPort();
+        String path = target.getFile().isEmpty() ? "/" : target.getFile();
+        try (Socket socket = HappyEyeballs.connect(target.getHost(), port, connectTimeoutMillis)) {
+            socket.setSoTimeout(readTimeoutMillis);
+            String request = "GET " + path + " HTTP/1.1" + Proxy.carriageReturn
+                           + "Host: " + target.getAuthority() + Proxy.carriageReturn
+                           + forwardedFields(requestHeader)
+                           + ResponseCache.conditionalHeaders(entry)
+                           + "Connection: close" + Proxy.carriageReturn;
+            // The same host rules as a request the proxy forwards itself
+            request = HeaderRewriter.shared().rewriteRequest(target.getHost(), request) + Proxy.carriageReturn;
+            long requestTime = System.currentTimeMillis();
+            cache.countRevalidation();
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String header = HeaderRewriter.shared().rewriteResponse(target.getHost(), readHeader(in));
+            long responseTime = System.currentTimeMillis();
+            if (ResponseCache.statusCode(header) == 304) {
+                cache.freshen(entry, header, requestTime, responseTime);
+                return;
+            }
+            long contentLength = contentLength(header);
+            long initial = contentLength >= 0 ? contentLength : BufferPool.relayBufferBytes;
+            // Nobody waits on a refresh, so it is the first buffering to give way
+            MemoryBudget.Reservation reservation = MemoryBudget.shared().tryReserve(initial, MemoryBudget.Tier.BUFFER);
+            if (reservation == null) {
+                EventLog.log(EventLog.Category.UPSTREAM, EventLog.Level.DEBUG, "Background refresh skipped, over memory budget", "url", url);
+                return;
+            }
+            BufferPool.Buffer body = BufferPool.heap().acquire((int) initial);
+            try {
+                if (!readBody(header, contentLength, in, body, reservation)) {
+                    EventLog.log(EventLog.Category.UPSTREAM, EventLog.Level.DEBUG, "Background refresh skipped, over memory budget", "url", url);
+                    return;
+                }
+                cache.store(url, requestHeader, header, body.array(), body.length(), requestTime, responseTime);
+            } finally {
+                body.release();
+                reservation.release();
+            }
+        }
+    }
+
+    /**
+     * Copies the end-to-end request fields of the original request, dropping
+     * its own validators and connection management fields.
+     */
+    private static String forwardedFields(String requestHeader) {
+        StringBuilder fields = new StringBuilder();
+        for (String line : requestHeader.split(Proxy.carriageReturn)) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = line.substring(0, colon).trim().toLowerCase();
+            if (name.equals("host") || name.startsWith("if-") || name.equals("connection") || name.equals("proxy-connection")
+                    || name.equals("keep-alive") || name.equals("te") || name.equals("upgrade") || name.equals("cache-control")
+                    || name.equals("pragma") || name.equals("content-length"))
+                continue;
+            fields.append(line).append(Proxy.carriageReturn);
+        }
+        return fields.toString();
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0)
+            header.append(line).append(Proxy.carriageReturn);
+        if (header.length() == 0)
+            throw new IOException("Empty response");
+        return header.toString();
+    }
+
+    /**
+     * Reads one header line as ISO-8859-1, without its line ending. Bytes
+     * after the line are left in the stream for the body.
+     *
+     * @param in the stream from the origin
+     * @return the line, or null at the end of the stream
+     * @throws IOException thrown by read()
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.append((char) b);
+        if (b == -1 && line.length() == 0)
+            return null;
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+            line.setLength(line.length() - 1);
+        return line.toString();
+    }
+
+    /**
+     * Returns the response's Content-Length, or -1 if the body is chunked or
+     * runs to the end of the stream.
+     *
+     * @throws IOException if the body is too large to cache
+     */
+    private static long contentLength(String header) throws IOException {
+        String length = Proxy.headerField(header, "Content-Length").trim();
+        if (Proxy.headerField(header, "Transfer-Encoding").toLowerCase().contains("chunked") || length.isEmpty())
+            return -1;
+        long contentLength = Long.parseLong(length);
+        if (contentLength > ResponseCache.maxEntryBytes)
+            throw new IOException("Response too large to cache");
+        return contentLength;
+    }
+
+    /**
+     * Reads the body, growing the reservation with the buffer.
+     *
+     * @return false if the budget refused to grow before the body was read
+     */
+    private static boolean readBody(String header, long contentLength, InputStream in, BufferPool.Buffer body, MemoryBudget.Reservation reservation) throws IOException {
+        if (contentLength >= 0) {
+            body.readFully(in, (int) contentLength);
+            return true;
+        }
+        if (Proxy.headerField(header, "Transfer-Encoding").toLowerCase().contains("chunked"))
+            in = new ChunkedInputStream(in);
+        while (true) {
+            if (body.length() == body.capacity()) {
+                if (body.capacity() >= ResponseCache.maxEntryBytes) {
+                    if (in.read() == -1)
+                        return true;
+                    throw new IOException("Stream longer than " + ResponseCache.maxEntryBytes + " bytes");
+                }
+                int next = (int) Math.min((long) body.capacity() * 2, ResponseCache.maxEntryBytes);
+                if (!reservation.grow(next - reservation.bytes()))
+                    return false;
+                body.ensureCapacity(next);
+            }
+            if (body.readSome(in) == -1)
+                return true;
+        }
+    }
+
+    private static ExecutorService executor() {
+        if (executor == null) {
+            synchronized (Revalidator.class) {
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(threads, runnable -> {
+                        Thread thread = new Thread(runnable, "cache-revalidator");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
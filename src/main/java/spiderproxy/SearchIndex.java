@@ -0,0 +1,316 @@
+/**
+ * SearchIndex
+ * @author Andrew Kulpa & Darren Wolbers
+ * Inverted index over every discovered URL, keyed by host, path word and path
+ * prefix tokens, so the internal /search page never has to read a sitemap.
+ */
+package spiderproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class SearchIndex {
+    private static volatile SearchIndex shared;
+
+    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> urls = new ArrayList<>();
+    // Token -> ascending URL ids. Words are stored as-is, path prefixes start
+    // with '/', and whole hostnames start with '@', so each kind of query
+    // term can be answered with a single range scan.
+    private final TreeMap<String, IntList> postings = new TreeMap<>();
+
+    /**
+     * Results of a single search: one page of URLs plus the total hit count.
+     */
+    public static class Result {
+        private final List<String> urls;
+        private final int total;
+
+        Result(List<String> urls, int total) {
+            this.urls = urls;
+            this.total = total;
+        }
+
+        public List<String> getUrls() { return urls; }
+        public int getTotal() { return total; }
+    }
+
+    /**
+     * Growable array of primitive ints; postings are appended in id order so
+     * they stay sorted without any extra work.
+     */
+    static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int size() { return size; }
+    }
+
+    /**
+     * Returns the index shared by the proxy. The first call starts a
+     * background thread that seeds it from the sitemaps already on disk.
+     *
+     * @return the shared SearchIndex
+     */
+    public static SearchIndex shared() {
+        if (shared == null) {
+            synchronized (SearchIndex.class) {
+                if (shared == null) {
+                    SearchIndex index = new SearchIndex();
+                    Thread seeder = new Thread(index::seedFromSitemaps, "SearchIndex-seeder");
+                    seeder.setDaemon(true);
+                    seeder.start();
+                    shared = index;
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Adds a URL to the index if it is not there already.
+     *
+     * @param url an absolute URL
+     * @return whether the URL was newly added
+     */
+    public boolean add(String url) {
+        Set<String> tokens = tokenize(url);
+        rwl.writeLock().lock();
+        try {
+            if (ids.containsKey(url))
+                return false;
+            int id = urls.size();
+            urls.add(url);
+            ids.put(url, id);
+            for (String token : tokens) {
+                IntList list = postings.get(token);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(token, list);
+                }
+                list.add(id);
+            }
+            return true;
+        } finally {
+            rwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the URL has been indexed.
+     *
+     * @param url an absolute URL
+     * @return true if the URL is in the index
+     */
+    public boolean contains(String url) {
+        rwl.readLock().lock();
+        try {
+            return ids.containsKey(url);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of URLs in the index.
+     *
+     * @return the URL count
+     */
+    public int size() {
+        rwl.readLock().lock();
+        try {
+            return urls.size();
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the URLs matching every term of the query, newest first. A term
+     * starting with '/' matches URLs whose path starts with it, a term
+     * containing '.' matches hostnames starting with it, and any other term
+     * matches URLs containing a host label or path word starting with it.
+     *
+     * @param query whitespace separated terms
+     * @param offset the number of hits to skip
+     * @param limit the maximum number of hits to return
+     * @return the requested page of hits and the total hit count
+     */
+    public Result search(String query, int offset, int limit) {
+        List<String> terms = parseQuery(query);
+        if (terms.isEmpty())
+            return new Result(new ArrayList<>(), 0);
+        rwl.readLock().lock();
+        try {
+            BitSet hits = null;
+            for (String term : terms) {
+                BitSet termHits = matchTerm(term);
+                if (hits == null)
+                    hits = termHits;
+                else
+                    hits.and(termHits);
+                if (hits.isEmpty())
+                    break;
+            }
+            List<String> page = new ArrayList<>();
+            int skipped = 0;
+            for (int id = hits.previousSetBit(urls.size() - 1); id >= 0 && page.size() < limit; id = hits.previousSetBit(id - 1)) {
+                if (skipped < offset)
+                    skipped += 1;
+                else
+                    page.add(urls.get(id));
+            }
+            return new Result(page, hits.cardinality());
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unions the postings of every token starting with the term. For path
+     * prefixes, tokens nested under one already taken are skipped since their
+     * postings are a subset of it.
+     *
+     * @param term a normalized query term
+     * @return the ids of every matching URL
+     */
+    private BitSet matchTerm(String term) {
+        BitSet bits = new BitSet(urls.size());
+        String taken = null;
+        for (Map.Entry<String, IntList> entry : postings.subMap(term, true, term + Character.MAX_VALUE, false).entrySet()) {
+            String token = entry.getKey();
+            if (taken != null && token.startsWith(taken + "/"))
+                continue;
+            if (term.startsWith("/"))
+                taken = token;
+            IntList list = entry.getValue();
+            for (int i = 0; i < list.size; i++)
+                bits.set(list.values[i]);
+        }
+        return bits;
+    }
+
+    /**
+     * Splits a user query into normalized terms.
+     *
+     * @param query the raw query
+     * @return normalized terms in the same namespaces as tokenize()
+     */
+    static List<String> parseQuery(String query) {
+        List<String> terms = new ArrayList<>();
+        if (query == null)
+            return terms;
+        for (String raw : query.trim().toLowerCase().split("\\s+")) {
+            if (raw.isEmpty())
+                continue;
+            if (raw.startsWith("/")) {
+                terms.add(raw);
+            } else if (raw.contains(".") && !raw.contains("/")) {
+                terms.add("@" + (raw.startsWith("www.") ? raw.substring(4) : raw));
+            } else {
+                for (String word : raw.split("[^\\p{Alnum}]+")) {
+                    if (!word.isEmpty())
+                        terms.add(word);
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Produces the tokens indexed for a URL: its hostname, each host label,
+     * each path word and each path prefix.
+     *
+     * @param url an absolute URL
+     * @return the set of index tokens
+     */
+    static Set<String> tokenize(String url) {
+        Set<String> tokens = new LinkedHashSet<>();
+        String host;
+        String path;
+        try {
+            URI uri = new URI(url);
+            host = uri.getHost();
+            path = uri.getPath();
+        } catch (URISyntaxException ex) {
+            host = null;
+            path = url;
+        }
+        if (host != null) {
+            host = host.toLowerCase();
+            if (host.startsWith("www."))
+                host = host.substring(4);
+            tokens.add("@" + host);
+            for (String label : host.split("\\."))
+                if (!label.isEmpty())
+                    tokens.add(label);
+        }
+        if (path != null) {
+            path = path.toLowerCase();
+            for (String word : path.split("[^\\p{Alnum}]+"))
+                if (!word.isEmpty())
+                    tokens.add(word);
+            StringBuilder prefix = new StringBuilder();
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty())
+                    continue;
+                prefix.append('/').append(segment);
+                tokens.add(prefix.toString());
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Streams every 'loc' of every sitemap into the index. Runs once, off the
+     * request path, when the shared index is first used.
+     */
+    private void seedFromSitemaps() {
+        DataAccessor.checkAndCreateDirectory();
+        File[] files = new File(DataAccessor.path).listFiles();
+        if (files == null)
+            return;
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().endsWith(".xml"))
+                continue;
+            try (InputStream in = new FileInputStream(file)) {
+                XMLStreamReader reader = factory.createXMLStreamReader(in);
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "loc".equals(reader.getLocalName()))
+                        add(reader.getElementText().trim());
+                }
+                reader.close();
+            } catch (IOException | XMLStreamException ex) {
+                Logger.getLogger(SearchIndex.class.getName()).log(Level.WARNING, "Could not index " + file, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * SitemapFlushEvent
+ * @author Andrew Kulpa & Darren Wolbers
+ * Flight Recorder event covering one sitemap check-and-insert, which reads
+ * and, for a new URL, rewrites the host's sitemap file.
+ */
+package spiderproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("spiderproxy.SitemapFlush")
+@Label("Sitemap Flush")
+@Description("Checking a URL against its host's sitemap and writing it out if new")
+@Category({"SpiderProxy", "Spider"})
+@Threshold("5 ms")
+@StackTrace(false)
+public class SitemapFlushEvent extends jdk.jfr.Event {
+    @Label("Host")
+    public String host;
+
+    @Label("URL")
+    public String url;
+
+    @Label("Inserted")
+    public boolean inserted;
+
+    @Label("Sitemap Size")
+    @DataAmount
+    public long fileBytes;
+}
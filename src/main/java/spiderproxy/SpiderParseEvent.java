@@ -0,0 +1,43 @@
+/**
+ * SpiderParseEvent
+ * @author Andrew Kulpa & Darren Wolbers
+ * Flight Recorder event covering the spidering of one page: decoding,
+ * link extraction and the sitemap inserts that follow.
+ */
+package spiderproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("spiderproxy.SpiderParse")
+@Label("Spider Parse")
+@Description("Parsing one page for links and recording the new ones")
+@Category({"SpiderProxy", "Spider"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class SpiderParseEvent extends jdk.jfr.Event {
+    @Label("URL")
+    public String url;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Body Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Links Found")
+    public int linksFound;
+
+    @Label("Links Added")
+    public int linksAdded;
+
+    @Label("Skipped")
+    @Description("Whether the page was skipped because its links were already known")
+    public boolean skipped;
+}
@@ -4,6 +4,10 @@
 * @version 1.0
 */
 package spiderproxy;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
 public class SpiderProxy {
     public static void main(String[] args) {
         int port;
@@ -19,6 +23,28 @@ public class SpiderProxy {
             }
         }
         
+        // -Dspiderproxy.capture=file records proxied traffic for TrafficReplay
+        String capture = System.getProperty("spiderproxy.capture");
+        if(capture != null){
+            try{
+                TrafficRecorder.start(Paths.get(capture));
+                System.out.println("Recording traffic to " + capture);
+            }catch(IOException e){
+                System.out.println("Could not record traffic to '" + capture + "': " + e.getMessage());
+            }
+        }
+        // -Dspiderproxy.compress=true compresses text responses for clients that accept it
+        ResponseCompressor.enabled = Boolean.getBoolean("spiderproxy.compress");
+        // -Dspiderproxy.rewriteRules=file adds header rewrite rules, see HeaderRewriter
+        String rewriteRules = System.getProperty("spiderproxy.rewriteRules");
+        if(rewriteRules != null){
+            try{
+                int added = HeaderRewriter.shared().load(Paths.get(rewriteRules));
+                System.out.println("Loaded " + added + " header rewrite rule(s) from " + rewriteRules);
+            }catch(IOException e){
+                System.out.println("Could not load header rewrite rules: " + e.getMessage());
+            }
+        }
         Proxy.setup(port);
     }
 }
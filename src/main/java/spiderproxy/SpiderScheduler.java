@@ -0,0 +1,340 @@
+/**
+ * SpiderScheduler
+ * @author Andrew Kulpa & Darren Wolbers
+ * Runs the spider off the request path and decides how much of the traffic
+ * it looks at. Pages are parsed by a few worker threads from a bounded
+ * queue. A sampling rate follows the backlog: when the queue would take
+ * longer than targetLagMillis to drain the rate is cut, and while it keeps up
+ * the rate climbs back towards every page. Sampling favours site sections
+ * (a host plus its first path segment) that have been seen less often or
+ * still turn up new links, and while sampling, pages whose links are almost
+ * all known already are skipped after parsing.
+ */
+package spiderproxy;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpiderScheduler {
+    public static int workers = 2;
+    public static int queueCapacity = 256;
+    // Backlog, in expected time to drain the queue, the sampling rate aims to stay under.
+    public static long targetLagMillis = 2000;
+    public static double minRate = 0.05;
+    // While sampling, pages with at least this share of already known links are skipped.
+    public static double skipKnownFraction = 0.9;
+    // Site sections remembered for weighting; the least recently seen are forgotten.
+    public static int maxBuckets = 4096;
+    private static volatile SpiderScheduler shared;
+    // Per-page decay of a section's visit count.
+    private static final double DECAY = 0.999;
+
+    private final BlockingQueue<Job> queue;
+    private final AtomicInteger busy = new AtomicInteger();
+    // Pages queued or being parsed.
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxBuckets;
+        }
+    };
+    private final int workerCount;
+    private double rate = 1.0;
+    private double latencyNanos = 0;
+    private double meanVisits = 0;
+    // Pages parsed so far, the clock by which visit counts decay.
+    private long clock = 0;
+    private long lastAdjust = 0;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong spidered = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong skippedKnown = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong linksFound = new AtomicLong();
+    private final AtomicLong linksAdded = new AtomicLong();
+
+    /**
+     * How often a site section has been spidered recently and how many new
+     * links its pages yield.
+     */
+    private static final class Bucket {
+        double visits = 0;
+        double yield = 1.0;
+        long seen = 0;
+
+        double visitsAt(long clock) {
+            return visits * Math.pow(DECAY, clock - seen);
+        }
+    }
+
+    /**
+     * A page waiting to be parsed, holding its body and the memory reserved
+     * for parsing it.
+     */
+    private static final class Job {
+        final byte[] data;
+        final String encoding;
+        final String url;
+        final String bucket;
+        final MemoryBudget.Reservation reservation;
+
+        Job(byte[] data, String encoding, String url, String bucket, MemoryBudget.Reservation reservation) {
+            this.data = data;
+            this.encoding = encoding;
+            this.url = url;
+            this.bucket = bucket;
+            this.reservation = reservation;
+        }
+    }
+
+    /**
+     * Creates a scheduler and starts its workers.
+     *
+     * @param workerCount the number of parsing threads; with none, pages only queue
+     * @param capacity the number of pages that may wait to be parsed
+     */
+    public SpiderScheduler(int workerCount, int capacity) {
+        this.workerCount = workerCount;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(this::work, "spider-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Returns the scheduler shared by the proxy.
+     *
+     * @return the shared SpiderScheduler
+     */
+    public static SpiderScheduler shared() {
+        if (shared == null) {
+            synchronized (SpiderScheduler.class) {
+                if (shared == null)
+                    shared = new SpiderScheduler(workers, queueCapacity);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Offers a page to the spider. If it is sampled and there is room in the
+     * queue the body is copied and queued, and the reservation becomes the
+     * queue's to release once the page is parsed.
+     *
+     * @param data holds the page body
+     * @param length the number of bytes of data that hold the body
+     * @param encoding the response's content encoding
+     * @param url the page's URL
+     * @param reservation the memory reserved for parsing the page
+     * @return whether the page was queued; if not the caller keeps the reservation
+     */
+    public boolean offer(byte[] data, int length, String encoding, String url, MemoryBudget.Reservation reservation) {
+        offered.incrementAndGet();
+        String bucket = bucketOf(url);
+        synchronized (this) {
+            adjust();
+            if (ThreadLocalRandom.current().nextDouble() >= rate * weight(bucket)) {
+                sampledOut.incrementAndGet();
+                return false;
+            }
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        pending.incrementAndGet();
+        if (!queue.offer(new Job(copy, encoding, url, bucket, reservation))) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every queued page has been parsed.
+     *
+     * @param timeoutMillis the longest to wait
+     * @return whether the queue drained in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of pages waiting to be parsed.
+     *
+     * @return the queue depth
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the current sampling rate before per-section weighting.
+     *
+     * @return the rate, between minRate and 1
+     */
+    public synchronized double rate() {
+        return rate;
+    }
+
+    /**
+     * Returns the scheduler's sampling state and coverage as a JSON object.
+     * Coverage is the share of offered pages that were actually spidered.
+     *
+     * @return the stats document
+     */
+    public synchronized String statsJson() {
+        long offers = offered.get();
+        return "{\"rate\":" + String.format(Locale.ROOT, "%.3f", rate)
+             + ",\"queueDepth\":" + queue.size()
+             + ",\"busyWorkers\":" + busy.get()
+             + ",\"latencyMillis\":" + String.format(Locale.ROOT, "%.2f", latencyNanos / 1e6)
+             + ",\"offered\":" + offers
+             + ",\"spidered\":" + spidered.get()
+             + ",\"sampledOut\":" + sampledOut.get()
+             + ",\"dropped\":" + dropped.get()
+             + ",\"skippedKnown\":" + skippedKnown.get()
+             + ",\"failed\":" + failed.get()
+             + ",\"linksFound\":" + linksFound.get()
+             + ",\"linksAdded\":" + linksAdded.get()
+             + ",\"buckets\":" + buckets.size()
+             + ",\"coverage\":" + String.format(Locale.ROOT, "%.3f", offers == 0 ? 1.0 : (double) spidered.get() / offers) + "}";
+    }
+
+    /**
+     * Returns the site section a URL belongs to: its host and first path
+     * segment.
+     *
+     * @param url an absolute URL
+     * @return the section key
+     */
+    static String bucketOf(String url) {
+        int scheme = url.indexOf("://");
+        int start = scheme < 0 ? 0 : scheme + 3;
+        int slash = url.indexOf('/', start);
+        if (slash < 0)
+            return url.substring(start).toLowerCase(Locale.ROOT) + "/";
+        int end = slash + 1;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0)
+            end++;
+        return url.substring(start, slash).toLowerCase(Locale.ROOT) + url.substring(slash, end);
+    }
+
+    /**
+     * Sampling weight of a section: above 1 for sections visited less than
+     * average or still yielding new links, below 1 for well covered ones.
+     * Callers hold the lock.
+     */
+    double weight(String bucket) {
+        Bucket b = buckets.get(bucket);
+        if (b == null)
+            return 2.0;
+        double rarity = (meanVisits + 1) / (b.visitsAt(clock) + 1);
+        return Math.max(0.25, Math.min(4.0, Math.sqrt(rarity) * (0.5 + b.yield)));
+    }
+
+    /**
+     * Moves the sampling rate towards what the workers can keep up with:
+     * multiplicative decrease while the backlog is over target, additive
+     * increase while it is well under. Callers hold the lock.
+     */
+    void adjust() {
+        long now = System.nanoTime();
+        if (now - lastAdjust < TimeUnit.MILLISECONDS.toNanos(100))
+            return;
+        lastAdjust = now;
+        double lagMillis = (queue.size() + busy.get()) * latencyNanos / 1e6 / Math.max(1, workerCount);
+        if (lagMillis > targetLagMillis || queue.remainingCapacity() == 0)
+            rate = Math.max(minRate, rate * 0.8);
+        else if (lagMillis < targetLagMillis / 2.0)
+            rate = Math.min(1.0, rate + 0.05);
+    }
+
+    private synchronized void record(String bucket, long nanos, int found, int added) {
+        latencyNanos = latencyNanos == 0 ? nanos : latencyNanos * 0.8 + nanos * 0.2;
+        Bucket b = buckets.get(bucket);
+        if (b == null) {
+            b = new Bucket();
+            buckets.put(bucket, b);
+        }
+        // Visit counts decay a little with every page parsed so they reflect recent traffic.
+        clock += 1;
+        b.visits = b.visitsAt(clock) + 1;
+        b.seen = clock;
+        meanVisits = meanVisits * 0.99 + 0.01 * b.visits;
+        double fresh = found == 0 ? 0 : (double) added / found;
+        b.yield = b.yield * 0.7 + fresh * 0.3;
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            busy.incrementAndGet();
+            long start = System.nanoTime();
+            SpiderParseEvent event = new SpiderParseEvent();
+            event.begin();
+            int found = 0;
+            int added = 0;
+            boolean skipped = false;
+            try {
+                Set<String> links = BusinessLogic.extractLinks(job.data, job.data.length, job.encoding, job.url);
+                BusinessLogic.recordLinks(job.url, links);
+                found = links.size();
+                SearchIndex index = SearchIndex.shared();
+                links.removeIf(index::contains);
+                if (rate() < 1.0 && found > 0 && found - links.size() >= skipKnownFraction * found) {
+                    skippedKnown.incrementAndGet();
+                    skipped = true;
+                } else {
+                    links.add(job.url);
+                    added = BusinessLogic.insertLinks(links);
+                    spidered.incrementAndGet();
+                }
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                EventLog.log(EventLog.Category.SPIDER, EventLog.Level.INFO, "Spidering failed", "url", job.url, "error", ex);
+            } finally {
+                job.reservation.release();
+                busy.decrementAndGet();
+            }
+            if (event.shouldCommit()) {
+                event.url = job.url;
+                event.host = job.bucket.substring(0, job.bucket.indexOf('/'));
+                event.bytes = job.data.length;
+                event.linksFound = found;
+                event.linksAdded = added;
+                event.skipped = skipped;
+                event.commit();
+            }
+            linksFound.addAndGet(found);
+            linksAdded.addAndGet(added);
+            record(job.bucket, System.nanoTime() - start, found, added);
+            pending.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/**
+ * TrafficRecorder
+ * @author Andrew Kulpa & Darren Wolbers
+ * Captures proxied exchanges to a file so that they can be replayed offline
+ * with TrafficReplay. Each exchange that goes to an origin is recorded as
+ * the client's request line and header, the request body as relayed, and the
+ * origin's raw response, with the time it started. Exchanges are queued to a
+ * writer thread and stored gzipped; when the queue is full, an exchange is
+ * larger than maxExchangeBytes, or the memory budget cannot hold it, it is
+ * skipped and counted. The file is flushed whenever the queue runs empty and
+ * finished when the capture stops or the process exits, so a capture that
+ * was never stopped still reads up to its last flush. Tunnels,
+ * cache hits and coalesced requests never reach an origin and are not
+ * recorded. When no capture is running, the cost is one volatile read per
+ * request.
+ */
+package spiderproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class TrafficRecorder {
+    public static int maxExchangeBytes = 4 << 20;
+    public static int queueSize = 256;
+
+    private static final int MAGIC = 0x53505843; // "SPXC"
+    private static final int VERSION = 1;
+    private static volatile TrafficRecorder active;
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile boolean stopping = false;
+    private static boolean shutdownHookAdded = false;
+
+    /**
+     * One recorded exchange.
+     */
+    public static final class Record {
+        public final long offsetMicros;
+        public final String requestLine;
+        public final String header;
+        public final byte[] body;
+        public final byte[] response;
+
+        public Record(long offsetMicros, String requestLine, String header, byte[] body, byte[] response) {
+            this.offsetMicros = offsetMicros;
+            this.requestLine = requestLine;
+            this.header = header;
+            this.body = body;
+            this.response = response;
+        }
+
+        public String method() {
+            return requestLine.split(" ")[0];
+        }
+
+        public String url() {
+            String[] parts = requestLine.split(" ");
+            return parts.length > 1 ? parts[1] : "";
+        }
+
+        /**
+         * Returns the status code the origin answered with.
+         *
+         * @return the status, or -1 if the response has no status line
+         */
+        public int status() {
+            int end = 0;
+            while (end < response.length && response[end] != '\r' && response[end] != '\n')
+                end++;
+            return ResponseCache.statusCode(new String(response, 0, end, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * A record waiting for the writer, with the memory it holds.
+     */
+    private static final class Pending {
+        final Record record;
+        final MemoryBudget.Reservation reservation;
+
+        Pending(Record record, MemoryBudget.Reservation reservation) {
+            this.record = record;
+            this.reservation = reservation;
+        }
+    }
+
+    /**
+     * An exchange being recorded. Proxy wraps the upstream streams with it
+     * once the request header has been sent.
+     */
+    public final class Exchange {
+        private final long offsetMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        private final String requestLine;
+        private final String header;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        private MemoryBudget.Reservation reservation; // Budget for the bytes kept so far
+        private boolean dropped = false;
+        private boolean finished = false;
+
+        private Exchange(String requestLine, String header) {
+            this.requestLine = requestLine;
+            this.header = header;
+        }
+
+        /**
+         * Wraps the stream to the origin so that the request body is kept.
+         *
+         * @param upstream the stream to the origin
+         * @return the recording stream
+         */
+        public OutputStream requestBody(OutputStream upstream) {
+            return new FilterOutputStream(upstream) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    keep(body, new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    keep(body, b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Wraps the stream from the origin so that its response is kept.
+         *
+         * @param upstream the stream from the origin
+         * @return the recording stream
+         */
+        public InputStream response(InputStream upstream) {
+            return new FilterInputStream(upstream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0)
+                        keep(response, new byte[]{(byte) b}, 0, 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0)
+                        keep(response, b, off, n);
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Queues the exchange for writing, once the response has been relayed.
+         */
+        public void finish() {
+            if (finished)
+                return;
+            finished = true;
+            if (dropped || response.size() == 0 || stopping) {
+                drop();
+                skipped.incrementAndGet();
+                return;
+            }
+            Record record = new Record(offsetMicros, requestLine, header, body.toByteArray(), response.toByteArray());
+            if (!queue.offer(new Pending(record, reservation))) {
+                reservation.release();
+                skipped.incrementAndGet();
+            }
+        }
+
+        private void keep(ByteArrayOutputStream into, byte[] b, int off, int len) {
+            if (dropped)
+                return;
+            if (body.size() + response.size() + len > maxExchangeBytes || !reserve(len)) {
+                drop();
+                return;
+            }
+            into.write(b, off, len);
+        }
+
+        private boolean reserve(int len) {
+            if (reservation == null) {
+                reservation = MemoryBudget.shared().tryReserve(len, MemoryBudget.Tier.BUFFER);
+                return reservation != null;
+            }
+            return reservation.grow(len);
+        }
+
+        private void drop() {
+            dropped = true;
+            body.reset();
+            response.reset();
+            if (reservation != null)
+                reservation.release();
+        }
+    }
+
+    private TrafficRecorder(Path file) throws IOException {
+        this.file = file;
+        // syncFlush so that flush() leaves every record written so far readable
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file), 65536, true)));
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        writer = new Thread(this::drain, "traffic-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts recording to a file, replacing it. A capture already running is
+     * stopped first.
+     *
+     * @param file the capture file
+     * @throws IOException if the file cannot be created
+     */
+    public static synchronized void start(Path file) throws IOException {
+        stop();
+        active = new TrafficRecorder(file);
+        if (!shutdownHookAdded) {
+            shutdownHookAdded = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    stop();
+                } catch (IOException ex) {
+                    EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.WARN, "Could not finish capture", "error", ex);
+                }
+            }, "traffic-recorder-stop"));
+        }
+    }
+
+    /**
+     * Stops recording, writing out every exchange still queued.
+     *
+     * @throws IOException if the capture file cannot be completed
+     */
+    public static synchronized void stop() throws IOException {
+        TrafficRecorder recorder = active;
+        if (recorder == null)
+            return;
+        active = null;
+        recorder.stopping = true;
+        try {
+            recorder.writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        recorder.out.writeByte(0);
+        recorder.out.close();
+    }
+
+    /**
+     * Starts recording an exchange if a capture is running.
+     *
+     * @param requestLine the client's request line
+     * @param header the client's request header, without the request line
+     * @return the exchange, or null when not recording
+     */
+    public static Exchange begin(String requestLine, String header) {
+        TrafficRecorder recorder = active;
+        return recorder == null ? null : recorder.new Exchange(requestLine, header);
+    }
+
+    /**
+     * Returns the capture counters as a JSON object.
+     *
+     * @return the stats document
+     */
+    public static String statsJson() {
+        TrafficRecorder recorder = active;
+        if (recorder == null)
+            return "{\"recording\":false}";
+        return "{\"recording\":true,\"file\":" + InternalAPI.quote(recorder.file.toString())
+             + ",\"recorded\":" + recorder.recorded.get()
+             + ",\"skipped\":" + recorder.skipped.get()
+             + ",\"queued\":" + recorder.queue.size() + "}";
+    }
+
+    /**
+     * Reads every exchange in a capture file.
+     *
+     * @param file the capture file
+     * @return the exchanges in the order they were written
+     * @throws IOException if the file is not a capture
+     */
+    public static List<Record> read(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 65536)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a traffic capture");
+            if (in.readInt() != VERSION)
+                throw new IOException(file + " is from an unsupported version");
+            try {
+                while (in.readByte() != 0) {
+                    long offset = in.readLong();
+                    String requestLine = new String(bytes(in), StandardCharsets.ISO_8859_1);
+                    String header = new String(bytes(in), StandardCharsets.ISO_8859_1);
+                    records.add(new Record(offset, requestLine, header, bytes(in), bytes(in)));
+                }
+            } catch (EOFException e) {
+                // Cut short by a crash or never stopped; keep what was complete
+            }
+            return records;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Pending pending;
+            try {
+                pending = queue.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (pending == null) {
+                if (stopping)
+                    return;
+                continue;
+            }
+            Record record = pending.record;
+            try {
+                out.writeByte(1);
+                out.writeLong(record.offsetMicros);
+                write(out, record.requestLine.getBytes(StandardCharsets.ISO_8859_1));
+                write(out, record.header.getBytes(StandardCharsets.ISO_8859_1));
+                write(out, record.body);
+                write(out, record.response);
+                recorded.incrementAndGet();
+                if (queue.isEmpty())
+                    out.flush();
+            } catch (IOException ex) {
+                EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.WARN, "Could not write capture", "file", file, "error", ex);
+                skipped.incrementAndGet();
+            } finally {
+                pending.reservation.release();
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] bytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Corrupt capture");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
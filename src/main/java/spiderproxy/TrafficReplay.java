@@ -0,0 +1,321 @@
+/**
+ * TrafficReplay
+ * @author Andrew Kulpa & Darren Wolbers
+ * Replays a capture made by TrafficRecorder through a proxy running in this
+ * process, against a stand-in origin that answers with the recorded
+ * responses. Every host resolves to the stand-in through the HappyEyeballs
+ * resolver, and each request's port is moved to the stand-in's, so no
+ * network is needed. Exchanges start at their recorded times divided by the
+ * speed, or back to back on a fixed number of clients at full speed.
+ *
+ *   java -cp SpiderProxy.jar spiderproxy.TrafficReplay capture.spx [speed|max] [clients]
+ */
+package spiderproxy;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.httpclient.ChunkedInputStream;
+
+public class TrafficReplay {
+    public static int timeoutMillis = 30000;
+
+    private final List<TrafficRecorder.Record> records;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static final class Result {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong mismatches = new AtomicLong();
+        public final AtomicLong bytes = new AtomicLong();
+        private long nanos;
+
+        public long replayed() {
+            return latency.count();
+        }
+
+        public double seconds() {
+            return nanos / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d exchanges in %.2f s (%.1f/s), %d errors, %d status mismatches, %.1f MB received%n"
+                    + "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                    replayed(), seconds(), replayed() / Math.max(seconds(), 1e-9), errors.get(), mismatches.get(), bytes.get() / 1e6,
+                    latency.percentile(0.5) / 1e6, latency.percentile(0.9) / 1e6, latency.percentile(0.99) / 1e6, latency.percentile(1.0) / 1e6);
+        }
+    }
+
+    public TrafficReplay(List<TrafficRecorder.Record> records) {
+        this.records = records;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: TrafficReplay capture.spx [speed|max] [clients]");
+            return;
+        }
+        List<TrafficRecorder.Record> records = TrafficRecorder.read(Paths.get(args[0]));
+        double speed = args.length > 1 && !args[1].equalsIgnoreCase("max") ? Double.parseDouble(args[1]) : 0;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        System.out.println("Replaying " + records.size() + " exchanges at " + (speed > 0 ? speed + "x" : "full speed"));
+        System.out.println(new TrafficReplay(records).run(speed, clients));
+        System.exit(0);
+    }
+
+    /**
+     * Replays the capture through a proxy on an ephemeral loopback port.
+     *
+     * @param speed how many times faster than recorded; 0 or less for as fast as possible
+     * @param clients the number of clients at full speed; ignored otherwise
+     * @return the result
+     * @throws IOException if the proxy or the stand-in cannot start
+     * @throws InterruptedException if interrupted while waiting for the replay
+     */
+    public Result run(double speed, int clients) throws IOException, InterruptedException {
+        HappyEyeballs.Resolver previous = HappyEyeballs.resolver;
+        try (StandIn origin = new StandIn(records);
+             ServerSocket proxy = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"))) {
+            InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            HappyEyeballs.resolver = host -> new InetAddress[]{loopback};
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Proxy.serve(proxy);
+                } catch (IOException e) {
+                    // closed once the replay is done
+                }
+            }, "replay-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return replay(proxy.getLocalPort(), origin.port(), speed, clients);
+        } finally {
+            HappyEyeballs.resolver = previous;
+        }
+    }
+
+    private Result replay(int proxyPort, int originPort, double speed, int clients) throws InterruptedException {
+        Result result = new Result();
+        ExecutorService pool = speed > 0 ? Executors.newCachedThreadPool(TrafficReplay::daemon) : Executors.newFixedThreadPool(Math.max(1, clients), TrafficReplay::daemon);
+        long start = System.nanoTime();
+        long first = records.isEmpty() ? 0 : records.get(0).offsetMicros;
+        for (TrafficRecorder.Record record : records) {
+            long due = start;
+            if (speed > 0) {
+                due += (long) (TimeUnit.MICROSECONDS.toNanos(record.offsetMicros - first) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            long since = speed > 0 ? due : -1;
+            pool.execute(() -> send(record, proxyPort, originPort, since, result));
+        }
+        pool.shutdown();
+        pool.awaitTermination(timeoutMillis + records.size() * 10L, TimeUnit.MILLISECONDS);
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Sends one recorded request through the proxy, pointed at the stand-in.
+     *
+     * @param since when latency is measured from, or -1 for when it is sent
+     */
+    private static void send(TrafficRecorder.Record record, int proxyPort, int originPort, long since, Result result) {
+        long start = since >= 0 ? since : System.nanoTime();
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxyPort)) {
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            out.write(retarget(record, originPort).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(record.body);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[16384];
+            StringBuilder statusLine = new StringBuilder();
+            long received = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n && statusLine.length() < 12; i++)
+                    statusLine.append((char) (buffer[i] & 0xff));
+                received += n;
+            }
+            result.bytes.addAndGet(received);
+            if (ResponseCache.statusCode(statusLine.toString()) != record.status())
+                result.mismatches.incrementAndGet();
+        } catch (IOException e) {
+            result.errors.incrementAndGet();
+        }
+        result.latency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Rewrites a recorded request so that its URL and Host name the
+     * stand-in's port.
+     */
+    static String retarget(TrafficRecorder.Record record, int port) throws MalformedURLException {
+        URL url = new URL(record.url());
+        String moved = new URL(url.getProtocol(), url.getHost(), port, url.getFile()).toString();
+        String requestLine = record.requestLine.replace(record.url(), moved);
+        StringBuilder header = new StringBuilder(requestLine).append(Proxy.carriageReturn);
+        boolean host = false;
+        for (String line : record.header.split(Proxy.carriageReturn)) {
+            if (line.isEmpty())
+                continue;
+            if (line.toLowerCase(Locale.ROOT).startsWith("host:")) {
+                line = "Host: " + url.getHost() + ":" + port;
+                host = true;
+            }
+            header.append(line).append(Proxy.carriageReturn);
+        }
+        if (!host)
+            header.append("Host: ").append(url.getHost()).append(':').append(port).append(Proxy.carriageReturn);
+        return header.append(Proxy.carriageReturn).toString();
+    }
+
+    /**
+     * Returns the key the stand-in finds a recorded response by: method,
+     * host without port, and path with query.
+     */
+    static String key(String method, String host, String file) {
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(']') < colon)
+            host = host.substring(0, colon);
+        return method.toUpperCase(Locale.ROOT) + " " + host.toLowerCase(Locale.ROOT) + (file.isEmpty() ? "/" : file);
+    }
+
+    private static Thread daemon(Runnable r) {
+        Thread thread = new Thread(r, "replay-client");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The origin during a replay. Requests seen more than once in the
+     * capture get their recorded responses in turn, starting over when they
+     * run out.
+     */
+    static final class StandIn implements Closeable {
+        private final ServerSocket server;
+        private final Map<String, List<byte[]>> responses = new HashMap<>();
+        private final Map<String, AtomicInteger> next = new HashMap<>();
+
+        StandIn(List<TrafficRecorder.Record> records) throws IOException {
+            for (TrafficRecorder.Record record : records) {
+                URL url = new URL(record.url());
+                String key = key(record.method(), url.getHost(), url.getFile());
+                responses.computeIfAbsent(key, k -> new ArrayList<>()).add(record.response);
+                next.putIfAbsent(key, new AtomicInteger());
+            }
+            server = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        Thread worker = new Thread(() -> serve(socket), "replay-origin");
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "replay-origin");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                s.setSoTimeout(timeoutMillis);
+                InputStream in = new BufferedInputStream(s.getInputStream());
+                String requestLine = readLine(in);
+                if (requestLine == null)
+                    return;
+                StringBuilder header = new StringBuilder();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty())
+                    header.append(line).append(Proxy.carriageReturn);
+                String request = header.toString();
+                skipBody(in, request);
+                String[] parts = requestLine.split(" ");
+                String key = key(parts[0], Proxy.headerField(request, "Host"), parts.length > 1 ? parts[1] : "/");
+                List<byte[]> recorded = responses.get(key);
+                OutputStream out = s.getOutputStream();
+                if (recorded == null) {
+                    out.write(("HTTP/1.1 404 Not Found" + Proxy.carriageReturn + "Content-Length: 0" + Proxy.carriageReturn
+                            + "Connection: close" + Proxy.carriageReturn + Proxy.carriageReturn).getBytes(StandardCharsets.ISO_8859_1));
+                } else {
+                    out.write(recorded.get(Math.floorMod(next.get(key).getAndIncrement(), recorded.size())));
+                }
+                out.flush();
+            } catch (IOException e) {
+                // the proxy hung up
+            }
+        }
+
+        /**
+         * Reads one header line as ISO-8859-1, without its line ending. Bytes
+         * after the line are left in the stream for the body.
+         *
+         * @param in the stream from the proxy
+         * @return the line, or null at the end of the stream
+         * @throws IOException thrown by read()
+         */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n')
+                line.append((char) b);
+            if (b == -1 && line.length() == 0)
+                return null;
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+                line.setLength(line.length() - 1);
+            return line.toString();
+        }
+
+        private static void skipBody(InputStream in, String header) throws IOException {
+            byte[] buffer = new byte[8192];
+            if (Proxy.isChunked(header)) {
+                InputStream chunks = new ChunkedInputStream(in);
+                while (chunks.read(buffer) != -1) {
+                    // discard
+                }
+                return;
+            }
+            long remaining = Proxy.requestContentLength(header);
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1)
+                remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * TunnelEvent
+ * @author Andrew Kulpa & Darren Wolbers
+ * Flight Recorder event covering a CONNECT tunnel from its opening until
+ * both directions have closed.
+ */
+package spiderproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("spiderproxy.Tunnel")
+@Label("Tunnel Session")
+@Description("A CONNECT tunnel, from its 200 response until it closes")
+@Category({"SpiderProxy", "Proxy"})
+@Threshold("0 ms")
+@StackTrace(false)
+public class TunnelEvent extends jdk.jfr.Event {
+    @Label("Origin")
+    @Description("Address and port of the origin")
+    public String origin;
+
+    @Label("Bytes From Client")
+    @DataAmount
+    public long bytesUp;
+
+    @Label("Bytes From Origin")
+    @DataAmount
+    public long bytesDown;
+}
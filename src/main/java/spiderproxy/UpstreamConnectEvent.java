@@ -0,0 +1,44 @@
+/**
+ * UpstreamConnectEvent
+ * @author Andrew Kulpa & Darren Wolbers
+ * Flight Recorder event covering the resolution of and connection to an
+ * origin.
+ */
+package spiderproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+@Name("spiderproxy.UpstreamConnect")
+@Label("Upstream Connect")
+@Description("Resolving an origin and connecting to one of its addresses")
+@Category({"SpiderProxy", "Proxy"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class UpstreamConnectEvent extends jdk.jfr.Event {
+    @Label("Host")
+    public String host;
+
+    @Label("Port")
+    public int port;
+
+    @Label("Address")
+    @Description("The address connected to, if any")
+    public String address;
+
+    @Label("Addresses")
+    @Description("How many addresses the host resolved to")
+    public int addresses;
+
+    @Label("DNS Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long dnsNanos;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,134 @@
+package spiderproxy;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+
+
+public class AdmissionControllerTest {
+
+    public AdmissionControllerTest() {}
+
+    /**
+     * Tests:
+     *    Requests over the limit wait, then are refused when no slot frees up
+     *    A slot released while waiting admits the queued request
+     *    Internal requests have their own lane
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testLimitQueueAndInternalLane() throws Exception{
+        AdmissionController controller = new AdmissionController(2, 2, 2);
+        AdmissionController.Permit first = controller.acquire(false);
+        AdmissionController.Permit second = controller.acquire(false);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(controller.acquire(false));
+        assertNotNull(controller.acquire(true));
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {}
+            first.abandon();
+        }).start();
+        assertNotNull(controller.acquire(false));
+        assertTrue(controller.statsJson().contains("\"rejectedTimeout\":1"));
+        assertTrue(controller.statsJson().contains("\"queuedTotal\":2"));
+    }
+
+    /**
+     * Tests:
+     *    The limit grows while saturated requests stay fast
+     *    The limit shrinks when latency rises well above its long-run average
+     */
+    @org.junit.Test
+    public void testGradient(){
+        AdmissionController controller = new AdmissionController(20, 4, 200);
+        synchronized (controller) {
+            for(int i = 0; i < 50; i++){
+                controller.update(10000000, 20);
+            }
+        }
+        int grown = controller.limit();
+        assertTrue(grown > 20);
+        synchronized (controller) {
+            for(int i = 0; i < 50; i++){
+                controller.update(100000000, grown);
+            }
+        }
+        assertTrue(controller.limit() < grown);
+    }
+
+    /**
+     * Tests:
+     *    A saturated proxy answers 503 with Retry-After instead of contacting the origin
+     *    The internal pages stay reachable meanwhile
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyRefusesWhenSaturated() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/busy", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "busy");
+            AdmissionController controller = AdmissionController.shared();
+            List<AdmissionController.Permit> held = new ArrayList<>();
+            try {
+                for(int i = controller.limit(); i > 0; i--){
+                    held.add(controller.acquire(false));
+                }
+                String refused = proxy.get(origin.url("/busy"), "");
+                assertTrue(refused.startsWith("HTTP/1.1 503"));
+                assertTrue(refused.contains("Retry-After: "));
+                assertEquals(0, origin.hits("/busy"));
+                String stats = proxy.get("http://127.0.0.1:" + proxy.port() + "/api/stats", "");
+                assertTrue(stats.startsWith("HTTP/1.1 200"));
+                assertTrue(stats.contains("\"admission\""));
+            } finally {
+                for(AdmissionController.Permit permit : held){
+                    permit.abandon();
+                }
+            }
+            assertTrue(proxy.get(origin.url("/busy"), "").endsWith("busy"));
+        }
+    }
+
+    /**
+     * Tests:
+     *    More change feed followers than the internal lane allows are all served
+     *    The internal pages stay reachable while they follow
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFollowersDoNotHoldInternalPermits() throws Exception{
+        try (LocalProxy proxy = new LocalProxy()) {
+            List<Socket> followers = new ArrayList<>();
+            try {
+                for(int i = 0; i <= AdmissionController.internalLimit; i++){
+                    Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port());
+                    followers.add(socket);
+                    socket.setSoTimeout(10000);
+                    socket.getOutputStream().write(("GET /api/changes?follow=1 HTTP/1.1\r\nHost: 127.0.0.1:" + proxy.port() + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    InputStream in = socket.getInputStream();
+                    byte[] status = new byte[12];
+                    for(int n = 0; n < status.length; ){
+                        int read = in.read(status, n, status.length - n);
+                        assertTrue(read > 0);
+                        n += read;
+                    }
+                    assertEquals("HTTP/1.1 200", new String(status, StandardCharsets.ISO_8859_1));
+                }
+                String stats = proxy.get("http://127.0.0.1:" + proxy.port() + "/api/stats", "");
+                assertTrue(stats.startsWith("HTTP/1.1 200"));
+            } finally {
+                for(Socket socket : followers){
+                    socket.close();
+                }
+            }
+        }
+    }
+}
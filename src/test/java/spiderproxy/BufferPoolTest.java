@@ -0,0 +1,133 @@
+package spiderproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+
+public class BufferPoolTest {
+
+    public BufferPoolTest() {}
+
+    @Before
+    public void setUp() {
+        BufferPool.leakDetection = true;
+    }
+
+    @After
+    public void tearDown() {
+        BufferPool.leakDetection = false;
+    }
+
+    /**
+     * Tests:
+     *    Capacities round up to power-of-two size classes
+     *    A released buffer is handed out again to the same thread
+     *    Growing keeps the contents and returns the smaller buffer
+     *    Releasing twice fails
+     */
+    @org.junit.Test
+    public void testReuseAndGrowth(){
+        BufferPool pool = new BufferPool(false);
+        BufferPool.Buffer first = pool.acquire(600);
+        assertEquals(1024, first.capacity());
+        byte[] array = first.array();
+        first.release();
+        BufferPool.Buffer second = pool.acquire(1000);
+        assertSame(array, second.array());
+
+        byte[] data = new byte[3000];
+        data[2999] = 42;
+        second.append(data, 0, 3000);
+        assertEquals(4096, second.capacity());
+        assertEquals(42, second.array()[2999]);
+        second.release();
+        assertSame(array, pool.acquire(1024).array());
+        try {
+            second.release();
+            fail("double release");
+        } catch (IllegalStateException e) {}
+        assertTrue(pool.statsJson().contains("\"threadCacheHits\":2"));
+    }
+
+    /**
+     * Tests:
+     *    Buffers that are never released are reported with where they were acquired
+     *    A thread's cached buffers are shared once it hands them back
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testLeaksAndThreadCache() throws Exception{
+        BufferPool pool = new BufferPool(true);
+        BufferPool.Buffer leaked = pool.acquire(100);
+        assertEquals(1, pool.outstanding());
+        assertEquals(1, pool.leaks().size());
+        assertTrue(pool.leaks().get(0).contains("testLeaksAndThreadCache"));
+        leaked.release();
+        assertTrue(pool.leaks().isEmpty());
+        pool.releaseThreadCache();
+
+        Thread worker = new Thread(() -> {
+            pool.acquire(100).release();
+            pool.releaseThreadCache();
+        });
+        worker.start();
+        worker.join();
+        pool.acquire(100).release();
+        assertTrue(pool.statsJson().contains("\"sharedHits\":2"));
+        assertTrue(pool.statsJson().contains("\"allocations\":1,"));
+    }
+
+    /**
+     * Tests:
+     *    Streams are read to the end and exactly, direct buffers included
+     *    Decompressor decodes the used part of a larger pooled array
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testStreamsAndDecompressor() throws Exception{
+        byte[] text = "hello pooled world".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(zipped)) {
+            gzip.write(text);
+        }
+        BufferPool pool = new BufferPool(true);
+        try (BufferPool.Buffer buffer = pool.acquire(8)) {
+            buffer.readFrom(new ByteArrayInputStream(zipped.toByteArray()), 1 << 20);
+            assertEquals(zipped.size(), buffer.length());
+            byte[] padded = new byte[buffer.length() + 100];
+            buffer.byteBuffer().get(padded, 0, buffer.length());
+            assertEquals("hello pooled world", Decompressor.decompress(padded, buffer.length(), "gzip"));
+        }
+        try (BufferPool.Buffer buffer = pool.acquire(4)) {
+            buffer.readFully(new ByteArrayInputStream(text), 5);
+            assertEquals("hello", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+            buffer.readFully(new ByteArrayInputStream(text), text.length + 1);
+            fail("stream too short");
+        } catch (IOException e) {}
+        assertEquals(0, pool.outstanding());
+    }
+
+    /**
+     * Tests:
+     *    Requests relayed through the proxy return every buffer they borrow
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyReleasesBuffers() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/plain", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "plain body");
+            origin.on("/chunked", (requestLine, header, out) -> out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            int before = BufferPool.heap().outstanding();
+            assertTrue(proxy.get(origin.url("/plain"), "").endsWith("plain body"));
+            assertTrue(proxy.get(origin.url("/chunked"), "").contains("hello world"));
+            assertEquals(before, BufferPool.heap().outstanding());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package spiderproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class ChangeFeedTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ChangeFeedTest() {}
+    
+    @After
+    public void tearDown() {
+        ChangeFeed.indexInterval = 1024;
+    }
+
+    /**
+     * Tests:
+     *    Sequence numbers are assigned in order starting at 1
+     *    Recent changes come from the ring, older ones from the log
+     *    A cursor resumes exactly after the last change seen
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testRingAndLogReads() throws IOException{
+        ChangeFeed.indexInterval = 4;
+        ChangeFeed feed = new ChangeFeed(new File(folder.getRoot(), "changes.log"), 8);
+        for(int i = 1; i <= 30; i++){
+            assertEquals(i, feed.append("http://example.com/" + i));
+        }
+        List<ChangeFeed.Change> recent = feed.read(25, 100);
+        assertEquals(5, recent.size());
+        assertEquals(26, recent.get(0).getSeq());
+
+        List<ChangeFeed.Change> old = feed.read(2, 5);
+        assertEquals(5, old.size());
+        assertEquals(3, old.get(0).getSeq());
+        assertEquals("http://example.com/7", old.get(4).getUrl());
+
+        List<ChangeFeed.Change> all = feed.read(0, 100);
+        assertEquals(30, all.size());
+        assertEquals(30, all.get(29).getSeq());
+    }
+
+    /**
+     * Tests:
+     *    Reopening the log restores the sequence counter and recent changes
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testReplay() throws IOException{
+        File log = new File(folder.getRoot(), "changes.log");
+        ChangeFeed feed = new ChangeFeed(log, 8);
+        for(int i = 1; i <= 12; i++){
+            feed.append("http://example.com/" + i);
+        }
+        ChangeFeed reopened = new ChangeFeed(log, 8);
+        assertEquals(12, reopened.latest());
+        assertEquals(13, reopened.append("http://example.com/13"));
+        assertEquals("http://example.com/1", reopened.read(0, 1).get(0).getUrl());
+        assertEquals("http://example.com/13", reopened.read(12, 1).get(0).getUrl());
+    }
+
+    /**
+     * Tests:
+     *    A long-poll returns as soon as a change arrives
+     *    A long-poll with nothing new times out
+     * @throws java.lang.Exception
+     */
+    @org.junit.Test
+    public void testAwait() throws Exception{
+        ChangeFeed feed = new ChangeFeed(new File(folder.getRoot(), "changes.log"), 8);
+        assertFalse(feed.await(0, 50));
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                feed.append("http://example.com/late");
+            } catch (InterruptedException | IOException e) {}
+        }).start();
+        long start = System.currentTimeMillis();
+        assertTrue(feed.await(0, 5000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+     * Tests:
+     *    A follower that hangs up ends its followed feed without an error
+     *    A plain read still reports the failed write
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testFollowerDisconnect() throws IOException{
+        ChangeFeed feed = new ChangeFeed(new File(folder.getRoot(), "changes.log"), 8);
+        feed.append("http://example.com/1");
+        Writer hungUp = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("Broken pipe");
+            }
+            @Override
+            public void close() {}
+        };
+        InternalAPI.streamChanges(hungUp, feed, 0, 100, 0, true);
+        try {
+            InternalAPI.streamChanges(hungUp, feed, 0, 100, 0, false);
+            fail("write failure was swallowed");
+        } catch (IOException e) {
+            assertEquals("Broken pipe", e.getMessage());
+        }
+    }
+}
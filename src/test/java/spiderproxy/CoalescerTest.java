@@ -0,0 +1,241 @@
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import static org.junit.Assert.*;
+
+
+public class CoalescerTest {
+    private static StubOrigin origin;
+    private static LocalProxy proxy;
+
+    public CoalescerTest() {}
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        origin = new StubOrigin();
+        proxy = new LocalProxy();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        proxy.close();
+        origin.close();
+    }
+
+    /**
+     * Tests:
+     *    Requests differing in Accept-Encoding get different keys
+     *    Requests with cookies, credentials, ranges or validators are not coalesced
+     */
+    @org.junit.Test
+    public void testKey(){
+        String plain = Coalescer.key("GET", "http://a/", "Accept: */*\r\n");
+        assertNotNull(plain);
+        assertEquals(plain, Coalescer.key("GET", "http://a/", "Accept: */*\r\nUser-Agent: x\r\n"));
+        assertNotEquals(plain, Coalescer.key("GET", "http://a/", "Accept: */*\r\nAccept-Encoding: gzip\r\n"));
+        assertNull(Coalescer.key("POST", "http://a/", ""));
+        assertNull(Coalescer.key("GET", "http://a/", "Cookie: a=b\r\n"));
+        assertNull(Coalescer.key("GET", "http://a/", "Authorization: Basic x\r\n"));
+        assertNull(Coalescer.key("GET", "http://a/", "Range: bytes=0-1\r\n"));
+        assertNull(Coalescer.key("GET", "http://a/", "If-None-Match: \"v\"\r\n"));
+    }
+
+    /**
+     * Tests:
+     *    Concurrent identical requests cause one origin fetch
+     *    Every client gets the complete response, streamed while it arrives
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testConcurrentRequestsShareOneFetch() throws Exception{
+        byte[] body = new byte[100000];
+        for(int i = 0; i < body.length; i++){
+            body[i] = (byte) ('a' + i % 26);
+        }
+        origin.on("/slow", (requestLine, header, out) -> {
+            byte[] response = StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-cache", body);
+            out.write(response, 0, 1000);
+            out.flush();
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {}
+            out.write(response, 1000, response.length - 1000);
+        });
+        int clients = 10;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<String>> responses = new ArrayList<>();
+        for(int i = 0; i < clients; i++){
+            responses.add(pool.submit(() -> proxy.get(origin.url("/slow"), "Accept: */*\r\n")));
+        }
+        String expected = new String(body, StandardCharsets.ISO_8859_1);
+        for(Future<String> response : responses){
+            String text = response.get();
+            assertTrue(text.startsWith("HTTP/1.1 200"));
+            assertTrue(text.endsWith(expected));
+        }
+        pool.shutdown();
+        assertEquals(1, origin.hits("/slow"));
+        assertEquals(0, Coalescer.shared().inFlight());
+        assertTrue(Coalescer.shared().statsJson().contains("\"followers\":"));
+    }
+
+    /**
+     * Tests:
+     *    A flight past maxFlightBytes with no followers stops holding its bytes
+     *    A follower attached before then still gets every byte
+     *    Once the flight is closed only bytes a follower has not read are kept
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFlightKeepsOnlyUnreadBytes() throws Exception{
+        int maxFlightBytes = Coalescer.maxFlightBytes;
+        Coalescer.maxFlightBytes = 1000;
+        try {
+            ByteArrayOutputStream leader = new ByteArrayOutputStream();
+            Coalescer.Flight alone = Coalescer.shared().lead("alone", "");
+            OutputStream tee = alone.tee(leader);
+            tee.write("HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            tee.write(new byte[581]);
+            assertEquals(600, alone.buffered());
+            tee.write(new byte[600]);
+            tee.write(new byte[600]);
+            assertEquals(0, alone.buffered());
+            alone.finish();
+            assertEquals(1800, leader.size());
+
+            Coalescer.Flight flight = Coalescer.shared().lead("followed", "");
+            tee = flight.tee(new ByteArrayOutputStream());
+            tee.write("HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            tee.write(new byte[481]);
+            ByteArrayOutputStream follower = new ByteArrayOutputStream();
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            Future<Boolean> followed = pool.submit(() -> Coalescer.shared().follow("followed", follower));
+            while (!flight.hasFollowers())
+                Thread.sleep(5);
+            for (int i = 0; i < 10; i++)
+                tee.write(new byte[500]);
+            assertEquals(0, Coalescer.shared().inFlight());
+            flight.finish();
+            assertTrue(followed.get());
+            pool.shutdown();
+            assertEquals(5500, follower.size());
+            assertTrue(follower.toString("ISO-8859-1").startsWith("HTTP/1.1 200 OK"));
+            assertEquals(0, flight.buffered());
+        } finally {
+            Coalescer.maxFlightBytes = maxFlightBytes;
+        }
+    }
+
+    /**
+     * Tests:
+     *    A response that sets a cookie or is private is not handed to followers
+     *    Each of those clients gets its own fetch, and its own cookie
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testPersonalResponsesAreNotShared() throws Exception{
+        AtomicInteger served = new AtomicInteger();
+        for(String path : new String[] {"/cookie", "/private"}){
+            String personal = path.equals("/cookie") ? "Set-Cookie: session=" : "Cache-Control: private\r\nX-Session: ";
+            origin.on(path, (requestLine, header, out) -> {
+                byte[] response = StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n" + personal + served.incrementAndGet(), "mine".getBytes(StandardCharsets.UTF_8));
+                out.write(response, 0, 20);
+                out.flush();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {}
+                out.write(response, 20, response.length - 20);
+            });
+            int clients = 5;
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            List<Future<String>> responses = new ArrayList<>();
+            for(int i = 0; i < clients; i++){
+                responses.add(pool.submit(() -> proxy.get(origin.url(path), "Accept: */*\r\n")));
+            }
+            Set<String> sessions = new HashSet<>();
+            for(Future<String> response : responses){
+                String text = response.get();
+                assertTrue(text.startsWith("HTTP/1.1 200"));
+                assertTrue(text.endsWith("mine"));
+                sessions.add(text.replaceFirst("(?s).*(?:session=|X-Session: )(\\d+).*", "$1"));
+            }
+            pool.shutdown();
+            assertEquals(clients, origin.hits(path));
+            assertEquals(clients, sessions.size());
+        }
+        assertEquals(0, Coalescer.shared().inFlight());
+    }
+
+    /**
+     * Tests:
+     *    The bytes a flight holds are reserved against the memory budget
+     *    When the budget refuses, the flight stops taking followers and cuts off a lagging one
+     *    Everything reserved is released once the flight is over
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFlightReservesMemory() throws Exception{
+        MemoryBudget budget = MemoryBudget.shared();
+        long before = budget.used();
+        Coalescer.Flight flight = Coalescer.shared().lead("budgeted", "");
+        OutputStream tee = flight.tee(new ByteArrayOutputStream());
+        tee.write("HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        tee.write(new byte[981]);
+        assertEquals(before + 1000, budget.used());
+
+        CountDownLatch stalled = new CountDownLatch(1);
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int count) throws IOException {
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Boolean> followed = pool.submit(() -> Coalescer.shared().follow("budgeted", slow));
+        while (!flight.hasFollowers())
+            Thread.sleep(5);
+        MemoryBudget.Reservation hog = budget.tryReserve((long) (budget.limit() * MemoryBudget.bufferFraction) - budget.used(), MemoryBudget.Tier.RELAY);
+        try {
+            tee.write(new byte[500]);
+            assertEquals(0, Coalescer.shared().inFlight());
+            assertFalse(flight.hasFollowers());
+            assertEquals(0, flight.buffered());
+        } finally {
+            hog.release();
+            stalled.countDown();
+        }
+        try {
+            followed.get();
+            fail("the follower was cut off");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        pool.shutdown();
+        flight.finish();
+        assertEquals(before, budget.used());
+    }
+}
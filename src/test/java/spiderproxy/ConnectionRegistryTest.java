@@ -0,0 +1,94 @@
+package spiderproxy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+
+public class ConnectionRegistryTest {
+
+    public ConnectionRegistryTest() {}
+
+    /**
+     * Tests:
+     *    A request held up by its origin is listed as awaiting a response
+     *    The entry names the client, method, host and URL, and counts the request's bytes
+     *    /debug/connections lists it as JSON and as HTML, alongside the page's own request
+     *    The entry is gone once the exchange is over
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testSlowRequestIsListed() throws Exception{
+        CountDownLatch release = new CountDownLatch(1);
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            byte[] response = StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "finally".getBytes());
+            origin.on("/slow", (requestLine, header, out) -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.write(response);
+            });
+            String url = origin.url("/slow");
+            String[] body = new String[1];
+            Thread client = new Thread(() -> {
+                try {
+                    body[0] = proxy.get(url, "");
+                } catch (Exception e) {
+                    body[0] = e.toString();
+                }
+            });
+            client.start();
+
+            ConnectionRegistry.Snapshot slow = awaitEntry(url, ConnectionRegistry.Phase.WAITING);
+            assertNotNull(slow);
+            assertEquals("GET", slow.method);
+            assertEquals("127.0.0.1:" + origin.port(), slow.host);
+            assertTrue(slow.client.startsWith("127.0.0.1:"));
+            assertTrue(slow.bytesIn > 0);
+            assertEquals(0, slow.bytesOut);
+
+            String json = proxy.get("http://127.0.0.1:" + proxy.port() + "/debug/connections?format=json", "");
+            assertTrue(json.contains("Content-Type: application/json"));
+            assertTrue(json.contains("\"url\":\"" + url + "\""));
+            assertTrue(json.contains("\"phase\":\"waiting\""));
+            assertTrue(json.contains("\"phase\":\"internal\""));
+            assertTrue(json.contains("\"waiting\":1"));
+
+            String html = proxy.get("http://127.0.0.1:" + proxy.port() + "/debug/connections", "Accept: text/html\r\n");
+            assertTrue(html.contains("Content-Type: text/html"));
+            assertTrue(html.contains("<td>awaiting response</td>"));
+            assertTrue(html.contains(url));
+
+            release.countDown();
+            client.join(10000);
+            assertTrue(body[0].endsWith("finally"));
+            long end = System.currentTimeMillis() + 5000;
+            while (find(url) != null && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertNull(find(url));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static ConnectionRegistry.Snapshot awaitEntry(String url, ConnectionRegistry.Phase phase) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            ConnectionRegistry.Snapshot entry = find(url);
+            if (entry != null && entry.phase == phase)
+                return entry;
+            Thread.sleep(10);
+        }
+        return null;
+    }
+
+    private static ConnectionRegistry.Snapshot find(String url) {
+        for (ConnectionRegistry.Snapshot entry : ConnectionRegistry.list()) {
+            if (entry.url.equals(url))
+                return entry;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,166 @@
+package spiderproxy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+
+public class DeadlineSchedulerTest {
+    private long headerTimeout;
+    private long idleTimeout;
+    private long totalTimeout;
+    private int heartbeatSeconds;
+
+    public DeadlineSchedulerTest() {}
+
+    @Before
+    public void setUp() {
+        headerTimeout = ConnectionDeadline.headerTimeoutMillis;
+        idleTimeout = ConnectionDeadline.idleTimeoutMillis;
+        totalTimeout = ConnectionDeadline.totalTimeoutMillis;
+        heartbeatSeconds = InternalAPI.followHeartbeatSeconds;
+    }
+
+    @After
+    public void tearDown() {
+        ConnectionDeadline.headerTimeoutMillis = headerTimeout;
+        ConnectionDeadline.idleTimeoutMillis = idleTimeout;
+        ConnectionDeadline.totalTimeoutMillis = totalTimeout;
+        InternalAPI.followHeartbeatSeconds = heartbeatSeconds;
+    }
+
+    /**
+     * Tests:
+     *    Tasks run once their delay has passed, including delays longer than a turn of the wheel
+     *    Cancelled tasks never run
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testWheel() throws Exception{
+        DeadlineScheduler wheel = new DeadlineScheduler(10, 8);
+        CountDownLatch ran = new CountDownLatch(2);
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        long start = System.nanoTime();
+        wheel.schedule(30, ran::countDown);
+        wheel.schedule(200, ran::countDown);
+        DeadlineScheduler.Timeout cancelled = wheel.schedule(50, cancelledRuns::incrementAndGet);
+        assertEquals(3, wheel.pending());
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(0, cancelledRuns.get());
+        assertEquals(0, wheel.pending());
+        assertEquals(2, wheel.fired());
+    }
+
+    /**
+     * Tests:
+     *    A client that never finishes its request header is disconnected
+     *    An origin that never answers is reported to the client as a 504
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testHeaderTimeouts() throws Exception{
+        ConnectionDeadline.headerTimeoutMillis = 300;
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            CountDownLatch release = new CountDownLatch(1);
+            origin.on("/stalled", (requestLine, header, out) -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {}
+            });
+            try (Socket slow = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+                slow.setSoTimeout(5000);
+                OutputStream out = slow.getOutputStream();
+                out.write("GET http://127.0.0.1/ HTTP/1.1\r\nHost: 127".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                InputStream in = slow.getInputStream();
+                long start = System.currentTimeMillis();
+                assertEquals(-1, in.read());
+                assertTrue(System.currentTimeMillis() - start < 4000);
+            }
+            String response = proxy.get(origin.url("/stalled"), "");
+            release.countDown();
+            assertTrue(response.startsWith("HTTP/1.1 504"));
+            String stats = InternalAPI.statsJson();
+            assertFalse(stats.contains("\"header\":0,"));
+        }
+    }
+
+    /**
+     * Tests:
+     *    A body that stops arriving part way is cut off after the idle timeout, closing the client connection
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testIdleTimeout() throws Exception{
+        ConnectionDeadline.idleTimeoutMillis = 300;
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            CountDownLatch release = new CountDownLatch(1);
+            origin.on("/trickle", (requestLine, header, out) -> {
+                out.write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store\r\nContent-Length: 100\r\n\r\npartial".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {}
+            });
+            long start = System.currentTimeMillis();
+            String response = proxy.get(origin.url("/trickle"), "");
+            release.countDown();
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertFalse(ConnectionDeadline.statsJson().contains("\"idle\":0,"));
+        }
+    }
+
+    /**
+     * Tests:
+     *    A followed change feed outlives the total timeout, like a tunnel
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFollowedFeedIsExemptFromTotalTimeout() throws Exception{
+        ConnectionDeadline.totalTimeoutMillis = 300;
+        InternalAPI.followHeartbeatSeconds = 1;
+        try (LocalProxy proxy = new LocalProxy();
+             Socket follower = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+            follower.setSoTimeout(5000);
+            follower.getOutputStream().write(("GET /api/changes?follow=1 HTTP/1.1\r\nHost: 127.0.0.1:" + proxy.port() + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = follower.getInputStream();
+            byte[] buffer = new byte[8192];
+            long end = System.currentTimeMillis() + 1500;
+            while (System.currentTimeMillis() < end)
+                assertTrue(in.read(buffer) > 0);
+        }
+    }
+
+    /**
+     * Tests:
+     *    A long-poll that waits longer than the idle timeout is not cut off while it waits
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testLongPollOutlivesIdleTimeout() throws Exception{
+        ConnectionDeadline.idleTimeoutMillis = 300;
+        try (LocalProxy proxy = new LocalProxy();
+             Socket poller = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+            poller.setSoTimeout(5000);
+            long start = System.currentTimeMillis();
+            poller.getOutputStream().write(("GET /api/changes?since=" + Long.MAX_VALUE / 2 + "&wait=1 HTTP/1.1\r\nHost: 127.0.0.1:" + proxy.port() + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(poller.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(System.currentTimeMillis() - start >= 900);
+        }
+    }
+}
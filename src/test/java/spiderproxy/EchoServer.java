@@ -0,0 +1,65 @@
+package spiderproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A TCP echo server, as the target of CONNECT tunnels in load tests. Every
+ * byte received is sent straight back until the client closes.
+ */
+public class EchoServer implements Closeable {
+    private final ServerSocket server;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "EchoServer-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EchoServer() throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    workers.execute(() -> echo(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "EchoServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        workers.shutdownNow();
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the tunnel closed
+        }
+    }
+}
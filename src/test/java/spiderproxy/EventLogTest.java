@@ -0,0 +1,107 @@
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.*;
+
+
+public class EventLogTest {
+
+    public EventLogTest() {}
+
+    /**
+     * Tests:
+     *    Events below a category's level are skipped
+     *    Events are written as JSON lines with their fields escaped
+     *    Sampling keeps one in every N events
+     *    The rate limit caps events per second and reports what it suppressed
+     */
+    @org.junit.Test
+    public void testLevelsSamplingAndRateLimits(){
+        PrintStream previous = EventLog.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        EventLog.flush(1000);
+        EventLog.out = new PrintStream(buffer, true);
+        try {
+            EventLog.configure(EventLog.Category.INTERNAL, EventLog.Level.DEBUG, 1, 0);
+            assertFalse(EventLog.enabled(EventLog.Category.INTERNAL, EventLog.Level.TRACE));
+            EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.TRACE, "hidden");
+            EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.DEBUG, "shown", "header", "GET / HTTP/1.1\r\nHost: \"a\"", "bytes", 12);
+            assertTrue(EventLog.flush(5000));
+            String text = buffer.toString();
+            assertFalse(text.contains("hidden"));
+            assertTrue(text.contains("\"level\":\"DEBUG\",\"category\":\"internal\""));
+            assertTrue(text.contains("\"message\":\"shown\",\"header\":\"GET / HTTP/1.1\\r\\nHost: \\\"a\\\"\",\"bytes\":12}"));
+
+            buffer.reset();
+            EventLog.configure(EventLog.Category.INTERNAL, EventLog.Level.INFO, 4, 0);
+            for(int i = 0; i < 100; i++){
+                EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.INFO, "sampled");
+            }
+            assertTrue(EventLog.flush(5000));
+            assertEquals(25, buffer.toString().split("\"sampled\"", -1).length - 1);
+
+            buffer.reset();
+            EventLog.configure(EventLog.Category.INTERNAL, EventLog.Level.INFO, 1, 10);
+            for(int i = 0; i < 50; i++){
+                EventLog.log(EventLog.Category.INTERNAL, EventLog.Level.INFO, "limited");
+            }
+            assertTrue(EventLog.flush(5000));
+            int limited = buffer.toString().split("\"limited\"", -1).length - 1;
+            // The first events may fall into the end of one second and the start of the next
+            assertTrue(limited >= 10 && limited <= 20);
+            assertTrue(EventLog.statsJson().matches(".*\"rateLimited\":[1-9].*"));
+        } finally {
+            EventLog.configure(EventLog.Category.INTERNAL, EventLog.Level.INFO, 1, 0);
+            EventLog.out = previous;
+        }
+    }
+
+    /**
+     * Tests:
+     *    A disabled category queues nothing
+     *    Events from many threads are all written, in one piece each
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testConcurrentWriters() throws Exception{
+        PrintStream previous = EventLog.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        EventLog.flush(1000);
+        EventLog.out = new PrintStream(buffer, true);
+        try {
+            EventLog.configure(EventLog.Category.DECOMPRESS, EventLog.Level.OFF, 1, 0);
+            String before = EventLog.statsJson();
+            EventLog.log(EventLog.Category.DECOMPRESS, EventLog.Level.ERROR, "off");
+            assertEquals(before, EventLog.statsJson());
+
+            EventLog.configure(EventLog.Category.DECOMPRESS, EventLog.Level.INFO, 1, 0);
+            Thread[] threads = new Thread[8];
+            for(int t = 0; t < threads.length; t++){
+                int id = t;
+                threads[t] = new Thread(() -> {
+                    for(int i = 0; i < 500; i++){
+                        EventLog.log(EventLog.Category.DECOMPRESS, EventLog.Level.INFO, "concurrent", "writer", id, "i", i);
+                    }
+                });
+                threads[t].start();
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            assertTrue(EventLog.flush(5000));
+            String[] lines = buffer.toString(StandardCharsets.UTF_8.name()).split("\n");
+            int count = 0;
+            for(String line : lines){
+                assertTrue(line.startsWith("{\"time\":") && line.trim().endsWith("}"));
+                if(line.contains("\"concurrent\""))
+                    count++;
+            }
+            assertEquals(4000, count);
+        } finally {
+            EventLog.configure(EventLog.Category.DECOMPRESS, EventLog.Level.INFO, 1, 0);
+            EventLog.out = previous;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package spiderproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+
+public class HappyEyeballsTest {
+
+    public HappyEyeballsTest() {}
+
+    @After
+    public void tearDown() {
+        HappyEyeballs.resolver = InetAddress::getAllByName;
+    }
+
+    /**
+     * Tests:
+     *    Address families alternate, starting with the first address's family
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testOrder() throws Exception{
+        InetAddress v6a = InetAddress.getByName("::1");
+        InetAddress v6b = InetAddress.getByName("fe80::1");
+        InetAddress v4a = InetAddress.getByName("127.0.0.1");
+        InetAddress v4b = InetAddress.getByName("127.0.0.2");
+        List<InetAddress> ordered = HappyEyeballs.order(new InetAddress[]{v6a, v6b, v4a, v4b});
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b), ordered);
+        ordered = HappyEyeballs.order(new InetAddress[]{v4a, v4b, v6a});
+        assertEquals(Arrays.asList(v4a, v6a, v4b), ordered);
+    }
+
+    /**
+     * Tests:
+     *    Dead addresses are skipped and the connection lands on a live one
+     *    Every address refusing fails the connect
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testFallsBackAcrossAddresses() throws Exception{
+        InetAddress dead = InetAddress.getByName("127.0.0.2");
+        InetAddress alsoDead = InetAddress.getByName("127.0.0.3");
+        InetAddress live = InetAddress.getByName("127.0.0.4");
+        try (ServerSocket listener = new ServerSocket(0, 50, live)) {
+            HappyEyeballs.resolver = host -> new InetAddress[]{dead, alsoDead, live};
+            long start = System.currentTimeMillis();
+            try (Socket socket = HappyEyeballs.connect("multi.test", listener.getLocalPort(), 5000)) {
+                assertEquals(live, socket.getInetAddress());
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertFalse(HappyEyeballs.statsJson().contains("\"fallbacks\":0,"));
+
+            HappyEyeballs.resolver = host -> new InetAddress[]{dead, alsoDead};
+            try {
+                HappyEyeballs.connect("multi.test", listener.getLocalPort(), 5000).close();
+                fail("nothing listens there");
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Tests:
+     *    The proxy reaches an origin whose first address is dead
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyUsesAllAddresses() throws Exception{
+        InetAddress live = InetAddress.getByName("127.0.0.5");
+        try (StubOrigin origin = new StubOrigin(live); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/multi", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "reached");
+            HappyEyeballs.resolver = host -> host.equals("multi.test")
+                    ? new InetAddress[]{InetAddress.getByName("127.0.0.6"), live}
+                    : InetAddress.getAllByName(host);
+            assertTrue(proxy.get("http://multi.test:" + origin.port() + "/multi", "").endsWith("reached"));
+            assertEquals(1, origin.hits("/multi"));
+        }
+    }
+}
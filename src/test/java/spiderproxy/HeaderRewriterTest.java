@@ -0,0 +1,143 @@
+package spiderproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class HeaderRewriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public HeaderRewriterTest() {}
+
+    /**
+     * Tests:
+     *    The WIU BIG-IP redirect loses the appended http:// URL, on wiu.edu and its subdomains
+     *    The iosart redirect becomes the URL after "http/"
+     *    Headers from other hosts come back as the very same String
+     *    Other fields and the order of lines are kept
+     */
+    @org.junit.Test
+    public void testDefaultRules(){
+        HeaderRewriter rewriter = new HeaderRewriter();
+        for (HeaderRewriter.Rule rule : HeaderRewriter.defaults())
+            rewriter.add(rule);
+
+        String wiu = "HTTP/1.1 302 Found\r\nLocation: https://www.wiu.edu/academics/http://www.wiu.edu/academics/\r\nServer: BigIP\r\n";
+        assertEquals("HTTP/1.1 302 Found\r\nLocation: https://www.wiu.edu/academics/\r\nServer: BigIP\r\n",
+                rewriter.rewriteResponse("www.wiu.edu", wiu));
+        assertEquals("HTTP/1.1 302 Found\r\nLocation: https://www.wiu.edu/academics/\r\nServer: BigIP\r\n",
+                rewriter.rewriteResponse("WIU.edu", wiu));
+        assertSame(wiu, rewriter.rewriteResponse("example.com", wiu));
+        assertSame(wiu, rewriter.rewriteResponse("notwiu.edu", wiu));
+        assertSame(wiu, rewriter.rewriteRequest("www.wiu.edu", wiu));
+
+        String iosart = "HTTP/1.1 301 Moved Permanently\r\nLocation: http://blog.iosart.com/http/blog.iosart.com/archives/\r\n";
+        assertEquals("HTTP/1.1 301 Moved Permanently\r\nLocation: http://blog.iosart.com/archives/\r\n",
+                rewriter.rewriteResponse("blog.iosart.com", iosart));
+
+        String fine = "HTTP/1.1 302 Found\r\nLocation: https://www.wiu.edu/\r\nContent-Location: https://x/http://y\r\n";
+        assertSame(fine, rewriter.rewriteResponse("www.wiu.edu", fine));
+    }
+
+    /**
+     * Tests:
+     *    Rules load from a tab-separated file, skipping blanks and comments
+     *    Exact, domain and any-host rules all apply, in that order
+     *    An empty replacement drops the field
+     *    A bad line is reported with its number and no rule from the file is added
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testRulesFile() throws IOException{
+        File rules = folder.newFile("rules.tsv");
+        Files.write(rules.toPath(), Arrays.asList(
+                "# upgrade one host, then tag everything",
+                "",
+                "request\tapi.example.com\tUser-Agent\t^(.*)$\t$1 exact",
+                "request\t*.example.com\tUser-Agent\t^(.*)$\t$1 domain",
+                "request\t*\tUser-Agent\t^(.*)$\t$1 any",
+                "request\t*\tX-Debug\t.*"), StandardCharsets.UTF_8);
+        HeaderRewriter rewriter = new HeaderRewriter();
+        assertEquals(4, rewriter.load(rules.toPath()));
+
+        String request = "GET http://api.example.com/ HTTP/1.1\r\nUser-Agent: test\r\nX-Debug: 1\r\nAccept: */*\r\n\r\n";
+        assertEquals("GET http://api.example.com/ HTTP/1.1\r\nUser-Agent: test exact domain any\r\nAccept: */*\r\n\r\n",
+                rewriter.rewriteRequest("api.example.com", request));
+        assertEquals("GET http://api.example.com/ HTTP/1.1\r\nUser-Agent: test any\r\nAccept: */*\r\n\r\n",
+                rewriter.rewriteRequest("example.org", request));
+
+        File bad = folder.newFile("bad.tsv");
+        Files.write(bad.toPath(), Arrays.asList("response\t*\tLocation\tx\ty", "response\t*\tLocation\t(unclosed"), StandardCharsets.UTF_8);
+        try {
+            rewriter.load(bad.toPath());
+            fail("a bad expression should not load");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("bad.tsv:2: "));
+        }
+        assertEquals(4, rewriter.rules().size());
+    }
+
+    /**
+     * Tests:
+     *    The proxy rewrites the request it sends and the response it relays by the shared rules
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyAppliesRules() throws Exception{
+        HeaderRewriter.Rule request = new HeaderRewriter.Rule(HeaderRewriter.Direction.REQUEST, "127.0.0.1", "X-Trace", "^off$", "on");
+        HeaderRewriter.Rule response = new HeaderRewriter.Rule(HeaderRewriter.Direction.RESPONSE, "127.0.0.1", "Location", "^http://internal/", "http://127.0.0.1/");
+        HeaderRewriter.shared().add(request);
+        HeaderRewriter.shared().add(response);
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/moved", "HTTP/1.1 302 Found\r\nLocation: http://internal/next\r\nCache-Control: no-store", "");
+            String reply = proxy.get(origin.url("/moved"), "X-Trace: off\r\n");
+            assertTrue(reply.contains("Location: http://127.0.0.1/next\r\n"));
+            assertEquals("on", Proxy.headerField(origin.lastHeader("/moved"), "X-Trace"));
+        } finally {
+            HeaderRewriter.shared().remove(request);
+            HeaderRewriter.shared().remove(response);
+        }
+    }
+
+    /**
+     * Tests:
+     *    A background refresh sends its conditional request and stores its response rewritten by the same rules
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testBackgroundRefreshAppliesRules() throws Exception{
+        HeaderRewriter.Rule request = new HeaderRewriter.Rule(HeaderRewriter.Direction.REQUEST, "127.0.0.1", "X-Trace", "^off$", "on");
+        HeaderRewriter.Rule response = new HeaderRewriter.Rule(HeaderRewriter.Direction.RESPONSE, "127.0.0.1", "X-Where", "^internal$", "rewritten");
+        HeaderRewriter.shared().add(request);
+        HeaderRewriter.shared().add(response);
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.on("/refreshed", (requestLine, header, out) -> {
+                String body = origin.hits("/refreshed") == 1 ? "old" : "new";
+                out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nAge: 5\r\nETag: \"" + body + "\"\r\nX-Where: internal"
+                        + "\r\nCache-Control: max-age=1, stale-while-revalidate=60", body.getBytes(StandardCharsets.UTF_8)));
+            });
+            assertTrue(proxy.get(origin.url("/refreshed"), "X-Trace: off\r\n").endsWith("old"));
+            assertTrue(proxy.get(origin.url("/refreshed"), "X-Trace: off\r\n").endsWith("old"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (origin.hits("/refreshed") < 2 || Revalidator.isPending(origin.url("/refreshed"))) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+            assertEquals("on", Proxy.headerField(origin.lastHeader("/refreshed"), "X-Trace"));
+            String reply = proxy.get(origin.url("/refreshed"), "X-Trace: off\r\n");
+            assertTrue(reply.endsWith("new"));
+            assertTrue(reply.contains("X-Where: rewritten\r\n"));
+        } finally {
+            HeaderRewriter.shared().remove(request);
+            HeaderRewriter.shared().remove(response);
+        }
+    }
+}
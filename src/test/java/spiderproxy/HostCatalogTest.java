@@ -0,0 +1,201 @@
+package spiderproxy;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class HostCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String previousPath;
+
+    public HostCatalogTest() {}
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // The spider from earlier tests must not write into this test's directory
+        assertTrue(SpiderScheduler.shared().awaitIdle(60000));
+        previousPath = DataAccessor.path;
+        DataAccessor.path = folder.getRoot().getPath() + File.separator;
+        HostCatalog.reset();
+    }
+
+    @After
+    public void tearDown() {
+        DataAccessor.path = previousPath;
+        HostCatalog.reset();
+    }
+
+    /**
+     * Tests:
+     *    Each URL inserted is counted once, and a repeated insert not at all
+     *    The size on disk is that of the sitemap
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testInsertsAreCounted() throws Exception{
+        assertNull(HostCatalog.get("count.test"));
+        assertTrue(BusinessLogic.checkAndInsert("http://count.test/a", "count.test"));
+        assertTrue(BusinessLogic.checkAndInsert("http://count.test/b", "count.test"));
+        assertFalse(BusinessLogic.checkAndInsert("http://count.test/a", "count.test"));
+        assertTrue(BusinessLogic.checkAndInsert("http://count.test/c", "count.test"));
+        HostCatalog.HostEntry entry = HostCatalog.get("count.test");
+        assertEquals(3, entry.getUrlCount());
+        assertEquals(DataAccessor.getXMLFile("count.test").length(), entry.getSizeOnDisk());
+        assertTrue(entry.getFirstSeen() <= entry.getLastUpdated());
+    }
+
+    /**
+     * Tests:
+     *    After a restart, inserting into a host already on disk keeps its firstSeen
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testReopenedHostKeepsFirstSeen() throws Exception{
+        assertTrue(BusinessLogic.checkAndInsert("http://known.test/a", "known.test"));
+        HostCatalog.reset();
+        long firstSeen = HostCatalog.get("known.test").getFirstSeen();
+        HostCatalog.reset();
+        Thread.sleep(50);
+        assertTrue(BusinessLogic.checkAndInsert("http://known.test/b", "known.test"));
+        HostCatalog.HostEntry entry = HostCatalog.get("known.test");
+        assertEquals(firstSeen, entry.getFirstSeen());
+        assertEquals(2, entry.getUrlCount());
+        assertTrue(entry.getLastUpdated() > firstSeen);
+    }
+
+    /**
+     * Tests:
+     *    Inserts racing each other and re-reads of the sitemap leave the exact count
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testConcurrentInsertsAreCountedOnce() throws Exception{
+        HostCatalog.size();
+        File sitemap = DataAccessor.getXMLFile("race.test");
+        AtomicBoolean inserting = new AtomicBoolean(true);
+        Thread rereader = new Thread(() -> {
+            while (inserting.get()) {
+                HostCatalog.refreshFromDisk(sitemap);
+            }
+        });
+        rereader.start();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> inserts = new ArrayList<>();
+        for(int i = 0; i < 4; i++){
+            for(int page = 0; page < 100; page++){
+                String url = "http://race.test/" + page;
+                inserts.add(pool.submit(() -> BusinessLogic.checkAndInsert(url, "race.test")));
+            }
+        }
+        int added = 0;
+        for(Future<Boolean> insert : inserts){
+            added += insert.get() ? 1 : 0;
+        }
+        pool.shutdown();
+        inserting.set(false);
+        rereader.join();
+        assertEquals(100, added);
+        assertEquals(100, HostCatalog.get("race.test").getUrlCount());
+    }
+
+    /**
+     * Tests:
+     *    A sitemap copied into the map directory by hand is picked up and counted
+     *    Deleting it removes the host
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testWatcherFollowsTheDirectory() throws Exception{
+        HostCatalog.size();
+        File scratch = folder.newFolder("elsewhere");
+        String path = DataAccessor.path;
+        DataAccessor.path = scratch.getPath() + File.separator;
+        try {
+            BusinessLogic.checkAndInsert("http://copied.test/1", "copied.test");
+            BusinessLogic.checkAndInsert("http://copied.test/2", "copied.test");
+        } finally {
+            DataAccessor.path = path;
+        }
+        File copied = new File(folder.getRoot(), "copied.test.xml");
+        Files.copy(new File(scratch, "copied.test.xml").toPath(), copied.toPath());
+        assertTrue(eventually(() -> HostCatalog.get("copied.test") != null && HostCatalog.get("copied.test").getUrlCount() == 2));
+        assertTrue(copied.delete());
+        assertTrue(eventually(() -> HostCatalog.get("copied.test") == null));
+    }
+
+    /**
+     * Tests:
+     *    Hosts sort by each column, with ties broken by hostname, in either order
+     *    The filter is a case-insensitive hostname substring
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testSortAndFilter() throws Exception{
+        for(int i = 0; i < 3; i++){
+            BusinessLogic.checkAndInsert("http://b.sort.test/" + i, "b.sort.test");
+        }
+        BusinessLogic.checkAndInsert("http://a.sort.test/0", "a.sort.test");
+        BusinessLogic.checkAndInsert("http://c.sort.test/0", "c.sort.test");
+        BusinessLogic.checkAndInsert("http://other.test/0", "other.test");
+
+        assertEquals("[a.sort.test, b.sort.test, c.sort.test]", names(HostCatalog.list("host", false, "SORT")));
+        assertEquals("[c.sort.test, b.sort.test, a.sort.test]", names(HostCatalog.list("host", true, "sort")));
+        assertEquals("[a.sort.test, c.sort.test, b.sort.test]", names(HostCatalog.list("urls", false, "sort")));
+        assertEquals("[b.sort.test, c.sort.test, a.sort.test]", names(HostCatalog.list("urls", true, "sort")));
+        assertEquals("[a.sort.test, b.sort.test, c.sort.test]", names(HostCatalog.list("bogus", false, "sort")));
+        assertEquals(4, HostCatalog.list(null, false, null).size());
+        assertTrue(HostCatalog.list("host", false, "missing").isEmpty());
+    }
+
+    /**
+     * Tests:
+     *    The homepage table lists catalog hosts with their counts
+     *    The filter and sort parameters are escaped where they are echoed back
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testHomepageEscapesParameters() throws Exception{
+        BusinessLogic.checkAndInsert("http://shown.test/0", "shown.test");
+        String page = BusinessLogic.buildHomepageSitemapListTable("host", "asc", "shown");
+        assertTrue(page.contains(">shown.test</a>"));
+        assertTrue(page.contains("<td>1</td>"));
+
+        String hostile = BusinessLogic.buildHomepageSitemapListTable("\"><script>x()</script>", "asc", "\"><script>y()</script>");
+        assertFalse(hostile.contains("<script>x()"));
+        assertFalse(hostile.contains("<script>y()"));
+        assertTrue(hostile.contains("&lt;script&gt;y()"));
+    }
+
+    private static String names(List<HostCatalog.HostEntry> entries) {
+        List<String> names = new ArrayList<>();
+        for(HostCatalog.HostEntry entry : entries){
+            names.add(entry.getHostname());
+        }
+        return names.toString();
+    }
+
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end) {
+            if (condition.getAsBoolean())
+                return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+package spiderproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class InternalAPITest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String previousPath;
+
+    public InternalAPITest() {}
+
+    @Before
+    public void setUp() throws InterruptedException {
+        assertTrue(SpiderScheduler.shared().awaitIdle(60000));
+        previousPath = DataAccessor.path;
+        DataAccessor.path = folder.getRoot().getPath() + File.separator;
+        HostCatalog.reset();
+    }
+
+    @After
+    public void tearDown() {
+        DataAccessor.path = previousPath;
+        HostCatalog.reset();
+    }
+
+    /**
+     * Tests:
+     *    Every host is one JSON object on its own line, ending in a newline
+     *    Each line's cursor resumes the listing after that host
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testHostsAreOneObjectPerLine() throws Exception{
+        for(String host : new String[] {"c.api.test", "a.api.test", "b.api.test"}){
+            BusinessLogic.checkAndInsert("http://" + host + "/", host);
+        }
+        BusinessLogic.checkAndInsert("http://b.api.test/two", "b.api.test");
+
+        String[] response = request("/api/hosts?limit=2", "");
+        assertTrue(response[0].startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response[0].contains("Content-Type: application/x-ndjson; charset=utf-8\r\n"));
+        assertFalse(response[0].contains("Content-Encoding"));
+        assertTrue(response[1].endsWith("\n"));
+        String[] lines = response[1].split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"host\":\"a.api.test\",\"urls\":1,"));
+        assertTrue(lines[0].endsWith(",\"cursor\":\"a.api.test\"}"));
+        assertTrue(lines[1].startsWith("{\"host\":\"b.api.test\",\"urls\":2,"));
+
+        lines = request("/api/hosts?cursor=b.api.test", "")[1].split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].startsWith("{\"host\":\"c.api.test\","));
+    }
+
+    /**
+     * Tests:
+     *    A host's URLs stream one per line in sitemap order, with positional cursors
+     *    Strings are JSON-escaped, so a URL cannot break the framing
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testUrlsAreOneObjectPerLine() throws Exception{
+        BusinessLogic.checkAndInsert("http://urls.api.test/1", "urls.api.test");
+        BusinessLogic.checkAndInsert("http://urls.api.test/2?q=\"x\"", "urls.api.test");
+        BusinessLogic.checkAndInsert("http://urls.api.test/3", "urls.api.test");
+
+        String body = request("/api/hosts/urls.api.test/urls", "")[1];
+        assertEquals("{\"url\":\"http://urls.api.test/1\",\"cursor\":\"1\"}\n"
+                   + "{\"url\":\"http://urls.api.test/2?q=\\\"x\\\"\",\"cursor\":\"2\"}\n"
+                   + "{\"url\":\"http://urls.api.test/3\",\"cursor\":\"3\"}\n", body);
+        assertEquals("{\"url\":\"http://urls.api.test/3\",\"cursor\":\"3\"}\n",
+                request("/api/hosts/urls.api.test/urls?cursor=2", "")[1]);
+    }
+
+    /**
+     * Tests:
+     *    Accept-Encoding: gzip compresses the stream and marks it as varying
+     *    The decompressed lines are the same as the uncompressed ones
+     *    q=0 turns gzip off
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testGzipFollowsAcceptEncoding() throws Exception{
+        for(int i = 0; i < 50; i++){
+            BusinessLogic.checkAndInsert("http://gzip.api.test/" + i, "gzip.api.test");
+        }
+        String plain = request("/api/hosts/gzip.api.test/urls", "")[1];
+
+        byte[][] gzipped = requestBytes("/api/hosts/gzip.api.test/urls", "Accept-Encoding: deflate, gzip\r\n");
+        String header = new String(gzipped[0], StandardCharsets.US_ASCII);
+        assertTrue(header.contains("Content-Encoding: gzip\r\n"));
+        assertTrue(header.contains("Vary: Accept-Encoding\r\n"));
+        assertTrue(gzipped[1].length < plain.length());
+        assertEquals(plain, gunzip(gzipped[1]));
+        assertEquals(50, plain.split("\n").length);
+
+        String[] refused = request("/api/hosts/gzip.api.test/urls", "Accept-Encoding: gzip;q=0\r\n");
+        assertFalse(refused[0].contains("Content-Encoding"));
+        assertEquals(plain, refused[1]);
+    }
+
+    /**
+     * Tests:
+     *    An empty store lists no hosts, with an empty body, and in gzip too
+     *    URLs of an unknown host, or of an unsafe name, are a 404
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testEmptyStore() throws Exception{
+        String[] response = request("/api/hosts", "");
+        assertTrue(response[0].startsWith("HTTP/1.1 200 OK\r\n"));
+        assertEquals("", response[1]);
+
+        byte[][] gzipped = requestBytes("/api/hosts", "Accept-Encoding: gzip\r\n");
+        assertEquals("", gunzip(gzipped[1]));
+
+        assertTrue(request("/api/hosts/missing.api.test/urls", "")[0].startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertTrue(request("/api/hosts/..%2Fsecret/urls", "")[0].startsWith("HTTP/1.1 404 Not Found\r\n"));
+    }
+
+    private static String[] request(String path, String headers) throws IOException {
+        byte[][] response = requestBytes(path, headers);
+        return new String[] {new String(response[0], StandardCharsets.US_ASCII), new String(response[1], StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * Sends one request to InternalAPI and splits the response into the header
+     * (including the blank line) and the body.
+     */
+    private static byte[][] requestBytes(String path, String headers) throws IOException {
+        String url = "http://127.0.0.1" + path;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InternalAPI.handle(url, "GET " + url + " HTTP/1.1\r\nHost: 127.0.0.1\r\n" + headers, out);
+        byte[] response = out.toByteArray();
+        for (int i = 3; i < response.length; i++) {
+            if (response[i - 3] == '\r' && response[i - 2] == '\n' && response[i - 1] == '\r' && response[i] == '\n')
+                return new byte[][] {Arrays.copyOf(response, i + 1), Arrays.copyOfRange(response, i + 1, response.length)};
+        }
+        fail("no end of header");
+        return null;
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                plain.write(buffer, 0, read);
+            }
+        }
+        return new String(plain.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+package spiderproxy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import static org.junit.Assert.*;
+
+
+public class JfrEventsTest {
+
+    public JfrEventsTest() {}
+
+    /**
+     * Tests:
+     *    A proxied request is recorded with its method, url, host, kind, status and bytes
+     *    The upstream connect behind it is recorded with the address connected to
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testRequestEvents() throws Exception{
+        Path file = Files.createTempFile("spiderproxy", ".jfr");
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy(); Recording recording = new Recording()) {
+            origin.respond("/recorded", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "recorded");
+            recording.enable("spiderproxy.Request").withThreshold(Duration.ZERO);
+            recording.enable("spiderproxy.UpstreamConnect").withThreshold(Duration.ZERO);
+            recording.start();
+            assertTrue(proxy.get(origin.url("/recorded"), "").endsWith("recorded"));
+            // The event is committed once the connection has been closed
+            Thread.sleep(200);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent request = null;
+            RecordedEvent connect = null;
+            for(RecordedEvent event : events){
+                String name = event.getEventType().getName();
+                if(name.equals("spiderproxy.Request") && origin.url("/recorded").equals(event.getString("url")))
+                    request = event;
+                if(name.equals("spiderproxy.UpstreamConnect") && event.getInt("port") == origin.port())
+                    connect = event;
+            }
+            assertNotNull(request);
+            assertEquals("GET", request.getString("method"));
+            assertEquals("external", request.getString("kind"));
+            assertEquals(200, request.getInt("status"));
+            assertTrue(request.getString("host").startsWith("127.0.0.1"));
+            assertTrue(request.getLong("bytesSent") > "recorded".length());
+            assertNull(request.getString("timeout"));
+            assertNotNull(connect);
+            assertTrue(connect.getBoolean("succeeded"));
+            assertEquals("127.0.0.1", connect.getString("address"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests:
+     *    A CONNECT tunnel is recorded with the bytes sent each way while a recording runs
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testTunnelEvent() throws Exception{
+        long idleTimeout = ConnectionDeadline.idleTimeoutMillis;
+        ConnectionDeadline.idleTimeoutMillis = 300;
+        Path file = Files.createTempFile("spiderproxy", ".jfr");
+        try (EchoServer echo = new EchoServer(); LocalProxy proxy = new LocalProxy(); Recording recording = new Recording()) {
+            recording.enable("spiderproxy.Tunnel").withThreshold(Duration.ZERO);
+            recording.start();
+            try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                out.write(("CONNECT 127.0.0.1:" + echo.port() + " HTTP/1.1\r\nHost: 127.0.0.1:" + echo.port() + "\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.write(new byte[1000]);
+                out.flush();
+                // The 200 header, then the echo
+                int received = 0;
+                while (received < "HTTP/1.1 200 OK\r\n\r\n".length() + 1000 && in.read() != -1)
+                    received++;
+            }
+            // The tunnel closes once it has been idle
+            Thread.sleep(1500);
+            recording.stop();
+            recording.dump(file);
+
+            RecordedEvent tunnel = null;
+            for(RecordedEvent event : RecordingFile.readAllEvents(file)){
+                if(event.getEventType().getName().equals("spiderproxy.Tunnel") && event.getString("origin").endsWith(":" + echo.port()))
+                    tunnel = event;
+            }
+            assertNotNull(tunnel);
+            assertEquals(1000, tunnel.getLong("bytesUp"));
+            assertEquals(1000, tunnel.getLong("bytesDown"));
+        } finally {
+            ConnectionDeadline.idleTimeoutMillis = idleTimeout;
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests:
+     *    The checked-in recording profile parses and enables every proxy event
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProfile() throws Exception{
+        Configuration profile = Configuration.create(Paths.get("jfr", "spiderproxy.jfc"));
+        assertEquals("SpiderProxy", profile.getLabel());
+        for(String event : new String[]{"Request", "UpstreamConnect", "Tunnel", "SpiderParse", "SitemapFlush"}){
+            assertEquals("true", profile.getSettings().get("spiderproxy." + event + "#enabled"));
+        }
+        assertEquals("20 ms", profile.getSettings().get("spiderproxy.Request#threshold"));
+    }
+}
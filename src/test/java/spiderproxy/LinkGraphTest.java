@@ -0,0 +1,76 @@
+package spiderproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+
+
+public class LinkGraphTest {
+
+    public LinkGraphTest() {}
+
+    /**
+     * Tests:
+     *    Duplicate edges and self links are not recorded
+     *    In- and out-degrees count distinct neighbours
+     *    Unknown URLs report a degree of -1
+     */
+    @org.junit.Test
+    public void testDegrees(){
+        LinkGraph graph = new LinkGraph();
+        assertTrue(graph.addEdge("http://a.com/", "http://a.com/about"));
+        assertTrue(graph.addEdge("http://a.com/", "http://b.com/"));
+        assertFalse(graph.addEdge("http://a.com/", "http://b.com/"));
+        assertFalse(graph.addEdge("http://a.com/", "http://a.com/"));
+        assertTrue(graph.addEdge("http://b.com/", "http://a.com/about"));
+
+        assertEquals(3, graph.edgeCount());
+        assertEquals(2, graph.outDegree("http://a.com/"));
+        assertEquals(0, graph.inDegree("http://a.com/"));
+        assertEquals(2, graph.inDegree("http://a.com/about"));
+        assertEquals(-1, graph.inDegree("http://c.com/"));
+    }
+
+    /**
+     * Tests:
+     *    Pages nothing links to are reported as orphans
+     *    Orphan listings and edge exports resume after a cursor
+     */
+    @org.junit.Test
+    public void testOrphansAndExport(){
+        LinkGraph graph = new LinkGraph();
+        graph.addNode("http://lonely.com/");
+        for(int i = 0; i < 10; i++){
+            graph.addEdge("http://hub.com/", "http://hub.com/" + i);
+        }
+        int[] orphans = graph.orphans(-1, 10);
+        assertEquals(2, orphans.length);
+        assertEquals("http://lonely.com/", graph.url(orphans[0]));
+        assertEquals("http://hub.com/", graph.url(orphans[1]));
+        assertEquals(1, graph.orphans(orphans[0], 10).length);
+
+        List<String> targets = new ArrayList<>();
+        graph.exportEdges(6, 100, (index, from, to) -> targets.add(to));
+        assertEquals(3, targets.size());
+        assertEquals("http://hub.com/7", targets.get(0));
+    }
+
+    /**
+     * Tests:
+     *    A million edges across page boundaries and set resizes are all kept
+     */
+    @org.junit.Test
+    public void testManyEdges(){
+        LinkGraph graph = new LinkGraph();
+        int pages = 10000;
+        for(int p = 0; p < pages; p++){
+            for(int l = 1; l <= 100; l++){
+                graph.addEdge("http://site.com/" + p, "http://site.com/" + ((p + l) % pages));
+            }
+        }
+        assertEquals(pages * 100, graph.edgeCount());
+        assertEquals(pages, graph.nodeCount());
+        assertEquals(100, graph.inDegree("http://site.com/42"));
+        assertEquals(0, graph.orphans(-1, 10).length);
+    }
+}
@@ -0,0 +1,240 @@
+package spiderproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives requests through the proxy to a LoadOrigin and an EchoServer.
+ *
+ * In a closed loop a fixed number of clients each send a request, wait for
+ * the whole response and send the next, so the load falls when the proxy
+ * slows down. In an open loop requests arrive at a fixed rate whatever the
+ * proxy does, and latency is measured from when a request was due rather
+ * than when it was sent, so a stalled proxy cannot hide its queueing delay.
+ */
+public class LoadGenerator {
+
+    /**
+     * The kinds of request in a mix.
+     */
+    public enum Kind {
+        PAGE, GZIP, CHUNKED, BLOB, CONNECT
+    }
+
+    public int blobBytes = 1 << 20;
+    public int tunnelBytes = 16384;
+    public int timeoutMillis = 30000;
+    // Longest wait for open-loop requests still in flight when a run ends.
+    public long drainMillis = 30000;
+
+    private final int proxyPort;
+    private final LoadOrigin origin;
+    private final EchoServer echo;
+    private final Kind[] mix;
+
+    /**
+     * @param proxyPort the proxy's loopback port
+     * @param origin the origin to request pages and blobs from
+     * @param echo the CONNECT target
+     * @param mix the requests to choose from at random; repeat a kind to weight it
+     */
+    public LoadGenerator(int proxyPort, LoadOrigin origin, EchoServer echo, Kind... mix) {
+        this.proxyPort = proxyPort;
+        this.origin = origin;
+        this.echo = echo;
+        this.mix = mix.length > 0 ? mix : new Kind[]{Kind.PAGE};
+    }
+
+    /**
+     * Parses a weighted mix such as "page:6,gzip:2,chunked:1,blob:1,connect:1".
+     *
+     * @param spec the mix
+     * @return the kinds, each repeated by its weight
+     */
+    public static Kind[] mix(String spec) {
+        List<Kind> kinds = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split(":");
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            for (int i = 0; i < weight; i++)
+                kinds.add(Kind.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)));
+        }
+        return kinds.toArray(new Kind[0]);
+    }
+
+    /**
+     * Runs a fixed number of clients back to back for a while.
+     *
+     * @param clients the number of concurrent clients
+     * @param durationMillis how long to run
+     * @return the report
+     * @throws InterruptedException if interrupted while waiting for the clients
+     */
+    public LoadReport closedLoop(int clients, long durationMillis) throws InterruptedException {
+        LoadReport report = new LoadReport("closed loop, " + clients + " clients");
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    send(report, start);
+                }
+            }, "load-client-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        while (System.nanoTime() < end) {
+            report.sample();
+            Thread.sleep(100);
+        }
+        for (Thread thread : threads)
+            thread.join(timeoutMillis);
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Starts requests at a fixed rate for a while, without waiting for
+     * earlier ones to finish.
+     *
+     * @param perSecond the arrival rate
+     * @param durationMillis how long to keep starting requests
+     * @return the report
+     * @throws InterruptedException if interrupted while waiting for requests in flight
+     */
+    public LoadReport openLoop(double perSecond, long durationMillis) throws InterruptedException {
+        LoadReport report = new LoadReport(String.format(Locale.ROOT, "open loop, %.0f requests/s", perSecond));
+        ExecutorService clients = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = (long) (1e9 / perSecond);
+        long start = System.nanoTime();
+        long lastSample = start;
+        for (long due = start; due - start < TimeUnit.MILLISECONDS.toNanos(durationMillis); due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            long intended = due;
+            clients.execute(() -> send(report, intended));
+            if (System.nanoTime() - lastSample > TimeUnit.MILLISECONDS.toNanos(100)) {
+                report.sample();
+                lastSample = System.nanoTime();
+            }
+        }
+        clients.shutdown();
+        clients.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Sends one request of a random kind and records it.
+     *
+     * @param report where to record it
+     * @param since when the latency is measured from
+     */
+    private void send(LoadReport report, long since) {
+        Kind kind = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+        long received = 0;
+        boolean ok;
+        try {
+            if (kind == Kind.CONNECT) {
+                received = tunnel();
+                ok = received == tunnelBytes;
+            } else {
+                received = get(path(kind));
+                ok = received >= 0;
+                received = Math.max(0, received);
+            }
+        } catch (IOException e) {
+            ok = false;
+        }
+        report.record(kind, System.nanoTime() - since, received, ok);
+    }
+
+    private String path(Kind kind) {
+        int page = ThreadLocalRandom.current().nextInt(origin.pages);
+        switch (kind) {
+            case GZIP: return "/gzip/" + page;
+            case CHUNKED: return "/chunked/" + page;
+            case BLOB: return "/blob/" + blobBytes;
+            default: return "/page/" + page;
+        }
+    }
+
+    /**
+     * Sends a GET through the proxy and reads the response to the end.
+     *
+     * @return the bytes received, or -1 if the status was not 200
+     */
+    private long get(String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxyPort)) {
+            socket.setSoTimeout(timeoutMillis);
+            String request = "GET " + origin.url(path) + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port() + "\r\nAccept-Encoding: gzip\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[16384];
+            byte[] status = new byte[12];
+            int statusLength = 0;
+            long received = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (statusLength < status.length) {
+                    int copy = Math.min(n, status.length - statusLength);
+                    System.arraycopy(buffer, 0, status, statusLength, copy);
+                    statusLength += copy;
+                }
+                received += n;
+            }
+            return new String(status, 0, statusLength, StandardCharsets.ISO_8859_1).equals("HTTP/1.1 200") ? received : -1;
+        }
+    }
+
+    /**
+     * Opens a CONNECT tunnel to the echo server and bounces bytes off it.
+     *
+     * @return the bytes echoed back
+     */
+    private long tunnel() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxyPort)) {
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("CONNECT 127.0.0.1:" + echo.port() + " HTTP/1.1\r\nHost: 127.0.0.1:" + echo.port() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // Skip the proxy's reply header
+            int matched = 0;
+            int b;
+            while (matched < 4 && (b = in.read()) != -1)
+                matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (matched < 4)
+                return 0;
+            byte[] payload = new byte[tunnelBytes];
+            ThreadLocalRandom.current().nextBytes(payload);
+            out.write(payload);
+            out.flush();
+            byte[] buffer = new byte[8192];
+            long echoed = 0;
+            int n;
+            while (echoed < tunnelBytes && (n = in.read(buffer)) != -1)
+                echoed += n;
+            return echoed;
+        }
+    }
+}
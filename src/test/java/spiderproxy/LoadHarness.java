@@ -0,0 +1,82 @@
+package spiderproxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Everything a load run needs on one machine: the proxy on an ephemeral
+ * loopback port, a LoadOrigin, an EchoServer for tunnels, and a scratch
+ * directory for the sitemaps the spider writes, so map/ is left alone.
+ */
+public class LoadHarness implements Closeable {
+    // Longest wait on close for the spider to finish with the scratch sitemaps.
+    public static long idleWaitMillis = 60000;
+    public final LoadOrigin origin;
+    public final EchoServer echo;
+    public final LocalProxy proxy;
+    private final File sitemaps;
+    private final String previousPath;
+
+    public LoadHarness() throws IOException {
+        LocalProxy.scratch();
+        previousPath = DataAccessor.path;
+        sitemaps = Files.createTempDirectory("spiderproxy-load").toFile();
+        DataAccessor.path = sitemaps.getPath() + File.separator;
+        origin = new LoadOrigin();
+        echo = new EchoServer();
+        proxy = new LocalProxy();
+    }
+
+    /**
+     * Creates a generator for a request mix such as "page:6,gzip:2,blob:1".
+     *
+     * @param mix the weighted mix
+     * @return the generator
+     */
+    public LoadGenerator generator(String mix) {
+        return new LoadGenerator(proxy.port(), origin, echo, LoadGenerator.mix(mix));
+    }
+
+    /**
+     * Prints a report and saves it as JSON under target/load-reports.
+     *
+     * @param report the report
+     * @param file the file name
+     * @throws IOException if the report cannot be written
+     */
+    public static void save(LoadReport report, String file) throws IOException {
+        System.out.print(report);
+        Path dir = Paths.get("target", "load-reports");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve(file), report.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        proxy.close();
+        echo.close();
+        origin.close();
+        boolean idle;
+        try {
+            idle = SpiderScheduler.shared().awaitIdle(idleWaitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            idle = false;
+        }
+        // A spider still busy would write into the shared sitemaps, so leave it the load test's directory
+        if (!idle)
+            return;
+        DataAccessor.path = previousPath;
+        File[] files = sitemaps.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        sitemaps.delete();
+    }
+}
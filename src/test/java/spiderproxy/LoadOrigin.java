@@ -0,0 +1,170 @@
+package spiderproxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local origin for load tests. It serves generated HTML pages that each
+ * link to fanOut others, the same pages gzipped or chunked, and binary blobs
+ * of any size:
+ *
+ *   /page/N      HTML with a Content-Length
+ *   /gzip/N      the page gzipped and chunked
+ *   /chunked/N   the page chunked
+ *   /blob/BYTES  application/octet-stream of BYTES bytes
+ */
+public class LoadOrigin implements Closeable {
+    public int fanOut = 20;
+    public int pages = 1000;
+    // Whether responses may be cached by the proxy.
+    public boolean cacheable = false;
+
+    private static final byte[] NOISE = new byte[65536];
+    static {
+        new Random(1).nextBytes(NOISE);
+    }
+
+    private final ServerSocket server;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "LoadOrigin-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<Integer, byte[]> html = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> gzipped = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    public LoadOrigin() throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    workers.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "LoadOrigin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + port() + path;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        workers.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            String requestLine = StubOrigin.readLine(in);
+            if (requestLine == null)
+                return;
+            String line;
+            while ((line = StubOrigin.readLine(in)) != null && !line.isEmpty()) {
+                // headers are not needed
+            }
+            requests.incrementAndGet();
+            String[] path = requestLine.split(" ")[1].split("/");
+            OutputStream out = s.getOutputStream();
+            String kind = path.length > 2 ? path[1] : "";
+            long n;
+            try {
+                n = path.length > 2 ? Long.parseLong(path[2]) : -1;
+            } catch (NumberFormatException e) {
+                n = -1;
+            }
+            String cache = cacheable ? "Cache-Control: max-age=60" : "Cache-Control: no-store";
+            if (n < 0) {
+                out.write(StubOrigin.response("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain", "missing".getBytes(StandardCharsets.UTF_8)));
+            } else if (kind.equals("page")) {
+                out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\n" + cache, page((int) (n % pages))));
+            } else if (kind.equals("chunked")) {
+                writeChunked(out, "Content-Type: text/html; charset=utf-8\r\n" + cache, page((int) (n % pages)));
+            } else if (kind.equals("gzip")) {
+                writeChunked(out, "Content-Type: text/html; charset=utf-8\r\nContent-Encoding: gzip\r\n" + cache, gzipped((int) (n % pages)));
+            } else if (kind.equals("blob")) {
+                writeBlob(out, n, cache);
+            } else {
+                out.write(StubOrigin.response("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain", "missing".getBytes(StandardCharsets.UTF_8)));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the proxy hung up
+        }
+    }
+
+    private byte[] page(int n) {
+        return html.computeIfAbsent(n, key -> {
+            StringBuilder sb = new StringBuilder(256 + fanOut * 64);
+            sb.append("<!DOCTYPE html><html><head><title>Page ").append(key).append("</title></head><body><h1>Page ").append(key).append("</h1><ul>");
+            for (int i = 1; i <= fanOut; i++) {
+                int target = (int) (((long) key * fanOut + i) % pages);
+                sb.append("<li><a href=\"").append(url("/page/" + target)).append("\">Page ").append(target).append("</a></li>");
+            }
+            sb.append("</ul><p>");
+            for (int i = 0; i < 20; i++)
+                sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+            sb.append("</p></body></html>");
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        });
+    }
+
+    private byte[] gzipped(int n) {
+        return gzipped.computeIfAbsent(n, key -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(page(key));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        });
+    }
+
+    private static void writeChunked(OutputStream out, String headers, byte[] body) throws IOException {
+        out.write(("HTTP/1.1 200 OK\r\n" + headers + "\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        for (int offset = 0; offset < body.length; offset += 4096) {
+            int length = Math.min(4096, body.length - offset);
+            out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(body, offset, length);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void writeBlob(OutputStream out, long bytes, String cache) throws IOException {
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" + cache + "\r\nContent-Length: " + bytes + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        for (long left = bytes; left > 0; left -= NOISE.length)
+            out.write(NOISE, 0, (int) Math.min(NOISE.length, left));
+    }
+}
@@ -0,0 +1,170 @@
+package spiderproxy;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outcome of one load run: requests, errors and bytes, latency
+ * percentiles overall and per kind of request, and the heap and thread
+ * counts seen while it ran.
+ */
+public class LoadReport {
+
+    /**
+     * Limits a run must stay within. Each can be set from a system property
+     * such as -Dload.p99Millis=500; unset limits do not apply.
+     */
+    public static class Budget {
+        public long p50Millis = Long.MAX_VALUE;
+        public long p99Millis = Long.MAX_VALUE;
+        public double maxErrorRate = 1.0;
+        public double minRequestsPerSecond = 0;
+
+        public static Budget fromProperties(Budget defaults) {
+            Budget budget = new Budget();
+            budget.p50Millis = Long.getLong("load.p50Millis", defaults.p50Millis);
+            budget.p99Millis = Long.getLong("load.p99Millis", defaults.p99Millis);
+            budget.maxErrorRate = Double.parseDouble(System.getProperty("load.maxErrorRate", String.valueOf(defaults.maxErrorRate)));
+            budget.minRequestsPerSecond = Double.parseDouble(System.getProperty("load.minRps", String.valueOf(defaults.minRequestsPerSecond)));
+            return budget;
+        }
+    }
+
+    final String name;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final Map<LoadGenerator.Kind, LatencyHistogram> byKind = new EnumMap<>(LoadGenerator.Kind.class);
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    private final long started = System.nanoTime();
+    private volatile long finished;
+    private volatile long peakHeap = 0;
+    private volatile int peakThreads = 0;
+
+    LoadReport(String name) {
+        this.name = name;
+        for (LoadGenerator.Kind kind : LoadGenerator.Kind.values())
+            byKind.put(kind, new LatencyHistogram());
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        sample();
+    }
+
+    void record(LoadGenerator.Kind kind, long nanos, long received, boolean ok) {
+        latency.record(nanos);
+        byKind.get(kind).record(nanos);
+        bytes.addAndGet(received);
+        if (!ok)
+            errors.incrementAndGet();
+    }
+
+    /**
+     * Notes the heap in use and the live threads; called periodically
+     * while the run goes on.
+     */
+    void sample() {
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        if (heap > peakHeap)
+            peakHeap = heap;
+        peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    }
+
+    void finish() {
+        sample();
+        finished = System.nanoTime();
+    }
+
+    public long requests() {
+        return latency.count();
+    }
+
+    public double seconds() {
+        return ((finished == 0 ? System.nanoTime() : finished) - started) / 1e9;
+    }
+
+    public double requestsPerSecond() {
+        return requests() / Math.max(seconds(), 1e-9);
+    }
+
+    public double errorRate() {
+        return requests() == 0 ? 0 : errors.get() / (double) requests();
+    }
+
+    public double percentileMillis(double quantile) {
+        return latency.percentile(quantile) / 1e6;
+    }
+
+    /**
+     * Returns every limit of the budget the run went over, or nothing if it
+     * stayed within all of them.
+     *
+     * @param budget the limits
+     * @return a description of each violation
+     */
+    public List<String> violations(Budget budget) {
+        List<String> violations = new ArrayList<>();
+        if (percentileMillis(0.5) > budget.p50Millis)
+            violations.add(String.format(Locale.ROOT, "%s: p50 %.1f ms over budget of %d ms", name, percentileMillis(0.5), budget.p50Millis));
+        if (percentileMillis(0.99) > budget.p99Millis)
+            violations.add(String.format(Locale.ROOT, "%s: p99 %.1f ms over budget of %d ms", name, percentileMillis(0.99), budget.p99Millis));
+        if (errorRate() > budget.maxErrorRate)
+            violations.add(String.format(Locale.ROOT, "%s: error rate %.3f over budget of %.3f", name, errorRate(), budget.maxErrorRate));
+        if (requestsPerSecond() < budget.minRequestsPerSecond)
+            violations.add(String.format(Locale.ROOT, "%s: %.1f requests/s under budget of %.1f", name, requestsPerSecond(), budget.minRequestsPerSecond));
+        return violations;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "== %s: %d requests in %.1f s, %.1f requests/s, %d errors, %.1f MB received%n",
+                name, requests(), seconds(), requestsPerSecond(), errors.get(), bytes.get() / 1e6));
+        sb.append(String.format(Locale.ROOT, "   peak heap %.1f MB, peak threads %d%n", peakHeap / 1e6, peakThreads));
+        sb.append(String.format(Locale.ROOT, "   %-8s %8s %9s %9s %9s %9s%n", "kind", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms"));
+        row(sb, "all", latency);
+        for (Map.Entry<LoadGenerator.Kind, LatencyHistogram> entry : byKind.entrySet()) {
+            if (entry.getValue().count() > 0)
+                row(sb, entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the report as a JSON object, for comparing runs.
+     *
+     * @return the report document
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"name\":").append(InternalAPI.quote(name))
+          .append(",\"requests\":").append(requests())
+          .append(",\"errors\":").append(errors.get())
+          .append(",\"bytes\":").append(bytes.get())
+          .append(String.format(Locale.ROOT, ",\"seconds\":%.3f,\"rps\":%.2f", seconds(), requestsPerSecond()))
+          .append(",\"peakHeapBytes\":").append(peakHeap)
+          .append(",\"peakThreads\":").append(peakThreads)
+          .append(",\"latencyMillis\":{");
+        boolean first = true;
+        for (Map.Entry<LoadGenerator.Kind, LatencyHistogram> entry : byKind.entrySet()) {
+            if (entry.getValue().count() == 0)
+                continue;
+            sb.append(first ? "" : ",").append('"').append(entry.getKey().name().toLowerCase(Locale.ROOT)).append("\":").append(percentiles(entry.getValue()));
+            first = false;
+        }
+        sb.append(first ? "" : ",").append("\"all\":").append(percentiles(latency)).append("}}");
+        return sb.toString();
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "{\"count\":%d,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f}", histogram.count(),
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6, histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6);
+    }
+
+    private static void row(StringBuilder sb, String label, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.ROOT, "   %-8s %8d %9.2f %9.2f %9.2f %9.2f%n", label, histogram.count(),
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6, histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6));
+    }
+}
@@ -0,0 +1,58 @@
+package spiderproxy;
+
+import java.util.List;
+import static org.junit.Assert.*;
+
+
+/**
+ * Performance regression runs. Not part of the default build; run with
+ *   mvn -Pperf test
+ * and tune with system properties, for example
+ *   -Dload.seconds=30 -Dload.clients=32 -Dload.rate=500 -Dload.mix=page:6,gzip:2,chunked:1,blob:1,connect:1
+ * A run fails when it goes over its latency budget (-Dload.p50Millis,
+ * -Dload.p99Millis, -Dload.maxErrorRate, -Dload.minRps).
+ */
+public class LoadTest {
+    private static final long seconds = Long.getLong("load.seconds", 10);
+    private static final String mix = System.getProperty("load.mix", "page:6,gzip:2,chunked:1,blob:1,connect:1");
+
+    public LoadTest() {}
+
+    /**
+     * Tests:
+     *    A fixed set of clients sending back to back stays within the budget
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testClosedLoop() throws Exception{
+        try (LoadHarness harness = new LoadHarness()) {
+            LoadReport report = harness.generator(mix).closedLoop(Integer.getInteger("load.clients", 16), seconds * 1000);
+            LoadHarness.save(report, "closed-loop.json");
+            assertWithin(report);
+        }
+    }
+
+    /**
+     * Tests:
+     *    Requests arriving at a fixed rate are served within the budget
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testOpenLoop() throws Exception{
+        try (LoadHarness harness = new LoadHarness()) {
+            double rate = Double.parseDouble(System.getProperty("load.rate", "100"));
+            LoadReport report = harness.generator(mix).openLoop(rate, seconds * 1000);
+            LoadHarness.save(report, "open-loop.json");
+            assertTrue(report.requests() >= rate * seconds * 0.95);
+            assertWithin(report);
+        }
+    }
+
+    private static void assertWithin(LoadReport report){
+        LoadReport.Budget defaults = new LoadReport.Budget();
+        defaults.p99Millis = 2000;
+        defaults.maxErrorRate = 0.01;
+        List<String> violations = report.violations(LoadReport.Budget.fromProperties(defaults));
+        assertTrue(String.join("\n", violations), violations.isEmpty());
+    }
+}
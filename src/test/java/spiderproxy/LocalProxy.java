@@ -0,0 +1,98 @@
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs Proxy.serve() on an ephemeral loopback port for tests, and sends raw
+ * requests through it. The sitemaps, change feed and cache the proxy writes
+ * go to a scratch directory rather than the working tree.
+ */
+public class LocalProxy implements Closeable {
+    private static TemporaryFolder scratch;
+    private final ServerSocket server;
+
+    public LocalProxy() throws IOException {
+        scratch();
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(() -> {
+            try {
+                Proxy.serve(server);
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }, "LocalProxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Points DataAccessor.path, ChangeFeed.path and ResponseCache.path at a
+     * scratch directory, once for the whole test run, and returns it. The
+     * shared feed and cache keep the directory they were opened in, and the
+     * spider may still be writing after a test ends, so the paths are never
+     * put back; the directory is deleted when the JVM exits.
+     *
+     * @return the scratch directory
+     */
+    public static synchronized File scratch() throws IOException {
+        if (scratch == null) {
+            TemporaryFolder folder = new TemporaryFolder();
+            folder.create();
+            DataAccessor.path = folder.newFolder("map").getPath() + File.separator;
+            ChangeFeed.path = folder.newFolder("feed").getPath() + File.separator;
+            ResponseCache.path = folder.newFolder("cache").getPath() + File.separator;
+            Runtime.getRuntime().addShutdownHook(new Thread(folder::delete));
+            scratch = folder;
+        }
+        return scratch.getRoot();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Sends a GET for the absolute url through the proxy.
+     *
+     * @param url the absolute URL
+     * @param extraHeaders additional header lines, each ending in CRLF
+     * @return the complete raw response, read until the proxy closes the connection
+     */
+    public String get(String url, String extraHeaders) throws IOException {
+        String host = url.replaceFirst("^http://", "").split("/")[0];
+        return send("GET " + url + " HTTP/1.1\r\nHost: " + host + "\r\n" + extraHeaders + "\r\n");
+    }
+
+    public String send(String rawRequest) throws IOException {
+        return new String(sendBytes(rawRequest.getBytes(StandardCharsets.ISO_8859_1)), StandardCharsets.ISO_8859_1);
+    }
+
+    public byte[] sendBytes(byte[] rawRequest) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port())) {
+            socket.setSoTimeout(20000);
+            socket.getOutputStream().write(rawRequest);
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                response.write(buffer, 0, n);
+            return response.toByteArray();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,86 @@
+package spiderproxy;
+
+import java.io.IOException;
+import static org.junit.Assert.*;
+
+
+public class MemoryBudgetTest {
+
+    public MemoryBudgetTest() {}
+
+    /**
+     * Tests:
+     *    The spider tier is refused first, then buffering, while relay memory is still granted
+     *    Reservations grow only within their tier's share
+     *    Released bytes are returned to the budget
+     */
+    @org.junit.Test
+    public void testTiers(){
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Reservation held = budget.tryReserve(450, MemoryBudget.Tier.BUFFER);
+        assertNotNull(held);
+        assertNull(budget.tryReserve(100, MemoryBudget.Tier.SPIDER));
+        MemoryBudget.Reservation buffered = budget.tryReserve(300, MemoryBudget.Tier.BUFFER);
+        assertNotNull(buffered);
+        assertFalse(buffered.grow(100));
+        assertNull(budget.tryReserve(100, MemoryBudget.Tier.BUFFER));
+        assertNotNull(budget.tryReserve(200, MemoryBudget.Tier.RELAY));
+        assertEquals(950, budget.used());
+        held.release();
+        held.release();
+        assertEquals(500, budget.used());
+        assertTrue(budget.statsJson().contains("\"spiderShed\":1"));
+        assertTrue(budget.statsJson().contains("\"streamed\":1"));
+    }
+
+    /**
+     * Tests:
+     *    With the budget exhausted, relay reservations wait until memory is released
+     *    A wait that outlasts its timeout fails
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testBackpressure() throws Exception{
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Reservation all = budget.reserve(1000, 0);
+        try {
+            budget.reserve(10, 50);
+            fail("budget was exhausted");
+        } catch (IOException e) {}
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {}
+            all.release();
+        }).start();
+        long start = System.currentTimeMillis();
+        assertNotNull(budget.reserve(10, 5000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(budget.statsJson().contains("\"backpressureTimeouts\":1"));
+    }
+
+    /**
+     * Tests:
+     *    Under memory pressure the proxy streams bodies instead of caching them
+     *    Once memory is released responses are buffered and cached again
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyStreamsUnderPressure() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/big", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: max-age=60", "streamed body");
+            MemoryBudget budget = MemoryBudget.shared();
+            MemoryBudget.Reservation pressure = budget.tryReserve((long) (budget.limit() * 0.9), MemoryBudget.Tier.RELAY);
+            try {
+                assertTrue(proxy.get(origin.url("/big"), "").endsWith("streamed body"));
+                assertTrue(proxy.get(origin.url("/big"), "").endsWith("streamed body"));
+                assertEquals(2, origin.hits("/big"));
+            } finally {
+                pressure.release();
+            }
+            proxy.get(origin.url("/big"), "");
+            proxy.get(origin.url("/big"), "");
+            assertEquals(3, origin.hits("/big"));
+        }
+    }
+}
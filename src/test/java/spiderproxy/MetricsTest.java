@@ -0,0 +1,63 @@
+package spiderproxy;
+
+import static org.junit.Assert.*;
+
+
+public class MetricsTest {
+
+    public MetricsTest() {}
+
+    /**
+     * Tests:
+     *    Every value falls in a bucket whose bounds hold it, to within about 3%
+     *    Percentiles and counts below a bound follow the recorded values
+     */
+    @org.junit.Test
+    public void testHistogram(){
+        for(long value : new long[]{0, 1, 63, 64, 65, 1000, 123456789L, 1L << 39}){
+            int index = LatencyHistogram.index(value);
+            long upper = LatencyHistogram.upperBound(index);
+            assertTrue(upper >= value);
+            assertTrue(upper - value <= Math.max(1, value / 30));
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 100; i++){
+            histogram.record(i * 1000000L);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(5050000000L, histogram.sumNanos());
+        assertEquals(50000000, histogram.percentile(0.5), 50000000 / 30);
+        assertEquals(99000000, histogram.percentile(0.99), 99000000 / 30);
+        assertEquals(10, histogram.countAtOrBelow(10500000));
+    }
+
+    /**
+     * Tests:
+     *    /metrics is served by the internal server in Prometheus text format
+     *    Proxied requests show up in the phase histograms and counters
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testMetricsPage() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/measured", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "measured");
+            long requests = Metrics.get(Metrics.Counter.REQUESTS);
+            long firstBytes = Metrics.histogram(Metrics.Phase.FIRST_BYTE).count();
+            assertTrue(proxy.get(origin.url("/measured"), "").endsWith("measured"));
+            assertEquals(requests + 1, Metrics.get(Metrics.Counter.REQUESTS));
+            assertEquals(firstBytes + 1, Metrics.histogram(Metrics.Phase.FIRST_BYTE).count());
+
+            String page = proxy.get("http://127.0.0.1:" + proxy.port() + "/metrics", "");
+            assertTrue(page.startsWith("HTTP/1.1 200"));
+            assertTrue(page.contains("Content-Type: text/plain; version=0.0.4"));
+            assertTrue(page.contains("# TYPE spiderproxy_first_byte_seconds histogram\n"));
+            assertTrue(page.contains("spiderproxy_upstream_connect_seconds_bucket{le=\"0.0001\"} "));
+            assertTrue(page.contains("spiderproxy_dns_seconds_bucket{le=\"+Inf\"} "));
+            assertTrue(page.contains("spiderproxy_sitemap_persist_seconds_count "));
+            assertTrue(page.contains("# TYPE spiderproxy_client_sent_bytes_total counter\n"));
+            assertTrue(page.contains("# TYPE spiderproxy_open_connections gauge\n"));
+            assertFalse(page.contains("spiderproxy_requests_total 0\n"));
+        }
+    }
+}
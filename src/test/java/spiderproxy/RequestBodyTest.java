@@ -0,0 +1,196 @@
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+
+public class RequestBodyTest {
+
+    public RequestBodyTest() {}
+
+    /**
+     * Tests:
+     *    A PUT body of several relay buffers reaches the origin intact
+     *    The relay gives back every buffer it borrows
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testContentLengthBodyOfAnyMethod() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/upload", "HTTP/1.1 201 Created\r\nContent-Type: text/plain", "stored");
+            byte[] body = new byte[BufferPool.relayBufferBytes * 5 + 123];
+            for(int i = 0; i < body.length; i++){
+                body[i] = (byte) (i * 31);
+            }
+            int before = BufferPool.heap().outstanding();
+            String head = "PUT " + origin.url("/upload") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(head.getBytes(StandardCharsets.ISO_8859_1));
+            request.write(body);
+            String response = new String(proxy.sendBytes(request.toByteArray()), StandardCharsets.ISO_8859_1);
+            assertTrue(response.startsWith("HTTP/1.1 201"));
+            assertTrue(Arrays.equals(body, origin.lastBody("/upload")));
+            assertEquals(before, BufferPool.heap().outstanding());
+        }
+    }
+
+    /**
+     * Tests:
+     *    A chunked POST is passed on chunked, with the header sent only once
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testChunkedBody() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/form", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "ok");
+            String response = proxy.send("POST " + origin.url("/form") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                    + "\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n");
+            assertTrue(response.endsWith("ok"));
+            assertEquals("hello, world", new String(origin.lastBody("/form"), StandardCharsets.ISO_8859_1));
+            assertTrue(origin.lastHeader("/form").toLowerCase().contains("transfer-encoding: chunked"));
+            assertEquals(1, origin.hits("/form"));
+        }
+    }
+
+    /**
+     * Tests:
+     *    Signed, empty and overlong chunk sizes are refused
+     *    Hex digits with or without an extension are read as the chunk size
+     */
+    @org.junit.Test
+    public void testChunkSize() {
+        assertEquals(5, Proxy.chunkSize("5"));
+        assertEquals(0x1aF, Proxy.chunkSize("1aF;name=value"));
+        assertEquals(-1, Proxy.chunkSize("-3"));
+        assertEquals(-1, Proxy.chunkSize("+5"));
+        assertEquals(-1, Proxy.chunkSize(" 5"));
+        assertEquals(-1, Proxy.chunkSize(""));
+        assertEquals(-1, Proxy.chunkSize(";ext"));
+        assertEquals(-1, Proxy.chunkSize("10000000000000000"));
+    }
+
+    /**
+     * Tests:
+     *    A signed chunk size, a bare LF or a chunk without its CRLF gets a 400
+     *    The origin never receives a complete body for any of them
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testMalformedChunksRefused() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            String[] bodies = {
+                "-3\r\nabc\r\n0\r\n\r\n",
+                "5\nhello\r\n0\r\n\r\n",
+                "5\r\nhelloXY0\r\n\r\n"
+            };
+            for (int i = 0; i < bodies.length; i++) {
+                String path = "/form" + i;
+                origin.respond(path, "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "ok");
+                String response = proxy.send("POST " + origin.url(path) + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nTransfer-Encoding: chunked\r\n\r\n" + bodies[i]);
+                assertTrue(bodies[i], response.startsWith("HTTP/1.1 400"));
+                assertNull(bodies[i], origin.lastBody(path));
+            }
+        }
+    }
+
+    /**
+     * Tests:
+     *    With Expect: 100-continue the client gets a 100 Continue before sending its body
+     *    An origin that answers at once keeps the client from sending the body at all
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testExpectContinue() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/accept", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "accepted");
+            origin.respond("/reject", "HTTP/1.1 413 Payload Too Large\r\nContent-Type: text/plain", "too big");
+            origin.rejectBody("/reject");
+            try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST " + origin.url("/accept") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nExpect: 100-continue\r\nContent-Length: 4\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                assertTrue(readHeader(in).startsWith("HTTP/1.1 100 Continue"));
+                out.write("data".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                assertTrue(readAll(in).endsWith("accepted"));
+            }
+            assertEquals("data", new String(origin.lastBody("/accept"), StandardCharsets.ISO_8859_1));
+
+            try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST " + origin.url("/reject") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nExpect: 100-continue\r\nContent-Length: 100000000\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                String response = readAll(socket.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 413"));
+                assertTrue(response.endsWith("too big"));
+            }
+            assertNull(origin.lastBody("/reject"));
+        }
+    }
+
+    /**
+     * Tests:
+     *    A 100 Continue from the origin that comes after the proxy sent its own is skipped
+     *    The client gets the origin's final response instead of the late 100
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testLateContinueIsSkipped() throws Exception{
+        int continueTimeout = Proxy.continueTimeoutMillis;
+        Proxy.continueTimeoutMillis = 100;
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.respond("/late", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "accepted");
+            origin.delayContinue("/late", 500);
+            try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), proxy.port())) {
+                socket.setSoTimeout(10000);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST " + origin.url("/late") + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nExpect: 100-continue\r\nContent-Length: 4\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                assertTrue(readHeader(in).startsWith("HTTP/1.1 100 Continue"));
+                out.write("data".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                String response = readAll(in);
+                assertTrue(response, response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("accepted"));
+            }
+            assertEquals("data", new String(origin.lastBody("/late"), StandardCharsets.ISO_8859_1));
+        } finally {
+            Proxy.continueTimeoutMillis = continueTimeout;
+        }
+    }
+
+    private static String readHeader(InputStream in) throws Exception {
+        StringBuilder header = new StringBuilder();
+        while (!header.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1)
+                break;
+            header.append((char) b);
+        }
+        return header.toString();
+    }
+
+    private static String readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            response.write(buffer, 0, n);
+        return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,264 @@
+package spiderproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class ResponseCacheTest {
+    private static StubOrigin origin;
+    private static LocalProxy proxy;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ResponseCacheTest() {}
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        origin = new StubOrigin();
+        proxy = new LocalProxy();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        proxy.close();
+        origin.close();
+    }
+
+    /**
+     * Tests:
+     *    s-maxage wins over max-age, which wins over Expires
+     *    Last-Modified gives a heuristic lifetime of 10% of its age
+     *    private, no-store, Set-Cookie and Vary: * responses are not storable
+     */
+    @org.junit.Test
+    public void testFreshnessAndStorability(){
+        assertEquals(30000, ResponseCache.freshnessLifetime("http://a/", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60, s-maxage=30\r\n"));
+        assertEquals(60000, ResponseCache.freshnessLifetime("http://a/", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nExpires: Thu, 01 Jan 1970 00:00:00 GMT\r\n"));
+        assertEquals(120000, ResponseCache.freshnessLifetime("http://a/", "HTTP/1.1 200 OK\r\nDate: Mon, 01 Jan 2018 00:00:00 GMT\r\nExpires: Mon, 01 Jan 2018 00:02:00 GMT\r\n"));
+        assertEquals(0, ResponseCache.freshnessLifetime("http://a/", "HTTP/1.1 200 OK\r\nExpires: 0\r\n"));
+        assertEquals(360000, ResponseCache.freshnessLifetime("http://a/", "HTTP/1.1 200 OK\r\nDate: Mon, 01 Jan 2018 01:00:00 GMT\r\nLast-Modified: Mon, 01 Jan 2018 00:00:00 GMT\r\n"));
+
+        assertTrue(ResponseCache.isStorable("", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"));
+        assertFalse(ResponseCache.isStorable("", "HTTP/1.1 200 OK\r\nCache-Control: private, max-age=60\r\n"));
+        assertFalse(ResponseCache.isStorable("", "HTTP/1.1 200 OK\r\nCache-Control: no-store\r\n"));
+        assertFalse(ResponseCache.isStorable("Cache-Control: no-store\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"));
+        assertFalse(ResponseCache.isStorable("", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nSet-Cookie: a=b\r\n"));
+        assertFalse(ResponseCache.isStorable("", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: *\r\n"));
+        assertFalse(ResponseCache.isStorable("", "HTTP/1.1 206 Partial Content\r\nCache-Control: max-age=60\r\n"));
+        assertFalse(ResponseCache.isStorable("Authorization: Basic x\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"));
+        assertTrue(ResponseCache.isStorable("Authorization: Basic x\r\n", "HTTP/1.1 200 OK\r\nCache-Control: public, max-age=60\r\n"));
+    }
+
+    /**
+     * Tests:
+     *    Entries evicted from the memory tier spill to body files on disk
+     *    Disk tier hits are served in full
+     *    The disk tier evicts its least recently used bodies past its budget
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testMemoryAndDiskTiers() throws IOException{
+        ResponseCache cache = new ResponseCache(folder.getRoot(), 100, 150);
+        String header = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Type: text/plain\r\n";
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < 3; i++){
+            byte[] body = new byte[60];
+            body[0] = (byte) ('a' + i);
+            assertTrue(cache.store("http://t/" + i, "", header, body, now, now));
+        }
+        assertTrue(cache.isOnDisk("http://t/0"));
+        assertTrue(cache.isOnDisk("http://t/1"));
+        assertFalse(cache.isOnDisk("http://t/2"));
+
+        ResponseCache.Entry entry = cache.lookup("http://t/0", "");
+        assertNotNull(entry);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.serve(entry, out);
+        String served = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        assertTrue(served.contains("Content-Length: 60\r\n"));
+        assertTrue(served.contains("X-Cache: HIT\r\n"));
+        assertEquals('a', served.charAt(served.indexOf("\r\n\r\n") + 4));
+
+        cache.store("http://t/3", "", header, new byte[60], now, now);
+        assertEquals(3, cache.size());
+        assertTrue(cache.statsJson().contains("\"diskHits\":1"));
+    }
+
+    /**
+     * Tests:
+     *    Serving a disk entry whose body was evicted after the lookup fails before writing anything
+     *    That lookup is not counted as a hit
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testEvictedDiskBodyIsNotServed() throws IOException{
+        ResponseCache cache = new ResponseCache(folder.getRoot(), 100, 150);
+        String header = "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nContent-Type: text/plain\r\n";
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < 3; i++){
+            assertTrue(cache.store("http://t/" + i, "", header, new byte[60], now, now));
+        }
+        ResponseCache.Entry entry = cache.lookup("http://t/0", "");
+        assertNotNull(entry);
+        assertTrue(cache.isOnDisk("http://t/0"));
+        for(int i = 3; i < 6; i++){
+            cache.store("http://t/" + i, "", header, new byte[60], now, now);
+        }
+        assertFalse(cache.isOnDisk("http://t/0"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            cache.serve(entry, out);
+            fail("the body file was evicted");
+        } catch (FileNotFoundException e) {}
+        assertEquals(0, out.size());
+        assertTrue(cache.statsJson().contains("\"diskHits\":0"));
+    }
+
+    /**
+     * Tests:
+     *    A fresh response is fetched from the origin once and then served from the cache
+     *    Cached responses carry an Age header
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testFreshHitThroughProxy() throws IOException{
+        origin.respond("/fresh", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: max-age=60", "fresh body");
+        String first = proxy.get(origin.url("/fresh"), "");
+        String second = proxy.get(origin.url("/fresh"), "");
+        assertTrue(first.endsWith("fresh body"));
+        assertTrue(second.endsWith("fresh body"));
+        assertTrue(second.contains("Age: "));
+        assertTrue(second.contains("X-Cache: HIT"));
+        assertEquals(1, origin.hits("/fresh"));
+    }
+
+    /**
+     * Tests:
+     *    no-store responses and no-cache requests always go to the origin
+     *    only-if-cached answers 504 when nothing is stored
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testBypass() throws IOException{
+        origin.respond("/nostore", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "secret");
+        proxy.get(origin.url("/nostore"), "");
+        proxy.get(origin.url("/nostore"), "");
+        assertEquals(2, origin.hits("/nostore"));
+
+        origin.respond("/reload", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: max-age=60", "reload");
+        proxy.get(origin.url("/reload"), "");
+        proxy.get(origin.url("/reload"), "Cache-Control: no-cache\r\n");
+        assertEquals(2, origin.hits("/reload"));
+
+        String onlyIfCached = proxy.get(origin.url("/never-fetched"), "Cache-Control: only-if-cached\r\n");
+        assertTrue(onlyIfCached.startsWith("HTTP/1.1 504"));
+        assertEquals(0, origin.hits("/never-fetched"));
+    }
+
+    /**
+     * Tests:
+     *    Responses with Vary are stored per variant of the named request headers
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testVary() throws IOException{
+        origin.on("/vary", (requestLine, header, out) -> {
+            String language = header.contains("Accept-Language: fr") ? "bonjour" : "hello";
+            out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: max-age=60\r\nVary: Accept-Language",
+                    language.getBytes(StandardCharsets.UTF_8)));
+        });
+        assertTrue(proxy.get(origin.url("/vary"), "Accept-Language: en\r\n").endsWith("hello"));
+        assertTrue(proxy.get(origin.url("/vary"), "Accept-Language: fr\r\n").endsWith("bonjour"));
+        assertTrue(proxy.get(origin.url("/vary"), "Accept-Language: en\r\n").endsWith("hello"));
+        assertTrue(proxy.get(origin.url("/vary"), "Accept-Language: fr\r\n").endsWith("bonjour"));
+        assertEquals(2, origin.hits("/vary"));
+    }
+
+    /**
+     * Tests:
+     *    A stale entry with an ETag is revalidated with If-None-Match
+     *    A 304 freshens the stored entry and the client gets the full stored body
+     *    The freshened entry is then served without contacting the origin
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testConditionalRevalidation() throws IOException{
+        origin.on("/etag", (requestLine, header, out) -> {
+            if (header.contains("If-None-Match: \"v1\""))
+                out.write(StubOrigin.response("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nCache-Control: max-age=60", new byte[0]));
+            else
+                out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nETag: \"v1\"\r\nCache-Control: no-cache",
+                        "etag body".getBytes(StandardCharsets.UTF_8)));
+        });
+        assertTrue(proxy.get(origin.url("/etag"), "").endsWith("etag body"));
+        String revalidated = proxy.get(origin.url("/etag"), "");
+        assertTrue(revalidated.startsWith("HTTP/1.1 200"));
+        assertTrue(revalidated.endsWith("etag body"));
+        assertTrue(origin.lastHeader("/etag").contains("If-None-Match: \"v1\""));
+        assertTrue(proxy.get(origin.url("/etag"), "").endsWith("etag body"));
+        assertEquals(2, origin.hits("/etag"));
+    }
+
+    /**
+     * Tests:
+     *    Within stale-while-revalidate the stale copy is served immediately
+     *    The entry is refreshed in the background and the new body is served next
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testStaleWhileRevalidate() throws Exception{
+        origin.on("/swr", (requestLine, header, out) -> {
+            String body = origin.hits("/swr") == 1 ? "old" : "new";
+            out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nAge: 5\r\nETag: \"" + body 
+                    + "\"\r\nCache-Control: max-age=1, stale-while-revalidate=60", body.getBytes(StandardCharsets.UTF_8)));
+        });
+        assertTrue(proxy.get(origin.url("/swr"), "").endsWith("old"));
+        assertTrue(proxy.get(origin.url("/swr"), "").endsWith("old"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (origin.hits("/swr") < 2 || Revalidator.isPending(origin.url("/swr"))) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        assertTrue(origin.lastHeader("/swr").contains("If-None-Match: \"old\""));
+        assertTrue(proxy.get(origin.url("/swr"), "").endsWith("new"));
+    }
+
+    /**
+     * Tests:
+     *    A background refresh the memory budget cannot hold is skipped
+     *    The stale copy keeps being served and no memory stays reserved
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testRefreshSkippedOverBudget() throws Exception{
+        origin.on("/swr-budget", (requestLine, header, out) -> {
+            String body = origin.hits("/swr-budget") == 1 ? "old" : "new";
+            out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nAge: 5\r\nETag: \"" + body
+                    + "\"\r\nCache-Control: max-age=1, stale-while-revalidate=60", body.getBytes(StandardCharsets.UTF_8)));
+        });
+        assertTrue(proxy.get(origin.url("/swr-budget"), "").endsWith("old"));
+        MemoryBudget budget = MemoryBudget.shared();
+        long before = budget.used();
+        MemoryBudget.Reservation hog = budget.tryReserve((long) (budget.limit() * MemoryBudget.bufferFraction) - before, MemoryBudget.Tier.RELAY);
+        try {
+            assertTrue(proxy.get(origin.url("/swr-budget"), "").endsWith("old"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (origin.hits("/swr-budget") < 2 || Revalidator.isPending(origin.url("/swr-budget"))) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(20);
+            }
+        } finally {
+            hog.release();
+        }
+        assertEquals(before, budget.used());
+        assertTrue(proxy.get(origin.url("/swr-budget"), "").endsWith("old"));
+    }
+}
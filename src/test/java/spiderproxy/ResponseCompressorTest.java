@@ -0,0 +1,164 @@
+package spiderproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import static org.junit.Assert.*;
+
+
+public class ResponseCompressorTest {
+
+    private static final String OK_TEXT = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: 5000\r\n";
+
+    public ResponseCompressorTest() {}
+
+    @After
+    public void tearDown() {
+        ResponseCompressor.enabled = false;
+        ResponseCompressor.maxCpuFraction = 0.25;
+    }
+
+    /**
+     * Tests:
+     *    Nothing is compressed while the compressor is off
+     *    gzip is preferred, deflate used when it is all the client takes, q=0 honoured
+     *    Small, already encoded, non-text, no-transform and non-200 responses are left alone
+     *    No response is compressed once the CPU budget is spent
+     */
+    @org.junit.Test
+    public void testChoose(){
+        String gzip = "Accept-Encoding: gzip, deflate\r\n";
+        assertNull(ResponseCompressor.choose(gzip, OK_TEXT, 5000));
+        ResponseCompressor.enabled = true;
+        assertEquals("gzip", ResponseCompressor.choose(gzip, OK_TEXT, 5000));
+        assertEquals("gzip", ResponseCompressor.choose(gzip, OK_TEXT, -1));
+        assertEquals("deflate", ResponseCompressor.choose("Accept-Encoding: gzip;q=0, deflate\r\n", OK_TEXT, 5000));
+        assertNull(ResponseCompressor.choose("Accept-Encoding: br\r\n", OK_TEXT, 5000));
+        assertNull(ResponseCompressor.choose("Accept: */*\r\n", OK_TEXT, 5000));
+
+        assertNull(ResponseCompressor.choose(gzip, OK_TEXT, 100));
+        assertNull(ResponseCompressor.choose(gzip, OK_TEXT + "Content-Encoding: gzip\r\n", 5000));
+        assertNull(ResponseCompressor.choose(gzip, "HTTP/1.1 200 OK\r\nContent-Type: image/png\r\n", 5000));
+        assertNull(ResponseCompressor.choose(gzip, OK_TEXT + "Cache-Control: public, no-transform\r\n", 5000));
+        assertNull(ResponseCompressor.choose(gzip, "HTTP/1.1 404 Not Found\r\nContent-Type: text/html\r\n", 5000));
+        assertEquals("gzip", ResponseCompressor.choose(gzip, "HTTP/1.1 200 OK\r\nContent-Type: application/ld+json\r\n", 5000));
+
+        ResponseCompressor.maxCpuFraction = 0;
+        String before = ResponseCompressor.statsJson();
+        assertNull(ResponseCompressor.choose(gzip, OK_TEXT, 5000));
+        assertNotEquals(before, ResponseCompressor.statsJson());
+    }
+
+    /**
+     * Tests:
+     *    The encoded header drops the length, adds the coding and Vary, and weakens the ETag
+     *    gzip and deflate bodies decode to what was written
+     *    A released Deflater is used again rather than a new one made
+     * @throws java.io.IOException
+     */
+    @org.junit.Test
+    public void testEncoding() throws IOException{
+        String header = ResponseCompressor.encodedHeader(OK_TEXT + "ETag: \"v1\"\r\nVary: Accept\r\n", "gzip");
+        assertFalse(header.contains("Content-Length"));
+        assertTrue(header.contains("ETag: W/\"v1\"\r\n"));
+        assertTrue(header.contains("Vary: Accept, Accept-Encoding\r\n"));
+        assertTrue(header.endsWith("Content-Encoding: gzip\r\n"));
+        assertTrue(ResponseCompressor.encodedHeader(OK_TEXT, "deflate").contains("Vary: Accept-Encoding\r\n"));
+
+        byte[] body = text(50000);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        RequestEvent event = new RequestEvent();
+        ResponseCompressor.Encoder encoder = ResponseCompressor.encode(gzipped, "gzip", "http://example.com/");
+        encoder.write(body, 0, 30000);
+        encoder.flush();
+        encoder.write(body, 30000, body.length - 30000);
+        encoder.finish(event);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))));
+        assertTrue(gzipped.size() < body.length / 4);
+        assertEquals("gzip", event.contentCoding);
+        assertEquals(body.length, event.uncompressedBytes);
+
+        String created = between(ResponseCompressor.statsJson(), "\"deflatersCreated\":", ",");
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            deflated.reset();
+            encoder = ResponseCompressor.encode(deflated, "deflate", "http://example.com/");
+            encoder.write(body, 0, body.length);
+            encoder.finish(event);
+            encoder = ResponseCompressor.encode(new ByteArrayOutputStream(), "gzip", "http://example.com/");
+            encoder.release();
+        }
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(deflated.toByteArray()))));
+        assertTrue(Long.parseLong(between(ResponseCompressor.statsJson(), "\"deflatersCreated\":", ",")) <= Long.parseLong(created) + 1);
+    }
+
+    /**
+     * Tests:
+     *    A proxied text response, sized or chunked, reaches a gzip client compressed and intact
+     *    A client that does not accept gzip gets it as the origin sent it
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxyCompresses() throws Exception{
+        ResponseCompressor.enabled = true;
+        byte[] body = text(40000);
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            origin.on("/sized", (requestLine, header, out) ->
+                    out.write(StubOrigin.response("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nCache-Control: no-store", body)));
+            origin.on("/chunked", (requestLine, header, out) -> {
+                out.write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\nCache-Control: no-store\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                for (int off = 0; off < body.length; off += 10000) {
+                    out.write((Integer.toHexString(10000) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(body, off, 10000);
+                    out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                }
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            });
+            for (String path : new String[]{"/sized", "/chunked"}) {
+                byte[] raw = proxy.sendBytes(("GET " + origin.url(path) + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nAccept-Encoding: gzip\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                String head = head(raw);
+                assertTrue(head, head.contains("Content-Encoding: gzip\r\n"));
+                assertFalse(head.contains("Content-Length"));
+                byte[] encoded = Arrays.copyOfRange(raw, head.length(), raw.length);
+                assertTrue(encoded.length < body.length / 4);
+                assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(encoded))));
+            }
+            String plain = proxy.get(origin.url("/sized"), "");
+            assertFalse(plain.contains("Content-Encoding"));
+            assertTrue(plain.contains("Content-Length: " + body.length));
+        }
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; sb.length() < length; i++)
+            sb.append("{\"line\":").append(i).append(",\"text\":\"the quick brown fox\"}\n");
+        return sb.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String head(byte[] raw) {
+        String text = new String(raw, StandardCharsets.ISO_8859_1);
+        return text.substring(0, text.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static String between(String text, String from, String to) {
+        int start = text.indexOf(from) + from.length();
+        return text.substring(start, text.indexOf(to, start));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package spiderproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+
+
+public class SearchIndexTest {
+
+    public SearchIndexTest() {}
+
+    /**
+     * Tests:
+     *    Word terms match host labels and path words by prefix
+     *    Path terms match URLs whose path starts with the term
+     *    Host terms match hostnames, ignoring 'www.'
+     *    Multiple terms must all match
+     */
+    @org.junit.Test
+    public void testTermKinds(){
+        SearchIndex index = new SearchIndex();
+        index.add("http://www.wiu.edu/");
+        index.add("http://www.wiu.edu/academics/majors.php");
+        index.add("http://www.wiu.edu/academics/");
+        index.add("http://stealmylogin.com/demo.html");
+
+        assertEquals(3, index.search("wiu", 0, 10).getTotal());
+        assertEquals(1, index.search("maj", 0, 10).getTotal());
+        assertEquals(2, index.search("/acad", 0, 10).getTotal());
+        assertEquals(1, index.search("/academics/majors", 0, 10).getTotal());
+        assertEquals(3, index.search("www.wiu.edu", 0, 10).getTotal());
+        assertEquals(1, index.search("stealmylogin.com", 0, 10).getTotal());
+        assertEquals(1, index.search("wiu majors", 0, 10).getTotal());
+        assertEquals(0, index.search("wiu demo", 0, 10).getTotal());
+        assertEquals(0, index.search("", 0, 10).getTotal());
+    }
+
+    /**
+     * Tests:
+     *    Re-adding a URL does not duplicate it
+     *    Results are returned newest first and paged by offset and limit
+     */
+    @org.junit.Test
+    public void testPagingAndDuplicates(){
+        SearchIndex index = new SearchIndex();
+        for(int i = 0; i < 25; i++){
+            assertTrue(index.add("http://example.com/page/" + i));
+        }
+        assertFalse(index.add("http://example.com/page/3"));
+        assertEquals(25, index.size());
+
+        SearchIndex.Result first = index.search("example", 0, 10);
+        assertEquals(25, first.getTotal());
+        assertEquals(Arrays.asList("http://example.com/page/24", "http://example.com/page/23"), first.getUrls().subList(0, 2));
+        SearchIndex.Result last = index.search("example", 20, 10);
+        assertEquals(5, last.getUrls().size());
+        assertEquals("http://example.com/page/0", last.getUrls().get(4));
+    }
+
+    /**
+     * Tests:
+     *    Over many hosts and sections, each kind of term matches exactly the URLs it should
+     *    Matching URLs are paged newest first, however many there are
+     */
+    @org.junit.Test
+    public void testManyHosts(){
+        SearchIndex index = new SearchIndex();
+        String[] sections = {"news", "docs", "blog", "products"};
+        List<String> paths = new ArrayList<>();
+        for(int i = 0; i < 2000; i++){
+            String host = "host" + (i % 20) + ".example.com";
+            String path = "/" + sections[i % sections.length] + "/" + (i / 7) + "/item-" + i + ".html";
+            paths.add(path);
+            index.add("http://" + host + path);
+        }
+        assertEquals(2000, index.size());
+        assertEquals(500, index.search("docs", 0, 10).getTotal());
+        assertEquals(100, index.search("host7.example.com", 0, 10).getTotal());
+        assertEquals(100, index.search("host7.example.com products", 0, 10).getTotal());
+        assertEquals(0, index.search("host7.example.com news", 0, 10).getTotal());
+        assertEquals(paths.stream().filter(path -> path.startsWith("/blog/12")).count(), index.search("/blog/12", 0, 10).getTotal());
+        assertEquals(1, index.search("item-1999", 0, 10).getTotal());
+        assertEquals(2000, index.search("example", 0, 10).getTotal());
+
+        SearchIndex.Result page = index.search("host7.example.com", 90, 50);
+        assertEquals(10, page.getUrls().size());
+        assertEquals("http://host7.example.com/products/1/item-7.html", page.getUrls().get(9));
+    }
+}
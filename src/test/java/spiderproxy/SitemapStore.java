@@ -0,0 +1,64 @@
+package spiderproxy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * A place sitemaps are kept, as seen by SitemapStressSuite. The suite only
+ * needs to insert URLs and list a host's URLs back, so any storage backend
+ * can be checked against the same invariants by implementing these two.
+ */
+public interface SitemapStore {
+
+    /**
+     * Adds a URL to its host's sitemap unless it is already there.
+     *
+     * @param url the URL
+     * @param hostname its host
+     * @return whether the URL was newly added
+     * @throws Exception if the store fails
+     */
+    boolean insert(String url, String hostname) throws Exception;
+
+    /**
+     * Lists every URL in a host's sitemap, in the order stored. Must fail
+     * rather than return a partial list if the sitemap cannot be read whole.
+     *
+     * @param hostname the host
+     * @return its URLs, or nothing if the host has no sitemap
+     * @throws Exception if the sitemap cannot be read
+     */
+    List<String> urls(String hostname) throws Exception;
+
+    /**
+     * Returns the store the proxy uses: one XML file per host under
+     * DataAccessor.path, written by BusinessLogic.checkAndInsert.
+     *
+     * @return the file store
+     */
+    static SitemapStore files() {
+        return new SitemapStore() {
+            @Override
+            public boolean insert(String url, String hostname) throws Exception {
+                return BusinessLogic.checkAndInsert(url, hostname);
+            }
+
+            @Override
+            public List<String> urls(String hostname) throws Exception {
+                File sitemap = DataAccessor.getXMLFile(hostname);
+                if (!sitemap.exists())
+                    return Collections.emptyList();
+                Document document = DataAccessor.getDocFromFile(sitemap.getPath());
+                NodeList locs = document.getElementsByTagName("loc");
+                List<String> urls = new ArrayList<>(locs.getLength());
+                for (int i = 0; i < locs.getLength(); i++)
+                    urls.add(locs.item(i).getTextContent().trim());
+                return urls;
+            }
+        };
+    }
+}
@@ -0,0 +1,203 @@
+package spiderproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a SitemapStore with writers and readers at once, checking its
+ * invariants while measuring throughput.
+ *
+ * Every writer inserts every URL of every host, each in its own shuffled
+ * order, so the same URL is raced by all writers and each host's sitemap is
+ * changed from many threads. Meanwhile readers list random hosts over and
+ * over. The store must keep these:
+ *  - every read parses, so a sitemap is well formed at all times;
+ *  - a read never lists a URL twice, nor one that was never inserted;
+ *  - a reader never sees a host's sitemap shrink, so no insert is undone;
+ *  - each URL is reported newly added by exactly one insert;
+ *  - at the end each host lists exactly the URLs inserted for it.
+ */
+public class SitemapStressSuite {
+    public int writers = 8;
+    public int readers = 4;
+    public int hosts = 6;
+    public int urlsPerHost = 40;
+    public long seed = 47;
+    // Longest wait for the writers; a store that deadlocks fails instead of hanging.
+    public long timeoutMillis = 120000;
+
+    /**
+     * The outcome of a run.
+     */
+    public static final class Result {
+        public final LatencyHistogram insertLatency = new LatencyHistogram();
+        public final LatencyHistogram readLatency = new LatencyHistogram();
+        public final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+        private long nanos;
+
+        public double seconds() {
+            return nanos / 1e9;
+        }
+
+        public double insertsPerSecond() {
+            return insertLatency.count() / Math.max(seconds(), 1e-9);
+        }
+
+        public double readsPerSecond() {
+            return readLatency.count() / Math.max(seconds(), 1e-9);
+        }
+
+        void violation(String message) {
+            // The first few say what went wrong; thousands more would not
+            if (violations.size() < 100)
+                violations.add(message);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d inserts (%.1f/s, p50 %.2f ms, p99 %.2f ms), %d reads (%.1f/s, p50 %.2f ms, p99 %.2f ms) in %.2f s, %d violations",
+                    insertLatency.count(), insertsPerSecond(), insertLatency.percentile(0.5) / 1e6, insertLatency.percentile(0.99) / 1e6,
+                    readLatency.count(), readsPerSecond(), readLatency.percentile(0.5) / 1e6, readLatency.percentile(0.99) / 1e6,
+                    seconds(), violations.size());
+        }
+    }
+
+    public static String hostname(int host) {
+        return "stress-" + host + ".test";
+    }
+
+    public static String url(int host, int page) {
+        return "http://" + hostname(host) + "/page/" + page;
+    }
+
+    /**
+     * Runs the writers and readers against an empty store.
+     *
+     * @param store the store, with no sitemaps for the suite's hosts
+     * @return the result, whose violations are empty if the store held up
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public Result run(SitemapStore store) throws InterruptedException {
+        Result result = new Result();
+        Map<String, Set<String>> expected = new HashMap<>();
+        List<String[]> inserts = new ArrayList<>();
+        for (int h = 0; h < hosts; h++) {
+            Set<String> urls = new HashSet<>();
+            for (int p = 0; p < urlsPerHost; p++) {
+                urls.add(url(h, p));
+                inserts.add(new String[]{url(h, p), hostname(h)});
+            }
+            expected.put(hostname(h), urls);
+        }
+        Map<String, AtomicInteger> added = new ConcurrentHashMap<>();
+        AtomicInteger writing = new AtomicInteger(writers);
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            List<String[]> order = new ArrayList<>(inserts);
+            Collections.shuffle(order, new Random(seed + i));
+            threads.add(start(() -> {
+                try {
+                    for (String[] insert : order)
+                        insert(store, insert[0], insert[1], added, result);
+                } finally {
+                    writing.decrementAndGet();
+                }
+            }, "stress-writer-" + i));
+        }
+        List<Thread> readerThreads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            readerThreads.add(start(() -> {
+                Map<String, Integer> seen = new HashMap<>();
+                while (writing.get() > 0)
+                    read(store, hostname(ThreadLocalRandom.current().nextInt(hosts)), expected, seen, result);
+            }, "stress-reader-" + i));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive())
+                result.violation(thread.getName() + " did not finish within " + timeoutMillis + " ms");
+        }
+        for (Thread thread : readerThreads)
+            thread.join(timeoutMillis);
+        result.nanos = System.nanoTime() - start;
+
+        for (String[] insert : inserts) {
+            AtomicInteger count = added.get(insert[0]);
+            int times = count == null ? 0 : count.get();
+            if (times != 1)
+                result.violation(insert[0] + " reported newly added " + times + " times");
+        }
+        for (Map.Entry<String, Set<String>> host : expected.entrySet()) {
+            try {
+                List<String> urls = store.urls(host.getKey());
+                Set<String> unique = new HashSet<>(urls);
+                if (unique.size() != urls.size())
+                    result.violation(host.getKey() + " ends with " + (urls.size() - unique.size()) + " duplicate URLs");
+                for (String url : host.getValue()) {
+                    if (!unique.contains(url))
+                        result.violation(host.getKey() + " lost " + url);
+                }
+                unique.removeAll(host.getValue());
+                for (String url : unique)
+                    result.violation(host.getKey() + " ends with unexpected " + url);
+            } catch (Exception ex) {
+                result.violation(host.getKey() + " cannot be read at the end: " + ex);
+            }
+        }
+        return result;
+    }
+
+    private static void insert(SitemapStore store, String url, String hostname, Map<String, AtomicInteger> added, Result result) {
+        long start = System.nanoTime();
+        try {
+            if (store.insert(url, hostname))
+                added.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+        } catch (Exception ex) {
+            result.violation("insert of " + url + " failed: " + ex);
+        }
+        result.insertLatency.record(System.nanoTime() - start);
+    }
+
+    private static void read(SitemapStore store, String hostname, Map<String, Set<String>> expected, Map<String, Integer> seen, Result result) {
+        long start = System.nanoTime();
+        List<String> urls;
+        try {
+            urls = store.urls(hostname);
+        } catch (Exception ex) {
+            result.violation("read of " + hostname + " failed: " + ex);
+            return;
+        } finally {
+            result.readLatency.record(System.nanoTime() - start);
+        }
+        Set<String> unique = new HashSet<>(urls);
+        if (unique.size() != urls.size())
+            result.violation(hostname + " listed " + (urls.size() - unique.size()) + " duplicate URLs");
+        if (!expected.get(hostname).containsAll(unique))
+            result.violation(hostname + " listed a URL never inserted");
+        int before = seen.getOrDefault(hostname, 0);
+        if (urls.size() < before)
+            result.violation(hostname + " shrank from " + before + " to " + urls.size() + " URLs");
+        seen.put(hostname, Math.max(before, urls.size()));
+    }
+
+    private static Thread start(Runnable body, String name) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
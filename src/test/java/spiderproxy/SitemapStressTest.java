@@ -0,0 +1,56 @@
+package spiderproxy;
+
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class SitemapStressTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String previousPath;
+
+    public SitemapStressTest() {}
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // The spider from earlier tests must not write into the suite's directory
+        assertTrue(SpiderScheduler.shared().awaitIdle(60000));
+        previousPath = DataAccessor.path;
+        DataAccessor.path = folder.getRoot().getPath() + File.separator;
+    }
+
+    @After
+    public void tearDown() {
+        DataAccessor.path = previousPath;
+    }
+
+    /**
+     * Tests:
+     *    Racing inserts of the same URLs from many threads add each exactly once
+     *    Readers running alongside always find well-formed sitemaps that never shrink
+     *    Every host ends with exactly the URLs inserted for it
+     *    No temporary files are left beside the sitemaps
+     * @throws java.lang.InterruptedException
+     */
+    @org.junit.Test
+    public void testFileStoreUnderContention() throws InterruptedException{
+        SitemapStressSuite suite = new SitemapStressSuite();
+        SitemapStressSuite.Result result = suite.run(SitemapStore.files());
+        System.out.println("Sitemap stress: " + result);
+        assertTrue(String.join("\n", result.violations), result.violations.isEmpty());
+        assertEquals(suite.writers * suite.hosts * suite.urlsPerHost, result.insertLatency.count());
+        assertTrue(result.readLatency.count() > 0);
+        List<String> files = DataAccessor.getXMLFileList();
+        for (int host = 0; host < suite.hosts; host++)
+            assertTrue(files.contains(SitemapStressSuite.hostname(host) + ".xml"));
+        for (String name : folder.getRoot().list())
+            assertFalse(name, name.startsWith(".stress-"));
+    }
+}
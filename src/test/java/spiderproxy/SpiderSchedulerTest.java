@@ -0,0 +1,66 @@
+package spiderproxy;
+
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.*;
+
+
+public class SpiderSchedulerTest {
+
+    public SpiderSchedulerTest() {}
+
+    /**
+     * Tests:
+     *    Pages are grouped into sections by host and first path segment
+     */
+    @org.junit.Test
+    public void testBucketOf(){
+        assertEquals("example.com/", SpiderScheduler.bucketOf("http://Example.com"));
+        assertEquals("example.com/docs", SpiderScheduler.bucketOf("http://example.com/docs/a/b.html"));
+        assertEquals("example.com/docs", SpiderScheduler.bucketOf("https://example.com/docs?page=2"));
+        assertEquals("example.com/", SpiderScheduler.bucketOf("http://example.com/"));
+    }
+
+    /**
+     * Tests:
+     *    A backlog the workers cannot clear cuts the sampling rate
+     *    Pages that do not fit in the queue are dropped and left to the caller
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testRateFallsWithBacklog() throws Exception{
+        SpiderScheduler scheduler = new SpiderScheduler(0, 2);
+        MemoryBudget budget = new MemoryBudget(1 << 20);
+        byte[] page = "<a href=\"/x\">x</a>".getBytes(StandardCharsets.UTF_8);
+        for(int i = 0; i < 12; i++){
+            MemoryBudget.Reservation parse = budget.tryReserve(page.length, MemoryBudget.Tier.SPIDER);
+            if(!scheduler.offer(page, page.length, "", "http://example.com/s" + i + "/", parse))
+                parse.release();
+            Thread.sleep(110);
+        }
+        assertTrue(scheduler.rate() < 1.0);
+        assertEquals(2 * page.length, budget.used());
+        assertTrue(scheduler.statsJson().contains("\"offered\":12"));
+        assertFalse(scheduler.statsJson().contains("\"dropped\":0,"));
+    }
+
+    /**
+     * Tests:
+     *    Pages relayed through the proxy are spidered in the background
+     *    Coverage is reported in the stats
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testProxySpidersInBackground() throws Exception{
+        try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+            String linked = origin.url("/spider/linked-" + System.nanoTime());
+            origin.respond("/spider/page", "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nCache-Control: no-store",
+                    "<html><body><a href=\"" + linked + "\">next</a></body></html>");
+            assertTrue(proxy.get(origin.url("/spider/page"), "").contains("next"));
+            assertTrue(SpiderScheduler.shared().awaitIdle(10000));
+            assertTrue(SearchIndex.shared().contains(linked));
+            String stats = proxy.get("http://127.0.0.1:" + proxy.port() + "/api/stats", "");
+            assertTrue(stats.contains("\"spider\""));
+            assertTrue(stats.contains("\"coverage\""));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package spiderproxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.httpclient.ChunkedInputStream;
+
+/**
+ * A tiny local HTTP origin for tests. Each path is answered by a Handler,
+ * and every request is counted so tests can tell whether the proxy went
+ * upstream.
+ */
+public class StubOrigin implements Closeable {
+
+    /**
+     * Writes the complete response for one request.
+     */
+    public interface Handler {
+        void handle(String requestLine, String header, OutputStream out) throws IOException;
+    }
+
+    private final ServerSocket server;
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final Map<String, String> lastHeaders = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> lastBodies = new ConcurrentHashMap<>();
+    private final Set<String> rejectsBody = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> continueDelays = new ConcurrentHashMap<>();
+
+    public StubOrigin() throws IOException {
+        this(InetAddress.getByName("127.0.0.1"));
+    }
+
+    public StubOrigin(InetAddress address) throws IOException {
+        server = new ServerSocket(0, 50, address);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread worker = new Thread(() -> serve(socket));
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "StubOrigin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Answers path with a fixed response; a Content-Length is added for the body.
+     */
+    public void respond(String path, String statusAndHeaders, String body) {
+        byte[] bytes = response(statusAndHeaders, body.getBytes(StandardCharsets.UTF_8));
+        on(path, (requestLine, header, out) -> out.write(bytes));
+    }
+
+    public void on(String path, Handler handler) {
+        handlers.put(path, handler);
+    }
+
+    public int hits(String path) {
+        AtomicInteger count = hits.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    public String lastHeader(String path) {
+        return lastHeaders.get(path);
+    }
+
+    /**
+     * Returns the request body last received for path, de-chunked.
+     */
+    public byte[] lastBody(String path) {
+        return lastBodies.get(path);
+    }
+
+    /**
+     * Makes path answer Expect: 100-continue requests straight away, without
+     * a 100 Continue and without reading the body.
+     */
+    public void rejectBody(String path) {
+        rejectsBody.add(path);
+    }
+
+    /**
+     * Makes path wait before answering Expect: 100-continue with its
+     * 100 Continue, as a slow origin might.
+     */
+    public void delayContinue(String path, long millis) {
+        continueDelays.put(path, millis);
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public String url(String path) {
+        return "http://" + server.getInetAddress().getHostAddress() + ":" + port() + path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    public static byte[] response(String statusAndHeaders, byte[] body) {
+        String head = statusAndHeaders.trim() + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1), 0, head.length());
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null)
+                return;
+            StringBuilder header = new StringBuilder();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty())
+                header.append(line).append("\r\n");
+            String path = requestLine.split(" ")[1];
+            hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            lastHeaders.put(path, header.toString());
+            Handler handler = handlers.get(path);
+            OutputStream out = s.getOutputStream();
+            String lower = header.toString().toLowerCase(Locale.ROOT);
+            boolean expects = lower.contains("expect: 100-continue");
+            if (!(expects && rejectsBody.contains(path))) {
+                if (expects) {
+                    Long delay = continueDelays.get(path);
+                    if (delay != null) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                }
+                readBody(path, lower, in);
+            }
+            if (handler == null)
+                out.write(response("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain", "missing".getBytes(StandardCharsets.UTF_8)));
+            else
+                handler.handle(requestLine, header.toString(), out);
+            out.flush();
+        } catch (IOException e) {
+            // the proxy hung up; nothing to do
+        }
+    }
+
+    /**
+     * Reads one header line as ISO-8859-1 without its line ending, leaving
+     * whatever follows in the stream.
+     *
+     * @return the line, or null at the end of the stream
+     */
+    public static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.append((char) b);
+        if (b == -1 && line.length() == 0)
+            return null;
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+            line.setLength(line.length() - 1);
+        return line.toString();
+    }
+
+    private void readBody(String path, String lowerHeader, InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        if (lowerHeader.contains("transfer-encoding: chunked")) {
+            InputStream chunks = new ChunkedInputStream(in);
+            while ((n = chunks.read(buffer)) != -1)
+                body.write(buffer, 0, n);
+        } else {
+            int start = lowerHeader.indexOf("content-length:");
+            if (start < 0)
+                return;
+            long remaining = Long.parseLong(lowerHeader.substring(start + 15, lowerHeader.indexOf("\r\n", start)).trim());
+            while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                body.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        lastBodies.put(path, body.toByteArray());
+    }
+}
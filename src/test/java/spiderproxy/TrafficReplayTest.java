@@ -0,0 +1,113 @@
+package spiderproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+
+
+public class TrafficReplayTest {
+
+    public TrafficReplayTest() {}
+
+    /**
+     * Tests:
+     *    Exchanges that reach the origin are captured with request body and raw response
+     *    Tunnels and internal requests are not captured
+     *    A capture replays against the stand-in origin with the recorded statuses, once the real origin is gone
+     *    Recorded requests are pointed at the stand-in's port
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testCaptureAndReplay() throws Exception{
+        Path file = Files.createTempFile("spiderproxy", ".spx");
+        try {
+            String page, form, missing;
+            try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+                page = origin.url("/replay/page");
+                form = origin.url("/replay/form");
+                missing = origin.url("/replay/missing");
+                origin.respond("/replay/page", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "recorded page");
+                origin.respond("/replay/form", "HTTP/1.1 201 Created\r\nContent-Type: text/plain\r\nCache-Control: no-store", "created");
+                TrafficRecorder.start(file);
+                assertTrue(TrafficRecorder.statsJson().contains("\"recording\":true"));
+                assertTrue(proxy.get(page, "").endsWith("recorded page"));
+                assertTrue(proxy.send("POST " + form + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.port()
+                        + "\r\nContent-Length: 5\r\n\r\nhello").startsWith("HTTP/1.1 201"));
+                assertTrue(proxy.get(missing, "").startsWith("HTTP/1.1 404"));
+                proxy.get("http://127.0.0.1:" + proxy.port() + "/api/stats", "");
+                TrafficRecorder.stop();
+            }
+
+            List<TrafficRecorder.Record> records = TrafficRecorder.read(file);
+            assertEquals(3, records.size());
+            assertEquals("GET", records.get(0).method());
+            assertEquals(page, records.get(0).url());
+            assertEquals(200, records.get(0).status());
+            assertTrue(new String(records.get(0).response, StandardCharsets.ISO_8859_1).endsWith("recorded page"));
+            assertEquals("hello", new String(records.get(1).body, StandardCharsets.ISO_8859_1));
+            assertEquals(201, records.get(1).status());
+            assertEquals(404, records.get(2).status());
+            assertTrue(records.get(1).offsetMicros >= records.get(0).offsetMicros);
+
+            String retargeted = TrafficReplay.retarget(records.get(0), 9);
+            assertTrue(retargeted.startsWith("GET http://127.0.0.1:9/replay/page HTTP/1.1\r\n"));
+            assertTrue(retargeted.contains("\r\nHost: 127.0.0.1:9\r\n"));
+
+            for(double speed : new double[]{0, 1, 4}){
+                TrafficReplay.Result result = new TrafficReplay(records).run(speed, 4);
+                assertEquals(3, result.replayed());
+                assertEquals(0, result.errors.get());
+                assertEquals(0, result.mismatches.get());
+            }
+        } finally {
+            TrafficRecorder.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests:
+     *    A capture that was never stopped reads back every exchange written so far
+     *    A capture cut off inside a record keeps the records before it
+     *    Queued exchanges give their memory back once written
+     * @throws Exception
+     */
+    @org.junit.Test
+    public void testUnstoppedCaptureIsReadable() throws Exception{
+        Path file = Files.createTempFile("spiderproxy", ".spx");
+        Path copy = Files.createTempFile("spiderproxy", ".spx");
+        try {
+            try (StubOrigin origin = new StubOrigin(); LocalProxy proxy = new LocalProxy()) {
+                origin.respond("/unstopped", "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-store", "still recording");
+                // Spider jobs of earlier tests hold memory too
+                assertTrue(SpiderScheduler.shared().awaitIdle(60000));
+                long reserved = MemoryBudget.shared().used();
+                TrafficRecorder.start(file);
+                for(int i = 0; i < 20; i++){
+                    assertTrue(proxy.get(origin.url("/unstopped"), "").endsWith("still recording"));
+                }
+                long deadline = System.currentTimeMillis() + 10000;
+                while (!TrafficRecorder.statsJson().contains("\"recorded\":20,") && System.currentTimeMillis() < deadline)
+                    Thread.sleep(20);
+                // Give the writer time to flush once its queue is empty
+                Thread.sleep(200);
+                Files.copy(file, copy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                assertEquals(reserved, MemoryBudget.shared().used());
+            }
+            List<TrafficRecorder.Record> records = TrafficRecorder.read(copy);
+            assertEquals(20, records.size());
+            assertEquals(200, records.get(19).status());
+
+            byte[] bytes = Files.readAllBytes(copy);
+            Files.write(copy, Arrays.copyOf(bytes, bytes.length - 20));
+            assertTrue(TrafficRecorder.read(copy).size() < 20);
+        } finally {
+            TrafficRecorder.stop();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(copy);
+        }
+    }
+}